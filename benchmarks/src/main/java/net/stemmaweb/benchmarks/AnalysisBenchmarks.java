@@ -0,0 +1,55 @@
+package net.stemmaweb.benchmarks;
+
+import net.stemmaweb.model.AlignmentModel;
+import net.stemmaweb.model.VariantListModel;
+import net.stemmaweb.services.RelationService;
+import net.stemmaweb.services.VariantGraphService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The read-mostly analyses of a section: the alignment table, the variant list, the
+ * colocation clusters and normalization. Normalization writes to the graph, so it is run
+ * in a transaction that is rolled back, and the section is the same for every invocation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnalysisBenchmarks {
+
+    @Benchmark
+    public AlignmentModel alignment(GraphState graph) {
+        return new AlignmentModel(graph.sectionNode);
+    }
+
+    @Benchmark
+    public VariantListModel variantList(GraphState graph) throws Exception {
+        // The defaults of GET /tradition/{tradId}/section/{sectionId}/variants
+        return new VariantListModel(graph.sectionNode, null, new ArrayList<>(), null, "punct",
+                false, false, "no", false);
+    }
+
+    @Benchmark
+    public List<Set<Node>> colocatedClusters(GraphState graph) throws Exception {
+        return RelationService.getClusters(graph.tradId, graph.sectionId, graph.db, true);
+    }
+
+    @Benchmark
+    public HashMap<Node, Node> normalizeGraph(GraphState graph) throws Exception {
+        try (Transaction tx = graph.db.beginTx()) {
+            HashMap<Node, Node> representatives = VariantGraphService.normalizeGraph(
+                    graph.sectionNode, GraphState.RELATION_TYPE);
+            tx.failure();
+            return representatives;
+        }
+    }
+}
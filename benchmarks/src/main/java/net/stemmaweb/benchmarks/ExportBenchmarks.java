@@ -0,0 +1,36 @@
+package net.stemmaweb.benchmarks;
+
+import net.stemmaweb.exporter.TabularExporter;
+import org.openjdk.jmh.annotations.*;
+
+import javax.ws.rs.core.Response;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The tabular exports of a tradition. The JSON export returns the alignment model, which is
+ * only turned into JSON when the response is written, so its time is that of building the
+ * model; the CSV and character matrix exports are measured up to their finished text.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExportBenchmarks {
+
+    @Benchmark
+    public Response tabularJson(GraphState graph) {
+        return new TabularExporter(graph.db).exportAsJSON(graph.tradId, null, Collections.emptyList(), false);
+    }
+
+    @Benchmark
+    public Response tabularCsv(GraphState graph) {
+        return new TabularExporter(graph.db).exportAsCSV(graph.tradId, ',', null, Collections.emptyList(), false);
+    }
+
+    @Benchmark
+    public Response charMatrix(GraphState graph) {
+        return new TabularExporter(graph.db).exportAsCharMatrix(graph.tradId, 8, null, Collections.emptyList(), false);
+    }
+}
@@ -0,0 +1,197 @@
+package net.stemmaweb.benchmarks;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The shape of a synthetic tradition: how many witnesses and sections it has, how long each
+ * section is, how often the witnesses differ from one another and in what ways, and how much
+ * editorial work, i.e. emendations and annotations, is added to it. The setters return the
+ * settings, so that they can be chained.
+ */
+public class GeneratorSettings {
+    private int witnesses = 5;
+    private int ranks = 200;
+    private int sections = 1;
+    private int layers = 0;
+    private double variationRate = 0.15;
+    private double omissionRate = 0.05;
+    private double layerRate = 0.1;
+    private double lacunaRate = 0;
+    private double transpositionRate = 0;
+    private double relationDensity = 0;
+    private List<String> relationTypes = Arrays.asList("grammatical", "spelling", "lexical", "orthographic");
+    private double emendationRate = 0;
+    private double annotationRate = 0;
+
+    public int getWitnesses() {
+        return witnesses;
+    }
+
+    /**
+     * @param witnesses - the number of witnesses
+     * @return these settings
+     */
+    public GeneratorSettings setWitnesses(int witnesses) {
+        this.witnesses = witnesses;
+        return this;
+    }
+
+    public int getRanks() {
+        return ranks;
+    }
+
+    /**
+     * @param ranks - the number of rows of the alignment table of each section
+     * @return these settings
+     */
+    public GeneratorSettings setRanks(int ranks) {
+        this.ranks = ranks;
+        return this;
+    }
+
+    public int getSections() {
+        return sections;
+    }
+
+    /**
+     * @param sections - the number of sections
+     * @return these settings
+     */
+    public GeneratorSettings setSections(int sections) {
+        this.sections = sections;
+        return this;
+    }
+
+    public int getLayers() {
+        return layers;
+    }
+
+    /**
+     * @param layers - the number of witnesses that also have an a.c. layer
+     * @return these settings
+     */
+    public GeneratorSettings setLayers(int layers) {
+        this.layers = layers;
+        return this;
+    }
+
+    public double getVariationRate() {
+        return variationRate;
+    }
+
+    /**
+     * @param variationRate - how often a witness has a variant of the word at a rank
+     * @return these settings
+     */
+    public GeneratorSettings setVariationRate(double variationRate) {
+        this.variationRate = variationRate;
+        return this;
+    }
+
+    public double getOmissionRate() {
+        return omissionRate;
+    }
+
+    /**
+     * @param omissionRate - how often a witness omits the word at a rank
+     * @return these settings
+     */
+    public GeneratorSettings setOmissionRate(double omissionRate) {
+        this.omissionRate = omissionRate;
+        return this;
+    }
+
+    public double getLayerRate() {
+        return layerRate;
+    }
+
+    /**
+     * @param layerRate - how often a layer has a reading of its own, rather than its witness's
+     * @return these settings
+     */
+    public GeneratorSettings setLayerRate(double layerRate) {
+        this.layerRate = layerRate;
+        return this;
+    }
+
+    public double getLacunaRate() {
+        return lacunaRate;
+    }
+
+    /**
+     * @param lacunaRate - how often a witness breaks off into a lacuna, of 2 to 20 ranks
+     * @return these settings
+     */
+    public GeneratorSettings setLacunaRate(double lacunaRate) {
+        this.lacunaRate = lacunaRate;
+        return this;
+    }
+
+    public double getTranspositionRate() {
+        return transpositionRate;
+    }
+
+    /**
+     * @param transpositionRate - how often some of the witnesses swap the words on either
+     *                          side of a rank
+     * @return these settings
+     */
+    public GeneratorSettings setTranspositionRate(double transpositionRate) {
+        this.transpositionRate = transpositionRate;
+        return this;
+    }
+
+    public double getRelationDensity() {
+        return relationDensity;
+    }
+
+    /**
+     * @param relationDensity - the share of the ranks with more than one reading at which two
+     *                        of the readings are related
+     * @return these settings
+     */
+    public GeneratorSettings setRelationDensity(double relationDensity) {
+        this.relationDensity = relationDensity;
+        return this;
+    }
+
+    public List<String> getRelationTypes() {
+        return relationTypes;
+    }
+
+    /**
+     * @param relationTypes - the relation types to choose from; they should all be colocated
+     * @return these settings
+     */
+    public GeneratorSettings setRelationTypes(List<String> relationTypes) {
+        this.relationTypes = relationTypes;
+        return this;
+    }
+
+    public double getEmendationRate() {
+        return emendationRate;
+    }
+
+    /**
+     * @param emendationRate - how often the words at a rank are given an emendation
+     * @return these settings
+     */
+    public GeneratorSettings setEmendationRate(double emendationRate) {
+        this.emendationRate = emendationRate;
+        return this;
+    }
+
+    public double getAnnotationRate() {
+        return annotationRate;
+    }
+
+    /**
+     * @param annotationRate - how often a comment on the text begins at a rank
+     * @return these settings
+     */
+    public GeneratorSettings setAnnotationRate(double annotationRate) {
+        this.annotationRate = annotationRate;
+        return this;
+    }
+}
@@ -0,0 +1,121 @@
+package net.stemmaweb.benchmarks;
+
+import net.stemmaweb.model.RelationModel;
+import net.stemmaweb.rest.Nodes;
+import net.stemmaweb.rest.Relation;
+import net.stemmaweb.rest.Root;
+import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.RelationService;
+import net.stemmaweb.services.VariantGraphService;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONObject;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.*;
+
+import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * A tradition of one section, made from a {@link SyntheticTable} and stored in a database in
+ * a temporary directory, which lasts for one trial of a benchmark. The size of the section is
+ * set by the benchmark parameters: the number of ranks (each rank has one reading per
+ * distinct variant, so a section has somewhat more readings than ranks), the number of
+ * witnesses, the number of witnesses with an a.c. layer, and the share of ranks with more
+ * than one reading at which two of the readings are linked by a colocated relation.
+ */
+@State(Scope.Benchmark)
+public class GraphState {
+    static final long SEED = 20200901L;
+    static final String USER = "benchmark";
+    // The colocated relation type that the relations are made with and the section is normalized on
+    static final String RELATION_TYPE = "grammatical";
+
+    @Param({"200", "2000"})
+    public int ranks;
+
+    @Param({"5", "25"})
+    public int witnesses;
+
+    @Param({"0", "2"})
+    public int layers;
+
+    @Param({"0", "0.3"})
+    public double relationDensity;
+
+    Path dbDir;
+    GraphDatabaseService db;
+    SyntheticTable table;
+    String tradId;
+    String sectionId;
+    Node sectionNode;
+    Node startNode;
+    // The section's readings, in order of rank
+    List<Node> readings;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dbDir = Files.createTempDirectory("stemmarest-jmh");
+        db = new GraphDatabaseServiceProvider(dbDir.toString()).getDatabase();
+        DatabaseService.createRootNode(db);
+        TraditionGenerator.createUser(db, USER);
+
+        // Import the table as the tradition's only section
+        table = new SyntheticTable(ranks, witnesses, layers, SEED);
+        Response result = new Root().importGraphMl("Benchmark", USER, "false", "Latin", "LR", null, "csv",
+                new ByteArrayInputStream(table.toDelimited(',').getBytes(StandardCharsets.UTF_8)), null);
+        if (result.getStatus() != Response.Status.CREATED.getStatusCode())
+            throw new IllegalStateException("Could not create the tradition: " + result.getEntity());
+        tradId = new JSONObject(result.getEntity().toString()).getString("tradId");
+        RelationService.returnRelationType(tradId, RELATION_TYPE);
+        try (Transaction tx = db.beginTx()) {
+            sectionNode = VariantGraphService.getSectionNodes(tradId, db).get(0);
+            sectionId = String.valueOf(sectionNode.getId());
+            startNode = VariantGraphService.getStartNode(sectionId, db);
+            readings = db.findNodes(Nodes.READING, "section_id", sectionNode.getId()).stream()
+                    .filter(x -> !x.hasProperty("is_start") && !x.hasProperty("is_end"))
+                    .sorted(Comparator.comparing(x -> (Long) x.getProperty("rank")))
+                    .collect(Collectors.toList());
+            tx.success();
+        }
+        addRelations();
+    }
+
+    // Link two of the readings at the given share of the ranks that have more than one
+    private void addRelations() {
+        if (relationDensity == 0) return;
+        Random random = new Random(SEED);
+        List<RelationModel> relations = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            Map<Object, List<Node>> byRank = readings.stream()
+                    .collect(Collectors.groupingBy(x -> x.getProperty("rank"), TreeMap::new, Collectors.toList()));
+            for (List<Node> atRank : byRank.values()) {
+                if (atRank.size() < 2 || random.nextDouble() >= relationDensity) continue;
+                RelationModel rm = new RelationModel();
+                rm.setSource(String.valueOf(atRank.get(0).getId()));
+                rm.setTarget(String.valueOf(atRank.get(1).getId()));
+                rm.setType(RELATION_TYPE);
+                rm.setScope("local");
+                relations.add(rm);
+            }
+            tx.success();
+        }
+        if (relations.isEmpty()) return;
+        Response result = new Relation(tradId).createBatch(relations);
+        if (result.getStatus() != Response.Status.CREATED.getStatusCode())
+            throw new IllegalStateException("Could not create the relations: " + result.getEntity());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        db.shutdown();
+        FileUtils.deleteDirectory(dbDir.toFile());
+    }
+}
@@ -0,0 +1,107 @@
+package net.stemmaweb.benchmarks;
+
+import net.stemmaweb.exporter.BinaryGraphExporter;
+import net.stemmaweb.exporter.GraphMLExporter;
+import net.stemmaweb.exporter.StemmawebExporter;
+import net.stemmaweb.rest.Tradition;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.*;
+
+import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a section in each of the accepted file types into the benchmark tradition. The
+ * tabular, CollateX and TEI files are written from the synthetic table (the CollateX GraphML
+ * and TEI files without the layers, which those formats don't carry), and the GraphML,
+ * Stemmaweb and binary graph files are exported from the tradition itself. Each parse runs
+ * in a transaction that is rolled back, so that the tradition stays the same size; the time
+ * taken to commit the new section is therefore not included.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmarks {
+
+    /**
+     * The file to parse.
+     */
+    @State(Scope.Benchmark)
+    public static class Input {
+        @Param({"csv", "tsv", "xlsx", "cxjson", "collatex", "teips", "stemmaweb", "graphml", "binarygraph"})
+        public String filetype;
+
+        byte[] data;
+
+        @Setup(Level.Trial)
+        public void setUp(GraphState graph) throws IOException {
+            switch (filetype) {
+                case "csv":
+                    data = utf8(graph.table.toDelimited(','));
+                    break;
+                case "tsv":
+                    data = utf8(graph.table.toDelimited('\t'));
+                    break;
+                case "xlsx":
+                    data = graph.table.toXlsx();
+                    break;
+                case "cxjson":
+                    data = utf8(graph.table.toCollateXJson());
+                    break;
+                case "collatex":
+                    data = utf8(graph.table.toCollateXGraphML());
+                    break;
+                case "teips":
+                    data = utf8(graph.table.toTEIParallelSeg());
+                    break;
+                case "stemmaweb":
+                    // The legacy exporter writes to a file and returns its name
+                    String file = new StemmawebExporter().writeNeo4J(graph.tradId).getEntity().toString();
+                    data = Files.readAllBytes(Paths.get(file));
+                    Files.delete(Paths.get(file));
+                    break;
+                case "graphml":
+                    data = utf8(new GraphMLExporter().writeNeo4J(graph.tradId, graph.sectionId, false)
+                            .getEntity().toString());
+                    break;
+                case "binarygraph":
+                    try (Transaction tx = graph.db.beginTx()) {
+                        data = new BinaryGraphExporter().writeSection(graph.sectionNode);
+                        tx.success();
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown file type " + filetype);
+            }
+            // Make sure that the file parses before it is timed
+            Response result = parseInput(graph, this);
+            if (result.getStatus() != Response.Status.CREATED.getStatusCode())
+                throw new IllegalStateException("Could not parse " + filetype + ": " + result.getEntity());
+        }
+
+        private static byte[] utf8(String s) {
+            return s.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    public Response parse(GraphState graph, Input input) {
+        return parseInput(graph, input);
+    }
+
+    private static Response parseInput(GraphState graph, Input input) {
+        try (Transaction tx = graph.db.beginTx()) {
+            Response result = new Tradition(graph.tradId).addSection("parsed", input.filetype,
+                    new ByteArrayInputStream(input.data));
+            tx.failure();
+            return result;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package net.stemmaweb.benchmarks;
+
+import net.stemmaweb.services.ColocationIndex;
+import net.stemmaweb.services.ReadingService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-ranking a section, and checking whether colocating two readings would make the
+ * alignment cyclic, both by searching the graph and with a {@link ColocationIndex}.
+ * Re-ranking writes to the graph, so it is run in a transaction that is rolled back.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RankBenchmarks {
+    private static final int PAIRS = 64;
+
+    /**
+     * Pairs of readings at different ranks to check for cyclicity, taken in turn.
+     */
+    @State(Scope.Thread)
+    public static class ReadingPairs {
+        Node[][] pairs = new Node[PAIRS][];
+        int next = 0;
+
+        @Setup(Level.Trial)
+        public void setUp(GraphState graph) {
+            Random random = new Random(GraphState.SEED);
+            try (Transaction tx = graph.db.beginTx()) {
+                for (int i = 0; i < PAIRS; i++) {
+                    Node a, b;
+                    do {
+                        a = graph.readings.get(random.nextInt(graph.readings.size()));
+                        b = graph.readings.get(random.nextInt(graph.readings.size()));
+                    } while (a.getProperty("rank").equals(b.getProperty("rank")));
+                    pairs[i] = new Node[]{a, b};
+                }
+                tx.success();
+            }
+        }
+
+        Node[] next() {
+            next = (next + 1) % PAIRS;
+            return pairs[next];
+        }
+    }
+
+    @Benchmark
+    public Set<Node> recalculateRank(GraphState graph) throws Exception {
+        try (Transaction tx = graph.db.beginTx()) {
+            Set<Node> changed = ReadingService.recalculateRank(graph.startNode, true);
+            tx.failure();
+            return changed;
+        }
+    }
+
+    @Benchmark
+    public boolean wouldGetCyclic(GraphState graph, ReadingPairs pairs) throws Exception {
+        Node[] pair = pairs.next();
+        try (Transaction tx = graph.db.beginTx()) {
+            boolean result = ReadingService.wouldGetCyclic(pair[0], pair[1]);
+            tx.success();
+            return result;
+        }
+    }
+
+    @Benchmark
+    public ColocationIndex colocationIndex(GraphState graph) throws Exception {
+        try (Transaction tx = graph.db.beginTx()) {
+            ColocationIndex index = new ColocationIndex(graph.sectionNode);
+            tx.success();
+            return index;
+        }
+    }
+}
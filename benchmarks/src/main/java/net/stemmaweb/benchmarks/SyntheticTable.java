@@ -0,0 +1,382 @@
+package net.stemmaweb.benchmarks;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * A made-up alignment table of a text in several witnesses, which can be written out in each
+ * of the formats that the parsers accept. Each row of the table is one rank of the text; in
+ * each row most witnesses share a reading, some have one of two variants and a few omit the
+ * word. Layered witnesses, with sigla such as "A (a.c.)", follow their base witness except
+ * at a few ranks. Depending on the {@link GeneratorSettings}, witnesses may also break off
+ * into lacunae, some witnesses may swap the words on either side of a rank, and some of
+ * the variant readings may be related; the transpositions and relations are listed by
+ * {@link #getRelations()}. The same settings and seed always give the same table.
+ */
+public class SyntheticTable {
+    // The cell value that the tabular parser reads as a lacuna
+    public static final String LACUNA = "#LACUNA#";
+
+    private final List<String> sigla = new ArrayList<>();
+    private final List<String> baseSigla = new ArrayList<>();
+    private final List<String[]> rows = new ArrayList<>();
+    // The word that most witnesses have at each row
+    private final List<String> words = new ArrayList<>();
+    private final List<RelationSpec> relations = new ArrayList<>();
+    private long readingCount;
+
+    /**
+     * A relation between two readings of the table, each given by its row and text.
+     */
+    public static class RelationSpec {
+        private final int rowA;
+        private final String textA;
+        private final int rowB;
+        private final String textB;
+        private final String type;
+
+        RelationSpec(int rowA, String textA, int rowB, String textB, String type) {
+            this.rowA = rowA;
+            this.textA = textA;
+            this.rowB = rowB;
+            this.textB = textB;
+            this.type = type;
+        }
+
+        public int getRowA() {
+            return rowA;
+        }
+
+        public String getTextA() {
+            return textA;
+        }
+
+        public int getRowB() {
+            return rowB;
+        }
+
+        public String getTextB() {
+            return textB;
+        }
+
+        public String getType() {
+            return type;
+        }
+    }
+
+    /**
+     * @param ranks     - the number of rows in the table
+     * @param witnesses - the number of witnesses
+     * @param layers    - the number of witnesses that also have an a.c. layer
+     * @param seed      - the seed for the random choices
+     */
+    public SyntheticTable(int ranks, int witnesses, int layers, long seed) {
+        this(new GeneratorSettings().setRanks(ranks).setWitnesses(witnesses).setLayers(layers), seed);
+    }
+
+    /**
+     * @param settings - the shape of the table
+     * @param seed     - the seed for the random choices
+     */
+    public SyntheticTable(GeneratorSettings settings, long seed) {
+        Random random = new Random(seed);
+        int witnesses = settings.getWitnesses();
+        for (int w = 0; w < witnesses; w++)
+            baseSigla.add("W" + (w + 1));
+        sigla.addAll(baseSigla);
+        for (int l = 0; l < settings.getLayers() && l < witnesses; l++)
+            sigla.add(baseSigla.get(l) + " (a.c.)");
+
+        // The number of rows that each witness has yet to spend in a lacuna
+        int[] lacunaLeft = new int[witnesses];
+        for (int r = 0; r < settings.getRanks(); r++) {
+            String word = word(random);
+            words.add(word);
+            String[] row = new String[sigla.size()];
+            for (int w = 0; w < witnesses; w++) {
+                if (lacunaLeft[w] > 0) {
+                    row[w] = LACUNA;
+                    lacunaLeft[w]--;
+                    continue;
+                }
+                if (settings.getLacunaRate() > 0 && random.nextDouble() < settings.getLacunaRate()) {
+                    row[w] = LACUNA;
+                    lacunaLeft[w] = 1 + random.nextInt(19);
+                    continue;
+                }
+                double roll = random.nextDouble();
+                if (roll < settings.getOmissionRate())
+                    row[w] = "";
+                else if (roll < settings.getOmissionRate() + settings.getVariationRate())
+                    row[w] = word + (random.nextBoolean() ? "a" : "e");
+                else
+                    row[w] = word;
+            }
+            for (int l = witnesses; l < sigla.size(); l++) {
+                String base = row[l - witnesses];
+                row[l] = base.equals(LACUNA) || random.nextDouble() >= settings.getLayerRate() ? base : word + "u";
+            }
+            rows.add(row);
+        }
+
+        // Transpositions and relations are chosen separately, so that they leave the rest
+        // of the table as it would be without them
+        Random extras = new Random(~seed);
+        if (settings.getTranspositionRate() > 0)
+            addTranspositions(extras, settings.getTranspositionRate());
+        if (settings.getRelationDensity() > 0 && !settings.getRelationTypes().isEmpty())
+            addRelations(extras, settings.getRelationDensity(), settings.getRelationTypes());
+        // Count the readings as the tabular parser makes them, with one lacuna reading in a
+        // row where any witness's lacuna begins
+        for (int r = 0; r < rows.size(); r++) {
+            String[] row = rows.get(r);
+            readingCount += Arrays.stream(row).filter(x -> !x.isEmpty() && !x.equals(LACUNA)).distinct().count();
+            for (int c = 0; c < row.length; c++)
+                if (row[c].equals(LACUNA) && (r == 0 || !rows.get(r - 1)[c].equals(LACUNA))) {
+                    readingCount++;
+                    break;
+                }
+        }
+    }
+
+    // Have some of the witnesses that read the usual words at three rows in a row swap the
+    // first and the last. The readings of a transposition must not be co-locatable, which
+    // the shared word between them makes sure of.
+    private void addTranspositions(Random random, double rate) {
+        int witnesses = baseSigla.size();
+        for (int r = 0; r + 2 < rows.size(); r++) {
+            if (random.nextDouble() >= rate) continue;
+            String first = words.get(r);
+            String middle = words.get(r + 1);
+            String last = words.get(r + 2);
+            if (first.equals(last)) continue;
+            List<Integer> candidates = new ArrayList<>();
+            for (int w = 0; w < witnesses; w++)
+                if (rows.get(r)[w].equals(first) && rows.get(r + 1)[w].equals(middle)
+                        && rows.get(r + 2)[w].equals(last))
+                    candidates.add(w);
+            // Leave at least one witness with the usual order
+            if (candidates.size() < 2) continue;
+            Collections.shuffle(candidates, random);
+            int swapped = 1 + random.nextInt(Math.max(1, candidates.size() / 3));
+            for (int w : candidates.subList(0, swapped)) {
+                swap(r, w, first, last);
+                // A layer that follows its witness follows the transposition too
+                int layer = sigla.indexOf(baseSigla.get(w) + " (a.c.)");
+                if (layer > 0)
+                    swap(r, layer, first, last);
+            }
+            relations.add(new RelationSpec(r, first, r + 2, first, "transposition"));
+            relations.add(new RelationSpec(r, last, r + 2, last, "transposition"));
+            r += 2;
+        }
+    }
+
+    private void swap(int r, int column, String first, String last) {
+        if (rows.get(r)[column].equals(first) && rows.get(r + 2)[column].equals(last)) {
+            rows.get(r)[column] = last;
+            rows.get(r + 2)[column] = first;
+        }
+    }
+
+    // Relate two of the readings at the given share of the rows that have more than one
+    private void addRelations(Random random, double density, List<String> types) {
+        for (int r = 0; r < rows.size(); r++) {
+            List<String> readings = Arrays.stream(rows.get(r))
+                    .filter(x -> !x.isEmpty() && !x.equals(LACUNA)).distinct().collect(Collectors.toList());
+            if (readings.size() < 2 || random.nextDouble() >= density) continue;
+            Collections.shuffle(readings, random);
+            String type = types.get(random.nextInt(types.size()));
+            relations.add(new RelationSpec(r, readings.get(0), r, readings.get(1), type));
+        }
+    }
+
+    private static String word(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int length = 2 + random.nextInt(7);
+        for (int i = 0; i < length; i++)
+            sb.append((char) ('a' + random.nextInt(26)));
+        return sb.toString();
+    }
+
+    public List<String> getSigla() {
+        return sigla;
+    }
+
+    public List<String[]> getRows() {
+        return rows;
+    }
+
+    /**
+     * @return the transpositions and relations between the readings of the table
+     */
+    public List<RelationSpec> getRelations() {
+        return relations;
+    }
+
+    /**
+     * @return the number of readings that the table makes when it is parsed as a tabular
+     * file, not counting the start and end nodes
+     */
+    public long getReadingCount() {
+        return readingCount;
+    }
+
+    /**
+     * @param separator - the column separator, e.g. ',' or '\t'
+     * @return the table as CSV or TSV
+     */
+    public String toDelimited(char separator) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.join(String.valueOf(separator), sigla)).append('\n');
+        for (String[] row : rows)
+            sb.append(String.join(String.valueOf(separator), row)).append('\n');
+        return sb.toString();
+    }
+
+    /**
+     * @return the table as an Excel workbook
+     * @throws IOException if the workbook can't be written
+     */
+    public byte[] toXlsx() throws IOException {
+        try (XSSFWorkbook workbook = new XSSFWorkbook(); ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            Sheet sheet = workbook.createSheet("Alignment");
+            writeRow(sheet.createRow(0), sigla.toArray(new String[0]));
+            for (int r = 0; r < rows.size(); r++)
+                writeRow(sheet.createRow(r + 1), rows.get(r));
+            workbook.write(out);
+            return out.toByteArray();
+        }
+    }
+
+    private static void writeRow(Row row, String[] cells) {
+        for (int i = 0; i < cells.length; i++)
+            if (!cells[i].isEmpty())
+                row.createCell(i).setCellValue(cells[i]);
+    }
+
+    /**
+     * @return the table in the JSON format of CollateX, which has no lacunae, so that these
+     * are written as gaps
+     */
+    public String toCollateXJson() {
+        StringBuilder sb = new StringBuilder("{\"witnesses\":[");
+        for (int w = 0; w < sigla.size(); w++)
+            sb.append(w == 0 ? "" : ",").append('"').append(sigla.get(w)).append('"');
+        sb.append("],\"table\":[");
+        for (int r = 0; r < rows.size(); r++) {
+            sb.append(r == 0 ? "[" : ",[");
+            String[] row = rows.get(r);
+            for (int w = 0; w < row.length; w++) {
+                sb.append(w == 0 ? "" : ",");
+                String text = gapped(row[w]);
+                sb.append(text.isEmpty() ? "[]" : "[{\"t\":\"" + text + "\"}]");
+            }
+            sb.append(']');
+        }
+        return sb.append("]}").toString();
+    }
+
+    /**
+     * @return the base witnesses of the table as TEI parallel segmentation, with one
+     * apparatus entry per rank and the lacunae written as gaps
+     */
+    public String toTEIParallelSeg() {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<TEI xmlns=\"http://www.tei-c.org/ns/1.0\">\n<teiHeader><fileDesc>");
+        sb.append("<titleStmt><title>Synthetic tradition</title></titleStmt>");
+        sb.append("<publicationStmt><p>Generated</p></publicationStmt><sourceDesc><listWit>\n");
+        for (String sigil : baseSigla)
+            sb.append("<witness xml:id=\"").append(sigil).append("\">").append(sigil).append("</witness>\n");
+        sb.append("</listWit></sourceDesc></fileDesc></teiHeader>\n<text><body><p>\n");
+        for (String[] row : rows) {
+            // Group the witnesses by their reading, keeping the readings in order of appearance
+            Map<String, List<String>> readings = new LinkedHashMap<>();
+            for (int w = 0; w < baseSigla.size(); w++)
+                readings.computeIfAbsent(gapped(row[w]), k -> new ArrayList<>()).add("#" + baseSigla.get(w));
+            sb.append("<app>");
+            for (Map.Entry<String, List<String>> e : readings.entrySet()) {
+                sb.append("<rdg wit=\"").append(String.join(" ", e.getValue())).append('"');
+                sb.append(e.getKey().isEmpty() ? "/>" : ">" + e.getKey() + "</rdg>");
+            }
+            sb.append("</app>\n");
+        }
+        return sb.append("</p></body></text>\n</TEI>\n").toString();
+    }
+
+    /**
+     * @return the base witnesses of the table as the GraphML variant graph that CollateX writes,
+     * with the lacunae written as gaps and the transpositions as edges between the readings
+     */
+    public String toCollateXGraphML() {
+        StringBuilder nodes = new StringBuilder();
+        // The start node is n0, at rank 0; each distinct reading of a row gets the next number
+        nodes.append(node(0, 0, ""));
+        int next = 1;
+        Map<String, Integer> previous = new HashMap<>();
+        baseSigla.forEach(x -> previous.put(x, 0));
+        // The witnesses on each path, by source and target node
+        Map<List<Integer>, List<String>> paths = new LinkedHashMap<>();
+        // The node of each reading, by row and text
+        List<Map<String, Integer>> readingIds = new ArrayList<>();
+        for (int r = 0; r < rows.size(); r++) {
+            Map<String, Integer> rowReadings = new HashMap<>();
+            readingIds.add(rowReadings);
+            for (int w = 0; w < baseSigla.size(); w++) {
+                String text = gapped(rows.get(r)[w]);
+                if (text.isEmpty()) continue;
+                Integer id = rowReadings.get(text);
+                if (id == null) {
+                    id = next++;
+                    rowReadings.put(text, id);
+                    nodes.append(node(id, r + 1, text));
+                }
+                String sigil = baseSigla.get(w);
+                paths.computeIfAbsent(Arrays.asList(previous.get(sigil), id), k -> new ArrayList<>()).add(sigil);
+                previous.put(sigil, id);
+            }
+        }
+        int end = next;
+        nodes.append(node(end, rows.size() + 1, ""));
+        for (String sigil : baseSigla)
+            paths.computeIfAbsent(Arrays.asList(previous.get(sigil), end), k -> new ArrayList<>()).add(sigil);
+
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\">\n");
+        sb.append("<key id=\"d0\" for=\"node\" attr.name=\"rank\" attr.type=\"int\"/>\n");
+        sb.append("<key id=\"d1\" for=\"node\" attr.name=\"tokens\" attr.type=\"string\"/>\n");
+        sb.append("<key id=\"d2\" for=\"edge\" attr.name=\"type\" attr.type=\"string\"/>\n");
+        sb.append("<key id=\"d3\" for=\"edge\" attr.name=\"witnesses\" attr.type=\"string\"/>\n");
+        sb.append("<graph id=\"g0\" edgedefault=\"directed\">\n").append(nodes);
+        int e = 0;
+        for (Map.Entry<List<Integer>, List<String>> path : paths.entrySet())
+            sb.append(String.format("<edge id=\"e%d\" source=\"n%d\" target=\"n%d\"><data key=\"d2\">path</data>"
+                            + "<data key=\"d3\">%s</data></edge>\n", e++, path.getKey().get(0), path.getKey().get(1),
+                    String.join(", ", path.getValue())));
+        for (RelationSpec rs : relations) {
+            if (!rs.getType().equals("transposition")) continue;
+            Integer source = readingIds.get(rs.getRowA()).get(rs.getTextA());
+            Integer target = readingIds.get(rs.getRowB()).get(rs.getTextB());
+            // Either reading may belong only to a layer, which this format leaves out
+            if (source != null && target != null)
+                sb.append(String.format("<edge id=\"e%d\" source=\"n%d\" target=\"n%d\">"
+                        + "<data key=\"d2\">transposition</data></edge>\n", e++, source, target));
+        }
+        return sb.append("</graph>\n</graphml>\n").toString();
+    }
+
+    private static String gapped(String cell) {
+        return cell.equals(LACUNA) ? "" : cell;
+    }
+
+    private static String node(int id, int rank, String text) {
+        return String.format("<node id=\"n%d\"><data key=\"d0\">%d</data><data key=\"d1\">%s</data></node>\n",
+                id, rank, text);
+    }
+}
@@ -0,0 +1,385 @@
+package net.stemmaweb.benchmarks;
+
+import net.stemmaweb.model.AnnotationLabelModel;
+import net.stemmaweb.model.AnnotationLinkModel;
+import net.stemmaweb.model.AnnotationModel;
+import net.stemmaweb.model.ProposedEmendationModel;
+import net.stemmaweb.model.RelationModel;
+import net.stemmaweb.rest.*;
+import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import org.json.JSONObject;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Makes synthetic traditions of any size, for testing how the server copes with scale without
+ * having to use anyone's real data. A tradition is made section by section, each section from
+ * its own {@link SyntheticTable}, so that only one section is held in memory at a time. The
+ * sections can be written straight into a Stemmarest database, through the same parsers that
+ * an upload goes through, or out to files in the CollateX JSON, CollateX GraphML or CSV
+ * format, one file per section. In the database, the sections can also be given emendations
+ * and annotations, which the file formats have no place for.
+ *
+ * The main method is a command line front end; run it without arguments for the options.
+ */
+public class TraditionGenerator {
+    // The authority named for the emendations, and the label of the annotations
+    private static final String EDITOR = "generator";
+    private static final String COMMENT = "COMMENT";
+
+    private final GeneratorSettings settings;
+    private final long seed;
+
+    /**
+     * @param settings - the shape of the tradition
+     * @param seed     - the seed for the random choices; section i is made with seed + i
+     */
+    public TraditionGenerator(GeneratorSettings settings, long seed) {
+        this.settings = settings;
+        this.seed = seed;
+    }
+
+    /**
+     * @param index - the number of the section, from 0
+     * @return the alignment table of that section
+     */
+    public SyntheticTable section(int index) {
+        return new SyntheticTable(settings, seed + index);
+    }
+
+    /**
+     * Create an empty tradition in the database that the application is using.
+     *
+     * @param userId - the owner of the tradition, who must exist
+     * @param name   - the name of the tradition
+     * @return the ID of the tradition
+     */
+    public static String createTradition(String userId, String name) {
+        Response result = new Root().importGraphMl(name, userId, "false", "Latin", "LR", "true", null, null, null);
+        if (result.getStatus() != Response.Status.CREATED.getStatusCode())
+            throw new IllegalStateException("Could not create the tradition: " + result.getEntity());
+        return new JSONObject(result.getEntity().toString()).getString("tradId");
+    }
+
+    /**
+     * Add a section to a tradition, with its relations. The section is parsed from CSV, which
+     * of the formats is the only one that keeps lacunae as well as layers.
+     *
+     * @param tradId - the tradition to add the section to
+     * @param name   - the name of the section
+     * @param table  - the section's alignment table
+     * @return the ID of the new section
+     */
+    public static String addSection(String tradId, String name, SyntheticTable table) {
+        byte[] csv = table.toDelimited(',').getBytes(StandardCharsets.UTF_8);
+        Response result = new Tradition(tradId).addSection(name, "csv", new ByteArrayInputStream(csv));
+        if (result.getStatus() != Response.Status.CREATED.getStatusCode())
+            throw new IllegalStateException("Could not add section " + name + ": " + result.getEntity());
+        String sectionId = String.valueOf(new JSONObject(result.getEntity().toString()).get("parentId"));
+        addRelations(tradId, sectionId, table);
+        return sectionId;
+    }
+
+    /**
+     * Make the table's transpositions and relations between the readings of a section.
+     * They are made in one batch if possible; if the batch is refused, because one of the
+     * relations would not be valid in the graph as it stands, they are made one at a time
+     * and those that are refused are left out.
+     *
+     * @param tradId    - the tradition of the section
+     * @param sectionId - the section made from the table
+     * @param table     - the table
+     * @return the number of relations made
+     */
+    public static int addRelations(String tradId, String sectionId, SyntheticTable table) {
+        if (table.getRelations().isEmpty()) return 0;
+        Map<Long, Map<String, String>> readings = readingsByRank(sectionId);
+        List<RelationModel> models = new ArrayList<>();
+        for (SyntheticTable.RelationSpec rs : table.getRelations()) {
+            String source = readings.getOrDefault((long) rs.getRowA() + 1, Collections.emptyMap()).get(rs.getTextA());
+            String target = readings.getOrDefault((long) rs.getRowB() + 1, Collections.emptyMap()).get(rs.getTextB());
+            if (source == null || target == null) continue;
+            RelationModel rm = new RelationModel();
+            rm.setSource(source);
+            rm.setTarget(target);
+            rm.setType(rs.getType());
+            rm.setScope("local");
+            models.add(rm);
+        }
+        if (models.isEmpty()) return 0;
+        Relation relation = new Relation(tradId);
+        if (relation.createBatch(models).getStatus() == Response.Status.CREATED.getStatusCode())
+            return models.size();
+        int made = 0;
+        for (RelationModel rm : models)
+            if (relation.create(rm).getStatus() == Response.Status.CREATED.getStatusCode())
+                made++;
+        return made;
+    }
+
+    /**
+     * Propose emendations to a section, each in place of the words at a single rank, at the
+     * emendation rate of the settings. The emendations are proposed in the name of the
+     * generator.
+     *
+     * @param tradId    - the tradition of the section
+     * @param sectionId - the section made from the table
+     * @param table     - the table
+     * @param settings  - the settings that give the emendation rate
+     * @param random    - the source of the random choices
+     * @return the number of emendations made
+     */
+    public static int addEmendations(String tradId, String sectionId, SyntheticTable table,
+                                     GeneratorSettings settings, Random random) {
+        if (settings.getEmendationRate() <= 0) return 0;
+        Section section = new Section(tradId, sectionId);
+        int made = 0;
+        for (int row = 0; row < table.getRows().size(); row++) {
+            if (random.nextDouble() >= settings.getEmendationRate()) continue;
+            ProposedEmendationModel proposal = new ProposedEmendationModel();
+            proposal.setText("emendatum" + row);
+            proposal.setAuthority(EDITOR);
+            proposal.setFromRank((long) row + 1);
+            proposal.setToRank((long) row + 2);
+            if (section.emendText(proposal).getStatus() == Response.Status.OK.getStatusCode())
+                made++;
+        }
+        return made;
+    }
+
+    /**
+     * Make the annotation label that {@link #addAnnotations} uses: a comment on a stretch of
+     * text, from one reading to another.
+     *
+     * @param tradId - the tradition to define the label for
+     */
+    public static void addAnnotationLabel(String tradId) {
+        AnnotationLabelModel label = new AnnotationLabelModel();
+        label.setName(COMMENT);
+        label.setProperties(Collections.singletonMap("text", "String"));
+        label.setLinks(Collections.singletonMap("READING", "BEGIN,END"));
+        Response result = new Tradition(tradId).getAnnotationType(COMMENT).createOrUpdateAnnotationLabel(label);
+        if (result.getStatus() != Response.Status.CREATED.getStatusCode()
+                && result.getStatus() != Response.Status.OK.getStatusCode())
+            throw new IllegalStateException("Could not define the annotation label: " + result.getEntity());
+    }
+
+    /**
+     * Annotate a section with comments, each on a stretch of one to ten ranks of the first
+     * witness's text, at the annotation rate of the settings. The label must have been made
+     * with {@link #addAnnotationLabel}. Comments that would begin or end where the first
+     * witness has no word are left out.
+     *
+     * @param tradId    - the tradition of the section
+     * @param sectionId - the section made from the table
+     * @param table     - the table
+     * @param settings  - the settings that give the annotation rate
+     * @param random    - the source of the random choices
+     * @return the number of annotations made
+     */
+    public static int addAnnotations(String tradId, String sectionId, SyntheticTable table,
+                                     GeneratorSettings settings, Random random) {
+        if (settings.getAnnotationRate() <= 0) return 0;
+        Map<Long, Map<String, String>> readings = readingsByRank(sectionId);
+        List<String[]> rows = table.getRows();
+        Tradition tradition = new Tradition(tradId);
+        int made = 0;
+        for (int row = 0; row < rows.size(); row++) {
+            if (random.nextDouble() >= settings.getAnnotationRate()) continue;
+            int last = Math.min(row + random.nextInt(10), rows.size() - 1);
+            String begin = readings.getOrDefault((long) row + 1, Collections.emptyMap()).get(rows.get(row)[0]);
+            String end = readings.getOrDefault((long) last + 1, Collections.emptyMap()).get(rows.get(last)[0]);
+            if (begin == null || end == null) continue;
+            AnnotationModel comment = new AnnotationModel();
+            comment.setLabel(COMMENT);
+            comment.setProperties(Collections.singletonMap("text", "Comment on rows " + (row + 1) + " to " + (last + 1)));
+            comment.addLink(annotationLink(begin, "BEGIN"));
+            comment.addLink(annotationLink(end, "END"));
+            if (tradition.addAnnotation(comment).getStatus() == Response.Status.CREATED.getStatusCode())
+                made++;
+        }
+        return made;
+    }
+
+    private static AnnotationLinkModel annotationLink(String readingId, String type) {
+        AnnotationLinkModel link = new AnnotationLinkModel();
+        link.setTarget(Long.valueOf(readingId));
+        link.setType(type);
+        return link;
+    }
+
+    // Find the reading IDs of a section by rank and text; the rank of a reading is its row
+    // number + 1
+    private static Map<Long, Map<String, String>> readingsByRank(String sectionId) {
+        GraphDatabaseService db = new GraphDatabaseServiceProvider().getDatabase();
+        Map<Long, Map<String, String>> readings = new HashMap<>();
+        try (Transaction tx = db.beginTx()) {
+            db.findNodes(Nodes.READING, "section_id", Long.valueOf(sectionId)).forEachRemaining(n -> {
+                if (n.hasProperty("is_start") || n.hasProperty("is_end") || n.hasProperty("is_lacuna")
+                        || n.hasLabel(Nodes.EMENDATION)) return;
+                readings.computeIfAbsent((Long) n.getProperty("rank"), k -> new HashMap<>())
+                        .put(n.getProperty("text").toString(), String.valueOf(n.getId()));
+            });
+            tx.success();
+        }
+        return readings;
+    }
+
+    /**
+     * Write a section to a file.
+     *
+     * @param table  - the section's alignment table
+     * @param format - cxjson, collatex or csv
+     * @param dir    - the directory to write to
+     * @param index  - the number of the section, from 0
+     * @return the file written
+     * @throws IOException if the file can't be written
+     */
+    public static Path writeSection(SyntheticTable table, String format, Path dir, int index) throws IOException {
+        String content;
+        String extension;
+        switch (format) {
+            case "cxjson":
+                content = table.toCollateXJson();
+                extension = "json";
+                break;
+            case "collatex":
+                content = table.toCollateXGraphML();
+                extension = "xml";
+                break;
+            case "csv":
+                content = table.toDelimited(',');
+                extension = "csv";
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown file format " + format);
+        }
+        Path file = dir.resolve(String.format("section-%04d.%s", index + 1, extension));
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static void usage() {
+        System.out.println("Usage: TraditionGenerator [options] --format store|cxjson|collatex|csv --out DIR\n"
+                + "  --witnesses N        witnesses (5)\n"
+                + "  --ranks N            ranks in each section (200)\n"
+                + "  --sections N         sections (1)\n"
+                + "  --readings N         instead of --sections, add sections until there are N readings\n"
+                + "  --layers N           witnesses with an a.c. layer (0)\n"
+                + "  --variation R        rate of variant readings (0.15)\n"
+                + "  --omission R         rate of omitted words (0.05)\n"
+                + "  --lacunae R          rate at which a witness breaks off into a lacuna (0)\n"
+                + "  --transpositions R   rate of words swapped around a shared word (0)\n"
+                + "  --relations R        share of variant locations with a relation (0)\n"
+                + "  --relation-types T,..  the colocated relation types to use (grammatical,spelling,lexical,orthographic)\n"
+                + "  --emendations R      rate of ranks given an emendation, for the store (0)\n"
+                + "  --annotations R      rate of ranks at which a comment begins, for the store (0)\n"
+                + "  --seed N             seed for the random choices\n"
+                + "  --name NAME          name of the tradition, for the store (Synthetic tradition)\n"
+                + "  --user ID            owner of the tradition, for the store; created if need be (generator)\n"
+                + "The store format writes into the Stemmarest database in DIR, as set by STEMMAREST_HOME\n"
+                + "for the server; the file formats write one file per section into DIR.");
+    }
+
+    public static void main(String[] args) throws Exception {
+        GeneratorSettings settings = new GeneratorSettings();
+        String format = null;
+        String out = null;
+        long readingTarget = 0;
+        long seed = 20200901L;
+        String name = "Synthetic tradition";
+        String user = "generator";
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--witnesses": settings.setWitnesses(Integer.parseInt(value)); break;
+                case "--ranks": settings.setRanks(Integer.parseInt(value)); break;
+                case "--sections": settings.setSections(Integer.parseInt(value)); break;
+                case "--readings": readingTarget = Long.parseLong(value); break;
+                case "--layers": settings.setLayers(Integer.parseInt(value)); break;
+                case "--variation": settings.setVariationRate(Double.parseDouble(value)); break;
+                case "--omission": settings.setOmissionRate(Double.parseDouble(value)); break;
+                case "--lacunae": settings.setLacunaRate(Double.parseDouble(value)); break;
+                case "--transpositions": settings.setTranspositionRate(Double.parseDouble(value)); break;
+                case "--relations": settings.setRelationDensity(Double.parseDouble(value)); break;
+                case "--relation-types": settings.setRelationTypes(Arrays.asList(value.split(","))); break;
+                case "--emendations": settings.setEmendationRate(Double.parseDouble(value)); break;
+                case "--annotations": settings.setAnnotationRate(Double.parseDouble(value)); break;
+                case "--seed": seed = Long.parseLong(value); break;
+                case "--name": name = value; break;
+                case "--user": user = value; break;
+                case "--format": format = value; break;
+                case "--out": out = value; break;
+                default:
+                    usage();
+                    return;
+            }
+        }
+        if (format == null || out == null || args.length % 2 != 0) {
+            usage();
+            return;
+        }
+
+        TraditionGenerator generator = new TraditionGenerator(settings, seed);
+        Path dir = Paths.get(out);
+        Files.createDirectories(dir);
+        GraphDatabaseService db = null;
+        String tradId = null;
+        if (format.equals("store")) {
+            db = new GraphDatabaseServiceProvider(dir.toString()).getDatabase();
+            DatabaseService.createRootNode(db);
+            createUser(db, user);
+            tradId = createTradition(user, name);
+            if (settings.getAnnotationRate() > 0)
+                addAnnotationLabel(tradId);
+            System.out.printf("Created tradition %s%n", tradId);
+        }
+        try {
+            long readings = 0;
+            long start = System.currentTimeMillis();
+            for (int i = 0; readingTarget > 0 ? readings < readingTarget : i < settings.getSections(); i++) {
+                SyntheticTable table = generator.section(i);
+                readings += table.getReadingCount();
+                String where;
+                if (tradId != null) {
+                    String sectionId = addSection(tradId, "Section " + (i + 1), table);
+                    // Seeded apart from the table, so that the table stays the same whatever is added
+                    Random random = new Random(~(seed + i));
+                    int emendations = addEmendations(tradId, sectionId, table, settings, random);
+                    int annotations = addAnnotations(tradId, sectionId, table, settings, random);
+                    where = String.format("section %s (%d emendations, %d annotations)",
+                            sectionId, emendations, annotations);
+                } else
+                    where = writeSection(table, format, dir, i).toString();
+                System.out.printf("%s: %d readings so far, %ds%n", where, readings,
+                        (System.currentTimeMillis() - start) / 1000);
+            }
+        } finally {
+            if (db != null) db.shutdown();
+        }
+    }
+
+    // Make sure that the owner of the tradition exists
+    static void createUser(GraphDatabaseService db, String userId) {
+        if (DatabaseService.userExists(userId, db)) return;
+        try (Transaction tx = db.beginTx()) {
+            Node rootNode = db.findNode(Nodes.ROOT, "name", "Root node");
+            Node userNode = db.createNode(Nodes.USER);
+            userNode.setProperty("id", userId);
+            userNode.setProperty("role", "user");
+            rootNode.createRelationshipTo(userNode, ERelations.SYSTEMUSER);
+            tx.success();
+        }
+    }
+}
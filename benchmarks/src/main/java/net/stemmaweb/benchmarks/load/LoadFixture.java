@@ -0,0 +1,69 @@
+package net.stemmaweb.benchmarks.load;
+
+import net.stemmaweb.model.ReadingModel;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * A section on the server that the load test works on: its tradition and section IDs, the
+ * sigla of its witnesses, and the readings that relations and merges can be made between.
+ * The readings are kept by rank, and only at ranks that have more than one; a merge takes
+ * the reading that it merges away out of its rank, so that no later request is sent for a
+ * reading that has gone.
+ */
+class LoadFixture {
+    private final String tradId;
+    private final String sectionId;
+    private final List<String> sigla;
+    private final List<List<String>> ranks;
+
+    LoadFixture(String tradId, String sectionId, List<String> sigla, List<ReadingModel> readings) {
+        this.tradId = tradId;
+        this.sectionId = sectionId;
+        this.sigla = sigla;
+        Map<Long, List<String>> byRank = readings.stream()
+                .filter(x -> !Boolean.TRUE.equals(x.getIs_start()) && !Boolean.TRUE.equals(x.getIs_end()))
+                .collect(Collectors.groupingBy(ReadingModel::getRank, TreeMap::new,
+                        Collectors.mapping(ReadingModel::getId, Collectors.toList())));
+        this.ranks = byRank.values().stream().filter(x -> x.size() > 1)
+                .map(x -> Collections.synchronizedList(new ArrayList<>(x)))
+                .collect(Collectors.toList());
+    }
+
+    String getTradId() {
+        return tradId;
+    }
+
+    String getSectionId() {
+        return sectionId;
+    }
+
+    String randomSigil(Random random) {
+        return sigla.get(random.nextInt(sigla.size()));
+    }
+
+    /**
+     * Pick two readings at the same rank.
+     *
+     * @param random - the source of the choice
+     * @param remove - whether to take the second reading out of the pool
+     * @return the two reading IDs, or null if no rank has two readings left
+     */
+    String[] pair(Random random, boolean remove) {
+        if (ranks.isEmpty()) return null;
+        // Try a few ranks before giving up, since merges leave some with a single reading
+        for (int tries = 0; tries < 10; tries++) {
+            List<String> atRank = ranks.get(random.nextInt(ranks.size()));
+            synchronized (atRank) {
+                if (atRank.size() < 2) continue;
+                int first = random.nextInt(atRank.size());
+                int second = (first + 1 + random.nextInt(atRank.size() - 1)) % atRank.size();
+                String[] pair = {atRank.get(first), atRank.get(second)};
+                if (remove) atRank.remove(second);
+                return pair;
+            }
+        }
+        return null;
+    }
+}
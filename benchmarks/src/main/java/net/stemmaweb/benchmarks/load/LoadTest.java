@@ -0,0 +1,359 @@
+package net.stemmaweb.benchmarks.load;
+
+import net.stemmaweb.benchmarks.SyntheticTable;
+import net.stemmaweb.model.*;
+import net.stemmaweb.rest.ApplicationConfig;
+import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import org.apache.commons.io.FileUtils;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.jersey.client.ClientConfig;
+import org.glassfish.jersey.grizzly2.httpserver.GrizzlyHttpServerFactory;
+import org.glassfish.jersey.media.multipart.FormDataBodyPart;
+import org.glassfish.jersey.media.multipart.FormDataMultiPart;
+import org.glassfish.jersey.media.multipart.MultiPartFeature;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.json.JSONObject;
+import org.neo4j.graphdb.GraphDatabaseService;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A load test of the whole server. It starts the application in this JVM, on a Grizzly HTTP
+ * server and a database in a temporary directory, loads some traditions into it, and then
+ * has a number of client threads send a mix of reading and writing requests over HTTP for a
+ * fixed time. At the end it reports, for each kind of request, the throughput, the latency
+ * percentiles and how many requests were rejected, failed, or failed on a deadlock.
+ *
+ * Run it with {@code java -cp target/benchmarks.jar net.stemmaweb.benchmarks.load.LoadTest};
+ * the options are listed by {@code --help}.
+ */
+public class LoadTest {
+    private static final String USER = "loadtest";
+    private static final String RELATION_TYPE = "grammatical";
+
+    private int threads = 16;
+    private int warmup = 10;
+    private int duration = 60;
+    private int traditions = 4;
+    private int ranks = 500;
+    private int witnesses = 10;
+    private int layers = 2;
+    private long seed = 20200901L;
+    private final EnumMap<Operation, Integer> mix = new EnumMap<>(Operation.class);
+    private final List<String[]> imports = new ArrayList<>();
+
+    private WebTarget server;
+    private final List<LoadFixture> fixtures = new ArrayList<>();
+    private volatile boolean measuring;
+    private volatile boolean stopped;
+
+    public static void main(String[] args) throws Exception {
+        LoadTest test = new LoadTest();
+        if (!test.parseArgs(args)) {
+            usage();
+            return;
+        }
+        test.run();
+    }
+
+    private static void usage() {
+        System.out.println("Usage: LoadTest [options]\n"
+                + "  --threads N          client threads (16)\n"
+                + "  --warmup S           seconds to run before measuring (10)\n"
+                + "  --duration S         seconds to measure (60)\n"
+                + "  --traditions N       synthetic traditions to load (4)\n"
+                + "  --ranks N            ranks in each synthetic tradition (500)\n"
+                + "  --witnesses N        witnesses in each synthetic tradition (10)\n"
+                + "  --layers N           witnesses with an a.c. layer (2)\n"
+                + "  --seed N             seed for the traditions and the clients\n"
+                + "  --mix op=W,...       weights of the operations variants, text, export,\n"
+                + "                       relation and merge (variants=30,text=30,export=10,relation=20,merge=10)\n"
+                + "  --import FILE:TYPE   also load the given file, e.g. a real tradition; may be repeated");
+    }
+
+    private boolean parseArgs(String[] args) {
+        String mixSpec = "variants=30,text=30,export=10,relation=20,merge=10";
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--help") || i + 1 == args.length) return false;
+            String value = args[++i];
+            switch (arg) {
+                case "--threads": threads = Integer.parseInt(value); break;
+                case "--warmup": warmup = Integer.parseInt(value); break;
+                case "--duration": duration = Integer.parseInt(value); break;
+                case "--traditions": traditions = Integer.parseInt(value); break;
+                case "--ranks": ranks = Integer.parseInt(value); break;
+                case "--witnesses": witnesses = Integer.parseInt(value); break;
+                case "--layers": layers = Integer.parseInt(value); break;
+                case "--seed": seed = Long.parseLong(value); break;
+                case "--mix": mixSpec = value; break;
+                case "--import":
+                    int colon = value.lastIndexOf(':');
+                    if (colon < 1) return false;
+                    imports.add(new String[]{value.substring(0, colon), value.substring(colon + 1)});
+                    break;
+                default:
+                    return false;
+            }
+        }
+        for (String part : mixSpec.split(",")) {
+            String[] kv = part.split("=");
+            mix.put(Operation.forLabel(kv[0].trim()), Integer.parseInt(kv[1].trim()));
+        }
+        return true;
+    }
+
+    private void run() throws Exception {
+        // The client keeps one connection per thread open
+        System.setProperty("http.maxConnections", String.valueOf(threads));
+        Path dbDir = Files.createTempDirectory("stemmarest-load");
+        GraphDatabaseService db = new GraphDatabaseServiceProvider(dbDir.toString()).getDatabase();
+        DatabaseService.createRootNode(db);
+        HttpServer httpServer = null;
+        Client client = ClientBuilder.newClient(new ClientConfig().register(MultiPartFeature.class));
+        try {
+            URI uri = URI.create("http://localhost:" + freePort() + "/");
+            ResourceConfig config = new ResourceConfig()
+                    .registerClasses(new ApplicationConfig().getClasses())
+                    .register(MultiPartFeature.class)
+                    .register(UnhandledExceptions.class);
+            httpServer = GrizzlyHttpServerFactory.createHttpServer(uri, config);
+            server = client.target(uri);
+
+            load();
+            Map<Operation, OperationStats> results = drive();
+            report(results);
+        } finally {
+            client.close();
+            if (httpServer != null) httpServer.shutdownNow();
+            db.shutdown();
+            FileUtils.deleteDirectory(dbDir.toFile());
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // Create the user and the traditions, and find the sections to work on
+    private void load() throws IOException {
+        UserModel user = new UserModel();
+        user.setId(USER);
+        user.setRole("user");
+        user.setActive(true);
+        expect(server.path("user/" + USER).request().put(Entity.json(user)), 201);
+
+        for (int i = 0; i < traditions; i++) {
+            SyntheticTable table = new SyntheticTable(ranks, witnesses, layers, seed + i);
+            byte[] csv = table.toDelimited(',').getBytes(StandardCharsets.UTF_8);
+            addFixtures(upload("Synthetic " + (i + 1), "csv", new ByteArrayInputStream(csv)));
+        }
+        for (String[] file : imports)
+            try (InputStream in = new FileInputStream(file[0])) {
+                addFixtures(upload(file[0], file[1], in));
+            }
+        if (fixtures.isEmpty())
+            throw new IllegalStateException("There are no sections to work on");
+        System.out.printf("Loaded %d sections in %d traditions%n", fixtures.size(), traditions + imports.size());
+    }
+
+    private String upload(String name, String filetype, InputStream file) {
+        FormDataMultiPart form = new FormDataMultiPart();
+        form.field("name", name);
+        form.field("userId", USER);
+        form.field("filetype", filetype);
+        form.bodyPart(new FormDataBodyPart("file", file, MediaType.APPLICATION_OCTET_STREAM_TYPE));
+        Response r = server.path("tradition").request().post(Entity.entity(form, MediaType.MULTIPART_FORM_DATA_TYPE));
+        return new JSONObject(expect(r, 201)).getString("tradId");
+    }
+
+    private void addFixtures(String tradId) {
+        WebTarget tradition = server.path("tradition/" + tradId);
+        List<SectionModel> sections = tradition.path("sections").request()
+                .get(new GenericType<List<SectionModel>>() {});
+        for (SectionModel sm : sections) {
+            WebTarget section = tradition.path("section/" + sm.getId());
+            List<String> sigla = new ArrayList<>();
+            for (WitnessModel wm : section.path("witnesses").request().get(new GenericType<List<WitnessModel>>() {}))
+                sigla.add(wm.getSigil());
+            List<ReadingModel> readings = section.path("readings").request()
+                    .get(new GenericType<List<ReadingModel>>() {});
+            fixtures.add(new LoadFixture(tradId, sm.getId(), sigla, readings));
+        }
+    }
+
+    private static String expect(Response r, int status) {
+        String body = r.readEntity(String.class);
+        if (r.getStatus() != status)
+            throw new IllegalStateException("Setup request failed with " + r.getStatus() + ": " + body);
+        return body;
+    }
+
+    // Run the clients through the warmup and the measurement, and add up what they recorded
+    private Map<Operation, OperationStats> drive() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Map<Operation, OperationStats>>> clients = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Random random = new Random(seed * 31 + i);
+            clients.add(pool.submit(() -> client(random)));
+        }
+        System.out.printf("Warming up for %ds with %d threads%n", warmup, threads);
+        TimeUnit.SECONDS.sleep(warmup);
+        measuring = true;
+        System.out.printf("Measuring for %ds%n", duration);
+        TimeUnit.SECONDS.sleep(duration);
+        stopped = true;
+
+        Map<Operation, OperationStats> totals = new EnumMap<>(Operation.class);
+        for (Operation op : mix.keySet())
+            totals.put(op, new OperationStats());
+        for (Future<Map<Operation, OperationStats>> f : clients)
+            f.get().forEach((op, stats) -> totals.get(op).add(stats));
+        pool.shutdown();
+        return totals;
+    }
+
+    private Map<Operation, OperationStats> client(Random random) {
+        Map<Operation, OperationStats> stats = new EnumMap<>(Operation.class);
+        for (Operation op : mix.keySet())
+            stats.put(op, new OperationStats());
+        int totalWeight = mix.values().stream().mapToInt(Integer::intValue).sum();
+        while (!stopped) {
+            int pick = random.nextInt(totalWeight);
+            Operation op = null;
+            for (Map.Entry<Operation, Integer> e : mix.entrySet()) {
+                op = e.getKey();
+                pick -= e.getValue();
+                if (pick < 0) break;
+            }
+            LoadFixture fixture = fixtures.get(random.nextInt(fixtures.size()));
+            boolean recorded = measuring;
+            OperationStats s = recorded ? stats.get(op) : new OperationStats();
+            send(op, fixture, random, s);
+        }
+        return stats;
+    }
+
+    private void send(Operation op, LoadFixture fixture, Random random, OperationStats stats) {
+        WebTarget section = server.path("tradition/" + fixture.getTradId() + "/section/" + fixture.getSectionId());
+        String[] pair = null;
+        if (op.isWrite()) {
+            pair = fixture.pair(random, op == Operation.MERGE);
+            if (pair == null) {
+                stats.recordSkipped();
+                return;
+            }
+        }
+        long start = System.nanoTime();
+        try {
+            Response r;
+            switch (op) {
+                case VARIANTS:
+                    r = section.path("variants").request().get();
+                    break;
+                case WITNESS_TEXT:
+                    r = server.path("tradition/" + fixture.getTradId() + "/witness/" + fixture.randomSigil(random)
+                            + "/text").request().get();
+                    break;
+                case EXPORT:
+                    r = section.path("graphml").request().get();
+                    break;
+                case RELATION:
+                    RelationModel rm = new RelationModel();
+                    rm.setSource(pair[0]);
+                    rm.setTarget(pair[1]);
+                    rm.setType(RELATION_TYPE);
+                    rm.setScope("local");
+                    r = server.path("tradition/" + fixture.getTradId() + "/relation").request().post(Entity.json(rm));
+                    break;
+                case MERGE:
+                    r = server.path("reading/" + pair[0] + "/merge/" + pair[1]).request().post(null);
+                    break;
+                default:
+                    throw new IllegalArgumentException(op.toString());
+            }
+            String body = r.readEntity(String.class);
+            stats.record(System.nanoTime() - start, r.getStatus(), body);
+        } catch (RuntimeException e) {
+            stats.recordFailure(System.nanoTime() - start, e);
+        }
+    }
+
+    private void report(Map<Operation, OperationStats> results) {
+        System.out.printf("%n%-10s %9s %9s %9s %9s %9s %9s %9s %9s %9s %9s%n", "Operation", "Requests", "Ok",
+                "Rejected", "Errors", "Deadlocks", "Req/s", "p50 ms", "p95 ms", "p99 ms", "max ms");
+        OperationStats reads = new OperationStats();
+        OperationStats writes = new OperationStats();
+        for (Map.Entry<Operation, OperationStats> e : results.entrySet()) {
+            reportLine(e.getKey().getLabel(), e.getValue());
+            (e.getKey().isWrite() ? writes : reads).add(e.getValue());
+        }
+        OperationStats all = new OperationStats();
+        all.add(reads);
+        all.add(writes);
+        System.out.println();
+        reportLine("reads", reads);
+        reportLine("writes", writes);
+        reportLine("all", all);
+        if (all.getCount() > 0)
+            System.out.printf("%nError rate %.2f%%, deadlock rate %.2f%%%n",
+                    100.0 * all.getErrors() / all.getCount(), 100.0 * all.getDeadlocks() / all.getCount());
+        if (!all.getErrorMessages().isEmpty()) {
+            System.out.println("\nMost frequent errors:");
+            all.getErrorMessages().entrySet().stream()
+                    .sorted(Map.Entry.<String, Long>comparingByValue().reversed()).limit(10)
+                    .forEach(e -> System.out.printf("%9d  %s%n", e.getValue(), e.getKey()));
+        }
+        if (all.getSkipped() > 0)
+            System.out.printf("%d writes were not sent because their section had no readings left to use%n",
+                    all.getSkipped());
+    }
+
+    private void reportLine(String label, OperationStats s) {
+        System.out.printf("%-10s %9d %9d %9d %9d %9d %9.1f %9.1f %9.1f %9.1f %9.1f%n", label, s.getCount(),
+                s.getOk(), s.getRejected(), s.getErrors(), s.getDeadlocks(), (double) s.getCount() / duration,
+                s.percentile(0.5), s.percentile(0.95), s.percentile(0.99), s.percentile(1.0));
+    }
+
+    /**
+     * Answers the exceptions that escape a resource method with a 500 response that names
+     * the exception, as the servlet container would log it, so that the clients can tell
+     * a deadlock from any other failure.
+     */
+    public static class UnhandledExceptions implements ExceptionMapper<Throwable> {
+        @Override
+        public Response toResponse(Throwable e) {
+            if (e instanceof WebApplicationException)
+                return ((WebApplicationException) e).getResponse();
+            StringBuilder causes = new StringBuilder();
+            for (Throwable t = e; t != null; t = t.getCause())
+                causes.append(t.getClass().getSimpleName()).append(": ").append(t.getMessage()).append('\n');
+            return Response.serverError().type(MediaType.TEXT_PLAIN).entity(causes.toString()).build();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package net.stemmaweb.benchmarks.load;
+
+/**
+ * The kinds of request that the load test sends, with the names by which they are given in
+ * the operation mix.
+ */
+public enum Operation {
+    VARIANTS("variants", false),
+    WITNESS_TEXT("text", false),
+    EXPORT("export", false),
+    RELATION("relation", true),
+    MERGE("merge", true);
+
+    private final String label;
+    private final boolean write;
+
+    Operation(String label, boolean write) {
+        this.label = label;
+        this.write = write;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public boolean isWrite() {
+        return write;
+    }
+
+    public static Operation forLabel(String label) {
+        for (Operation op : values())
+            if (op.label.equals(label))
+                return op;
+        throw new IllegalArgumentException("Unknown operation " + label);
+    }
+}
@@ -0,0 +1,144 @@
+package net.stemmaweb.benchmarks.load;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The outcomes and latencies of the requests of one kind. Each client thread keeps its own
+ * set, which are added together once the run is over, so recording a request takes no lock.
+ *
+ * A request is counted as ok if it was answered with a 2xx status, as rejected if it was
+ * answered with a 3xx or 4xx status (e.g. a relation or merge that the graph does not allow)
+ * or with a 503 because the server was too busy with requests of its kind, and as an error if it was answered with a 5xx status or not answered at all. Errors caused
+ * by a deadlock or a transaction that could not get its locks are also counted as deadlocks.
+ */
+public class OperationStats {
+    private long[] latencies = new long[1024];
+    private int count;
+    private long ok;
+    private long rejected;
+    private long errors;
+    private long deadlocks;
+    private long skipped;
+    // How often each error message was seen, by its first line
+    private final Map<String, Long> errorMessages = new HashMap<>();
+
+    /**
+     * Record an answered request.
+     *
+     * @param nanos  - the time from sending the request to reading the whole response
+     * @param status - the HTTP status of the response
+     * @param body   - the response body, which is only looked at for errors
+     */
+    public void record(long nanos, int status, String body) {
+        addLatency(nanos);
+        if (status < 300)
+            ok++;
+        else if (status < 500 || status == 503)
+            rejected++;
+        else
+            addError(body);
+    }
+
+    /**
+     * Record a request that got no answer.
+     *
+     * @param nanos - the time until the request failed
+     * @param e     - what went wrong
+     */
+    public void recordFailure(long nanos, Throwable e) {
+        addLatency(nanos);
+        addError(String.valueOf(e));
+    }
+
+    /**
+     * Record a request that was not sent because there was nothing left for it to work on,
+     * e.g. a merge on a section whose readings have all been merged.
+     */
+    public void recordSkipped() {
+        skipped++;
+    }
+
+    // Neo4j reports a deadlock with a DeadlockDetectedException, whose message doesn't
+    // name it, and a lock that times out with a LockClientStoppedException or similar
+    static boolean isDeadlock(String message) {
+        return message != null && (message.contains("DeadlockDetected")
+                || message.contains("holders of that lock are waiting")
+                || message.contains("LockClientStopped")
+                || message.contains("LockAcquisitionTimeout"));
+    }
+
+    private void addError(String message) {
+        errors++;
+        if (isDeadlock(message))
+            deadlocks++;
+        String firstLine = message == null || message.isEmpty() ? "(no message)" : message.split("\n", 2)[0];
+        errorMessages.merge(firstLine, 1L, Long::sum);
+    }
+
+    private void addLatency(long nanos) {
+        if (count == latencies.length)
+            latencies = Arrays.copyOf(latencies, count * 2);
+        latencies[count++] = nanos;
+    }
+
+    /**
+     * Add the requests recorded in another set to this one.
+     *
+     * @param other - the other set
+     */
+    public void add(OperationStats other) {
+        if (count + other.count > latencies.length)
+            latencies = Arrays.copyOf(latencies, count + other.count);
+        System.arraycopy(other.latencies, 0, latencies, count, other.count);
+        count += other.count;
+        ok += other.ok;
+        rejected += other.rejected;
+        errors += other.errors;
+        deadlocks += other.deadlocks;
+        skipped += other.skipped;
+        other.errorMessages.forEach((k, v) -> errorMessages.merge(k, v, Long::sum));
+    }
+
+    /**
+     * @param fraction - e.g. 0.99 for the 99th percentile
+     * @return the latency in milliseconds below which the given fraction of the requests fall,
+     * or 0 if there were no requests
+     */
+    public double percentile(double fraction) {
+        if (count == 0) return 0;
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(fraction * count) - 1;
+        return sorted[Math.max(0, Math.min(index, count - 1))] / 1e6;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getOk() {
+        return ok;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public long getDeadlocks() {
+        return deadlocks;
+    }
+
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public Map<String, Long> getErrorMessages() {
+        return errorMessages;
+    }
+}
@@ -0,0 +1,248 @@
+package net.stemmaweb.exporter;
+
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import net.stemmaweb.services.VariantGraphService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.Relationship;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Writes a section graph (its readings, relations and sequences, as in the JSON GraphModel)
+ * in a compact binary form, for clients that transfer whole sections and would otherwise
+ * spend most of their time parsing JSON. The data can be read back into a new section with
+ * the {@link net.stemmaweb.parser.BinaryGraphParser}.
+ *
+ * All numbers are unsigned variable-length integers, seven bits to a byte with the high
+ * bit set on all but the last byte, unless stated otherwise. Strings are written once, in
+ * a table at the start, and referred to by their position in it. The layout is:
+ * <pre>
+ *   magic "STGB", format version
+ *   string table: count, then for each string its UTF-8 length and bytes
+ *   sigil table:  count, then the string index of each witness sigil
+ *   readings:     count, then for each reading (in order of ID)
+ *                   ID minus the previous reading's ID, flags (1 = emendation),
+ *                   rank + 1 (0 if none), text string index + 1 (0 if none),
+ *                   other properties
+ *   sequences:    count, then for each sequence (in order of ID)
+ *                   ID minus the previous sequence's ID, type (as in SEQUENCE_TYPES),
+ *                   source and target reading positions, number of witness layers,
+ *                   then for each layer its name's string index and a bitset of the
+ *                   sigil table, low bit first, one bit per sigil
+ *   relations:    count, then for each relation (in order of ID)
+ *                   ID minus the previous relation's ID, source and target reading
+ *                   positions, properties
+ * </pre>
+ * A set of properties is a count, then for each property its name's string index, a type
+ * tag and the value: nothing for true or false, a zigzag-encoded number for an integer or
+ * long, eight bytes for a double, a string index for a string, and a count and string
+ * indices for a string array.
+ */
+public class BinaryGraphExporter {
+    /**
+     * The media type of the binary section graph
+     */
+    public static final String MEDIA_TYPE = "application/x-stemmaweb-graph";
+
+    public static final byte[] MAGIC = {'S', 'T', 'G', 'B'};
+    public static final int VERSION = 1;
+    public static final int FLAG_EMENDATION = 1;
+    public static final List<ERelations> SEQUENCE_TYPES = Collections.unmodifiableList(
+            Arrays.asList(ERelations.SEQUENCE, ERelations.LEMMA_TEXT, ERelations.EMENDED));
+
+    public static final int TAG_FALSE = 0;
+    public static final int TAG_TRUE = 1;
+    public static final int TAG_LONG = 2;
+    public static final int TAG_INT = 3;
+    public static final int TAG_DOUBLE = 4;
+    public static final int TAG_STRING = 5;
+    public static final int TAG_STRING_ARRAY = 6;
+
+    private final Map<String, Integer> strings = new LinkedHashMap<>();
+    private final Map<String, Integer> sigla = new LinkedHashMap<>();
+
+    /**
+     * Writes the graph of the given section.
+     * NOTE: For use inside a transaction
+     *
+     * @param sectionNode - the section to write
+     * @return the binary section graph
+     * @throws IllegalArgumentException if a reading or relation has a property whose type
+     *                                  the format cannot hold
+     */
+    public byte[] writeSection(Node sectionNode) {
+        // Gather the section in a single traversal
+        TreeMap<Long, Node> readings = new TreeMap<>();
+        TreeMap<Long, Relationship> sequences = new TreeMap<>();
+        TreeMap<Long, Relationship> relations = new TreeMap<>();
+        for (Path p : VariantGraphService.returnTraditionSection(sectionNode)) {
+            if (p.endNode().hasLabel(Nodes.READING))
+                readings.put(p.endNode().getId(), p.endNode());
+            Relationship r = p.lastRelationship();
+            if (r == null) continue;
+            if (r.isType(ERelations.RELATED))
+                relations.put(r.getId(), r);
+            else if (sequenceType(r) >= 0)
+                sequences.put(r.getId(), r);
+        }
+
+        // Readings are referred to by their position in the list
+        Map<Long, Integer> positions = new HashMap<>();
+        for (Long id : readings.keySet())
+            positions.put(id, positions.size());
+
+        // The sequences' witness lists have to be known before any bitset can be written
+        List<Map<String, Object>> sequenceProperties = new ArrayList<>();
+        for (Relationship r : sequences.values()) {
+            Map<String, Object> props = r.getAllProperties();
+            for (Object sigList : props.values())
+                for (String sigil : (String[]) sigList)
+                    sigla.putIfAbsent(sigil, sigla.size());
+            sequenceProperties.add(props);
+        }
+        for (String sigil : sigla.keySet())
+            stringIndex(sigil);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        long lastId = 0;
+        writeVarint(body, readings.size());
+        for (Node n : readings.values()) {
+            writeVarint(body, n.getId() - lastId);
+            lastId = n.getId();
+            writeVarint(body, n.hasLabel(Nodes.EMENDATION) ? FLAG_EMENDATION : 0);
+            Map<String, Object> props = n.getAllProperties();
+            Object rank = props.remove("rank");
+            writeVarint(body, rank == null ? 0 : ((Number) rank).longValue() + 1);
+            Object text = props.remove("text");
+            writeVarint(body, text == null ? 0 : stringIndex(text.toString()) + 1);
+            // The section is given by wherever the readings are restored
+            props.remove("section_id");
+            writeProperties(body, props);
+        }
+
+        lastId = 0;
+        int byteCount = (sigla.size() + 7) / 8;
+        writeVarint(body, sequences.size());
+        Iterator<Map<String, Object>> seqProps = sequenceProperties.iterator();
+        for (Relationship r : sequences.values()) {
+            writeVarint(body, r.getId() - lastId);
+            lastId = r.getId();
+            writeVarint(body, sequenceType(r));
+            writeVarint(body, positions.get(r.getStartNode().getId()));
+            writeVarint(body, positions.get(r.getEndNode().getId()));
+            Map<String, Object> props = seqProps.next();
+            writeVarint(body, props.size());
+            for (Map.Entry<String, Object> layer : props.entrySet()) {
+                writeVarint(body, stringIndex(layer.getKey()));
+                byte[] bits = new byte[byteCount];
+                for (String sigil : (String[]) layer.getValue()) {
+                    int i = sigla.get(sigil);
+                    bits[i / 8] |= 1 << (i % 8);
+                }
+                body.write(bits, 0, bits.length);
+            }
+        }
+
+        lastId = 0;
+        List<Relationship> inSection = new ArrayList<>();
+        for (Relationship r : relations.values())
+            if (positions.containsKey(r.getStartNode().getId()) && positions.containsKey(r.getEndNode().getId()))
+                inSection.add(r);
+        writeVarint(body, inSection.size());
+        for (Relationship r : inSection) {
+            writeVarint(body, r.getId() - lastId);
+            lastId = r.getId();
+            writeVarint(body, positions.get(r.getStartNode().getId()));
+            writeVarint(body, positions.get(r.getEndNode().getId()));
+            writeProperties(body, r.getAllProperties());
+        }
+
+        // Now that all the strings are known, put the tables in front of the body
+        ByteArrayOutputStream result = new ByteArrayOutputStream(body.size() + 1024);
+        result.write(MAGIC, 0, MAGIC.length);
+        writeVarint(result, VERSION);
+        writeVarint(result, strings.size());
+        for (String s : strings.keySet()) {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(result, utf8.length);
+            result.write(utf8, 0, utf8.length);
+        }
+        writeVarint(result, sigla.size());
+        for (String sigil : sigla.keySet())
+            writeVarint(result, strings.get(sigil));
+        try {
+            body.writeTo(result);
+        } catch (IOException e) {
+            // Cannot happen with byte array streams
+            throw new IllegalStateException(e);
+        }
+        return result.toByteArray();
+    }
+
+    // The position of the relationship's type in SEQUENCE_TYPES, or -1 if it is not a sequence
+    private static int sequenceType(Relationship r) {
+        for (int i = 0; i < SEQUENCE_TYPES.size(); i++)
+            if (r.isType(SEQUENCE_TYPES.get(i)))
+                return i;
+        return -1;
+    }
+
+    private int stringIndex(String s) {
+        Integer idx = strings.get(s);
+        if (idx == null) {
+            idx = strings.size();
+            strings.put(s, idx);
+        }
+        return idx;
+    }
+
+    private void writeProperties(ByteArrayOutputStream out, Map<String, Object> props) {
+        writeVarint(out, props.size());
+        for (Map.Entry<String, Object> prop : props.entrySet()) {
+            writeVarint(out, stringIndex(prop.getKey()));
+            Object value = prop.getValue();
+            if (value instanceof Boolean)
+                writeVarint(out, (Boolean) value ? TAG_TRUE : TAG_FALSE);
+            else if (value instanceof Long) {
+                writeVarint(out, TAG_LONG);
+                writeVarint(out, zigzag((Long) value));
+            } else if (value instanceof Integer) {
+                writeVarint(out, TAG_INT);
+                writeVarint(out, zigzag((Integer) value));
+            } else if (value instanceof Double) {
+                writeVarint(out, TAG_DOUBLE);
+                long bits = Double.doubleToLongBits((Double) value);
+                for (int shift = 56; shift >= 0; shift -= 8)
+                    out.write((int) (bits >>> shift));
+            } else if (value instanceof String) {
+                writeVarint(out, TAG_STRING);
+                writeVarint(out, stringIndex((String) value));
+            } else if (value instanceof String[]) {
+                writeVarint(out, TAG_STRING_ARRAY);
+                String[] values = (String[]) value;
+                writeVarint(out, values.length);
+                for (String s : values)
+                    writeVarint(out, stringIndex(s));
+            } else
+                throw new IllegalArgumentException(String.format(
+                        "Property %s cannot be written in the binary graph format", prop.getKey()));
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
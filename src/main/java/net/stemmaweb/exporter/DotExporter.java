@@ -1,20 +1,21 @@
 package net.stemmaweb.exporter;
 
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
 import java.util.*;
 import java.util.stream.Collectors;
 
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 
 import net.stemmaweb.model.DisplayOptionModel;
-import net.stemmaweb.printer.GraphViz;
 import net.stemmaweb.rest.ERelations;
 
 import net.stemmaweb.rest.Nodes;
@@ -24,6 +25,8 @@ import static net.stemmaweb.parser.Util.getExpander;
 import static org.apache.commons.text.StringEscapeUtils.escapeHtml4;
 
 import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.OperationEvents;
+import net.stemmaweb.services.QueryService;
 import net.stemmaweb.services.VariantGraphService;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.traversal.Uniqueness;
@@ -38,7 +41,7 @@ public class DotExporter
 {
     private GraphDatabaseService db;
 
-    private OutputStream out = null;
+    private Writer out = null;
 
     private static DecimalFormat df2 = new DecimalFormat(".##");
 
@@ -66,12 +69,7 @@ public class DotExporter
             return Response.status(Status.NOT_FOUND).build();
         }
 
-        File output;
-        String result;
         try (Transaction tx = db.beginTx()) {
-            output = File.createTempFile("graph_", ".dot");
-            out = new FileOutputStream(output);
-
             Node requestedSection = null;
             if (sectionId != null)
                 requestedSection = db.getNodeById(Long.valueOf(sectionId));
@@ -83,6 +81,26 @@ public class DotExporter
                 sections.clear();
                 sections.add(requestedSection);
             }
+            tx.success();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(e.getMessage()).build();
+        }
+
+        // Write the dot straight into the response as it is produced
+        StreamingOutput stream = os -> writeDot(os, tradId, sectionId, dm, traditionNode, startNode, endNode, sections);
+        return Response.ok().entity(stream).build();
+    }
+
+    private void writeDot(OutputStream os, String tradId, String sectionId, DisplayOptionModel dm,
+                          Node traditionNode, Node startNode, Node endNode, ArrayList<Node> sections)
+            throws IOException
+    {
+        try (Transaction tx = db.beginTx();
+             OperationEvents.Span span = OperationEvents.begin("export-dot", tradId, sectionId)) {
+            out = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+
+            Node requestedSection = sectionId == null ? null : sections.get(0);
             // Get the graph name - either the requested section name, or the tradition name
             // if all sections were requested
             String graphName = (requestedSection != null) ? requestedSection.getProperty("name").toString()
@@ -259,28 +277,14 @@ public class DotExporter
             write("}\n");
 
             out.flush();
-            out.close();
-
-            // Now pull the string back out of the output file.
-            byte[] encDot = Files.readAllBytes(output.toPath());
-            result = new String(encDot, Charset.forName("utf-8"));
-
-            // Remove the following line, if you want to keep the created file
-            Files.deleteIfExists(output.toPath());
-
+            span.setCount(writtenNodes.size(), "readings");
             tx.success();
         } catch (IOException e) {
-            e.printStackTrace();
-            return Response.serverError().entity("Could not write file for export").build();
+            throw e;
         } catch (Exception e) {
             e.printStackTrace();
-            return Response.serverError().entity(e.getMessage()).build();
+            throw new WebApplicationException(e.getMessage(), e, Status.INTERNAL_SERVER_ERROR);
         }
-
-        // Here is where to generate pictures from the file for debugging.
-        // writeFromDot(output, "svg");
-
-        return Response.ok().entity(result).build();
     }
 
     /*
@@ -471,8 +475,8 @@ public class DotExporter
             ArrayList<Node> foundRoots = DatabaseService.getRelated(startNodeStemma, ERelations.HAS_ARCHETYPE);
             if (foundRoots.isEmpty()) {
                 // No archetype; just output the list of edges in any order.
-                Result txEdges = db.execute("MATCH (a:WITNESS)-[:TRANSMITTED {hypothesis:'" +
-                        stemmaTitle + "'}]->(b:WITNESS) RETURN a, b");
+                Result txEdges = QueryService.execute(db, QueryService.Query.STEMMA_TRANSMISSIONS,
+                        QueryService.params("name", stemmaTitle));
                 while (txEdges.hasNext()) {
                     Map<String, Object> vector = txEdges.next();
                     String source = sigilDotString((Node) vector.get("a"));
@@ -493,7 +497,6 @@ public class DotExporter
 
         String joinString = singleLine ? "  " : "\n";
         String output = String.join(joinString, outputLines);
-        writeFromDot(output);
 
         return Response.ok(output).build();
     }
@@ -523,8 +526,8 @@ public class DotExporter
         try(Transaction tx = db.beginTx()) {
             //ExecutionEngine engine = new ExecutionEngine(db);
             // find all Stemmata associated with this tradition
-            Result result = db.execute("match (t:TRADITION {id:'"+ tradId +
-                    "'})-[:HAS_STEMMA]->(s:STEMMA) return s");
+            Result result = QueryService.execute(db, QueryService.Query.TRADITION_STEMMATA,
+                    QueryService.params("tradId", tradId));
 
             Iterator<Node> stemmata = result.columnAs("s");
             while(stemmata.hasNext()) {
@@ -569,22 +572,7 @@ public class DotExporter
 
     private void write(String str) throws IOException
     {
-        out.write(str.getBytes());
-    }
-
-
-    private void writeFromDot(String dot)
-    {
-        GraphViz gv = new GraphViz();
-        gv.add(dot);
-        File result;
-        try {
-            result = File.createTempFile("graph_", ".svg");
-        } catch (Exception e) {
-            System.out.println("Could not write " + "svg" + " to temporary file");
-            return;
-        }
-        gv.writeGraphToFile(gv.getGraph(gv.getDotSource(), "svg"), result);
+        out.write(str);
     }
 
 }
\ No newline at end of file
@@ -13,6 +13,7 @@ import javax.xml.stream.XMLStreamWriter;
 import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.rest.Section;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.OperationEvents;
 import net.stemmaweb.services.VariantGraphService;
 import org.neo4j.graphdb.*;
 
@@ -185,7 +186,8 @@ public class GraphMLExporter {
         }
 
 
-        try (Transaction tx = db.beginTx()) {
+        try (Transaction tx = db.beginTx();
+             OperationEvents.Span span = OperationEvents.begin("export-graphml", tradId, sectionId)) {
             // First we have to go through all nodes and edges in the tradition or section we want,
             // compiling a list of node and edge attributes.
             nodeMap = new HashMap<>();
@@ -262,6 +264,7 @@ public class GraphMLExporter {
             writer.writeEndElement(); // end graphml
             writer.flush();
 
+            span.setCount(nodeCount + edgeCount, "elements");
             tx.success();
         } catch (Exception e) {
             e.printStackTrace();
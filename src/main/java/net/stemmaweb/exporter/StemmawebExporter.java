@@ -169,9 +169,11 @@ public class StemmawebExporter {
 
             props = traditionNode.getPropertyKeys();
             for(String prop : props) {
-                if(prop !=null && !prop.equals("id") && !prop.equals("section_id")) {
+                // The legacy format calls is_public "public", and has no key for some of our properties
+                String key = "is_public".equals(prop) ? "public" : prop;
+                if(key !=null && graphMap.containsKey(key)) {
                     writer.writeStartElement("data");
-                    writer.writeAttribute("key", graphMap.get(prop)[0]);
+                    writer.writeAttribute("key", graphMap.get(key)[0]);
                     writer.writeCharacters(traditionNode.getProperty(prop).toString());
                     writer.writeEndElement();
                 }
@@ -3,6 +3,8 @@ package net.stemmaweb.model;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.OperationEvents;
+import net.stemmaweb.services.TraversalMonitor;
 import net.stemmaweb.services.VariantGraphService;
 import net.stemmaweb.services.WitnessPath;
 import org.neo4j.graphdb.*;
@@ -42,7 +44,8 @@ public class AlignmentModel {
     public AlignmentModel(Node sectionNode, boolean excludeLayers) {
         GraphDatabaseService db = sectionNode.getGraphDatabase();
 
-        try (Transaction tx = db.beginTx()) {
+        try (Transaction tx = db.beginTx();
+             OperationEvents.Span span = OperationEvents.begin("alignment", sectionNode)) {
             String sectId = String.valueOf(sectionNode.getId());
             Node traditionNode = VariantGraphService.getTraditionNode(sectionNode);
             Node startNode = VariantGraphService.getStartNode(sectId, db);
@@ -57,10 +60,10 @@ public class AlignmentModel {
                 seqType = ERelations.NSEQUENCE;
 
             // Get the traverser for the tradition readings
-            Traverser traversedTradition = db.traversalDescription().depthFirst()
+            Traverser traversedTradition = TraversalMonitor.traverse("alignment-sequences", db.traversalDescription().depthFirst()
                     .relationships(seqType, Direction.OUTGOING)
                     .evaluator(Evaluators.all())
-                    .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL).traverse(startNode);
+                    .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL), startNode);
 
             // Now make the alignment.
             alignment = new ArrayList<>();
@@ -99,11 +102,10 @@ public class AlignmentModel {
                     if (!layer.equals("base")) alternatives.add(layer);
                     Evaluator e = new WitnessPath(sigil, alternatives, seqType).getEvalForWitness();
                     ReadingModel filler;
-                    for (Node r : db.traversalDescription().depthFirst()
+                    for (Node r : TraversalMonitor.traverse("alignment-witness", db.traversalDescription().depthFirst()
                             .relationships(seqType, Direction.OUTGOING)
                             .evaluator(e)
-                            .uniqueness(Uniqueness.NODE_PATH)
-                            .traverse(startNode)
+                            .uniqueness(Uniqueness.NODE_PATH), startNode)
                             .nodes()) {
                         if (r.hasProperty("is_end"))
                             continue;
@@ -135,6 +137,7 @@ public class AlignmentModel {
             }
             Comparator<WitnessTokensModel> bySigil = Comparator.comparing(WitnessTokensModel::constructSigil);
             alignment.sort(bySigil);
+            span.setCount(alignment.size(), "witnesses");
             tx.success();
         }
     }
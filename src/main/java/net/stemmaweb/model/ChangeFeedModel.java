@@ -0,0 +1,47 @@
+package net.stemmaweb.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * This model lists the changes made to a tradition since a given version, oldest first,
+ * together with the version that the tradition is now at.
+ */
+
+@XmlRootElement
+public class ChangeFeedModel {
+    /**
+     * The tradition's current version, from which the next request for changes should start
+     */
+    private Long version;
+    /**
+     * The changes made since the requested version
+     */
+    private List<ChangeModel> changes = new ArrayList<>();
+
+    public ChangeFeedModel() {
+    }
+
+    public ChangeFeedModel(Long version, List<ChangeModel> changes) {
+        this.version = version;
+        this.changes = changes;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
+    public List<ChangeModel> getChanges() {
+        return changes;
+    }
+
+    public void setChanges(List<ChangeModel> changes) {
+        this.changes = changes;
+    }
+}
@@ -0,0 +1,187 @@
+package net.stemmaweb.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * This model describes what a single committed change did to a section: which readings
+ * it added, changed, re-ranked or removed, and which relations and sequence links it added,
+ * changed or removed. Fields with nothing in them are left out.
+ */
+
+@XmlRootElement
+@JsonInclude(Include.NON_EMPTY)
+public class ChangeModel {
+    /**
+     * The version of the tradition that this change produced; it is also the section's
+     * version from this change until the next one to it
+     */
+    private Long version;
+    /**
+     * The ID of the section that was changed
+     */
+    private String section;
+    /**
+     * When the change was committed, in milliseconds since the epoch
+     */
+    private Long timestamp;
+    /**
+     * True if the section was deleted
+     */
+    private Boolean deleted;
+    /**
+     * True if the change was too big to describe, or created the section, so that the
+     * section should be fetched again
+     */
+    private Boolean reload;
+    /**
+     * The IDs of the readings added to the section
+     */
+    private List<String> readingsAdded = new ArrayList<>();
+    /**
+     * The IDs of the readings whose properties, other than their rank, were changed
+     */
+    private List<String> readingsChanged = new ArrayList<>();
+    /**
+     * The IDs of the readings removed from the section
+     */
+    private List<String> readingsRemoved = new ArrayList<>();
+    /**
+     * The new ranks of the readings that were re-ranked, by reading ID
+     */
+    private Map<String, Long> ranks = new TreeMap<>();
+    /**
+     * The relations that were added or changed
+     */
+    private List<RelationModel> relations = new ArrayList<>();
+    /**
+     * The IDs of the relations that were removed
+     */
+    private List<String> relationsRemoved = new ArrayList<>();
+    /**
+     * The sequence links that were added or changed
+     */
+    private List<SequenceModel> sequences = new ArrayList<>();
+    /**
+     * The IDs of the sequence links that were removed
+     */
+    private List<String> sequencesRemoved = new ArrayList<>();
+
+    public ChangeModel() {
+    }
+
+    public ChangeModel(String section) {
+        this.section = section;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
+    public String getSection() {
+        return section;
+    }
+
+    public void setSection(String section) {
+        this.section = section;
+    }
+
+    public Long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(Long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public Boolean getDeleted() {
+        return deleted;
+    }
+
+    public void setDeleted(Boolean deleted) {
+        this.deleted = deleted;
+    }
+
+    public Boolean getReload() {
+        return reload;
+    }
+
+    public void setReload(Boolean reload) {
+        this.reload = reload;
+    }
+
+    public List<String> getReadingsAdded() {
+        return readingsAdded;
+    }
+
+    public void setReadingsAdded(List<String> readingsAdded) {
+        this.readingsAdded = readingsAdded;
+    }
+
+    public List<String> getReadingsChanged() {
+        return readingsChanged;
+    }
+
+    public void setReadingsChanged(List<String> readingsChanged) {
+        this.readingsChanged = readingsChanged;
+    }
+
+    public List<String> getReadingsRemoved() {
+        return readingsRemoved;
+    }
+
+    public void setReadingsRemoved(List<String> readingsRemoved) {
+        this.readingsRemoved = readingsRemoved;
+    }
+
+    public Map<String, Long> getRanks() {
+        return ranks;
+    }
+
+    public void setRanks(Map<String, Long> ranks) {
+        this.ranks = ranks;
+    }
+
+    public List<RelationModel> getRelations() {
+        return relations;
+    }
+
+    public void setRelations(List<RelationModel> relations) {
+        this.relations = relations;
+    }
+
+    public List<String> getRelationsRemoved() {
+        return relationsRemoved;
+    }
+
+    public void setRelationsRemoved(List<String> relationsRemoved) {
+        this.relationsRemoved = relationsRemoved;
+    }
+
+    public List<SequenceModel> getSequences() {
+        return sequences;
+    }
+
+    public void setSequences(List<SequenceModel> sequences) {
+        this.sequences = sequences;
+    }
+
+    public List<String> getSequencesRemoved() {
+        return sequencesRemoved;
+    }
+
+    public void setSequencesRemoved(List<String> sequencesRemoved) {
+        this.sequencesRemoved = sequencesRemoved;
+    }
+}
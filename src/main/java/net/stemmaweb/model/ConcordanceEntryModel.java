@@ -0,0 +1,96 @@
+package net.stemmaweb.model;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single key-word-in-context line of a concordance: a matching reading, with the text that
+ * comes before and after it in a set of witnesses that share that context.
+ */
+@XmlRootElement
+public class ConcordanceEntryModel {
+    private String tradition;
+    private String tradition_name;
+    private String section;
+    private String reading;
+    private Long rank;
+    private String before;
+    private String keyword;
+    private String after;
+    private List<String> witnesses = new ArrayList<>();
+
+    public ConcordanceEntryModel() {}
+
+    public String getTradition() {
+        return tradition;
+    }
+
+    public void setTradition(String tradition) {
+        this.tradition = tradition;
+    }
+
+    public String getTradition_name() {
+        return tradition_name;
+    }
+
+    public void setTradition_name(String tradition_name) {
+        this.tradition_name = tradition_name;
+    }
+
+    public String getSection() {
+        return section;
+    }
+
+    public void setSection(String section) {
+        this.section = section;
+    }
+
+    public String getReading() {
+        return reading;
+    }
+
+    public void setReading(String reading) {
+        this.reading = reading;
+    }
+
+    public Long getRank() {
+        return rank;
+    }
+
+    public void setRank(Long rank) {
+        this.rank = rank;
+    }
+
+    public String getBefore() {
+        return before;
+    }
+
+    public void setBefore(String before) {
+        this.before = before;
+    }
+
+    public String getKeyword() {
+        return keyword;
+    }
+
+    public void setKeyword(String keyword) {
+        this.keyword = keyword;
+    }
+
+    public String getAfter() {
+        return after;
+    }
+
+    public void setAfter(String after) {
+        this.after = after;
+    }
+
+    public List<String> getWitnesses() {
+        return witnesses;
+    }
+
+    public void setWitnesses(List<String> witnesses) {
+        this.witnesses = witnesses;
+    }
+}
@@ -0,0 +1,134 @@
+package net.stemmaweb.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * This model reports on the progress of a tradition or section that has been deleted,
+ * and whose data is being removed from the database in the background.
+ */
+
+@XmlRootElement
+@JsonInclude(Include.NON_NULL)
+public class DeletionModel {
+    public static final String PENDING = "pending";
+    public static final String RUNNING = "running";
+    public static final String DONE = "done";
+    public static final String FAILED = "failed";
+
+    /**
+     * The ID of the deleted tradition or section
+     */
+    private String id;
+    /**
+     * What was deleted, either "tradition" or "section"
+     */
+    private String type;
+    /**
+     * The ID of the tradition to which a deleted section belonged
+     */
+    private String tradition;
+    /**
+     * One of "pending", "running", "done", or "failed"
+     */
+    private String status;
+    /**
+     * The number of nodes removed so far
+     */
+    private Long nodes = 0L;
+    /**
+     * The number of relationships removed so far
+     */
+    private Long relationships = 0L;
+    /**
+     * The number of transactions committed so far
+     */
+    private Long batches = 0L;
+    /**
+     * The reason for the failure, if the removal failed
+     */
+    private String error;
+
+    public DeletionModel() {}
+
+    /**
+     * Copy another model, so that a snapshot of it can be handed out
+     * @param other - the model to copy
+     */
+    public DeletionModel(DeletionModel other) {
+        setId(other.getId());
+        setType(other.getType());
+        setTradition(other.getTradition());
+        setStatus(other.getStatus());
+        setNodes(other.getNodes());
+        setRelationships(other.getRelationships());
+        setBatches(other.getBatches());
+        setError(other.getError());
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public String getTradition() {
+        return tradition;
+    }
+
+    public void setTradition(String tradition) {
+        this.tradition = tradition;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public Long getNodes() {
+        return nodes;
+    }
+
+    public void setNodes(Long nodes) {
+        this.nodes = nodes;
+    }
+
+    public Long getRelationships() {
+        return relationships;
+    }
+
+    public void setRelationships(Long relationships) {
+        this.relationships = relationships;
+    }
+
+    public Long getBatches() {
+        return batches;
+    }
+
+    public void setBatches(Long batches) {
+        this.batches = batches;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+}
@@ -0,0 +1,73 @@
+package net.stemmaweb.model;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * This model reports how often one of the application's Cypher queries has been run,
+ * and how often Neo4j found its plan in the query plan cache or had to plan it.
+ */
+
+@XmlRootElement
+public class QueryStatisticsModel {
+    /**
+     * The name of the query
+     */
+    private String name;
+    /**
+     * The number of times the query has been run
+     */
+    private Long executions = 0L;
+    /**
+     * The number of times Neo4j found the query's plan in its plan cache
+     */
+    private Long planCacheHits = 0L;
+    /**
+     * The number of times Neo4j had to plan the query, including planning it again once
+     * its plan had gone stale
+     */
+    private Long planCacheMisses = 0L;
+    /**
+     * The total time taken to plan and start the query, in milliseconds
+     */
+    private Long totalMillis = 0L;
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public Long getExecutions() {
+        return executions;
+    }
+
+    public void setExecutions(Long executions) {
+        this.executions = executions;
+    }
+
+    public Long getPlanCacheHits() {
+        return planCacheHits;
+    }
+
+    public void setPlanCacheHits(Long planCacheHits) {
+        this.planCacheHits = planCacheHits;
+    }
+
+    public Long getPlanCacheMisses() {
+        return planCacheMisses;
+    }
+
+    public void setPlanCacheMisses(Long planCacheMisses) {
+        this.planCacheMisses = planCacheMisses;
+    }
+
+    public Long getTotalMillis() {
+        return totalMillis;
+    }
+
+    public void setTotalMillis(Long totalMillis) {
+        this.totalMillis = totalMillis;
+    }
+}
@@ -6,10 +6,9 @@ import net.stemmaweb.rest.Nodes;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import javax.xml.bind.annotation.XmlRootElement;
 
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
@@ -20,6 +19,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Provides a model for a reading outside of the database. Can be parsed into a
@@ -130,58 +130,54 @@ public class ReadingModel implements Comparable<ReadingModel> {
      */
     public ReadingModel(Node node) {
         try (Transaction tx = node.getGraphDatabase().beginTx()) {
-            if (node.hasProperty("grammar_invalid"))
-                this.setGrammar_invalid((Boolean) node.getProperty("grammar_invalid"));
+            // Fetch the properties all at once, rather than asking for each in turn
+            Map<String, Object> props = node.getAllProperties();
+            if (props.containsKey("grammar_invalid"))
+                this.setGrammar_invalid((Boolean) props.get("grammar_invalid"));
             this.setId(String.valueOf(node.getId()));
-            this.setSection(node.getProperty("section_id").toString());
+            if (!props.containsKey("section_id"))
+                throw new NotFoundException("Reading " + node.getId() + " belongs to no section");
+            this.setSection(props.get("section_id").toString());
             // If there is an "ncommon" property, use this in preference to "is_common"
             // because it means we are in normalized mode
-            this.setIs_common(node.getProperty("ncommon", node.getProperty("is_common", false)).equals(true));
-            if (node.hasProperty("is_end"))
-                this.setIs_end((Boolean) node.getProperty("is_end"));
-            if (node.hasProperty("is_lacuna"))
-                this.setIs_lacuna((Boolean) node.getProperty("is_lacuna"));
-            if (node.hasProperty("is_lemma"))
-                this.setIs_lemma((Boolean) node.getProperty("is_lemma"));
-            if (node.hasProperty("is_nonsense"))
-                this.setIs_nonsense((Boolean) node.getProperty("is_nonsense"));
-            if (node.hasProperty("is_ph"))
-                this.setIs_ph((Boolean) node.getProperty("is_ph"));
-            if (node.hasProperty("is_start"))
-                this.setIs_start((Boolean) node.getProperty("is_start"));
-            if (node.hasProperty("join_next"))
-                this.setJoin_next((Boolean) node.getProperty("join_next"));
-            if (node.hasProperty("join_prior"))
-                this.setJoin_prior((Boolean) node.getProperty("join_prior"));
-            if (node.hasProperty("language"))
-                this.setLanguage(node.getProperty("language").toString());
-            if (node.hasProperty("lexemes"))
-                this.setLexemes(node.getProperty("lexemes").toString());
-            if (node.hasProperty("normal_form"))
-                this.setNormal_form(node.getProperty("normal_form").toString());
-            if (node.hasProperty("rank"))
-                this.setRank(Long.parseLong(node.getProperty("rank").toString()));
-            if (node.hasProperty("text"))
-                this.setText(node.getProperty("text").toString());
-            if (node.hasProperty("display"))
-                this.setDisplay(node.getProperty("display").toString());
-            if (node.hasProperty("annotation"))
-                this.setAnnotation(node.getProperty("annotation").toString());
-            if (node.hasProperty("extra")) {
-                String jsonData = node.getProperty("extra").toString();
-                try {
-                    // Try to parse it, before we actually attempt to use it
-                    new JSONObject(jsonData);
-                    this.setExtra(jsonData);
-                } catch (JSONException e) {
-                    // Emit a warning, but carry on
-                    System.err.println("Invalid JSON string in reading extra parameter: " + jsonData);
-                }
-            }
+            this.setIs_common(props.getOrDefault("ncommon", props.getOrDefault("is_common", false)).equals(true));
+            if (props.containsKey("is_end"))
+                this.setIs_end((Boolean) props.get("is_end"));
+            if (props.containsKey("is_lacuna"))
+                this.setIs_lacuna((Boolean) props.get("is_lacuna"));
+            if (props.containsKey("is_lemma"))
+                this.setIs_lemma((Boolean) props.get("is_lemma"));
+            if (props.containsKey("is_nonsense"))
+                this.setIs_nonsense((Boolean) props.get("is_nonsense"));
+            if (props.containsKey("is_ph"))
+                this.setIs_ph((Boolean) props.get("is_ph"));
+            if (props.containsKey("is_start"))
+                this.setIs_start((Boolean) props.get("is_start"));
+            if (props.containsKey("join_next"))
+                this.setJoin_next((Boolean) props.get("join_next"));
+            if (props.containsKey("join_prior"))
+                this.setJoin_prior((Boolean) props.get("join_prior"));
+            if (props.containsKey("language"))
+                this.setLanguage(props.get("language").toString());
+            if (props.containsKey("lexemes"))
+                this.setLexemes(props.get("lexemes").toString());
+            if (props.containsKey("normal_form"))
+                this.setNormal_form(props.get("normal_form").toString());
+            if (props.containsKey("rank"))
+                this.setRank(Long.parseLong(props.get("rank").toString()));
+            if (props.containsKey("text"))
+                this.setText(props.get("text").toString());
+            if (props.containsKey("display"))
+                this.setDisplay(props.get("display").toString());
+            if (props.containsKey("annotation"))
+                this.setAnnotation(props.get("annotation").toString());
+            // This is checked for validity when it is set, so it needn't be parsed here
+            if (props.containsKey("extra"))
+                this.setExtra(props.get("extra").toString());
             if (node.hasLabel(Nodes.EMENDATION)) {
                 this.setIs_emendation(true);
                 // We don't check whether this property exists, because it darn well should
-                this.setAuthority(node.getProperty("authority").toString());
+                this.setAuthority(props.get("authority").toString());
             }
             // Get the witnesses
             HashSet<String> collectedWits = new HashSet<>();
@@ -192,12 +188,12 @@ public class ReadingModel implements Comparable<ReadingModel> {
             node.getRelationships(ERelations.SEQUENCE, Direction.BOTH).forEach(seq::add);
             node.getRelationships(ERelations.NSEQUENCE, Direction.BOTH).forEach(seq::add);
             for (Relationship r : seq) {
-                for (String prop : r.getPropertyKeys()) {
-                    String[] sigla = (String[]) r.getProperty(prop);
-                    if (prop.equals("witnesses")) {
+                for (Map.Entry<String, Object> prop : r.getAllProperties().entrySet()) {
+                    String[] sigla = (String[]) prop.getValue();
+                    if (prop.getKey().equals("witnesses")) {
                         collectedWits.addAll(Arrays.asList(sigla));
                     } else {
-                        Arrays.stream(sigla).forEach(x -> collectedWits.add(String.format("%s (%s)", x, prop)));
+                        Arrays.stream(sigla).forEach(x -> collectedWits.add(String.format("%s (%s)", x, prop.getKey())));
                     }
                 }
             }
@@ -2,7 +2,9 @@ package net.stemmaweb.model;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.services.OperationEvents;
 import net.stemmaweb.services.RelationService;
+import net.stemmaweb.services.TraversalMonitor;
 import net.stemmaweb.services.VariantCrawler;
 import net.stemmaweb.services.VariantGraphService;
 import net.stemmaweb.services.WitnessPath;
@@ -94,7 +96,8 @@ public class VariantListModel {
         this.dislocationCombined = combine;
         if (conflate == null) conflate = "";
         GraphDatabaseService db = sectionNode.getGraphDatabase();
-        try (Transaction tx = db.beginTx()) {
+        try (Transaction tx = db.beginTx();
+             OperationEvents.Span span = OperationEvents.begin("variant-list", sectionNode)) {
             RelationshipType follow = ERelations.SEQUENCE;
             if (!conflate.equals("")) {
                 VariantGraphService.normalizeGraph(sectionNode, conflate);
@@ -116,7 +119,8 @@ public class VariantListModel {
                 // We use the requested witness text, which is connected via SEQUENCE or NSEQUENCE
                 // links and so unproblematic.
                 baseWalker = baseWalker.evaluator(new WitnessPath(baseWitness, follow).getEvalForWitness());
-                baseText = baseWalker.traverse(startNode).relationships().stream().collect(Collectors.toList());
+                baseText = TraversalMonitor.traverse("variants-base-witness", baseWalker, startNode).relationships().stream()
+                        .collect(Collectors.toList());
                 this.basisText = baseWitness;
             } else {
                 // We collect the readings, but count their SEQUENCE or NSEQUENCE links in the base text.
@@ -124,7 +128,8 @@ public class VariantListModel {
                 if (startNode.hasRelationship(ERelations.LEMMA_TEXT, Direction.OUTGOING)) {
                     // We traverse the lemma text
                     baseWalker = baseWalker.relationships(ERelations.LEMMA_TEXT);
-                    baseReadings = baseWalker.traverse(startNode).nodes().stream().collect(Collectors.toList());
+                    baseReadings = TraversalMonitor.traverse("variants-base-lemma", baseWalker, startNode).nodes().stream()
+                            .collect(Collectors.toList());
                     this.basisText = "lemma";
                 } else {
                     // We calculate and use the majority text
@@ -163,6 +168,7 @@ public class VariantListModel {
             if (!conflate.equals(""))
                 VariantGraphService.clearNormalization(sectionNode);
 
+            span.setCount(variantlist.size(), "locations");
             tx.success();
         }
     }
@@ -182,7 +188,7 @@ public class VariantListModel {
             baseChain.add(0, sequence.get(0).getStartNode());
             // We have to run the traverser from each node in the base chain, to get any variants that start there.
             for (Node n : baseChain) {
-                for (org.neo4j.graphdb.Path v : traverser.traverse(n)) {
+                for (org.neo4j.graphdb.Path v : TraversalMonitor.traverse("variants", traverser, n)) {
                     VariantModel vm = new VariantModel(v, crawler.getWitnessesForPath(v));
                     // Sanity check
                     // if (!baseChain.contains(v.startNode()) || !baseChain.contains(v.endNode()))
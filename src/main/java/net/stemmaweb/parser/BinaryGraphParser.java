@@ -0,0 +1,231 @@
+package net.stemmaweb.parser;
+
+import net.stemmaweb.exporter.BinaryGraphExporter;
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.RelationService;
+import net.stemmaweb.services.VariantGraphService;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+
+import javax.ws.rs.core.Response;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static net.stemmaweb.exporter.BinaryGraphExporter.*;
+
+/**
+ * Parser for the binary section graph written by the {@link BinaryGraphExporter}, which
+ * restores the readings, relations and sequences of a section into a new section node.
+ * The readings get new IDs; the witnesses and relation types that the section uses are
+ * added to the tradition if it doesn't have them already.
+ */
+public class BinaryGraphParser {
+    // The longest string that will be accepted, so that a corrupt length can't exhaust memory
+    private static final int MAX_STRING_BYTES = 16 * 1024 * 1024;
+
+    private GraphDatabaseServiceProvider dbServiceProvider = new GraphDatabaseServiceProvider();
+    private GraphDatabaseService db = dbServiceProvider.getDatabase();
+
+    public Response parseBinaryGraph(InputStream filestream, Node sectionNode) {
+        Node traditionNode = VariantGraphService.getTraditionNode(sectionNode);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(filestream));
+        try (Transaction tx = db.beginTx()) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IllegalArgumentException("This is not a binary section graph");
+            long version = readVarint(in);
+            if (version != VERSION)
+                throw new IllegalArgumentException("Unsupported binary section graph version " + version);
+
+            // The lists grow as the data is read, rather than being sized by the counts in
+            // the data, so that a corrupt count can't exhaust memory before the data runs out
+            List<String> strings = new ArrayList<>();
+            int count = readCount(in);
+            for (int i = 0; i < count; i++) {
+                int length = readCount(in);
+                if (length > MAX_STRING_BYTES)
+                    throw new IllegalArgumentException("String in binary section graph is too long");
+                byte[] utf8 = new byte[length];
+                in.readFully(utf8);
+                strings.add(new String(utf8, StandardCharsets.UTF_8));
+            }
+            List<String> sigla = new ArrayList<>();
+            count = readCount(in);
+            for (int i = 0; i < count; i++)
+                sigla.add(readString(in, strings));
+
+            // Readings
+            Long sectionId = sectionNode.getId();
+            boolean hasStart = false;
+            boolean hasEnd = false;
+            List<Node> readings = new ArrayList<>();
+            count = readCount(in);
+            for (int i = 0; i < count; i++) {
+                readVarint(in);  // the original ID
+                Node reading = db.createNode(Nodes.READING);
+                if ((readVarint(in) & FLAG_EMENDATION) != 0) {
+                    reading.addLabel(Nodes.EMENDATION);
+                    sectionNode.createRelationshipTo(reading, ERelations.HAS_EMENDATION);
+                }
+                long rank = readVarint(in);
+                if (rank > 0)
+                    reading.setProperty("rank", rank - 1);
+                long text = readVarint(in);
+                if (text > 0)
+                    reading.setProperty("text", stringAt(strings, text - 1));
+                readProperties(in, strings, reading);
+                reading.setProperty("section_id", sectionId);
+                if (reading.getProperty("is_start", false).equals(true)) {
+                    sectionNode.createRelationshipTo(reading, ERelations.COLLATION);
+                    hasStart = true;
+                }
+                if (reading.getProperty("is_end", false).equals(true)) {
+                    sectionNode.createRelationshipTo(reading, ERelations.HAS_END);
+                    hasEnd = true;
+                }
+                readings.add(reading);
+            }
+            if (!hasStart || !hasEnd)
+                throw new IllegalArgumentException("Binary section graph has no start or end reading");
+
+            // Sequences
+            byte[] bits = new byte[(sigla.size() + 7) / 8];
+            Set<String> usedSigla = new TreeSet<>();
+            count = readCount(in);
+            for (int i = 0; i < count; i++) {
+                readVarint(in);  // the original ID
+                int type = readCount(in);
+                if (type >= SEQUENCE_TYPES.size())
+                    throw new IllegalArgumentException("Unknown sequence type in binary section graph");
+                Node source = readingAt(readings, readCount(in));
+                Node target = readingAt(readings, readCount(in));
+                Relationship seq = source.createRelationshipTo(target, SEQUENCE_TYPES.get(type));
+                int layers = readCount(in);
+                for (int j = 0; j < layers; j++) {
+                    String layer = readString(in, strings);
+                    in.readFully(bits);
+                    List<String> witnesses = new ArrayList<>();
+                    for (int w = 0; w < sigla.size(); w++)
+                        if ((bits[w / 8] & (1 << (w % 8))) != 0)
+                            witnesses.add(sigla.get(w));
+                    seq.setProperty(layer, witnesses.toArray(new String[0]));
+                    usedSigla.addAll(witnesses);
+                }
+            }
+
+            // Relations
+            String tradId = traditionNode.getProperty("id").toString();
+            Set<String> relationTypes = new HashSet<>();
+            count = readCount(in);
+            for (int i = 0; i < count; i++) {
+                readVarint(in);  // the original ID
+                Node source = readingAt(readings, readCount(in));
+                Node target = readingAt(readings, readCount(in));
+                Relationship rel = source.createRelationshipTo(target, ERelations.RELATED);
+                readProperties(in, strings, rel);
+                // Make sure this relation type exists
+                if (rel.hasProperty("type") && relationTypes.add(rel.getProperty("type").toString()))
+                    RelationService.returnRelationType(tradId, rel.getProperty("type").toString());
+            }
+            if (in.read() != -1)
+                throw new IllegalArgumentException("Binary section graph has trailing data");
+
+            // Add any witnesses the tradition doesn't have yet
+            usedSigla.forEach(x -> Util.findOrCreateExtant(traditionNode, x));
+            tx.success();
+            return Response.status(Response.Status.CREATED).entity(Util.jsonresp("parentId", sectionNode.getId())).build();
+        } catch (EOFException e) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Util.jsonerror("Binary section graph is truncated")).build();
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(Util.jsonerror(e.getMessage())).build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(Util.jsonerror(e.getMessage())).build();
+        }
+    }
+
+    // Sets the properties that follow in the data on the given node or relationship
+    private static void readProperties(DataInputStream in, List<String> strings,
+                                       PropertyContainer target) throws IOException {
+        int count = readCount(in);
+        for (int i = 0; i < count; i++) {
+            String key = readString(in, strings);
+            int tag = readCount(in);
+            switch (tag) {
+                case TAG_FALSE:
+                case TAG_TRUE:
+                    target.setProperty(key, tag == TAG_TRUE);
+                    break;
+                case TAG_LONG:
+                    target.setProperty(key, unzigzag(readVarint(in)));
+                    break;
+                case TAG_INT:
+                    target.setProperty(key, (int) unzigzag(readVarint(in)));
+                    break;
+                case TAG_DOUBLE:
+                    target.setProperty(key, in.readDouble());
+                    break;
+                case TAG_STRING:
+                    target.setProperty(key, readString(in, strings));
+                    break;
+                case TAG_STRING_ARRAY:
+                    List<String> values = new ArrayList<>();
+                    int length = readCount(in);
+                    for (int j = 0; j < length; j++)
+                        values.add(readString(in, strings));
+                    target.setProperty(key, values.toArray(new String[0]));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown property type in binary section graph");
+            }
+        }
+    }
+
+    private static Node readingAt(List<Node> readings, int position) {
+        if (position >= readings.size())
+            throw new IllegalArgumentException("Binary section graph refers to a nonexistent reading");
+        return readings.get(position);
+    }
+
+    private static String readString(DataInputStream in, List<String> strings) throws IOException {
+        return stringAt(strings, readVarint(in));
+    }
+
+    private static String stringAt(List<String> strings, long index) {
+        if (index < 0 || index >= strings.size())
+            throw new IllegalArgumentException("Binary section graph refers to a nonexistent string");
+        return strings.get((int) index);
+    }
+
+    // A count or position, which has to fit in an int; a varint with its top bit set reads
+    // as a negative number, and is out of range as well
+    private static int readCount(DataInputStream in) throws IOException {
+        long value = readVarint(in);
+        if (value < 0 || value > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Number out of range in binary section graph");
+        return (int) value;
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Malformed number in binary section graph");
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -1,14 +1,16 @@
 package net.stemmaweb.parser;
 
-import net.stemmaweb.model.ReadingModel;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.services.VariantGraphService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.services.ReadingService;
-import org.apache.commons.io.IOUtils;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Transaction;
@@ -18,195 +20,275 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
 
+/**
+ * Parser for CollateX alignment tables in JSON format. The table is read as a stream,
+ * one row at a time, and the readings for each row are written to the graph before
+ * the next row is read; only the current row and the last reading of each witness
+ * are held in memory by the parser. The whole section is still written in a single
+ * transaction, so that a failed import leaves nothing behind; Neo4j keeps the state of
+ * that transaction in memory until it commits, and a very large table needs heap to match.
+ *
+ * @author tla
+ */
 public class CollateXJsonParser {
 
+    private static final ObjectMapper mapper = new ObjectMapper();
+
     private GraphDatabaseServiceProvider dbServiceProvider = new GraphDatabaseServiceProvider();
     private GraphDatabaseService db = dbServiceProvider.getDatabase();
 
     public Response parseCollateXJson(InputStream filestream, Node parentNode) {
-        // parse the JSON
-        ArrayList<String> collationWitnesses = new ArrayList<>();
-        ArrayList<ArrayList<ReadingModel>> collationTable = new ArrayList<>();
-
-        // JSON parsing block; turn CollateX JSON into our model classes.
-        // Needs its own try/catch for JSON exceptions
-        try {
-            JSONObject table = new JSONObject(IOUtils.toString(filestream, "utf-8"));
-            // get the witness list from the clunky JSON interface
-            JSONArray jWit = table.getJSONArray("witnesses");
-            for (int i = 0; i < jWit.length(); i++) collationWitnesses.add(jWit.getString(i));
-
-            // get the table data from the clunky JSON interface
-            JSONArray jAlign = table.getJSONArray("table");
-            for (int i = 0; i < jAlign.length(); i++) {
-                ArrayList<ReadingModel> row = new ArrayList<>();
-                JSONArray jrow = jAlign.getJSONArray(i);
-                for (int j = 0; j < jrow.length(); j++) {
-                    String rtext = "";
-                    String rnormal = "";
-                    String rdisplay = "";
-                    boolean joinPrior = false;
-                    Boolean joinNext = false;
-                    JSONArray jcell = jrow.getJSONArray(j);
-                    JSONArray rownames = new JSONArray();
-                    JSONArray rowsource = new JSONArray();
-                    for (int k = 0; k < jcell.length(); k++) {
-                        JSONObject jtoken = jcell.getJSONObject(k);
-                        if (k == 0) {
-                            joinPrior = jtoken.has("join_prior") && jtoken.getBoolean("join_prior");
-                            jtoken.remove("join_prior");
-                        }
-                        // Patch together reading attributes from the CollateX token object:
-                        // Reading text
-                        String thisToken = jtoken.getString("t");
-                        rtext = readingAppend(rtext, jtoken, "t", joinNext);
-                        // Normal form
-                        if (jtoken.has("normal_form"))
-                            rnormal = readingAppend(rnormal, jtoken, "normal_form", joinNext);
-                        else
-                            rnormal = readingAppend(rnormal, jtoken, "t", joinNext);
-                        if (jtoken.has("display"))
-                            rdisplay = readingAppend(rdisplay, jtoken, "display", joinNext);
-                        else
-                            rdisplay = readingAppend(rdisplay, jtoken, "t", joinNext);
-                        jtoken.remove("t");
-                        jtoken.remove("normal_form");
-                        jtoken.remove("display");
-                        // Join_next attribute; the last value will prevail
-                        joinNext = jtoken.has("join_next") && jtoken.getBoolean("join_next");
-                        jtoken.remove("join_next");
-                        // Save the remaining token contents as a string in the annotation field, for future reference
-                        if (jtoken.length() > 0) {
-                            rownames.put(thisToken);
-                            rowsource.put(jtoken);
+        Node traditionNode = VariantGraphService.getTraditionNode(parentNode);
+        try (Transaction tx = db.beginTx(); JsonParser jp = mapper.getFactory().createParser(filestream)) {
+            if (jp.nextToken() != JsonToken.START_OBJECT)
+                throw new IllegalArgumentException("CollateX JSON must be an object with 'witnesses' and 'table' keys");
+
+            // Read the top-level keys. We need the witness list before we can make sense of the
+            // table; CollateX writes it first, but if it comes later we have to buffer the table.
+            List<String> collationWitnesses = null;
+            TokenBuffer deferredTable = null;
+            CollationBuilder builder = null;
+            boolean sawTable = false;
+            while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                String key = jp.getCurrentName();
+                jp.nextToken();
+                if (key.equals("witnesses")) {
+                    collationWitnesses = readWitnessList(jp);
+                    builder = new CollationBuilder(parentNode, traditionNode, collationWitnesses);
+                    if (deferredTable != null) {
+                        try (JsonParser tp = deferredTable.asParser(mapper)) {
+                            tp.nextToken();
+                            builder.readTable(tp);
                         }
+                        deferredTable = null;
                     }
-                    ReadingModel rdg = new ReadingModel();
-                    // These might all be blank
-                    rdg.setText(rtext);
-                    rdg.setNormal_form(rnormal);
-                    // Only set the display value if it differs from the token itself
-                    if (!rdisplay.equals(rtext))
-                        rdg.setDisplay(rdisplay);
-                    rdg.setJoin_next(joinNext);
-                    rdg.setJoin_prior(joinPrior);
-                    if (rowsource.length() > 1)
-                        rdg.setExtra(rowsource.toJSONObject(rownames).toString());
-                    else if (rowsource.length() == 1)
-                        rdg.setExtra(rowsource.getJSONObject(0).toString());
-                    row.add(rdg);
-                }
-                collationTable.add(row);
+                } else if (key.equals("table")) {
+                    sawTable = true;
+                    if (builder != null)
+                        builder.readTable(jp);
+                    else {
+                        deferredTable = new TokenBuffer(jp);
+                        deferredTable.copyCurrentStructure(jp);
+                    }
+                } else
+                    jp.skipChildren();
             }
-        } catch (JSONException|IOException e) {
+            if (collationWitnesses == null || !sawTable)
+                throw new IllegalArgumentException("CollateX JSON is missing its 'witnesses' or 'table' key");
+
+            builder.finish();
+            tx.success();
+            return Response.status(Response.Status.CREATED).entity(Util.jsonresp("parentId", parentNode.getId())).build();
+        } catch (JsonProcessingException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(Util.jsonerror(e.getOriginalMessage())).build();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return Response.serverError().entity(Util.jsonerror(e.getMessage())).build();
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(Util.jsonerror(e.getMessage())).build();
+        } catch (Exception e) {
             e.printStackTrace();
             return Response.serverError().entity(Util.jsonerror(e.getMessage())).build();
         }
+    }
 
-        // Now we have the data in our own model classes; proceed.
-        Node traditionNode = VariantGraphService.getTraditionNode(parentNode);
-        try (Transaction tx = db.beginTx()) {
-            // Check that we have all the witnesses
-            for (String witString : collationWitnesses) {
-                List<String> wit = parseWitnessSigil(witString);
-                String sigil = wit.get(0);
-                Util.findOrCreateExtant(traditionNode, sigil);
-            }
+    private static List<String> readWitnessList (JsonParser jp) throws IOException {
+        if (jp.currentToken() != JsonToken.START_ARRAY)
+            throw new IllegalArgumentException("CollateX witness list must be an array");
+        List<String> witnesses = new ArrayList<>();
+        while (jp.nextToken() != JsonToken.END_ARRAY)
+            witnesses.add(jp.getValueAsString());
+        return witnesses;
+    }
+
+    /*
+     * Holds the state that must survive from one table row to the next, and turns each
+     * row into readings and witness links as soon as it is read.
+     * NOTE: For use inside a transaction
+     */
+    private class CollationBuilder {
+        private final Node parentNode;
+        private final Node traditionNode;
+        private final List<String> collationWitnesses;
+        private final List<List<String>> witnessParts = new ArrayList<>();
+        private final Node startNode;
+        private final HashMap<String, Node> lastWitnessReading = new HashMap<>();
+        private long rank = 1L;
+        private int rowsRead = 0;
+
+        CollationBuilder(Node parentNode, Node traditionNode, List<String> collationWitnesses) {
+            this.parentNode = parentNode;
+            this.traditionNode = traditionNode;
+            this.collationWitnesses = collationWitnesses;
+            for (String witString : collationWitnesses)
+                witnessParts.add(parseWitnessSigil(witString));
 
             // Create the start node for the section
-            Node startNode = Util.createStartNode(parentNode);
-            HashMap<String, Node> lastWitnessReading = new HashMap<>();
+            startNode = Util.createStartNode(parentNode);
             collationWitnesses.forEach(x -> lastWitnessReading.put(x, startNode));
+        }
 
-            // Now create all the readings from our models
-            long rank = 1L;
-            for (ArrayList<ReadingModel> row : collationTable) {
-                HashMap<String, Node> createdReadings = new HashMap<>();
-                int distinct = 0;
-                for (int w = 0; w < row.size(); w++) {
-                    ReadingModel rm = row.get(w);
-                    String thisWitness = collationWitnesses.get(w);
-                    List<String> witParts = parseWitnessSigil(thisWitness);
-                    String lookupKey = String.join(rm.getText(), rm.getNormal_form(), rm.getDisplay(),
-                            rm.getJoin_next().toString(), rm.getJoin_prior().toString());
-                    if (lookupKey.equals("nullfalsefalse")) {
-                        distinct++;
-                        continue;  // Don't add blank readings
-                    }
-                    Node thisReading;
-                    if (createdReadings.containsKey(lookupKey)) {
-                        thisReading = createdReadings.get(lookupKey);
-                        thisReading.setProperty("extra",
-                                expandExtraField(thisReading.getProperty("extra").toString(),
-                                        witParts, rm.getExtra()));
-                    } else {
-                        thisReading = db.createNode(Nodes.READING);
-                        thisReading.setProperty("text", rm.getText());
-                        thisReading.setProperty("normal_form", rm.getNormal_form());
-                        if (rm.getDisplay() != null)
-                            thisReading.setProperty("display", rm.getDisplay());
-                        thisReading.setProperty("join_prior", rm.getJoin_prior());
-                        thisReading.setProperty("join_next", rm.getJoin_next());
-                        if (rm.getAnnotation() != null)
-                            thisReading.setProperty("annotation", rm.getAnnotation());
-                        if (rm.getExtra() != null) {
-                            // Wrap the reading's "extra" value in a hash value keyed on the witness.
-                            JSONObject thisExtra = new JSONObject();
-                            thisExtra.put(thisWitness, new JSONObject(rm.getExtra()));
-                            thisReading.setProperty("extra", thisExtra.toString());
-                        }
-                        thisReading.setProperty("rank", rank);
-                        thisReading.setProperty("section_id", parentNode.getId());
-                        createdReadings.put(lookupKey, thisReading);
-                        distinct++;
-                    }
-                    Node lastReading = lastWitnessReading.get(thisWitness);
-                    ReadingService.addWitnessLink(lastReading, thisReading, witParts.get(0), witParts.get(1));
-                    lastWitnessReading.put(thisWitness, thisReading);
+        void readTable(JsonParser jp) throws IOException {
+            if (jp.currentToken() != JsonToken.START_ARRAY)
+                throw new IllegalArgumentException("CollateX table must be an array");
+            while (jp.nextToken() == JsonToken.START_ARRAY) {
+                addRow(jp);
+                rowsRead++;
+            }
+        }
+
+        // Read one row of the alignment table, leaving the parser at its closing bracket.
+        private void addRow(JsonParser jp) throws IOException {
+            HashMap<String, Node> createdReadings = new HashMap<>();
+            // The accumulated witness-keyed 'extra' data for this row's readings, written
+            // out once the row is complete.
+            HashMap<Node, ObjectNode> readingExtras = new HashMap<>();
+            int distinct = 0;
+            int w = 0;
+            while (jp.nextToken() == JsonToken.START_ARRAY) {
+                if (w >= collationWitnesses.size())
+                    throw new IllegalArgumentException(String.format(
+                            "Table row %d has more cells than there are witnesses", rowsRead + 1));
+                String thisWitness = collationWitnesses.get(w);
+                List<String> witParts = witnessParts.get(w);
+                w++;
+                CellReading rm = readCell(jp);
+                String lookupKey = String.join(rm.text, rm.normalForm, rm.display,
+                        String.valueOf(rm.joinNext), String.valueOf(rm.joinPrior));
+                if (lookupKey.equals("nullfalsefalse")) {
+                    distinct++;
+                    continue;  // Don't add blank readings
                 }
-                if (createdReadings.size() > 0) {
-                    // Increment the rank
-                    rank++;
-                    // Set commonality attribute on all readings created
-                    boolean common = distinct == 1;
-                    createdReadings.values().forEach(x -> x.setProperty("is_common", common));
+                Node thisReading;
+                if (createdReadings.containsKey(lookupKey)) {
+                    thisReading = createdReadings.get(lookupKey);
+                    if (rm.extra != null)
+                        expandExtraField(readingExtras.computeIfAbsent(thisReading, k -> mapper.createObjectNode()),
+                                witParts, rm.extra);
+                } else {
+                    thisReading = db.createNode(Nodes.READING);
+                    thisReading.setProperty("text", rm.text);
+                    thisReading.setProperty("normal_form", rm.normalForm);
+                    if (rm.display != null)
+                        thisReading.setProperty("display", rm.display);
+                    thisReading.setProperty("join_prior", rm.joinPrior);
+                    thisReading.setProperty("join_next", rm.joinNext);
+                    if (rm.extra != null) {
+                        // Wrap the reading's "extra" value in a hash value keyed on the witness.
+                        ObjectNode thisExtra = mapper.createObjectNode();
+                        thisExtra.set(thisWitness, rm.extra);
+                        readingExtras.put(thisReading, thisExtra);
+                    }
+                    thisReading.setProperty("rank", rank);
+                    thisReading.setProperty("section_id", parentNode.getId());
+                    createdReadings.put(lookupKey, thisReading);
+                    distinct++;
                 }
+                Node lastReading = lastWitnessReading.get(thisWitness);
+                ReadingService.addWitnessLink(lastReading, thisReading, witParts.get(0), witParts.get(1));
+                lastWitnessReading.put(thisWitness, thisReading);
             }
+            readingExtras.forEach((n, e) -> n.setProperty("extra", e.toString()));
+            if (createdReadings.size() > 0) {
+                // Increment the rank
+                rank++;
+                // Set commonality attribute on all readings created
+                boolean common = distinct == 1;
+                createdReadings.values().forEach(x -> x.setProperty("is_common", common));
+            }
+        }
 
+        void finish() {
+            // Check that we have all the witnesses. This is left until the end, so that the
+            // tradition node is locked for as short a time as possible.
+            witnessParts.forEach(x -> Util.findOrCreateExtant(traditionNode, x.get(0)));
             Node endNode = Util.createEndNode(parentNode);
             endNode.setProperty("rank", rank);
-            for (String witString : collationWitnesses) {
-                List<String> witParts = parseWitnessSigil(witString);
-                Node lastReading = lastWitnessReading.get(witString);
+            for (int w = 0; w < collationWitnesses.size(); w++) {
+                List<String> witParts = witnessParts.get(w);
+                Node lastReading = lastWitnessReading.get(collationWitnesses.get(w));
                 ReadingService.addWitnessLink(lastReading, endNode, witParts.get(0), witParts.get(1));
             }
-            tx.success();
-            return Response.status(Response.Status.CREATED).entity(Util.jsonresp("parentId", parentNode.getId())).build();
-        } catch (IllegalArgumentException e) {
-            return Response.status(Response.Status.BAD_REQUEST).entity(Util.jsonerror(e.getMessage())).build();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return Response.serverError().entity(Util.jsonerror(e.getMessage())).build();
         }
+    }
 
+    // The reading attributes patched together from the CollateX tokens of a single table cell.
+    private static class CellReading {
+        String text = "";
+        String normalForm = "";
+        String display = null;
+        boolean joinPrior = false;
+        boolean joinNext = false;
+        JsonNode extra = null;
+    }
+
+    // Read one cell of the alignment table, i.e. an array of CollateX token objects.
+    private static CellReading readCell(JsonParser jp) throws IOException {
+        CellReading rdg = new CellReading();
+        String rtext = "";
+        String rnormal = "";
+        String rdisplay = "";
+        List<String> rownames = new ArrayList<>();
+        List<ObjectNode> rowsource = new ArrayList<>();
+        int k = 0;
+        while (jp.nextToken() != JsonToken.END_ARRAY) {
+            JsonNode tokenNode = jp.readValueAsTree();
+            if (tokenNode == null || !tokenNode.isObject())
+                throw new IllegalArgumentException("CollateX token must be an object");
+            ObjectNode jtoken = (ObjectNode) tokenNode;
+            if (k++ == 0) {
+                rdg.joinPrior = jtoken.has("join_prior") && jtoken.get("join_prior").asBoolean();
+                jtoken.remove("join_prior");
+            }
+            if (!jtoken.has("t"))
+                throw new IllegalArgumentException("CollateX token has no 't' value");
+            // Patch together reading attributes from the CollateX token object:
+            // Reading text
+            String thisToken = jtoken.get("t").asText();
+            rtext = readingAppend(rtext, jtoken, "t", rdg.joinNext);
+            // Normal form
+            rnormal = readingAppend(rnormal, jtoken, jtoken.has("normal_form") ? "normal_form" : "t", rdg.joinNext);
+            rdisplay = readingAppend(rdisplay, jtoken, jtoken.has("display") ? "display" : "t", rdg.joinNext);
+            jtoken.remove("t");
+            jtoken.remove("normal_form");
+            jtoken.remove("display");
+            // Join_next attribute; the last value will prevail
+            rdg.joinNext = jtoken.has("join_next") && jtoken.get("join_next").asBoolean();
+            jtoken.remove("join_next");
+            // Save the remaining token contents in the annotation field, for future reference
+            if (jtoken.size() > 0) {
+                rownames.add(thisToken);
+                rowsource.add(jtoken);
+            }
+        }
+        // These might all be blank
+        rdg.text = rtext;
+        rdg.normalForm = rnormal;
+        // Only set the display value if it differs from the token itself
+        if (!rdisplay.equals(rtext))
+            rdg.display = rdisplay;
+        if (rowsource.size() > 1) {
+            ObjectNode keyed = mapper.createObjectNode();
+            for (int i = 0; i < rowsource.size(); i++)
+                keyed.set(rownames.get(i), rowsource.get(i));
+            rdg.extra = keyed;
+        } else if (rowsource.size() == 1)
+            rdg.extra = rowsource.get(0);
+        return rdg;
     }
 
-    private static String expandExtraField (String origJson, List<String> witness, String newJSON) throws JSONException {
-        JSONObject currvalue = new JSONObject(origJson);
-        JSONObject newValue = new JSONObject(newJSON);
+    private static void expandExtraField (ObjectNode currvalue, List<String> witness, JsonNode newValue) {
         // Check to see whether we are adding a redundant line
         String sigil;
         if (!witness.get(1).equals("witnesses")) {
             // We are in a witness layer
-            if (currvalue.has(witness.get(0))
-                    && currvalue.getJSONObject(witness.get(0)).toString().equals(newValue.toString()))
-                return currvalue.toString();
+            if (newValue.equals(currvalue.get(witness.get(0))))
+                return;
             sigil = String.format("%s (%s)", witness.get(0), witness.get(1));
         } else { // ...we are assuming for our own sanity that layers are declared after main witnesses.
             sigil = witness.get(0);
         }
-        currvalue.put(sigil, newValue);
-        return currvalue.toString();
+        currvalue.set(sigil, newValue);
     }
 
     private static List<String> parseWitnessSigil (String sigil) {
@@ -226,15 +308,14 @@ public class CollateXJsonParser {
         return parts;
     }
 
-    private static String readingAppend (String current, JSONObject token, String key, Boolean joinNext)
-            throws JSONException {
+    private static String readingAppend (String current, JsonNode token, String key, Boolean joinNext) {
         StringBuilder prior = new StringBuilder(current);
         boolean noSpace = prior.length() == 0 || joinNext;
-        if (token.has("join_prior") && token.getBoolean("join_prior"))
+        if (token.has("join_prior") && token.get("join_prior").asBoolean())
             noSpace = true;
         if (!noSpace)
             prior.append(" ");
-        prior.append(token.get(key));
+        prior.append(token.get(key).asText());
         return prior.toString();
     }
 
@@ -0,0 +1,203 @@
+package net.stemmaweb.parser;
+
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Unpacks a zip or tar archive containing the data files for several sections of a
+ * tradition. The archive must contain, at its top level, a file called
+ * {@code manifest.json} that lists the section files in the order in which the
+ * sections should appear, e.g.
+ * <pre>
+ * [{"file": "part1.json", "filetype": "cxjson", "name": "Part 1"},
+ *  {"file": "part2.csv", "filetype": "csv", "name": "Part 2"}]
+ * </pre>
+ * The section files are copied to temporary storage, so that they can be parsed
+ * independently of each other; they are removed again when the archive is closed.
+ */
+public class SectionArchive implements AutoCloseable {
+    public static final String MANIFEST = "manifest.json";
+
+    /**
+     * A single section file as listed in the manifest.
+     */
+    public static class Entry {
+        private final String file;
+        private final String name;
+        private final String filetype;
+        private final File data;
+
+        private Entry(String file, String name, String filetype, File data) {
+            this.file = file;
+            this.name = name;
+            this.filetype = filetype;
+            this.data = data;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getFiletype() {
+            return filetype;
+        }
+
+        public InputStream openStream() throws IOException {
+            return new BufferedInputStream(new FileInputStream(data));
+        }
+    }
+
+    private final HashMap<String, File> extracted = new HashMap<>();
+    private final List<Entry> entries = new ArrayList<>();
+
+    /**
+     * Unpack the given archive and read its manifest.
+     *
+     * @param archiveData - the archive file data
+     * @param archiveType - one of {@code zip}, {@code tar}, or {@code tgz}
+     * @throws IllegalArgumentException if the archive type is unknown, or if the manifest
+     *                                  is missing or does not match the archive contents
+     * @throws IOException if the archive could not be read
+     */
+    public SectionArchive(InputStream archiveData, String archiveType) throws IOException {
+        try {
+            unpack(openArchive(archiveData, archiveType));
+            readManifest();
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Whether the given file type names an archive that this class can read.
+     *
+     * @param filetype - the file type given in the upload request
+     * @return true if it is an archive type
+     */
+    public static boolean isArchiveType(String filetype) {
+        return filetype != null && (filetype.equals("zip") || filetype.equals("tar") || filetype.equals("tgz"));
+    }
+
+    private static ArchiveInputStream openArchive(InputStream archiveData, String archiveType) throws IOException {
+        switch (archiveType) {
+            case "zip":
+                return new ZipArchiveInputStream(archiveData);
+            case "tar":
+                return new TarArchiveInputStream(archiveData);
+            case "tgz":
+                return new TarArchiveInputStream(new GZIPInputStream(archiveData));
+            default:
+                throw new IllegalArgumentException("Unrecognized archive type " + archiveType);
+        }
+    }
+
+    private void unpack(ArchiveInputStream archive) throws IOException {
+        ArchiveEntry ae;
+        while ((ae = archive.getNextEntry()) != null) {
+            if (ae.isDirectory() || !archive.canReadEntryData(ae))
+                continue;
+            File tmp = File.createTempFile("stemmarest-section", null);
+            // Register the file before writing it, so that it is cleaned up whatever happens
+            File previous = extracted.put(ae.getName(), tmp);
+            if (previous != null)
+                previous.delete();
+            Files.copy(archive, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void readManifest() throws IOException {
+        File manifestFile = extracted.get(MANIFEST);
+        if (manifestFile == null)
+            throw new IllegalArgumentException("Section archive has no " + MANIFEST);
+        try {
+            JSONArray manifest = new JSONArray(new String(Files.readAllBytes(manifestFile.toPath()),
+                    StandardCharsets.UTF_8));
+            for (int i = 0; i < manifest.length(); i++) {
+                JSONObject item = manifest.getJSONObject(i);
+                String file = item.getString("file");
+                String filetype = item.getString("filetype");
+                if (filetype.equals("graphml") || isArchiveType(filetype))
+                    throw new IllegalArgumentException(String.format(
+                            "File type %s cannot be used for a single section", filetype));
+                if (!extracted.containsKey(file))
+                    throw new IllegalArgumentException(String.format(
+                            "Section file %s is listed in the manifest but missing from the archive", file));
+                entries.add(new Entry(file, item.optString("name", file), filetype, extracted.get(file)));
+            }
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Malformed section manifest: " + e.getMessage());
+        }
+        if (entries.isEmpty())
+            throw new IllegalArgumentException("Section manifest lists no files");
+    }
+
+    @Override
+    public void close() {
+        extracted.values().forEach(File::delete);
+        extracted.clear();
+    }
+
+    /**
+     * Sections that are parsed concurrently cannot see each other's uncommitted witnesses
+     * and relation types, and so may each create the same one. This removes the duplicates
+     * that such a concurrent import has produced, keeping the oldest node in each case.
+     * Only nodes that have no links besides their tradition link are removed.
+     * NOTE: For use inside a transaction
+     *
+     * @param traditionNode - the tradition whose witnesses and relation types should be checked
+     */
+    public static void mergeDuplicateNodes(Node traditionNode) {
+        HashMap<String, Node> seenWitnesses = new HashMap<>();
+        HashMap<String, Node> seenTypes = new HashMap<>();
+        List<Relationship> links = new ArrayList<>();
+        traditionNode.getRelationships(Direction.OUTGOING, ERelations.HAS_WITNESS, ERelations.HAS_RELATION_TYPE)
+                .forEach(links::add);
+        links.sort(Comparator.comparingLong(r -> r.getEndNode().getId()));
+        for (Relationship r : links) {
+            Node n = r.getEndNode();
+            HashMap<String, Node> seen;
+            String key;
+            if (n.hasLabel(Nodes.WITNESS)) {
+                if (!n.getProperty("hypothetical", false).equals(false))
+                    continue;
+                seen = seenWitnesses;
+                key = n.getProperty("sigil").toString();
+            } else {
+                seen = seenTypes;
+                key = n.getProperty("name").toString();
+            }
+            if (!seen.containsKey(key))
+                seen.put(key, n);
+            else if (n.getDegree() == 1) {
+                r.delete();
+                n.delete();
+            }
+        }
+    }
+}
@@ -4,7 +4,6 @@ import net.stemmaweb.model.ReadingModel;
 import net.stemmaweb.rest.*;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
-import net.stemmaweb.services.VariantGraphService;
 import org.neo4j.graphdb.*;
 
 import javax.ws.rs.core.Response;
@@ -177,10 +176,9 @@ public class TEIParallelSegParser {
                 }
             } // end parseloop
 
-            // Now try re-ranking the nodes.
+            // Now try re-ranking the nodes. Since none of them had a rank yet, this also
+            // calculates which nodes are common across the whole section.
             recalculateRank(startNode);
-            // Calculate which nodes are common
-            VariantGraphService.calculateCommon(parentNode);
             tx.success();
         } catch (IllegalArgumentException e) {
             return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
@@ -203,7 +201,10 @@ public class TEIParallelSegParser {
             return Response.serverError().build();
         }
         Section s = new Section(tradId, parentId);
-        for (List<ReadingModel> identSet : s.collectIdenticalReadings(0, endRank)) {
+        // There is nothing to merge if no two readings are alike
+        List<List<ReadingModel>> identicalReadings = s.collectIdenticalReadings(0, endRank);
+        if (identicalReadings == null) identicalReadings = new ArrayList<>();
+        for (List<ReadingModel> identSet : identicalReadings) {
             ReadingModel first = identSet.remove(0);
             Reading rd = new Reading(first.getId());
             for (ReadingModel identical : identSet) {
@@ -9,16 +9,27 @@ import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
-import org.json.JSONObject;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.usermodel.XSSFComment;
 import org.neo4j.graphdb.*;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
 
 import javax.ws.rs.core.Response;
+import java.io.File;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 
 /**
@@ -29,7 +40,8 @@ public class TabularParser {
     private GraphDatabaseService db = new GraphDatabaseServiceProvider().getDatabase();
 
     /**
-     * Parse a comma- or tab-separated file stream into a graph.
+     * Parse a comma- or tab-separated file stream into a graph. The rows are read from the
+     * stream one at a time and added to the graph as they are read.
      *
      * @param fileData - an InputStream containing the CSV/TSV data
      * @param sectionNode - the section of the tradition to which this collation belongs
@@ -38,25 +50,21 @@ public class TabularParser {
      * @return Response
      */
     public Response parseCSV(InputStream fileData, Node sectionNode, char sepChar) {
-        // Parse the CSV file
-        ArrayList<String[]> csvRows = new ArrayList<>();
-        try {
+        return parseTableToCollation(builder -> {
             final CSVParser parser = new CSVParserBuilder().withSeparator(sepChar).build();
             final CSVReader reader = new CSVReaderBuilder(new InputStreamReader(fileData))
                     .withCSVParser(parser)
                     .build();
             String[] nextLine;
             while ((nextLine = reader.readNext()) != null)
-                csvRows.add(nextLine);
-        } catch (Exception e) {
-            return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
-                .entity(Util.jsonerror(e.getMessage())).build();
-        }
-        return parseTableToCollation(csvRows, sectionNode);
+                builder.addRow(nextLine);
+        }, sectionNode);
     }
 
     /**
-     * Parse an Excel file stream into a graph.
+     * Parse an Excel file stream into a graph. XLSX sheets are read with the POI event
+     * model, so that the workbook is never loaded into memory as a whole; XLS files are
+     * limited in size by the format and are read with the ordinary workbook model.
      *
      * @param fileData - an InputStream containing the CSV/TSV data
      * @param sectionNode - the section of the tradition to which this collation belongs
@@ -65,25 +73,18 @@ public class TabularParser {
      * @return Response
      */
     public Response parseExcel(InputStream fileData, Node sectionNode, String excelType) {
-        ArrayList<String[]> excelRows;
-        try {
-            Workbook workbook;
-            if (excelType.equals("xls")) {
-                workbook = new HSSFWorkbook(fileData);
-            } else { // it must be xlsx
-                workbook = new XSSFWorkbook(fileData);
-            }
-            excelRows = getTableFromWorkbook(workbook);
-        } catch (Exception e) {
-            return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
-                    .entity(Util.jsonerror(e.getMessage())).build();
-        }
-        return parseTableToCollation(excelRows, sectionNode);
+        if (excelType.equals("xls"))
+            return parseTableToCollation(builder -> {
+                try (Workbook workbook = new HSSFWorkbook(fileData)) {
+                    getTableFromWorkbook(workbook, builder);
+                }
+            }, sectionNode);
+        // otherwise it must be xlsx
+        return parseTableToCollation(builder -> streamTableFromXLSX(fileData, builder), sectionNode);
     }
 
     // Extract a table from the first sheet of an Excel workbook.
-    private ArrayList<String[]> getTableFromWorkbook (Workbook workbook) throws Exception {
-        ArrayList<String[]> excelRows = new ArrayList<>();
+    private static void getTableFromWorkbook (Workbook workbook, CollationBuilder builder) throws Exception {
         Sheet worksheet = workbook.getSheetAt(0);
         Iterator<Row> rowIterator = worksheet.rowIterator();
         int expectedSize = 0;
@@ -98,120 +99,256 @@ public class TabularParser {
                 throw new Exception(String.format("Spreadsheet row %d has too many columns!", row.getRowNum()));
 
             row.forEach(x -> rowArray.add(x.getStringCellValue()));
-            excelRows.add(rowArray.toArray(new String[expectedSize]));
+            builder.addRow(rowArray.toArray(new String[expectedSize]));
+        }
+    }
+
+    // Extract a table from the first sheet of an XLSX file, using the SAX-based event model.
+    // The package has to be opened from a file; opening it from a stream would buffer the
+    // whole (uncompressed) archive in memory.
+    private static void streamTableFromXLSX (InputStream fileData, CollationBuilder builder) throws Exception {
+        File tmpFile = File.createTempFile("stemmarest", ".xlsx");
+        try {
+            Files.copy(fileData, tmpFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            try (OPCPackage pkg = OPCPackage.open(tmpFile, PackageAccess.READ)) {
+                XSSFReader reader = new XSSFReader(pkg);
+                ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg);
+                Iterator<InputStream> sheets = reader.getSheetsData();
+                if (!sheets.hasNext())
+                    throw new Exception("Spreadsheet has no worksheets");
+                try (InputStream sheet = sheets.next()) {
+                    XMLReader parser = XMLHelper.newXMLReader();
+                    parser.setContentHandler(new XSSFSheetXMLHandler(reader.getStylesTable(), strings,
+                            new SheetRowHandler(builder), false));
+                    parser.parse(new InputSource(sheet));
+                }
+            }
+        } finally {
+            if (!tmpFile.delete())
+                tmpFile.deleteOnExit();
+        }
+    }
+
+    // Collects the cells of each worksheet row as the SAX parser reports them, and passes
+    // the row on to the collation builder once it is complete.
+    private static class SheetRowHandler implements XSSFSheetXMLHandler.SheetContentsHandler {
+        private final CollationBuilder builder;
+        private int expectedSize = 0;
+        private ArrayList<String> currentRow;
+        private int rowNum;
+        private int cellCount;
+
+        SheetRowHandler(CollationBuilder builder) {
+            this.builder = builder;
+        }
+
+        @Override
+        public void startRow(int rowNum) {
+            this.rowNum = rowNum;
+            currentRow = new ArrayList<>();
+            cellCount = 0;
+        }
+
+        @Override
+        public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+            // Empty cells are not reported, so place each value according to its column
+            int col = new CellReference(cellReference).getCol();
+            while (currentRow.size() < col)
+                currentRow.add(null);
+            currentRow.add(formattedValue);
+            cellCount++;
+        }
+
+        @Override
+        public void endRow(int rowNum) {
+            // Note the size that we expect our rows to be; a gap in the header row
+            // also means that the rows are too wide for the witness list.
+            if (expectedSize == 0)
+                expectedSize = cellCount;
+            if (currentRow.size() > expectedSize)
+                throw new RowException(String.format("Spreadsheet row %d has too many columns!", this.rowNum));
+            builder.addRow(currentRow.toArray(new String[expectedSize]));
         }
-        return excelRows;
     }
 
-    private Response parseTableToCollation(ArrayList<String[]> tableData, Node parentNode) {
+    // Signals, from inside the SAX handler, that a worksheet row could not be used.
+    private static class RowException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        RowException(String message) {
+            super(message);
+        }
+    }
+
+    // The source of table rows for parseTableToCollation
+    private interface RowSource {
+        void feedRows(CollationBuilder builder) throws Exception;
+    }
+
+    private Response parseTableToCollation(RowSource rows, Node parentNode) {
         String response;
         Response.Status result = Response.Status.OK;
         Node traditionNode = DatabaseService.getRelated(parentNode, ERelations.PART).get(0);
 
         try (Transaction tx = db.beginTx()) {
+            CollationBuilder builder = new CollationBuilder(traditionNode, parentNode);
+            rows.feedRows(builder);
+            builder.finish();
+
+            // We are done!
+            result = Response.Status.CREATED;
+            response = Util.jsonresp("parentId", parentNode.getId());
+            tx.success();
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(Util.jsonerror(e.getMessage())).build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            if (result.equals(Response.Status.OK))
+                result = Response.Status.INTERNAL_SERVER_ERROR;
+            response = Util.jsonerror(e.getMessage());
+        }
+
+        return Response.status(result).entity(response).build();
+
+    }
+
+    /*
+     * Turns table rows into readings as they arrive. The first row gives the witness sigla;
+     * each subsequent row is added to the graph as soon as it is passed in, so that only
+     * the last reading of each witness needs to be kept between rows.
+     * NOTE: For use inside a transaction
+     */
+    private class CollationBuilder {
+        private final Node traditionNode;
+        private final Node parentNode;
+        private Node startNode;
+        private String[] witnessList = null;
+        // Keep a table of the last-spotted reading for each witness
+        private final HashMap<String, Node> lastReading = new HashMap<>();
+        private final HashMap<String, String[]> layerWitnesses = new HashMap<>();
+        private final List<String> extantWitnesses = new ArrayList<>();
+        private int idx = 0;
+        private int distinct = 0;
+
+        CollationBuilder(Node traditionNode, Node parentNode) {
+            this.traditionNode = traditionNode;
+            this.parentNode = parentNode;
+        }
+
+        void addRow(String[] collationRow) {
+            if (witnessList == null)
+                setWitnesses(collationRow);
+            else
+                addReadings(collationRow);
+            idx++;
+        }
+
+        // Get the witnesses from the first row of the table
+        private void setWitnesses(String[] header) {
+            witnessList = header;
             // Make the start node
-            Node startNode = Util.createStartNode(parentNode);
-            Node endNode = Util.createEndNode(parentNode);
-            endNode.setProperty("rank", (long) tableData.size());
-
-            // Get the witnesses from the first row of the table
-            String[] witnessList = tableData.get(0);
-            // Keep a table of the last-spotted reading for each witness
-            HashMap<String, Node> lastReading = new HashMap<>();
-            // Add the non-layer witnesses to the graph
-            HashMap<String, String[]> layerWitnesses = new HashMap<>();
+            startNode = Util.createStartNode(parentNode);
+            // Note the non-layer witnesses, to be added to the graph at the end
             for (String sigil: witnessList) {
                 // See if it is a layered witness, of the form XX (YY)
                 String[] sigilParts = sigil.split("\\s+\\(");  // now we have ["XX", "YY)"]
                 if (sigilParts.length == 1) // it is not a layered witness
-                    Util.findOrCreateExtant(traditionNode, sigil);
+                    extantWitnesses.add(sigil);
                 else if (sigilParts.length == 2) // it is a layered witness; store a ref to its base
                     layerWitnesses.put(sigil, sigilParts);
                 else   // what is this i don't even
-                    return Response.status(Response.Status.BAD_REQUEST)
-                        .entity(Util.jsonerror("Malformed sigil " + sigil)).build();
+                    throw new IllegalArgumentException("Malformed sigil " + sigil);
 
                 lastReading.put(sigil, startNode);
             }
+        }
 
-            // Go through the remaining rows and create the readings
-            int distinct = 0;
-            for (int idx = 1; idx < tableData.size(); idx++) { // for each row
-                String[] collationRow = tableData.get(idx);
-                HashMap<String, Node> createdReadings = new HashMap<>();
-                HashMap<Relationship, ArrayList<String>> linkWitnesses = new HashMap<>();
-                for (int j = 0; j < collationRow.length; j++) {
-                    String reading = collationRow[j];
-                    String sigil = witnessList[j];
-                    Node lastNode = lastReading.get(sigil);
-                    // Is it an empty reading?
-                    if (reading == null || reading.equals("")) {
-                        distinct++;
+        // Create the readings for one row of the table
+        private void addReadings(String[] collationRow) {
+            HashMap<String, Node> createdReadings = new HashMap<>();
+            HashMap<Relationship, ArrayList<String>> linkWitnesses = new HashMap<>();
+            for (int j = 0; j < collationRow.length; j++) {
+                String reading = collationRow[j];
+                String sigil = witnessList[j];
+                Node lastNode = lastReading.get(sigil);
+                // Is it an empty reading?
+                if (reading == null || reading.equals("")) {
+                    distinct++;
+                    continue;
+                }
+                // Is it a continuation of a lacuna?
+                if (reading.equals("#LACUNA#"))
+                    if (lastNode.hasProperty("is_lacuna"))
                         continue;
-                    }
-                    // Is it a continuation of a lacuna?
+
+                // Does the reading exist?
+                Node readingNode = createdReadings.getOrDefault(reading, null);
+                if (readingNode == null) {
+                    readingNode = db.createNode(Nodes.READING);
+                    readingNode.setProperty("section_id", parentNode.getId());
+                    readingNode.setProperty("rank", (long) idx);
+                    readingNode.setProperty("text", reading);
                     if (reading.equals("#LACUNA#"))
-                        if (lastNode.hasProperty("is_lacuna"))
-                            continue;
-
-                    // Does the reading exist?
-                    Node readingNode = createdReadings.getOrDefault(reading, null);
-                    if (readingNode == null) {
-                        readingNode = db.createNode(Nodes.READING);
-                        readingNode.setProperty("section_id", parentNode.getId());
-                        readingNode.setProperty("rank", (long) idx);
-                        readingNode.setProperty("text", reading);
-                        if (reading.equals("#LACUNA#"))
-                            readingNode.setProperty("is_lacuna", true);
-                        else {
-                            distinct++;
-                        }
-                        createdReadings.put(reading, readingNode);
-                    }
-                    // Does the reading have a relationship with lastNode? If not, create it.
-                    Relationship existingSeq = Util.getSequenceIfExists(lastNode, readingNode);
-                    if (existingSeq == null)
-                        existingSeq = lastNode.createRelationshipTo(readingNode, ERelations.SEQUENCE);
-
-                    // Get that relationship's witnesses list, or create it if it doesn't exist.
-                    ArrayList<String> seqWitnesses = linkWitnesses.getOrDefault(existingSeq, null);
-                    if (seqWitnesses == null) {
-                        seqWitnesses = new ArrayList<>();
-                        linkWitnesses.put(existingSeq, seqWitnesses);
+                        readingNode.setProperty("is_lacuna", true);
+                    else {
+                        distinct++;
                     }
-                    // Add this sigil to the list and store the reading as its last
-                    seqWitnesses.add(sigil);
-                    lastReading.put(sigil, readingNode);
+                    createdReadings.put(reading, readingNode);
                 }
-                // Did we create only one reading (and no gaps?) If so it is a common reading.
-                boolean common = distinct == 1;
-                createdReadings.values().forEach(x -> x.setProperty("is_common", common));
-                // Now that we have been through the row, create the witness / layer attributes
-                // for the created relationships.
-                for (Relationship r : linkWitnesses.keySet()) {
-                    ArrayList<String> witList = linkWitnesses.get(r);
-                    HashMap<String, ArrayList<String>> layerMap = new HashMap<>();
-                    layerMap.put("witnesses", new ArrayList<>());
-                    for (String w : witList)
-                        if (layerWitnesses.containsKey(w)) {
-                            // It's a layer witness. Get the layer label and the base witness
-                            String baseWit = layerWitnesses.get(w)[0];
-                            String ll = layerWitnesses.get(w)[1];
-                            String layerLabel = ll.substring(0, ll.indexOf(')'));
-                            // See if the base witness is already in the list
-                            if (witList.contains(baseWit))
-                                continue;
-                            // Add the layer label key and the witness.
-                            if (!layerMap.containsKey(layerLabel))
-                                layerMap.put(layerLabel, new ArrayList<>());
-                            layerMap.get(layerLabel).add(baseWit);
-                        } else layerMap.get("witnesses").add(w);
-                    // Finally, set the properties for each layer label
-                    layerMap.forEach((x, y) -> r.setProperty(x, y.toArray(new String[0])));
+                // Does the reading have a relationship with lastNode? If not, create it.
+                Relationship existingSeq = Util.getSequenceIfExists(lastNode, readingNode);
+                if (existingSeq == null)
+                    existingSeq = lastNode.createRelationshipTo(readingNode, ERelations.SEQUENCE);
+
+                // Get that relationship's witnesses list, or create it if it doesn't exist.
+                ArrayList<String> seqWitnesses = linkWitnesses.getOrDefault(existingSeq, null);
+                if (seqWitnesses == null) {
+                    seqWitnesses = new ArrayList<>();
+                    linkWitnesses.put(existingSeq, seqWitnesses);
                 }
+                // Add this sigil to the list and store the reading as its last
+                seqWitnesses.add(sigil);
+                lastReading.put(sigil, readingNode);
             }
+            // Did we create only one reading (and no gaps?) If so it is a common reading.
+            boolean common = distinct == 1;
+            createdReadings.values().forEach(x -> x.setProperty("is_common", common));
+            // Now that we have been through the row, create the witness / layer attributes
+            // for the created relationships.
+            for (Relationship r : linkWitnesses.keySet())
+                setWitnessProperties(r, linkWitnesses.get(r));
+        }
 
-            // Tie all the last readings to the end node.
+        // Set the witnesses of a sequence, putting each layered witness under its layer label
+        private void setWitnessProperties(Relationship r, List<String> witList) {
+            HashMap<String, ArrayList<String>> layerMap = new HashMap<>();
+            layerMap.put("witnesses", new ArrayList<>());
+            for (String w : witList)
+                if (layerWitnesses.containsKey(w)) {
+                    // It's a layer witness. Get the layer label and the base witness
+                    String baseWit = layerWitnesses.get(w)[0];
+                    String ll = layerWitnesses.get(w)[1];
+                    String layerLabel = ll.substring(0, ll.indexOf(')'));
+                    // See if the base witness is already in the list
+                    if (witList.contains(baseWit))
+                        continue;
+                    // Add the layer label key and the witness.
+                    if (!layerMap.containsKey(layerLabel))
+                        layerMap.put(layerLabel, new ArrayList<>());
+                    layerMap.get(layerLabel).add(baseWit);
+                } else layerMap.get("witnesses").add(w);
+            // Finally, set the properties for each layer label
+            layerMap.forEach((x, y) -> r.setProperty(x, y.toArray(new String[0])));
+        }
+
+        // Make the end node, now that we know its rank, and tie all the last readings to it.
+        void finish() throws Exception {
+            if (witnessList == null)
+                throw new Exception("No collation data found");
+            // Add the witnesses now, so that the tradition node is locked for as short a time as possible
+            extantWitnesses.forEach(x -> Util.findOrCreateExtant(traditionNode, x));
+            Node endNode = Util.createEndNode(parentNode);
+            endNode.setProperty("rank", (long) idx);
             for (Node readingNode : lastReading.values()) {
                 Relationship endRelation = Util.getSequenceIfExists(readingNode, endNode);
                 if (endRelation == null) {
@@ -221,24 +358,9 @@ public class TabularParser {
                         if (lastReading.get(x).equals(readingNode))
                             readingWits.add(x);
                     });
-                    endRelation.setProperty("witnesses", readingWits.toArray(new String[0]));
+                    setWitnessProperties(endRelation, readingWits);
                 } // else we've already connected this reading.
             }
-
-            // We are done!
-            result = Response.Status.CREATED;
-            response = Util.jsonresp("parentId", parentNode.getId());
-            tx.success();
-        } catch (IllegalArgumentException e) {
-            return Response.status(Response.Status.BAD_REQUEST).entity(Util.jsonerror(e.getMessage())).build();
-        } catch (Exception e) {
-            e.printStackTrace();
-            if (result.equals(Response.Status.OK))
-                result = Response.Status.INTERNAL_SERVER_ERROR;
-            response = Util.jsonerror(e.getMessage());
         }
-
-        return Response.status(result).entity(response).build();
-
     }
 }
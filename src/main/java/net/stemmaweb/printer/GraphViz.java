@@ -29,16 +29,22 @@ package net.stemmaweb.printer;
  */
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
@@ -83,6 +89,11 @@ public class GraphViz
     */
     private StringBuilder graph = new StringBuilder();
 
+   /**
+    * The dot executable to use instead of the one found on the path, if any.
+    */
+    private static volatile String dotExecutable = null;
+
    /**
     * Constructor: creates a new GraphViz object that will contain
     * a graph.
@@ -91,6 +102,8 @@ public class GraphViz
    }
    
     private String getDotExecutable() {
+       if (dotExecutable != null)
+          return dotExecutable;
        String[] possibilities = {"dot", "dot.exe", "dot.bat"};
        for (String exec : possibilities) {
           String dotPath = resolve(exec);
@@ -100,6 +113,14 @@ public class GraphViz
        return "";
     }
 
+   /**
+    * Sets the dot executable to run, e.g. for testing; null means the one on the path.
+    * @param path The full path of the executable.
+    */
+   public static void setDotExecutable(String path) {
+      dotExecutable = path;
+   }
+
    /**
     * Returns the graph's source description in dot language.
     * @return Source of the graph in dot language.
@@ -153,6 +174,61 @@ public class GraphViz
       } catch (java.io.IOException ioe) { return null; }
    }
 
+   /**
+    * Returns the graph as an image in binary format, passing the source to dot
+    * and reading the image back through pipes rather than temporary files.
+    * @param dot_source Source of the graph to be drawn.
+    * @param type Type of the output image to be produced, e.g.: gif, dot, fig, pdf, ps, svg, png.
+    * @param timeout How long to let dot run, in milliseconds, before killing it.
+    * @return A byte array containing the image of the graph.
+    * @throws IOException if dot can't be run, fails, or takes too long.
+    */
+   public byte[] render(String dot_source, String type, long timeout) throws IOException
+   {
+      String DOT = getDotExecutable();
+      if (DOT.equals(""))
+         throw new IOException("The dot executable could not be found");
+      Process p = new ProcessBuilder(DOT, "-T" + type)
+              .redirectError(ProcessBuilder.Redirect.INHERIT)
+              .start();
+      try {
+         // dot reads the whole graph before it writes anything, so this can't block on its output
+         try (OutputStream in = p.getOutputStream()) {
+            in.write(dot_source.getBytes(StandardCharsets.UTF_8));
+         }
+         // Only read what is there, so that a dot that hangs can still be killed on time
+         ByteArrayOutputStream img_stream = new ByteArrayOutputStream();
+         long deadline = System.currentTimeMillis() + timeout;
+         try (InputStream out = p.getInputStream()) {
+            byte[] buf = new byte[8192];
+            int n;
+            while (true) {
+               int available = out.available();
+               if (available > 0) {
+                  n = out.read(buf, 0, Math.min(available, buf.length));
+                  img_stream.write(buf, 0, n);
+               } else if (!p.isAlive()) {
+                  while ((n = out.read(buf)) > -1)
+                     img_stream.write(buf, 0, n);
+                  break;
+               } else if (System.currentTimeMillis() > deadline) {
+                  throw new IOException("dot did not finish within " + timeout + " ms");
+               } else {
+                  p.waitFor(10, TimeUnit.MILLISECONDS);
+               }
+            }
+         }
+         if (p.exitValue() != 0)
+            throw new IOException("dot exited with status " + p.exitValue());
+         return img_stream.toByteArray();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while waiting for dot", e);
+      } finally {
+         p.destroyForcibly();
+      }
+   }
+
    /**
     * Writes the graph's image in a file.
     * @param img   A byte array containing the image of the graph.
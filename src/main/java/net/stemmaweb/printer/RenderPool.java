@@ -0,0 +1,152 @@
+package net.stemmaweb.printer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.ServiceUnavailableException;
+
+/**
+ * Renders dot graphs with GraphViz on a fixed number of worker threads, so that no more than
+ * a handful of dot processes run at once however many requests come in. Requests beyond
+ * that wait in a bounded queue, and are turned away with 503 when the queue is full. Rendered images
+ * are kept, keyed by a hash of their dot source, so that a graph that many people are looking
+ * at is only rendered once, and simultaneous requests for the same graph share a single render.
+ */
+public class RenderPool {
+    // The number of dot processes that may run at once
+    private static final int MAX_RENDERS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+    // The number of renders that may wait for a free worker
+    private static final int MAX_QUEUED = 50;
+    // How long a dot process may run, in milliseconds
+    private static volatile long renderTimeout = 30000;
+    // How long a request may wait for its image, in milliseconds, including time in the queue
+    private static final long WAIT_TIMEOUT = 60000;
+    // The total size of the rendered images to keep
+    private static final long MAX_CACHED_BYTES = 64L * 1024 * 1024;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_RENDERS, MAX_RENDERS,
+            60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(MAX_QUEUED), r -> {
+                Thread t = new Thread(r, "graphviz-render-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+    static {
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    private static final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private static long cachedBytes = 0;
+    private static final Map<String, Future<byte[]>> inProgress = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the graph as an image, rendering it if it hasn't been rendered already.
+     *
+     * @param dotSource - the graph in dot language
+     * @param type      - the type of image to produce, e.g. "svg"
+     * @return the image data
+     * @throws IOException if the image could not be rendered, or the rendering took too long
+     * @throws ServiceUnavailableException if too many images are waiting to be rendered
+     */
+    public static byte[] render(String dotSource, String type) throws IOException {
+        String key = hash(type, dotSource);
+        byte[] image = getCached(key);
+        if (image != null)
+            return image;
+
+        FutureTask<byte[]> task = new FutureTask<>(() -> {
+            try {
+                byte[] rendered = new GraphViz().render(dotSource, type, renderTimeout);
+                putCached(key, rendered);
+                return rendered;
+            } finally {
+                inProgress.remove(key);
+            }
+        });
+        Future<byte[]> running = inProgress.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                pool.execute(task);
+            } catch (RejectedExecutionException e) {
+                inProgress.remove(key, task);
+                throw new ServiceUnavailableException("Too many graphs are waiting to be rendered", 1L);
+            }
+        }
+
+        try {
+            return running.get(WAIT_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IOException("The graph was not rendered in time");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the graph to be rendered");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * @return the number of renders that may run or wait at once before more are turned away
+     */
+    public static int getCapacity() {
+        return MAX_RENDERS + MAX_QUEUED;
+    }
+
+    public static long getRenderTimeout() {
+        return renderTimeout;
+    }
+
+    public static void setRenderTimeout(long millis) {
+        renderTimeout = millis;
+    }
+
+    /**
+     * Forget all the rendered images.
+     */
+    public static synchronized void clear() {
+        cache.clear();
+        cachedBytes = 0;
+    }
+
+    private static synchronized byte[] getCached(String key) {
+        return cache.get(key);
+    }
+
+    private static synchronized void putCached(String key, byte[] image) {
+        if (image.length > MAX_CACHED_BYTES)
+            return;
+        byte[] old = cache.put(key, image);
+        cachedBytes += image.length - (old == null ? 0 : old.length);
+        // Drop the least recently used images until we are back under the limit
+        Iterator<byte[]> it = cache.values().iterator();
+        while (cachedBytes > MAX_CACHED_BYTES && it.hasNext()) {
+            cachedBytes -= it.next().length;
+            it.remove();
+        }
+    }
+
+    private static String hash(String type, String dotSource) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(type.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest(dotSource.getBytes(StandardCharsets.UTF_8)))
+                sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
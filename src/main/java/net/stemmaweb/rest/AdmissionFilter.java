@@ -0,0 +1,102 @@
+package net.stemmaweb.rest;
+
+import net.stemmaweb.services.AdmissionControl;
+import net.stemmaweb.services.AdmissionControl.Permit;
+import net.stemmaweb.services.AdmissionControl.WorkClass;
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static net.stemmaweb.rest.Util.jsonerror;
+
+/**
+ * Sorts the requests into the classes of work of the {@link AdmissionControl}, and holds each
+ * request that falls into one of them until it is admitted. A request that is turned away is
+ * answered with 503 and a Retry-After header. The permit is given back once the response has
+ * been written, or the request has failed; Jersey reports the end of every request to the
+ * listener, however it ended, so that no permit can be lost.
+ *
+ * The filter runs after the {@link MetricsFilter}, so that the time spent waiting is counted
+ * in the request's latency, and after the {@link EditLockFilter}, so that a permit is only
+ * taken by a change that already holds its edit locks.
+ */
+@Provider
+@Priority(Priorities.USER + 100)
+public class AdmissionFilter implements ContainerRequestFilter, ApplicationEventListener {
+    private static final String PERMIT = AdmissionFilter.class.getName() + ".permit";
+
+    // The last segments of the path templates that write out a whole section or tradition
+    private static final Set<String> EXPORTS = new HashSet<>(Arrays.asList(
+            "graphml", "stemmaweb", "dot", "json", "csv", "tsv", "matrix", "graph"));
+    // The path templates, from the end, that search or analyse a whole section or tradition
+    private static final String[] ANALYSES = {"/variants", "/mergeablereadings/{startRank}/{endRank}",
+            "/identicalreadings/{startRank}/{endRank}", "/colocated", "/readings/search", "/concordance"};
+    // The path templates of the uploads
+    private static final Set<String> IMPORTS = new HashSet<>(Arrays.asList(
+            "/tradition", "/tradition/{tradId}/section", "/tradition/{tradId}/sections"));
+
+    private static final RequestEventListener release = event -> {
+        if (event.getType() != RequestEvent.Type.FINISHED) return;
+        Object permit = event.getContainerRequest().getProperty(PERMIT);
+        if (permit != null)
+            ((Permit) permit).release();
+    };
+
+    @Override
+    public void filter(ContainerRequestContext request) {
+        WorkClass workClass = classify(request.getMethod(), MetricsFilter.endpoint(request));
+        if (workClass == null) return;
+        Permit permit = AdmissionControl.admit(workClass);
+        if (permit == null) {
+            request.abortWith(Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .header("Retry-After", AdmissionControl.retryAfter(workClass))
+                    .type(MediaType.APPLICATION_JSON_TYPE)
+                    .entity(jsonerror("The server is busy with " + workClass.name().toLowerCase()
+                            + " requests; please try again later")).build());
+            return;
+        }
+        request.setProperty(PERMIT, permit);
+    }
+
+    // Which class of work a request falls into, if any
+    static WorkClass classify(String method, String endpoint) {
+        if (method.equals("GET")) {
+            String last = endpoint.substring(endpoint.lastIndexOf('/') + 1);
+            if (EXPORTS.contains(last))
+                return WorkClass.EXPORT;
+            for (String analysis : ANALYSES)
+                if (endpoint.endsWith(analysis))
+                    return WorkClass.ANALYSIS;
+            // Recalculating the ranks rewrites them
+            if (last.equals("initRanks"))
+                return WorkClass.MUTATION;
+            return null;
+        }
+        if (method.equals("POST") && IMPORTS.contains(endpoint))
+            return WorkClass.IMPORT;
+        if (method.equals("POST") || method.equals("PUT") || method.equals("DELETE"))
+            return WorkClass.MUTATION;
+        return null;
+    }
+
+    @Override
+    public void onEvent(ApplicationEvent event) {
+    }
+
+    @Override
+    public RequestEventListener onRequest(RequestEvent requestEvent) {
+        return release;
+    }
+}
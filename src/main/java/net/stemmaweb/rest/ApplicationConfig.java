@@ -26,6 +26,11 @@ public class ApplicationConfig extends Application {
     public Set<Class<?>> getClasses() {
         Set<Class<?>> s = new HashSet<>();
         s.add(Root.class);
+        s.add(MetricsFilter.class);
+        s.add(AdmissionFilter.class);
+        s.add(BudgetFilter.class);
+        s.add(EditLockFilter.class);
+        s.add(ChangeStreamListener.class);
 
         return s;
     }
@@ -0,0 +1,80 @@
+package net.stemmaweb.rest;
+
+import net.stemmaweb.services.RequestBudget;
+import net.stemmaweb.services.RequestBudget.Budget;
+import net.stemmaweb.services.RequestBudget.BudgetExceededException;
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+import org.json.JSONObject;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+import java.lang.annotation.Annotation;
+
+/**
+ * Gives every request a {@link RequestBudget}, and answers a request that has used up one
+ * of its budgets with an error that names the budget: 422 if it would visit too many nodes,
+ * since it will do so again if it is repeated, and 503 with a Retry-After header if it took
+ * too long or was cancelled. Many of the resource methods catch whatever goes wrong and answer
+ * with a 500 of their own, so the response is replaced on the way out as well as mapped from
+ * the exception. A budget used up while a streamed response is being written can only cut the
+ * response short.
+ */
+@Provider
+public class BudgetFilter implements ContainerRequestFilter, ContainerResponseFilter,
+        ExceptionMapper<BudgetExceededException>, ApplicationEventListener {
+    private static final String BUDGET = BudgetFilter.class.getName() + ".budget";
+    private static final int UNPROCESSABLE_ENTITY = 422;
+    // The seconds after which a request that took too long may be tried again
+    private static final int RETRY_AFTER = 60;
+
+    private static final RequestEventListener end = event -> {
+        if (event.getType() == RequestEvent.Type.FINISHED)
+            RequestBudget.end();
+    };
+
+    @Override
+    public void filter(ContainerRequestContext request) {
+        request.setProperty(BUDGET, RequestBudget.begin());
+    }
+
+    @Override
+    public void filter(ContainerRequestContext request, ContainerResponseContext response) {
+        Budget budget = (Budget) request.getProperty(BUDGET);
+        if (budget == null || budget.getExceeded() == null) return;
+        Response replacement = toResponse(budget.getExceeded());
+        response.setStatus(replacement.getStatus());
+        response.getHeaders().remove("Retry-After");
+        if (replacement.getHeaderString("Retry-After") != null)
+            response.getHeaders().putSingle("Retry-After", replacement.getHeaderString("Retry-After"));
+        response.setEntity(replacement.getEntity(), new Annotation[0], MediaType.APPLICATION_JSON_TYPE);
+    }
+
+    @Override
+    public Response toResponse(BudgetExceededException exception) {
+        JSONObject error = new JSONObject();
+        error.put("error", exception.getMessage());
+        error.put("budget", exception.getKind().getLabel());
+        Response.ResponseBuilder builder = exception.getKind() == RequestBudget.Kind.NODES
+                ? Response.status(UNPROCESSABLE_ENTITY)
+                : Response.status(Response.Status.SERVICE_UNAVAILABLE).header("Retry-After", RETRY_AFTER);
+        return builder.type(MediaType.APPLICATION_JSON_TYPE).entity(error.toString()).build();
+    }
+
+    @Override
+    public void onEvent(ApplicationEvent event) {
+    }
+
+    @Override
+    public RequestEventListener onRequest(RequestEvent requestEvent) {
+        return end;
+    }
+}
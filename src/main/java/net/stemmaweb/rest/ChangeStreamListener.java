@@ -0,0 +1,41 @@
+package net.stemmaweb.rest;
+
+import net.stemmaweb.services.ChangeFeedService.Subscription;
+import org.glassfish.jersey.server.ChunkedOutput;
+import org.glassfish.jersey.server.ContainerResponse;
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Closes the change feed subscription of a change stream request that didn't go on to stream,
+ * e.g. because it failed or its response was replaced by an error on the way out, so that the
+ * stream's place is given back. Jersey reports the end of every request to the listener,
+ * however it ended. A stream that was sent out ends its subscription itself once it is done,
+ * since Jersey reports its request as finished as soon as the stream has started.
+ */
+@Provider
+public class ChangeStreamListener implements ApplicationEventListener {
+    static final String SUBSCRIPTION = ChangeStreamListener.class.getName() + ".subscription";
+
+    private static final RequestEventListener release = event -> {
+        if (event.getType() != RequestEvent.Type.FINISHED) return;
+        Object subscription = event.getContainerRequest().getProperty(SUBSCRIPTION);
+        if (subscription == null) return;
+        ContainerResponse response = event.getContainerResponse();
+        if (!event.isSuccess() || response == null || !(response.getEntity() instanceof ChunkedOutput))
+            ((Subscription) subscription).close();
+    };
+
+    @Override
+    public void onEvent(ApplicationEvent event) {
+    }
+
+    @Override
+    public RequestEventListener onRequest(RequestEvent requestEvent) {
+        return release;
+    }
+}
@@ -0,0 +1,156 @@
+package net.stemmaweb.rest;
+
+import net.stemmaweb.model.RelationModel;
+import net.stemmaweb.services.EditLockService;
+import net.stemmaweb.services.EditLockService.Lease;
+import net.stemmaweb.services.EditLockService.LockTimeoutException;
+import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import org.glassfish.jersey.server.ContainerRequest;
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Transaction;
+
+import javax.annotation.Priority;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static net.stemmaweb.rest.Util.jsonerror;
+
+/**
+ * Takes the {@link EditLockService} locks for each request that changes a tradition, before
+ * the change is made, and releases them once the response has been written. Changes to a
+ * single section, or to a reading, lock that section; changes that reach across sections,
+ * such as splitting, merging, reordering or deleting a section, and all other changes to a
+ * tradition, lock the whole tradition. Changes to relations lock the sections of the readings
+ * that they join, which are read from the request body, or from the relation that is being
+ * deleted. Requests that only read take no locks. A request that can't get its locks in time
+ * is answered with 503.
+ *
+ * The filter runs after the {@link MetricsFilter}, so that the time spent waiting is counted
+ * in the request's latency, and before the {@link AdmissionFilter}, so that a change waiting
+ * for an editor of the same section doesn't hold one of the server's admission permits
+ * while it waits.
+ */
+@Provider
+@Priority(Priorities.USER + 50)
+public class EditLockFilter implements ContainerRequestFilter, ExceptionMapper<LockTimeoutException>,
+        ApplicationEventListener {
+    private static final String LEASE = EditLockFilter.class.getName() + ".lease";
+    private static final String TRADITION = "/tradition/{tradId}";
+    private static final String SECTION = TRADITION + "/section/{sectionId}";
+    private static final String RELATION = TRADITION + "/relation";
+    // The changes to a section that reach into other sections as well
+    private static final String[] CROSS_SECTION = {"/splitAtRank/{rankstr}", "/merge/{otherId}",
+            "/orderAfter/{priorSectID}"};
+
+    private static final RequestEventListener release = event -> {
+        if (event.getType() != RequestEvent.Type.FINISHED) return;
+        Object lease = event.getContainerRequest().getProperty(LEASE);
+        if (lease != null)
+            ((Lease) lease).release();
+    };
+
+    @Override
+    public void filter(ContainerRequestContext request) {
+        String method = request.getMethod();
+        String endpoint = MetricsFilter.endpoint(request);
+        boolean changes = method.equals("POST") || method.equals("PUT") || method.equals("DELETE")
+                // Recalculating the ranks rewrites them
+                || endpoint.endsWith("/initRanks");
+        if (!changes) return;
+        MultivaluedMap<String, String> params = request.getUriInfo().getPathParameters();
+        Lease lease = null;
+        try {
+            if (endpoint.startsWith(SECTION)) {
+                String rest = endpoint.substring(SECTION.length());
+                boolean crossSection = rest.isEmpty() && method.equals("DELETE");
+                for (String cs : CROSS_SECTION)
+                    crossSection |= rest.equals(cs);
+                lease = crossSection
+                        ? EditLockService.lockTradition(params.getFirst("tradId"))
+                        : EditLockService.lockSection(params.getFirst("tradId"), params.getFirst("sectionId"));
+            } else if (endpoint.equals(RELATION) || endpoint.startsWith(RELATION + "/")) {
+                lease = lockRelations((ContainerRequest) request, endpoint.substring(RELATION.length()),
+                        params.getFirst("tradId"));
+            } else if (endpoint.startsWith(TRADITION)) {
+                lease = EditLockService.lockTradition(params.getFirst("tradId"));
+            } else if (endpoint.startsWith("/reading/{readingId}")) {
+                String[] section = EditLockService.findSection(params.getFirst("readingId"),
+                        new GraphDatabaseServiceProvider().getDatabase());
+                if (section != null)
+                    lease = EditLockService.lockSection(section[0], section[1]);
+            }
+        } catch (LockTimeoutException e) {
+            request.abortWith(toResponse(e));
+            return;
+        }
+        if (lease != null)
+            request.setProperty(LEASE, lease);
+    }
+
+    // Lock the sections of the readings that a change to relations touches. The body is
+    // buffered, so that the resource can read it again; if it can't be read here, the
+    // resource will say what is wrong with it.
+    private static Lease lockRelations(ContainerRequest request, String rest, String tradId) {
+        GraphDatabaseService db = new GraphDatabaseServiceProvider().getDatabase();
+        List<String> readings = new ArrayList<>();
+        if (rest.equals("/{relationId}")) {
+            try (Transaction tx = db.beginTx()) {
+                String relationId = request.getUriInfo().getPathParameters().getFirst("relationId");
+                readings.add(String.valueOf(db.getRelationshipById(Long.parseLong(relationId)).getStartNodeId()));
+                tx.success();
+            } catch (NumberFormatException | NotFoundException ignored) {
+                return null;
+            }
+            return EditLockService.lockReadings(tradId, readings, db);
+        }
+        RelationModel[] relations;
+        request.bufferEntity();
+        try {
+            relations = rest.equals("/batch")
+                    ? request.readEntity(RelationModel[].class)
+                    : new RelationModel[]{request.readEntity(RelationModel.class)};
+        } catch (ProcessingException e) {
+            return null;
+        }
+        if (relations == null) return null;
+        for (RelationModel rm : relations) {
+            if (rm == null) continue;
+            if ("tradition".equals(rm.getScope()))
+                return EditLockService.lockTradition(tradId);
+            readings.addAll(Arrays.asList(rm.getSource(), rm.getTarget()));
+        }
+        return EditLockService.lockReadings(tradId, readings, db);
+    }
+
+    @Override
+    public Response toResponse(LockTimeoutException exception) {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header("Retry-After", 1)
+                .type(MediaType.APPLICATION_JSON_TYPE)
+                .entity(jsonerror(exception.getMessage())).build();
+    }
+
+    @Override
+    public void onEvent(ApplicationEvent event) {
+    }
+
+    @Override
+    public RequestEventListener onRequest(RequestEvent requestEvent) {
+        return release;
+    }
+}
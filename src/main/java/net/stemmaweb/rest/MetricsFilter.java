@@ -0,0 +1,167 @@
+package net.stemmaweb.rest;
+
+import net.stemmaweb.services.MetricsService;
+import net.stemmaweb.services.TraversalMonitor;
+import org.glassfish.jersey.server.ExtendedUriInfo;
+import org.glassfish.jersey.uri.UriTemplate;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.*;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import java.io.*;
+import java.util.List;
+
+/**
+ * Times every request and measures its request and response bodies, and hands the figures
+ * to the {@link MetricsService}. The time runs until the last of the response has been
+ * written, so that it includes responses that are streamed out after the resource method
+ * has returned. The graph traversals run for the request are measured by the
+ * {@link TraversalMonitor} over the same span.
+ */
+@Provider
+public class MetricsFilter implements ContainerRequestFilter, ContainerResponseFilter, WriterInterceptor {
+    private static final String START = MetricsFilter.class.getName() + ".start";
+    private static final String REQUEST_BYTES = MetricsFilter.class.getName() + ".requestBytes";
+    private static final String RECORD = MetricsFilter.class.getName() + ".record";
+
+    // What is known about the request once the resource method has returned
+    private static class Pending {
+        private final String method;
+        private final String endpoint;
+        private final String tradition;
+        private final String section;
+        private final int status;
+        private final long start;
+        private final CountingInputStream requestBody;
+
+        private Pending(ContainerRequestContext request, int status, long start, CountingInputStream requestBody) {
+            this.method = request.getMethod();
+            this.endpoint = endpoint(request);
+            this.tradition = request.getUriInfo().getPathParameters().getFirst("tradId");
+            this.section = request.getUriInfo().getPathParameters().getFirst("sectionId");
+            this.status = status;
+            this.start = start;
+            this.requestBody = requestBody;
+        }
+
+        private void record(int status, long responseBytes) {
+            long nanos = System.nanoTime() - start;
+            MetricsService.record(method, endpoint, status, nanos, requestBody.count, responseBytes);
+            TraversalMonitor.end(method, endpoint, tradition, section, status, nanos);
+        }
+    }
+
+    @Override
+    public void filter(ContainerRequestContext request) {
+        request.setProperty(START, System.nanoTime());
+        CountingInputStream counted = new CountingInputStream(request.getEntityStream());
+        request.setEntityStream(counted);
+        request.setProperty(REQUEST_BYTES, counted);
+        TraversalMonitor.begin();
+    }
+
+    @Override
+    public void filter(ContainerRequestContext request, ContainerResponseContext response) {
+        Object start = request.getProperty(START);
+        if (start == null) return;
+        Pending pending = new Pending(request, response.getStatus(),
+                (Long) start, (CountingInputStream) request.getProperty(REQUEST_BYTES));
+        if (response.hasEntity())
+            request.setProperty(RECORD, pending);
+        else
+            pending.record(response.getStatus(), 0);
+    }
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException, WebApplicationException {
+        Pending pending = (Pending) context.getProperty(RECORD);
+        if (pending == null) {
+            context.proceed();
+            return;
+        }
+        CountingOutputStream counted = new CountingOutputStream(context.getOutputStream());
+        context.setOutputStream(counted);
+        int status = pending.status;
+        try {
+            context.proceed();
+        } catch (IOException | RuntimeException e) {
+            status = e instanceof WebApplicationException
+                    ? ((WebApplicationException) e).getResponse().getStatus()
+                    : Response.Status.INTERNAL_SERVER_ERROR.getStatusCode();
+            throw e;
+        } finally {
+            context.removeProperty(RECORD);
+            pending.record(status, counted.count);
+        }
+    }
+
+    // The path template that the request matched, e.g. /tradition/{tradId}/section/{sectionId}
+    static String endpoint(ContainerRequestContext request) {
+        if (!(request.getUriInfo() instanceof ExtendedUriInfo))
+            return "unmatched";
+        List<UriTemplate> templates = ((ExtendedUriInfo) request.getUriInfo()).getMatchedTemplates();
+        if (templates.isEmpty())
+            return "unmatched";
+        StringBuilder sb = new StringBuilder();
+        // The templates are listed from the most specific match back to the root
+        for (int i = templates.size() - 1; i >= 0; i--) {
+            String t = templates.get(i).getTemplate();
+            if (t.isEmpty() || t.equals("/")) continue;
+            if (!t.startsWith("/")) sb.append('/');
+            sb.append(t.endsWith("/") ? t.substring(0, t.length() - 1) : t);
+        }
+        return sb.length() == 0 ? "/" : sb.toString();
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
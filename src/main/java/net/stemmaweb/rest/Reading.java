@@ -17,6 +17,8 @@ import com.qmino.miredot.annotations.ReturnType;
 import net.stemmaweb.model.*;
 import net.stemmaweb.services.*;
 
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.traversal.Uniqueness;
@@ -85,7 +87,8 @@ public class Reading {
      *            {@code {"properties": [{"key":"language","newProperty":"German"}]}}
      * @return The metadata of the updated reading
      * @statuscode 200 - on success
-     * @statuscode 400 - on an invalid property key, or an invalid property value type
+     * @statuscode 400 - on an invalid property key, or an invalid property value type, or
+     *                    "extra" data that is not a JSON object
      * @statuscode 500 - on error, with an error message
      */
     @PUT
@@ -110,6 +113,16 @@ public class Reading {
                 }
                 // Check that this field actually exists in our model
                 Field ourField = modelToReturn.getClass().getDeclaredField(currentKey);
+                // Extra data has to be a JSON object; it is checked here, rather than every
+                // time the reading is read
+                if (currentKey.equals("extra") && keyPropertyModel.getProperty() != null) {
+                    try {
+                        new JSONObject(keyPropertyModel.getProperty().toString());
+                    } catch (JSONException e) {
+                        errorMessage = "Property extra must be a JSON object";
+                        return errorResponse(Status.BAD_REQUEST);
+                    }
+                }
                 // Then set the property.
                 // Convert types not native to JSON
                 if (ourField.getType().equals(Long.class))
@@ -702,6 +715,10 @@ public class Reading {
     @Path("merge/{secondReadId}")
     @ReturnType("java.lang.Void")
     public Response mergeReadings(@PathParam("secondReadId") long secondReadId) {
+        return EditLockService.retrying(() -> attemptMerge(secondReadId));
+    }
+
+    private Response attemptMerge(long secondReadId) {
 
         Node stayingReading;
         Node deletingReading;
@@ -735,7 +752,8 @@ public class Reading {
             // TEMPORARY: Check that all affected witnesses still have paths to the end node
             for (String sig : drm.getWitnesses()) {
                 HashMap<String, String> parts = parseSigil(sig);
-                Witness w = new Witness(getTraditionId(), stayingReading.getProperty("section_id").toString(), parts.get("sigil"));
+                Witness w = new Witness(getTraditionId(), stayingReading.getProperty("section_id").toString(),
+                        parts.get("sigil"), true);
                 Response r;
                 if (parts.get("layer").equals("witnesses"))
                     r = w.getWitnessAsText();
@@ -757,6 +775,9 @@ public class Reading {
         } catch (NotFoundException e) {
             errorMessage = e.getMessage();
             return errorResponse(Status.NOT_FOUND);
+        } catch (TransientFailureException e) {
+            // Passed on, so that the change can be tried again
+            throw e;
         } catch (Exception e) {
             e.printStackTrace();
             errorMessage = e.getMessage();
@@ -930,6 +951,10 @@ public class Reading {
     @ReturnType(clazz = GraphModel.class)
     public Response splitReading(@PathParam("splitIndex") int splitIndex,
                                  ReadingBoundaryModel model) {
+        return EditLockService.retrying(() -> attemptSplit(splitIndex, model));
+    }
+
+    private Response attemptSplit(int splitIndex, ReadingBoundaryModel model) {
         assert (model != null);
         GraphModel readingsAndRelations;
         Node originalReading;
@@ -970,6 +995,9 @@ public class Reading {
         } catch (NotFoundException e) {
             errorMessage = e.getMessage();
             return errorResponse(Status.NOT_FOUND);
+        } catch (TransientFailureException e) {
+            // Passed on, so that the change can be tried again
+            throw e;
         } catch (Exception e) {
             e.printStackTrace();
             errorMessage = e.getMessage();
@@ -1236,6 +1264,10 @@ public class Reading {
     // @Produces("application/json; charset=utf-8")
     @ReturnType("java.lang.Void")
     public Response compressReadings(@PathParam("read2Id") long readId2, ReadingBoundaryModel boundary) {
+        return EditLockService.retrying(() -> attemptConcatenate(readId2, boundary));
+    }
+
+    private Response attemptConcatenate(long readId2, ReadingBoundaryModel boundary) {
 
         Node read1, read2;
         errorMessage = "problem with a reading. could not compress";
@@ -1258,6 +1290,9 @@ public class Reading {
         } catch (NotFoundException e) {
             errorMessage = e.getMessage();
             return errorResponse(Status.NOT_FOUND);
+        } catch (TransientFailureException e) {
+            // Passed on, so that the change can be tried again
+            throw e;
         } catch (Exception e) {
             e.printStackTrace();
             errorMessage = e.getMessage();
@@ -1425,4 +1460,20 @@ public class Reading {
         }
         return tradId;
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns whether this reading belongs to a tradition or section that has been deleted,
+     * but not yet removed from the database.
+     *
+     * @return true if the reading should be treated as nonexistent
+     */
+    Boolean isDeleted() {
+        try (Transaction tx = db.beginTx()) {
+            boolean deleted = DeletionService.isDeleted(db.getNodeById(readId));
+            tx.success();
+            return deleted;
+        } catch (NotFoundException e) {
+            return false;
+        }
+    }
+}
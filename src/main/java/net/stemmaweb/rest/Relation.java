@@ -1,8 +1,6 @@
 package net.stemmaweb.rest;
 
 import java.util.*;
-import java.util.function.Function;
-import java.util.stream.Collectors;
 
 import javax.ws.rs.*;
 import javax.ws.rs.Path;
@@ -15,7 +13,9 @@ import net.stemmaweb.model.GraphModel;
 import net.stemmaweb.model.ReadingModel;
 import net.stemmaweb.model.RelationModel;
 import net.stemmaweb.model.RelationTypeModel;
+import net.stemmaweb.services.ColocationIndex;
 import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.EditLockService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.services.ReadingService;
 
@@ -70,6 +70,10 @@ public class Relation {
     public Response create(RelationModel relationModel) {
         // Make sure a scope is set
         if (relationModel.getScope() == null) relationModel.setScope(SCOPE_LOCAL);
+        return EditLockService.retrying(() -> createRelation(relationModel));
+    }
+
+    private Response createRelation(RelationModel relationModel) {
         String scope = relationModel.getScope();
         if (scope.equals(SCOPE_TRADITION) || scope.equals(SCOPE_SECTION) || scope.equals(SCOPE_LOCAL)) {
             GraphModel relationChanges = new GraphModel();
@@ -92,34 +96,27 @@ public class Relation {
                 try (Transaction tx = db.beginTx()) {
                     Node readingA = db.getNodeById(Long.parseLong(relationModel.getSource()));
                     Node readingB = db.getNodeById(Long.parseLong(relationModel.getTarget()));
-                    Node startingPoint = VariantGraphService.getTraditionNode(tradId, db);
-                    if (scope.equals(SCOPE_SECTION))
-                        startingPoint = db.getNodeById((Long) readingA.getProperty("section_id"));
+                    List<Node> sections = scope.equals(SCOPE_SECTION)
+                            ? Collections.singletonList(db.getNodeById((Long) readingA.getProperty("section_id")))
+                            : VariantGraphService.getSectionNodes(tradId, db);
                     Relationship thisRelation = db.getRelationshipById(Long.valueOf(thisRelId));
 
-                    // Get all the readings that belong to our tradition or section
-                    ResourceIterable<Node> tradReadings = VariantGraphService.returnEntireTradition(startingPoint).nodes();
-                    // Pick out the ones that share the readingA text
-                    Function<Node, Object> nodefilter = (n) -> use_normal && n.hasProperty("normal_form")
-                            ? n.getProperty("normal_form") : (n.hasProperty("text") ? n.getProperty("text"): "");
-                    HashSet<Node> ourA = tradReadings.stream()
-                            .filter(x -> nodefilter.apply(x).equals(nodefilter.apply(readingA)) && !x.equals(readingA))
-                            .collect(Collectors.toCollection(HashSet::new));
+                    // Look up the readings in each section that share the readingA and readingB
+                    // texts, and pair them up by rank
+                    Object textA = ReadingService.matchingText(readingA, use_normal);
+                    Object textB = ReadingService.matchingText(readingB, use_normal);
                     HashMap<String, HashSet<Long>> ranks = new HashMap<>();
-                    for (Node cur_node : ourA) {
-                        long node_id = cur_node.getId();
-                        long node_rank = (Long) cur_node.getProperty("rank");
-                        String node_section = cur_node.getProperty("section_id").toString();
-                        String key = node_section + "/" + node_rank;
-                        HashSet<Long> cur_set = ranks.getOrDefault(node_rank, new HashSet<>());
-                        cur_set.add(node_id);
-                        ranks.putIfAbsent(key, cur_set);
+                    HashSet<Node> ourB = new HashSet<>();
+                    for (Node section : sections) {
+                        for (Node cur_node : ReadingService.findMatchingReadings(section, textA, use_normal)) {
+                            if (cur_node.equals(readingA)) continue;
+                            String key = section.getId() + "/" + cur_node.getProperty("rank");
+                            ranks.computeIfAbsent(key, k -> new HashSet<>()).add(cur_node.getId());
+                        }
+                        ReadingService.findMatchingReadings(section, textB, use_normal).stream()
+                                .filter(x -> !x.equals(readingB)).forEach(ourB::add);
                     }
 
-                    // Pick out the ones that share the readingB text
-                    HashSet<Node> ourB = tradReadings.stream().filter(x -> x.hasProperty("text")
-                            && nodefilter.apply(x).equals(nodefilter.apply(readingB)) && !x.equals(readingB))
-                            .collect(Collectors.toCollection(HashSet::new));
                     RelationModel userel;
                     for (Node cur_node : ourB) {
                         long node_id = cur_node.getId();
@@ -145,6 +142,9 @@ public class Relation {
                         }
                     }
                     tx.success();
+                } catch (TransientFailureException e) {
+                    // Passed on, so that the change can be tried again
+                    throw e;
                 } catch (Exception e) {
                     e.printStackTrace();
                     return Response.serverError().build();
@@ -155,6 +155,163 @@ public class Relation {
         return Response.status(Status.BAD_REQUEST).entity("Undefined Scope").build();
     }
 
+    /**
+     * Creates a whole list of new relations, e.g. from an automatic aligner, in a single
+     * transaction. The relations are checked one after another, in the order given, as
+     * for the single relation call, but ranks are recalculated and transitive relations
+     * propagated only once, after all of them have been written. If any relation cannot
+     * be created, none of them is. Relations that already exist are skipped. Only the
+     * local scope is supported.
+     *
+     * @summary Create relations in bulk
+     * @param relationModels - JSON list of the relations to create
+     * @return The relations created, as well as any other readings in the graph that
+     * had a relation set between them or whose rank changed.
+     * @statuscode 201 - on success
+     * @statuscode 304 - if all the specified relations already exist
+     * @statuscode 400 - if the request is empty, has a non-local scope, or has a malformed reading ID
+     * @statuscode 404 - if a specified reading doesn't exist
+     * @statuscode 409 - if one of the relations cannot legally be created
+     * @statuscode 500 - on failure, with JSON error message
+     */
+    @POST
+    @Path("/batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
+    @ReturnType(clazz = GraphModel.class)
+    public Response createBatch(List<RelationModel> relationModels) {
+        return EditLockService.retrying(() -> createRelations(relationModels));
+    }
+
+    private Response createRelations(List<RelationModel> relationModels) {
+        if (relationModels == null || relationModels.isEmpty())
+            return Response.status(Status.BAD_REQUEST).entity(jsonerror("No relations specified")).build();
+        for (RelationModel rm : relationModels) {
+            if (rm.getScope() == null) rm.setScope(SCOPE_LOCAL);
+            if (!rm.getScope().equals(SCOPE_LOCAL))
+                return Response.status(Status.BAD_REQUEST)
+                        .entity(jsonerror("Relations created in bulk must have local scope")).build();
+        }
+
+        GraphModel relationChanges = new GraphModel();
+        try (Transaction tx = db.beginTx()) {
+            Node traditionNode = VariantGraphService.getTraditionNode(tradId, db);
+            // Look up each relation type only once
+            HashMap<String, RelationTypeModel> relTypes = new HashMap<>();
+            // Keep an in-memory alignment for each section touched, and note which need re-ranking
+            HashMap<Long, ColocationIndex> sectionIndices = new HashMap<>();
+            HashSet<Long> rerankSections = new HashSet<>();
+            // The created relations, by type, for the propagation step
+            HashMap<String, GraphModel> createdByType = new HashMap<>();
+
+            for (int i = 0; i < relationModels.size(); i++) {
+                RelationModel relationModel = relationModels.get(i);
+                String prefix = String.format("Relation %d: ", i);
+                Node readingA = db.getNodeById(Long.parseLong(relationModel.getSource()));
+                Node readingB = db.getNodeById(Long.parseLong(relationModel.getTarget()));
+                if (!readingA.hasProperty("section_id") || !readingB.hasProperty("section_id"))
+                    return Response.status(Status.CONFLICT)
+                            .entity(jsonerror(prefix + "The specified nodes are not readings")).build();
+
+                Long sectionId = (Long) readingA.getProperty("section_id");
+                if (!sectionId.equals(readingB.getProperty("section_id")))
+                    return Response.status(Status.CONFLICT)
+                            .entity(jsonerror(prefix + "Cannot create relation across tradition sections")).build();
+                if (!sectionIndices.containsKey(sectionId)) {
+                    Node ourSection = db.getNodeById(sectionId);
+                    if (!VariantGraphService.getTraditionNode(ourSection).equals(traditionNode))
+                        return Response.status(Status.CONFLICT).entity(jsonerror(
+                                prefix + "The specified readings do not belong to the specified tradition")).build();
+                    sectionIndices.put(sectionId, new ColocationIndex(ourSection));
+                }
+                ColocationIndex index = sectionIndices.get(sectionId);
+                if (isMetaReading(readingA) || isMetaReading(readingB))
+                    return Response.status(Status.CONFLICT)
+                            .entity(jsonerror(prefix + "Cannot set relation on a meta reading")).build();
+
+                RelationTypeModel rmodel = relTypes.computeIfAbsent(relationModel.getType(),
+                        x -> returnRelationType(tradId, x));
+
+                // Remove any weak relations that might conflict
+                Boolean colocation = rmodel.getIs_colocation();
+                if (colocation) {
+                    boolean clustersChanged = false;
+                    for (Node n : Arrays.asList(readingA, readingB))
+                        for (Relationship r : n.getRelationships(ERelations.RELATED)) {
+                            RelationTypeModel rm = relTypes.computeIfAbsent(r.getProperty("type").toString(),
+                                    x -> returnRelationType(tradId, x));
+                            if (rm.getIs_weak()) {
+                                clustersChanged |= rm.getIs_colocation();
+                                r.delete();
+                            }
+                        }
+                    if (clustersChanged)
+                        index.refreshClusters();
+                }
+
+                boolean isCyclic = index.wouldGetCyclic(readingA, readingB);
+                if (isCyclic && colocation)
+                    return Response.status(Status.CONFLICT).entity(jsonerror(prefix +
+                            "This relation creation is not allowed, it would result in a cyclic graph.")).build();
+                else if (!isCyclic && !colocation)
+                    return Response.status(Status.CONFLICT).entity(jsonerror(prefix +
+                            "This relation creation is not allowed. The two readings can be co-located.")).build();
+
+                // Check if relation already exists
+                boolean exists = false;
+                for (Relationship relationship : readingA.getRelationships(ERelations.RELATED)) {
+                    if (relationship.getOtherNode(readingA).equals(readingB)) {
+                        String existingType = relationship.getProperty("type").toString();
+                        if (existingType.equals(relationModel.getType()))
+                            exists = true;
+                        else if (!relTypes.computeIfAbsent(existingType, x -> returnRelationType(tradId, x)).getIs_weak())
+                            return Response.status(Status.CONFLICT).entity(jsonerror(prefix + String.format(
+                                    "Relation of type %s already exists between readings %s and %s",
+                                    relationModel.getType(), relationModel.getSource(), relationModel.getTarget())))
+                                    .build();
+                    }
+                }
+                if (exists) continue;
+
+                // Write the relation, and note its effect on the alignment
+                GraphModel created = createSingleRelation(readingA, readingB, relationModel, rmodel, false);
+                relationChanges.addRelations(created.getRelations());
+                createdByType.computeIfAbsent(rmodel.getName(), x -> new GraphModel()).addRelations(created.getRelations());
+                if (colocation && index.colocate(readingA, readingB))
+                    rerankSections.add(sectionId);
+            }
+
+            if (relationChanges.getRelations().isEmpty())
+                return Response.status(Status.NOT_MODIFIED).type(MediaType.TEXT_PLAIN_TYPE).build();
+
+            // Now make any transitive relations explicit, visiting each group of related readings once
+            for (String type : createdByType.keySet()) {
+                GraphModel ofType = createdByType.get(type);
+                propagateRelation(ofType, relTypes.get(type), false, new HashSet<>());
+                relationChanges.addRelations(ofType.getRelations());
+            }
+
+            // ...and recalculate the ranks of each affected section, once.
+            for (Long sectionId : rerankSections) {
+                Node sectionStart = VariantGraphService.getStartNode(String.valueOf(sectionId), db);
+                for (Node n : ReadingService.recalculateRank(sectionStart, true, false))
+                    relationChanges.getReadings().add(new ReadingModel(n));
+            }
+            tx.success();
+        } catch (NumberFormatException e) {
+            return Response.status(Status.BAD_REQUEST).entity(jsonerror("Bad reading ID: " + e.getMessage())).build();
+        } catch (org.neo4j.graphdb.NotFoundException e) {
+            return Response.status(Status.NOT_FOUND).entity(jsonerror(e.getMessage())).build();
+        } catch (TransientFailureException e) {
+            // Passed on, so that the change can be tried again
+            throw e;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
+        }
+        return Response.status(Status.CREATED).entity(relationChanges).build();
+    }
+
     // Create a relation; return the relation created as well as any reading nodes whose
     // properties (e.g. rank) have changed.
     private Response create_local(RelationModel relationModel) {
@@ -250,6 +407,9 @@ public class Relation {
             // We can also write any transitive relationships.
             propagateRelation(readingsAndRelationModel, rmodel);
             tx.success();
+        } catch (TransientFailureException e) {
+            // Passed on, so that the change can be tried again
+            throw e;
         } catch (Exception e) {
             e.printStackTrace();
             return Response.serverError().entity(jsonerror(e.getMessage())).build();
@@ -268,6 +428,22 @@ public class Relation {
      */
     private GraphModel createSingleRelation(Node readingA, Node readingB,
                                             RelationModel relModel, RelationTypeModel rtm) throws Exception {
+        return createSingleRelation(readingA, readingB, relModel, rtm, true);
+    }
+
+    /**
+     * Muck with the database to set a relation, optionally leaving the ranks alone so that
+     * the caller can recalculate them once for a whole series of relations.
+     *
+     * @param readingA - the source reading
+     * @param readingB - the target reading
+     * @param relModel - the RelationModel to set
+     * @param rtm      - the RelationTypeModel describing what sort of relation this is
+     * @param rerank   - whether to recalculate the ranks now, if necessary
+     * @return a GraphModel containing the single n4j relationship plus whatever readings were re-ranked
+     */
+    private GraphModel createSingleRelation(Node readingA, Node readingB, RelationModel relModel,
+                                            RelationTypeModel rtm, boolean rerank) throws Exception {
         ArrayList<ReadingModel> changedReadings = new ArrayList<>();
         ArrayList<RelationModel> createdRelations = new ArrayList<>();
 
@@ -291,16 +467,21 @@ public class Relation {
         // Recalculate the ranks, if necessary
         Long rankA = (Long) readingA.getProperty("rank");
         Long rankB = (Long) readingB.getProperty("rank");
-        if (!rankA.equals(rankB) && colocation) {
+        if (rerank && !rankA.equals(rankB) && colocation) {
             // Which one is the lower-ranked reading? Promote it, and recalculate from that point
             Long higherRank = rankA < rankB ? rankB : rankA;
+            Long lowerRank = rankA < rankB ? rankA : rankB;
             Node lowerRanked = rankA < rankB ? readingA : readingB;
             lowerRanked.setProperty("rank", higherRank);
             changedReadings.add(new ReadingModel(lowerRanked));
-            Set<Node> changedRank = ReadingService.recalculateRank(lowerRanked);
+            // A relation leaves the sequences alone
+            Set<Node> changedRank = ReadingService.recalculateRank(lowerRanked, false, false);
             for (Node cr : changedRank)
                 if (!cr.equals(lowerRanked))
                     changedReadings.add(new ReadingModel(cr));
+            // The recalculation can't know the rank that the promoted reading has left
+            VariantGraphService.calculateCommon(db.getNodeById((Long) lowerRanked.getProperty("section_id")),
+                    lowerRank, lowerRank, false);
 
         }
 
@@ -331,13 +512,30 @@ public class Relation {
      * @param rtm - the relation type specification
      */
     private void propagateRelation(GraphModel newRelationResult, RelationTypeModel rtm) throws Exception {
+        propagateRelation(newRelationResult, rtm, true, null);
+    }
+
+    /**
+     * Propagates reading relations according to type specification.
+     * NOTE - To be used inside a transaction
+     *
+     * @param newRelationResult - the GraphModel that contains the relations just created
+     * @param rtm - the relation type specification
+     * @param rerank - whether to recalculate ranks as the relations are made
+     * @param propagated - if not null, the readings whose relations of this type have already
+     *                   been propagated; these are skipped, and the set is added to.
+     */
+    private void propagateRelation(GraphModel newRelationResult, RelationTypeModel rtm,
+                                   boolean rerank, Set<Node> propagated) throws Exception {
         // First see if this relation type should be propagated.
         if (!rtm.getIs_transitive()) return;
         // Now go through all the relations that have been created, and make sure that any
         // transitivity effects have been accounted for.
-        for (RelationModel rm : newRelationResult.getRelations()) {
+        for (RelationModel rm : new ArrayList<>(newRelationResult.getRelations())) {
             TransitiveRelationTraverser relTraverser = new TransitiveRelationTraverser(tradId, rtm);
             Node startNode = db.getNodeById(Long.valueOf(rm.getSource()));
+            if (propagated != null && propagated.contains(startNode))
+                continue;
             ArrayList<Node> relatedNodes = new ArrayList<>();
             // Get all the readings that are related by this or a more closely-bound type.
             db.traversalDescription().depthFirst()
@@ -345,6 +543,8 @@ public class Relation {
                     .evaluator(relTraverser)
                     .uniqueness(Uniqueness.NODE_GLOBAL)
                     .traverse(startNode).nodes().forEach(relatedNodes::add);
+            if (propagated != null)
+                propagated.addAll(relatedNodes);
             // Now go through them and make sure the relations are explicit.
             ArrayList<Node> iterateNodes = new ArrayList<>(relatedNodes);
             while (!iterateNodes.isEmpty()) {
@@ -356,7 +556,7 @@ public class Relation {
                 for (Node readingB : iterateNodes) {
                     if (!alreadyRelated.contains(readingB)) {
                         // System.out.println(String.format("...making relation %s to node %d / %s", rm.getType(), readingB.getId(), readingB.getProperty("text")));
-                        GraphModel interim = createSingleRelation(readingA, readingB, rm, rtm);
+                        GraphModel interim = createSingleRelation(readingA, readingB, rm, rtm, rerank);
                         newRelationResult.addReadings(interim.getReadings());
                         newRelationResult.addRelations(interim.getRelations());
                     }
@@ -383,7 +583,7 @@ public class Relation {
                         ArrayList<Relationship> priorLinks = DatabaseService.getRelationshipTo(n, c, ERelations.RELATED);
                         if (priorLinks.size() == 0) {
                             // Create a relation based on the looser link
-                            GraphModel interim = createSingleRelation(n, c, newmodel, newtm);
+                            GraphModel interim = createSingleRelation(n, c, newmodel, newtm, rerank);
                             newRelationResult.addReadings(interim.getReadings());
                             newRelationResult.addRelations(interim.getRelations());
                         }
@@ -412,6 +612,10 @@ public class Relation {
     @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
     @ReturnType("java.util.List<net.stemmaweb.model.RelationModel>")
     public Response deleteByData(RelationModel relationModel) {
+        return EditLockService.retrying(() -> deleteRelations(relationModel));
+    }
+
+    private Response deleteRelations(RelationModel relationModel) {
         ArrayList<RelationModel> deleted = new ArrayList<>();
 
         try (Transaction tx = db.beginTx()) {
@@ -477,6 +681,10 @@ public class Relation {
     @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
     @ReturnType(clazz = RelationModel.class)
     public Response deleteById(@PathParam("relationId") String relationId) {
+        return EditLockService.retrying(() -> deleteRelation(relationId));
+    }
+
+    private Response deleteRelation(String relationId) {
         RelationModel relationModel;
 
         try (Transaction tx = db.beginTx()) {
@@ -488,6 +696,9 @@ public class Relation {
                 return Response.status(Status.FORBIDDEN).entity(jsonerror("This is not a relation link")).build();
             }
             tx.success();
+        } catch (TransientFailureException e) {
+            // Passed on, so that the change can be tried again
+            throw e;
         } catch (Exception e) {
             return Response.serverError().entity(jsonerror(e.getMessage())).build();
         }
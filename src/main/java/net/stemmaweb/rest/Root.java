@@ -8,8 +8,12 @@ package net.stemmaweb.rest;
 import com.qmino.miredot.annotations.ReturnType;
 import net.stemmaweb.model.TraditionModel;
 import net.stemmaweb.model.UserModel;
+import net.stemmaweb.parser.SectionArchive;
+import net.stemmaweb.services.ConcordanceService;
 import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.DeletionService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.MetricsService;
 
 import org.apache.tika.Tika;
 import org.glassfish.jersey.media.multipart.FormDataContentDisposition;
@@ -92,7 +96,12 @@ public class Root {
      */
     @Path("/reading/{readingId}")
     public Reading getReading(@PathParam("readingId") String readingId) {
-        return new Reading(readingId);
+        Reading reading = new Reading(readingId);
+        if (reading.isDeleted())
+            throw new WebApplicationException(Response.status(Response.Status.NOT_FOUND)
+                    .type(MediaType.APPLICATION_JSON_TYPE)
+                    .entity(jsonerror("No such reading found")).build());
+        return reading;
     }
 
     /*
@@ -114,8 +123,10 @@ public class Root {
      * @param is_public If true, the tradition will be marked as publicly viewable.
      * @param filetype  the type of file being uploaded. Possible values are {@code collatex},
      *                  {@code cxjson}, {@code csv}, {@code tsv}, {@code xls}, {@code xlsx},
-     *                  {@code graphml}, {@code stemmaweb}, or {@code teips}.
-     *                  Required if 'file' is present.
+     *                  {@code graphml}, {@code stemmaweb}, {@code teips}, or {@code binarygraph} (as
+     *                  downloaded from GET /tradition/{tradId}/section/{sectionId}/graph); or {@code zip}, {@code tar},
+     *                  or {@code tgz} for an archive of several sections, as described for
+     *                  POST /tradition/{tradId}/sections. Required if 'file' is present.
      * @param empty     Should be set to some non-null value if the tradition is being created without any data file.
      *                  Required if 'file' is not present.
      * @param uploadedInputStream The file data to upload.
@@ -172,8 +183,11 @@ public class Root {
         // for parsing.
         if (empty == null) {
             Tradition traditionService = new Tradition(tradId);
-            Response dataResult = traditionService.addSection("DEFAULT",
-                    filetype, uploadedInputStream);
+            Response dataResult;
+            if (SectionArchive.isArchiveType(filetype))
+                dataResult = traditionService.addSectionArchive(filetype, uploadedInputStream);
+            else
+                dataResult = traditionService.addSection("DEFAULT", filetype, uploadedInputStream);
             if (dataResult.getStatus() != Response.Status.CREATED.getStatusCode()) {
                 // If something went wrong, delete the new tradition immediately and return the error.
                 traditionService.deleteTraditionById();
@@ -235,6 +249,101 @@ public class Root {
         return Response.ok(traditionList).build();
     }
 
+    /**
+     * Gets a key-word-in-context concordance of a word across all traditions. Each line of the
+     * concordance gives a matching reading, the text before and after it, and the sigla of the
+     * witnesses whose main text reads it with that context. The matching readings are returned a
+     * page at a time, ordered by tradition ID and then by their place in the text, with all the
+     * lines for each of them (none, if no witness has the reading in its main text); the total
+     * number of matching readings is given in the X-Total-Count header.
+     *
+     * @summary Search across traditions
+     *
+     * @param query      the word to search for. Required.
+     * @param mode       one of {@code exact}, {@code prefix}, or {@code regex}. Default is exact.
+     * @param normal     if true, search on the normal form of readings that have one
+     * @param fold       if true, ignore case and diacritics
+     * @param context    the number of readings to give on either side of the match. Default is 5.
+     * @param publiconly Search only the traditions marked as being public. Default is true.
+     * @param start      the index of the first matching reading to return
+     * @param limit      the maximum number of matching readings to return. Default is 100.
+     * @return A list of concordance lines.
+     * @statuscode 200 on success
+     * @statuscode 400 if the query is missing, or the mode or regular expression is invalid
+     * @statuscode 500 on failure, with an error report in JSON format
+     */
+    @GET
+    @Path("/concordance")
+    @Produces("application/json; charset=utf-8")
+    @ReturnType("java.util.List<net.stemmaweb.model.ConcordanceEntryModel>")
+    public Response getConcordance(@QueryParam("q") String query,
+                                   @DefaultValue("exact") @QueryParam("mode") String mode,
+                                   @DefaultValue("false") @QueryParam("normal") Boolean normal,
+                                   @DefaultValue("false") @QueryParam("fold") Boolean fold,
+                                   @DefaultValue("5") @QueryParam("context") int context,
+                                   @DefaultValue("true") @QueryParam("public") Boolean publiconly,
+                                   @DefaultValue("0") @QueryParam("start") int start,
+                                   @DefaultValue("100") @QueryParam("limit") int limit) {
+        if (query == null || query.isEmpty())
+            return Response.status(Response.Status.BAD_REQUEST).entity(jsonerror("No search query given")).build();
+        if (context < 0 || start < 0 || limit < 1)
+            return Response.status(Response.Status.BAD_REQUEST).entity(jsonerror("Invalid result range")).build();
+        ConcordanceService.Page page;
+        try (Transaction tx = db.beginTx()) {
+            List<Node> traditions = new ArrayList<>();
+            if (publiconly)
+                db.findNodes(Nodes.TRADITION, "is_public", true).forEachRemaining(traditions::add);
+            else
+                db.findNodes(Nodes.TRADITION).forEachRemaining(traditions::add);
+            page = ConcordanceService.concordance(traditions, query, mode, normal, fold, context, start, limit);
+            tx.success();
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(jsonerror(e.getMessage())).build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
+        }
+        return Response.ok(page.getLines()).header("X-Total-Count", page.getTotal()).build();
+    }
+
+    /**
+     * Gets the progress of the removal of deleted traditions and sections. Deleted traditions
+     * and sections disappear at once, but their data is removed from the database in the
+     * background; this lists the removals that are waiting or under way, followed by the
+     * most recently finished ones.
+     *
+     * @summary List deletions
+     *
+     * @return A list of progress reports, one per deleted tradition or section.
+     * @statuscode 200 on success
+     */
+    @GET
+    @Path("/deletions")
+    @Produces("application/json; charset=utf-8")
+    @ReturnType("java.util.List<net.stemmaweb.model.DeletionModel>")
+    public Response getDeletions() {
+        return Response.ok(DeletionService.getProgress()).build();
+    }
+
+    /**
+     * Gets the server's metrics in the Prometheus text format: the latency, request size and
+     * response size of each endpoint as histograms, the number of error responses from each,
+     * the number of runs of each Cypher query, the work done by each named graph traversal,
+     * and the page cache, transaction and store size figures of the database.
+     *
+     * @summary Get server metrics
+     *
+     * @return The metrics, as plain text.
+     * @statuscode 200 on success
+     */
+    @GET
+    @Path("/metrics")
+    @Produces("text/plain; version=0.0.4; charset=utf-8")
+    @ReturnType("java.lang.String")
+    public Response getMetrics() {
+        return Response.ok(MetricsService.render(db)).build();
+    }
+
     /**
      * Gets a list of all the users in the database.
      *
@@ -2,6 +2,7 @@ package net.stemmaweb.rest;
 
 import com.qmino.miredot.annotations.MireDotIgnore;
 import com.qmino.miredot.annotations.ReturnType;
+import net.stemmaweb.exporter.BinaryGraphExporter;
 import net.stemmaweb.exporter.DotExporter;
 import net.stemmaweb.exporter.GraphMLExporter;
 import net.stemmaweb.exporter.TabularExporter;
@@ -116,7 +117,9 @@ public class Section {
 
     /**
      * Delete the specified section, and update the tradition's sequence of sections to
-     * account for any resulting gap. Returns a JSON response on error with key 'error'.
+     * account for any resulting gap. The section disappears at once; its data is removed
+     * from the database in the background, and the progress of the removal can be followed
+     * at {@code /deletions}. Returns a JSON response on error with key 'error'.
      *
      * @summary Delete section
      * @statuscode 200 - on success
@@ -129,23 +132,15 @@ public class Section {
         if (!sectionInTradition())
             return Response.status(Response.Status.NOT_FOUND).type(MediaType.APPLICATION_JSON_TYPE)
                     .entity(jsonerror("Tradition and/or section not found")).build();
+        DeletionModel removal = null;
         try (Transaction tx = db.beginTx()) {
             Node foundSection = db.getNodeById(Long.parseLong(sectId));
             if (foundSection != null) {
                 // Find the section either side of this one and connect them if necessary.
                 removeFromSequence(foundSection);
-                // Collect all nodes and relationships that belong to this section.
-                Set<Relationship> removableRelations = new HashSet<>();
-                Set<Node> removableNodes = new HashSet<>();
-                VariantGraphService.returnTraditionSection(foundSection).nodes()
-                        .forEach(x -> {
-                            removableNodes.add(x);
-                            x.getRelationships(Direction.BOTH).forEach(removableRelations::add);
-                        });
-
-                // Remove said nodes and relationships.
-                removableRelations.forEach(Relationship::delete);
-                removableNodes.forEach(Node::delete);
+                // Detach the section from the tradition and its annotations; the worker
+                // will remove what is left.
+                removal = DeletionService.markSection(foundSection);
                 // Clean up any annotations that need it.
                 Tradition tService = new Tradition(tradId);
                 Response pruned = tService.pruneAnnotations();
@@ -159,6 +154,8 @@ public class Section {
             return Response.serverError().type(MediaType.APPLICATION_JSON_TYPE)
                     .entity(jsonerror(e.getMessage())).build();
         }
+        if (removal != null)
+            DeletionService.reclaim(db, Long.valueOf(sectId), removal);
 
         return Response.ok().build();
     }
@@ -247,11 +244,15 @@ public class Section {
     }
 
     /**
-     * Gets a list of all readings in the given tradition section.
+     * Gets a list of all readings in the given tradition section. If a list of fields is
+     * given, only those fields of each reading are returned, which is much quicker for
+     * large sections.
      *
      * @summary Get readings
+     * @param fields - a comma-separated list of the reading fields to return, e.g. "id,text,rank"
      * @return A list of reading metadata
      * @statuscode 200 - on success
+     * @statuscode 400 - if an unknown field is requested
      * @statuscode 404 - if no such tradition or section exists
      * @statuscode 500 - on failure, with an error message
      */
@@ -259,27 +260,94 @@ public class Section {
     @Path("/readings")
     @Produces("application/json; charset=utf-8")
     @ReturnType("java.util.List<net.stemmaweb.model.ReadingModel>")
-    public Response getAllReadings() {
+    public Response getAllReadings(@QueryParam("fields") String fields) {
         if (!sectionInTradition())
             return Response.status(Response.Status.NOT_FOUND).entity(jsonerror("Tradition and/or section not found")).build();
 
+        if (fields != null) {
+            try {
+                return Response.ok(ReadingProjection.parse(fields).stream(db, this::sectionReadingNodes)).build();
+            } catch (IllegalArgumentException e) {
+                return Response.status(Response.Status.BAD_REQUEST).entity(jsonerror(e.getMessage())).build();
+            }
+        }
+
         List<ReadingModel> readingModels = sectionReadings();
         if (readingModels == null)
             return Response.serverError().entity(jsonerror("No readings found in section")).build();
         return Response.ok(readingModels).build();
     }
 
+    /**
+     * Searches the readings of this section by their text. The search may be for an exact
+     * match, for readings that begin with the given text, or for readings that match a
+     * regular expression; it may be made on the readings' normal forms rather than their
+     * texts, and may ignore case and diacritics. Results are returned in order of rank, a
+     * page at a time; the total number of matches is given in the X-Total-Count header.
+     *
+     * @summary Search readings
+     * @param query - the text to search for
+     * @param mode  - one of 'exact', 'prefix', or 'regex'
+     * @param normal - if true, search on the normal form of readings that have one
+     * @param fold  - if true, ignore case and diacritics
+     * @param start - the index of the first result to return
+     * @param limit - the maximum number of results to return
+     * @return A list of matching readings, with their ranks and witnesses
+     * @statuscode 200 - on success
+     * @statuscode 400 - if the query is missing, the mode is unknown, or the regular expression is invalid
+     * @statuscode 404 - if no such tradition or section exists
+     * @statuscode 500 - on failure, with an error message
+     */
+    @GET
+    @Path("/readings/search")
+    @Produces("application/json; charset=utf-8")
+    @ReturnType("java.util.List<net.stemmaweb.model.ReadingModel>")
+    public Response searchReadings(@QueryParam("q") String query,
+                                   @DefaultValue("exact") @QueryParam("mode") String mode,
+                                   @DefaultValue("false") @QueryParam("normal") Boolean normal,
+                                   @DefaultValue("false") @QueryParam("fold") Boolean fold,
+                                   @DefaultValue("0") @QueryParam("start") int start,
+                                   @DefaultValue("100") @QueryParam("limit") int limit) {
+        if (!sectionInTradition())
+            return Response.status(Response.Status.NOT_FOUND).entity(jsonerror("Tradition and/or section not found")).build();
+        try (Transaction tx = db.beginTx()) {
+            Node sectionNode = db.getNodeById(Long.valueOf(sectId));
+            tx.success();
+            return searchSections(Collections.singletonList(sectionNode), query, mode, normal, fold, start, limit);
+        }
+    }
+
+    // Carry out a reading search over the given sections; shared with the tradition-wide search.
+    static Response searchSections(List<Node> sections, String query, String mode, Boolean normal,
+                                   Boolean fold, int start, int limit) {
+        if (query == null || query.isEmpty())
+            return Response.status(Response.Status.BAD_REQUEST).entity(jsonerror("No search query given")).build();
+        if (start < 0 || limit < 1)
+            return Response.status(Response.Status.BAD_REQUEST).entity(jsonerror("Invalid result range")).build();
+        if (sections.isEmpty())
+            return Response.ok(new ArrayList<ReadingModel>()).header("X-Total-Count", 0).build();
+        GraphDatabaseService db = sections.get(0).getGraphDatabase();
+        List<ReadingModel> page;
+        int total;
+        try (Transaction tx = db.beginTx()) {
+            List<Node> found = ReadingSearchService.search(sections, query, mode, normal, fold);
+            total = found.size();
+            page = found.stream().skip(start).limit(limit).map(ReadingModel::new).collect(Collectors.toList());
+            tx.success();
+        } catch (IllegalArgumentException e) {
+            // This includes PatternSyntaxException
+            return Response.status(Response.Status.BAD_REQUEST).entity(jsonerror(e.getMessage())).build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
+        }
+        return Response.ok(page).header("X-Total-Count", total).build();
+    }
+
     List<ReadingModel> sectionReadings() {
         ArrayList<ReadingModel> readingModels = new ArrayList<>();
         try (Transaction tx = db.beginTx()) {
-            Node startNode = VariantGraphService.getStartNode(sectId, db);
-            if (startNode == null) throw new Exception("Section " + sectId + " has no start node");
-            db.traversalDescription().depthFirst()
-                    .relationships(ERelations.SEQUENCE, Direction.OUTGOING)
-                    .relationships(ERelations.EMENDED, Direction.OUTGOING)
-                    .evaluator(Evaluators.all())
-                    .uniqueness(Uniqueness.NODE_GLOBAL).traverse(startNode)
-                    .nodes().forEach(node -> readingModels.add(new ReadingModel(node)));
+            sectionReadingNodes().forEach(node -> readingModels.add(new ReadingModel(node)));
             tx.success();
         } catch (Exception e) {
             e.printStackTrace();
@@ -288,6 +356,19 @@ public class Section {
         return readingModels;
     }
 
+    // The readings of this section, including emendations, in the order in which they are listed.
+    // NOTE: For use inside a transaction
+    Iterable<Node> sectionReadingNodes() throws Exception {
+        Node startNode = VariantGraphService.getStartNode(sectId, db);
+        if (startNode == null) throw new Exception("Section " + sectId + " has no start node");
+        return db.traversalDescription().depthFirst()
+                .relationships(ERelations.SEQUENCE, Direction.OUTGOING)
+                .relationships(ERelations.EMENDED, Direction.OUTGOING)
+                .evaluator(Evaluators.all())
+                .uniqueness(Uniqueness.NODE_GLOBAL).traverse(startNode)
+                .nodes();
+    }
+
     /**
      * Gets a list of all relations defined within the given section.
      *
@@ -1037,7 +1118,9 @@ public class Section {
 
     /**
      * Makes separate lists for every group of readings with identical text and
-     * different ranks and send the list for further test
+     * different ranks and send the list for further test. The readings are grouped by
+     * text and sorted by rank, so that only the pairs within the threshold are looked at,
+     * and all the pairs are checked for cyclicity against a single index of the section.
      *
      * @param questionedReadings -
      * @return list of lists of identical readings
@@ -1045,31 +1128,50 @@ public class Section {
     private List<List<ReadingModel>> getCouldBeIdenticalAsList (
             List<Node> questionedReadings, long threshold) throws Exception {
 
-        List<List<ReadingModel>> couldBeIdenticalReadings = new ArrayList<>();
-        HashSet<Long> processed = new HashSet<>();
-
-        for (Node nodeA : questionedReadings) {
-            if (processed.contains(nodeA.getId()))
-                continue;
-            long aRank = Long.parseLong(nodeA.getProperty("rank").toString());
-            List<Node> sameText = questionedReadings.stream().filter(x -> !x.equals(nodeA)
-                && x.getProperty("text").equals(nodeA.getProperty("text"))
-                && Math.abs(Long.parseLong(x.getProperty("rank").toString()) - aRank) < threshold)
-                    .collect(Collectors.toList());
-            for (Node n : sameText) {
-                if (processed.contains(n.getId()))
-                    continue;
-                if (!wouldGetCyclic(nodeA, n)) {
-                    // Get the reading models
-                    ReadingModel rma = new ReadingModel(nodeA);
-                    ReadingModel rmn = new ReadingModel(n);
-                    // Order them by descending number of witnesses
-                    ArrayList<ReadingModel> pair = new ArrayList<>(Arrays.asList(rma, rmn));
-                    pair.sort((a, b) -> b.getWitnesses().size() - a.getWitnesses().size());
-                    couldBeIdenticalReadings.add(pair);
+        // Group the readings by text, keeping their place in the list
+        HashMap<Object, List<Integer>> byText = new LinkedHashMap<>();
+        long[] ranks = new long[questionedReadings.size()];
+        for (int i = 0; i < questionedReadings.size(); i++) {
+            Node n = questionedReadings.get(i);
+            ranks[i] = (Long) n.getProperty("rank");
+            byText.computeIfAbsent(n.getProperty("text"), k -> new ArrayList<>()).add(i);
+        }
+
+        // Within each group, pair every reading with the ones that follow it closely enough;
+        // the pairs are listed in the order in which their readings were found.
+        List<int[]> candidates = new ArrayList<>();
+        for (List<Integer> group : byText.values()) {
+            if (group.size() < 2) continue;
+            group.sort(Comparator.comparingLong(x -> ranks[x]));
+            for (int i = 0; i < group.size(); i++)
+                for (int j = i + 1; j < group.size() && ranks[group.get(j)] - ranks[group.get(i)] < threshold; j++) {
+                    RequestBudget.check();
+                    candidates.add(new int[]{Math.min(group.get(i), group.get(j)), Math.max(group.get(i), group.get(j))});
                 }
+        }
+        candidates.sort(Comparator.<int[]>comparingInt(x -> x[0]).thenComparingInt(x -> x[1]));
+
+        List<List<ReadingModel>> couldBeIdenticalReadings = new ArrayList<>();
+        if (candidates.isEmpty())
+            return couldBeIdenticalReadings;
+        ColocationIndex index = new ColocationIndex(db.getNodeById(Long.valueOf(sectId)));
+        HashMap<Integer, ReadingModel> models = new HashMap<>();
+        for (int[] c : candidates) {
+            RequestBudget.check();
+            Node nodeA = questionedReadings.get(c[0]);
+            Node n = questionedReadings.get(c[1]);
+            boolean cyclic = index.contains(nodeA) && index.contains(n)
+                    ? index.wouldGetCyclic(nodeA, n)
+                    : ReadingService.wouldGetCyclic(nodeA, n);
+            if (!cyclic) {
+                // Get the reading models
+                ReadingModel rma = models.computeIfAbsent(c[0], x -> new ReadingModel(nodeA));
+                ReadingModel rmn = models.computeIfAbsent(c[1], x -> new ReadingModel(n));
+                // Order them by descending number of witnesses
+                ArrayList<ReadingModel> pair = new ArrayList<>(Arrays.asList(rma, rmn));
+                pair.sort((x, y) -> y.getWitnesses().size() - x.getWitnesses().size());
+                couldBeIdenticalReadings.add(pair);
             }
-            processed.add(nodeA.getId());
         }
         return couldBeIdenticalReadings.stream()
                 .sorted(Comparator.comparingLong(this::rankDifference))
@@ -1087,11 +1189,11 @@ public class Section {
         List<Node> readings;
         PathExpander e = new AlignmentTraverse(startNode);
         try (Transaction tx = db.beginTx()) {
-            Stream<Node> readingStream = db.traversalDescription().depthFirst()
-                    .expand(e).uniqueness(Uniqueness.NODE_GLOBAL)
+            Stream<Node> readingStream = RequestBudget.limit(db.traversalDescription().depthFirst()
+                    .expand(e).uniqueness(Uniqueness.NODE_GLOBAL))
                     .traverse(startNode).nodes().stream()
-                    .filter(x -> startRank <= Long.parseLong(x.getProperty("rank").toString()) &&
-                            endRank >= Long.parseLong(x.getProperty("rank").toString()));
+                    .filter(x -> startRank <= (Long) x.getProperty("rank") &&
+                            endRank >= (Long) x.getProperty("rank"));
             if (!limitText.equals(""))
                 readingStream = readingStream.filter(x -> x.getProperty("text").toString().equals(limitText));
             readings = readingStream.collect(Collectors.toList());
@@ -1387,19 +1489,24 @@ public class Section {
 
         GraphModel thisSection = new GraphModel();
         try (Transaction tx = db.beginTx()) {
-            // Add the readings
-            thisSection.addReadings(StreamSupport.stream(VariantGraphService.returnTraditionSection(sectId, db)
-                    .nodes().spliterator(), false).filter(x -> x.hasLabel(Nodes.READING))
-                    .map(ReadingModel::new).collect(Collectors.toSet()));
-            // Add the relations
-            thisSection.addRelations(StreamSupport.stream(VariantGraphService.returnTraditionSection(sectId, db)
-                    .relationships().spliterator(), false).filter(x -> x.isType(ERelations.RELATED))
-                    .map(RelationModel::new).collect(Collectors.toSet()));
-            // Add the sequences
-            thisSection.addSequences(StreamSupport.stream(VariantGraphService.returnTraditionSection(sectId, db)
-                    .relationships().spliterator(), false)
-                    .filter(x -> x.isType(ERelations.SEQUENCE) || x.isType(ERelations.LEMMA_TEXT) || x.isType(ERelations.EMENDED))
-                    .map(SequenceModel::new).collect(Collectors.toSet()));
+            // Collect the readings, relations and sequences in a single pass over the section
+            Set<ReadingModel> readings = new HashSet<>();
+            Set<RelationModel> relations = new HashSet<>();
+            Set<SequenceModel> sequences = new HashSet<>();
+            Set<Node> seen = new HashSet<>();
+            for (org.neo4j.graphdb.Path p : VariantGraphService.returnTraditionSection(sectId, db)) {
+                if (p.endNode().hasLabel(Nodes.READING) && seen.add(p.endNode()))
+                    readings.add(new ReadingModel(p.endNode()));
+                Relationship r = p.lastRelationship();
+                if (r == null) continue;
+                if (r.isType(ERelations.RELATED))
+                    relations.add(new RelationModel(r));
+                else if (r.isType(ERelations.SEQUENCE) || r.isType(ERelations.LEMMA_TEXT) || r.isType(ERelations.EMENDED))
+                    sequences.add(new SequenceModel(r));
+            }
+            thisSection.addReadings(readings);
+            thisSection.addRelations(relations);
+            thisSection.addSequences(sequences);
 
             tx.success();
         } catch (Exception e) {
@@ -1409,6 +1516,43 @@ public class Section {
         return Response.ok(thisSection).build();
     }
 
+    /**
+     * Returns the readings, relations and sequences of the section in a compact binary form,
+     * for clients that transfer whole sections. Identifiers and ranks are written as variable-length
+     * integers, texts and sigla are each written once in a string table, and the witnesses of
+     * each sequence are given as a bitset. The data can be uploaded again as a new section with
+     * the file type {@code binarygraph}. This is returned in place of the JSON GraphModel when
+     * the request asks for {@code application/x-stemmaweb-graph}.
+     *
+     * @summary Download binary description of graph nodes & edges
+     * @return the binary section graph
+     * @statuscode 200 - on success
+     * @statuscode 404 - if no such tradition or section exists
+     * @statuscode 500 - on failure, with an error message
+     */
+    @GET
+    @Path("/graph")
+    @Produces(BinaryGraphExporter.MEDIA_TYPE + "; qs=0.5")
+    @ReturnType("java.lang.Void")
+    public Response getGraphBinary() {
+        if (!sectionInTradition())
+            return Response.status(Response.Status.NOT_FOUND).type(MediaType.TEXT_PLAIN_TYPE)
+                    .entity("Tradition and/or section not found").build();
+
+        byte[] result;
+        try (Transaction tx = db.beginTx();
+             OperationEvents.Span span = OperationEvents.begin("export-binarygraph", tradId, sectId)) {
+            result = new BinaryGraphExporter().writeSection(db.getNodeById(Long.parseLong(sectId)));
+            span.setCount(result.length, "bytes");
+            tx.success();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().type(MediaType.APPLICATION_JSON_TYPE)
+                    .entity(jsonerror(e.getMessage())).build();
+        }
+        return Response.ok(result).build();
+    }
+
     // Export the dot / SVG for a particular section
     /**
      * Returns a GraphML file that describes the specified section and its data, including annotations.
@@ -1,5 +1,6 @@
 package net.stemmaweb.rest;
 
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -11,10 +12,13 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
 import com.qmino.miredot.annotations.ReturnType;
+import net.stemmaweb.exporter.DotExporter;
 import net.stemmaweb.model.StemmaModel;
 import net.stemmaweb.parser.DotParser;
 import net.stemmaweb.parser.NewickParser;
+import net.stemmaweb.printer.RenderPool;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.QueryService;
 
 import org.neo4j.graphdb.*;
 
@@ -67,6 +71,37 @@ public class Stemma {
         return Response.status(returncode).entity(result).build();
     }
 
+    /**
+     * Renders the specified stemma as an SVG image, for a request that asks for image/svg+xml.
+     * Stemmata are rendered by GraphViz through the shared render pool, so that a stemma that
+     * has been rendered already doesn't need rendering again.
+     *
+     * @summary Get stemma image
+     * @return The stemma as an SVG image
+     * @statuscode 200 - on success
+     * @statuscode 404 - if no such tradition exists
+     * @statuscode 500 - if the stemma could not be rendered, with an error message
+     * @statuscode 503 - if too many graphs are waiting to be rendered
+     */
+    @GET
+    @Produces("image/svg+xml; qs=0.5")
+    @ReturnType("java.lang.Void")
+    public Response getStemmaImage() {
+        Node stemmaNode = getStemmaNode();
+        if (stemmaNode == null) {
+            return Response.status(Status.NOT_FOUND).type(MediaType.APPLICATION_JSON_TYPE)
+                    .entity(jsonerror(String.format("No stemma %s found for tradition %s", name, tradId))).build();
+        }
+        String dot = new DotExporter(db).writeNeo4JStemma(tradId, name, false).getEntity().toString();
+        try {
+            return Response.ok(RenderPool.render(dot, "svg"), "image/svg+xml").build();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return Response.serverError().type(MediaType.APPLICATION_JSON_TYPE)
+                    .entity(jsonerror(e.getMessage())).build();
+        }
+    }
+
     /**
      * Stores a new or updated stemma under the given name.
      *
@@ -189,9 +224,8 @@ public class Stemma {
         try (Transaction tx = db.beginTx())
         {
             // Get the stemma and the witness
-            Result foundStemma = db.execute("match (:TRADITION {id:'" + tradId
-                    + "'})-[:HAS_STEMMA]->(s:STEMMA {name:'" + name
-                    + "'})-[:HAS_WITNESS]->(w:WITNESS {sigil:'" + nodeId + "'}) return s, w");
+            Result foundStemma = QueryService.execute(db, QueryService.Query.STEMMA_WITNESS,
+                    QueryService.params("tradId", tradId, "name", name, "sigil", nodeId));
             if(!foundStemma.hasNext())
                 return Response.status(Status.NOT_FOUND).entity(jsonerror("No such witness found in stemma")).build();
 
@@ -223,8 +257,8 @@ public class Stemma {
 
     private Node getStemmaNode () {
         try (Transaction tx = db.beginTx()) {
-            Result query = db.execute("match (:TRADITION {id:'" + tradId
-                    + "'})-[:HAS_STEMMA]->(s:STEMMA {name:'" + name + "'}) return s");
+            Result query = QueryService.execute(db, QueryService.Query.STEMMA,
+                    QueryService.params("tradId", tradId, "name", name));
             ResourceIterator<Node> foundStemma = query.columnAs("s");
             tx.success();
             if (!foundStemma.hasNext())
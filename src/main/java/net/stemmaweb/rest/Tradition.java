@@ -1,6 +1,7 @@
 package net.stemmaweb.rest;
 
 import com.alexmerz.graphviz.ParseException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.qmino.miredot.annotations.MireDotIgnore;
 import com.qmino.miredot.annotations.ReturnType;
 import net.stemmaweb.exporter.DotExporter;
@@ -11,16 +12,26 @@ import net.stemmaweb.model.*;
 import net.stemmaweb.parser.*;
 import net.stemmaweb.services.*;
 import org.glassfish.jersey.media.multipart.FormDataParam;
+import org.glassfish.jersey.server.ChunkedOutput;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.traversal.*;
 
 import javax.ws.rs.*;
 import javax.ws.rs.Path;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import static java.time.LocalDateTime.now;
@@ -37,6 +48,27 @@ import static net.stemmaweb.rest.Util.jsonresp;
  */
 
 public class Tradition {
+    // Shared by all archive uploads, so that concurrent uploads do not oversubscribe the machine
+    private static final ExecutorService sectionParserPool = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread t = new Thread(r, "section-parser");
+                t.setDaemon(true);
+                return t;
+            });
+    // Writes out the change streams, one thread for each stream that is open
+    private static final ExecutorService changeStreamPool = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "change-stream");
+        t.setDaemon(true);
+        return t;
+    });
+    // Changes are written into event streams as single lines of JSON
+    private static final ObjectMapper changeWriter = new ObjectMapper();
+    // How long a change stream is kept open, how often it is sent a keepalive, and how many
+    // seconds a client should wait before reconnecting
+    private static final long CHANGE_STREAM_MILLIS = 600000;
+    private static final long CHANGE_STREAM_HEARTBEAT_MILLIS = 15000;
+    private static final int CHANGE_STREAM_RETRY = 2;
+
     private final GraphDatabaseService db;
     /**
      * This is where the tradition ID should go
@@ -225,14 +257,174 @@ public class Tradition {
         Node sectionNode = traditionNode;
         if (!filetype.equals("graphml")) {
             try (Transaction tx = db.beginTx()) {
-                sectionNode = db.createNode(Nodes.SECTION);
-                sectionNode.setProperty("name", sectionName);
-                traditionNode.createRelationshipTo(sectionNode, ERelations.PART);
+                sectionNode = createSectionNode(traditionNode, sectionName);
                 tx.success();
             }
         }
 
         // Parse the contents of the given file into that section
+        Response result = parseSectionData(traditionNode, sectionNode, filetype, uploadedInputStream);
+
+        if (result.getStatus() > 201) {
+            // If the result wasn't a success, delete the section node before returning the result.
+            Section restSect = new Section(traditionId, String.valueOf(sectionNode.getId()));
+            restSect.deleteSection();
+        } else if (!filetype.equals("graphml")){
+            // Otherwise, if we haven't already, link this section behind the last of the prior sections.
+            if (existingSections != null && existingSections.size() > 0) {
+                SectionModel ls = existingSections.get(existingSections.size() - 1);
+                try (Transaction tx = db.beginTx()) {
+                    Node lastSection = db.getNodeById(Long.parseLong(ls.getId()));
+                    lastSection.createRelationshipTo(sectionNode, ERelations.NEXT);
+                    tx.success();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Create several new sections for this tradition at once, from an archive of section
+     * files. The archive must contain a file {@code manifest.json} that lists the section
+     * files in order, with the name and file type of each, e.g.
+     * {@code [{"file": "part1.json", "filetype": "cxjson", "name": "Part 1"}, ...]}.
+     * The sections are parsed concurrently and added to the end of the tradition in
+     * manifest order. If any section fails to parse, none of them is kept.
+     *
+     * @summary Upload section archive
+     *
+     * @param filetype - The format of the archive: {@code zip}, {@code tar}, or {@code tgz}.
+     * @param uploadedInputStream - The archive file data
+     * @return A list of the new sections' metadata, in order.
+     * @statuscode 201 - on success
+     * @statuscode 400 - if the archive type is unrecognised, or the manifest is missing or invalid
+     * @statuscode 404 - if the tradition doesn't exist
+     * @statuscode 500 - on error, with an error message
+     */
+    @POST
+    @Path("/sections")
+    @Consumes(MediaType.MULTIPART_FORM_DATA)
+    @Produces("application/json; charset=utf-8")
+    @ReturnType("java.util.List<net.stemmaweb.model.SectionModel>")
+    public Response addSectionArchive(@FormDataParam("filetype") String filetype,
+                                      @FormDataParam("file") InputStream uploadedInputStream) {
+        Node traditionNode = VariantGraphService.getTraditionNode(traditionId, db);
+        if (traditionNode == null)
+            return Response.status(Status.NOT_FOUND).entity(jsonerror("tradition not found")).build();
+        if (uploadedInputStream == null || filetype == null)
+            return Response.status(Status.BAD_REQUEST).entity(jsonerror("No file found")).build();
+        ArrayList<SectionModel> existingSections = produceSectionList(traditionNode);
+        if (existingSections == null)
+            return Response.serverError().entity(jsonerror("Something went wrong building section list")).build();
+
+        try (SectionArchive archive = new SectionArchive(uploadedInputStream, filetype)) {
+            List<SectionArchive.Entry> entries = archive.getEntries();
+            // Create all the section nodes up front, chained in manifest order after any existing
+            // sections, so that the parsers need not coordinate with each other.
+            List<Node> sectionNodes = new ArrayList<>();
+            try (Transaction tx = db.beginTx()) {
+                Node priorSection = existingSections.isEmpty() ? null
+                        : db.getNodeById(Long.parseLong(existingSections.get(existingSections.size() - 1).getId()));
+                for (SectionArchive.Entry e : entries) {
+                    Node sectionNode = createSectionNode(traditionNode, e.getName());
+                    if (priorSection != null)
+                        priorSection.createRelationshipTo(sectionNode, ERelations.NEXT);
+                    sectionNodes.add(sectionNode);
+                    priorSection = sectionNode;
+                }
+                tx.success();
+            }
+
+            // Parse the sections on the worker pool
+            List<Future<Response>> results = new ArrayList<>();
+            for (int i = 0; i < entries.size(); i++) {
+                SectionArchive.Entry e = entries.get(i);
+                Node sectionNode = sectionNodes.get(i);
+                results.add(sectionParserPool.submit(() -> {
+                    try (InputStream data = e.openStream()) {
+                        return parseSectionData(traditionNode, sectionNode, e.getFiletype(), data);
+                    }
+                }));
+            }
+            Response failure = null;
+            for (int i = 0; i < results.size(); i++) {
+                Response r;
+                try {
+                    r = results.get(i).get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                    r = Response.serverError().entity(jsonerror(e.getCause().getMessage())).build();
+                }
+                if (r.getStatus() > 201 && failure == null) {
+                    String message = String.valueOf(r.getEntity());
+                    try {
+                        message = new JSONObject(message).optString("error", message);
+                    } catch (JSONException ignored) {}
+                    // The parser message may contain anything, so let JSONObject do the escaping
+                    failure = Response.status(r.getStatus()).entity(new JSONObject().put("error", String.format(
+                            "Section file %s could not be parsed: %s", entries.get(i).getFile(), message))
+                            .toString()).build();
+                }
+            }
+
+            // Clean up any witnesses or relation types that the parsers created twice
+            try (Transaction tx = db.beginTx()) {
+                SectionArchive.mergeDuplicateNodes(traditionNode);
+                tx.success();
+            }
+
+            if (failure != null) {
+                for (Node sn : sectionNodes)
+                    new Section(traditionId, String.valueOf(sn.getId())).deleteSection();
+                return failure;
+            }
+
+            List<SectionModel> created = new ArrayList<>();
+            try (Transaction tx = db.beginTx()) {
+                sectionNodes.forEach(x -> created.add(new SectionModel(x)));
+                tx.success();
+            }
+            return Response.status(Status.CREATED).entity(created).build();
+        } catch (IllegalArgumentException e) {
+            return Response.status(Status.BAD_REQUEST).entity(jsonerror(e.getMessage())).build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
+        }
+    }
+
+    // Make a new section node belonging to this tradition.
+    // NOTE: For use inside a transaction
+    private Node createSectionNode(Node traditionNode, String sectionName) {
+        Node sectionNode = db.createNode(Nodes.SECTION);
+        sectionNode.setProperty("name", sectionName);
+        traditionNode.createRelationshipTo(sectionNode, ERelations.PART);
+        return sectionNode;
+    }
+
+    // Hand the file data off to the parser for its file type, recording the parse as a graph operation.
+    private Response parseSectionData(Node traditionNode, Node sectionNode, String filetype,
+                                      InputStream uploadedInputStream) {
+        // A GraphML file is parsed into the tradition as a whole
+        String sectionId = sectionNode.equals(traditionNode) ? null : String.valueOf(sectionNode.getId());
+        try (OperationEvents.Span span = OperationEvents.begin("import-" + filetype, traditionId, sectionId)) {
+            Response result = runSectionParser(traditionNode, sectionNode, filetype, uploadedInputStream);
+            if (span.isRecording() && sectionId != null && result.getStatus() == Status.CREATED.getStatusCode()) {
+                try (Transaction tx = db.beginTx()) {
+                    span.setCount(db.findNodes(Nodes.READING, "section_id", sectionNode.getId()).stream().count(),
+                            "readings");
+                    tx.success();
+                }
+            }
+            return result;
+        }
+    }
+
+    private static Response runSectionParser(Node traditionNode, Node sectionNode, String filetype,
+                                             InputStream uploadedInputStream) {
         Response result = null;
         if (filetype.equals("csv"))
             // Pass it off to the CSV reader
@@ -258,28 +450,12 @@ public class Tradition {
             result = new StemmawebParser().parseGraphML(uploadedInputStream, sectionNode);
         if (filetype.equals("graphml"))
             result = new GraphMLParser().parseGraphML(uploadedInputStream, traditionNode);
+        if (filetype.equals("binarygraph"))
+            // Restore a section from its binary graph
+            result = new BinaryGraphParser().parseBinaryGraph(uploadedInputStream, sectionNode);
         // If we got this far, it was an unrecognized filetype.
         if (result == null)
             result = Response.status(Status.BAD_REQUEST).entity(jsonerror("Unrecognized file type " + filetype)).build();
-
-        if (result.getStatus() > 201) {
-            // If the result wasn't a success, delete the section node before returning the result.
-            Section restSect = new Section(traditionId, String.valueOf(sectionNode.getId()));
-            restSect.deleteSection();
-        } else if (!filetype.equals("graphml")){
-            // Otherwise, if we haven't already, link this section behind the last of the prior sections.
-            if (existingSections != null && existingSections.size() > 0) {
-                SectionModel ls = existingSections.get(existingSections.size() - 1);
-                try (Transaction tx = db.beginTx()) {
-                    Node lastSection = db.getNodeById(Long.parseLong(ls.getId()));
-                    lastSection.createRelationshipTo(sectionNode, ERelations.NEXT);
-                    tx.success();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
         return result;
     }
 
@@ -502,11 +678,14 @@ public class Tradition {
     }
 
     /**
-     * Gets a list of all readings in the given tradition.
+     * Gets a list of all readings in the given tradition. If a list of fields is given, only
+     * those fields of each reading are returned, which is much quicker for large traditions.
      *
      * @summary Get readings
+     * @param fields - a comma-separated list of the reading fields to return, e.g. "id,text,rank"
      * @return A list of reading metadata
      * @statuscode 200 - on success
+     * @statuscode 400 - if an unknown field is requested
      * @statuscode 404 - if no such tradition exists
      * @statuscode 500 - on failure, with an error message
      */
@@ -514,7 +693,7 @@ public class Tradition {
     @Path("/readings")
     @Produces("application/json; charset=utf-8")
     @ReturnType("java.util.List<net.stemmaweb.model.ReadingModel>")
-    public Response getAllReadings() {
+    public Response getAllReadings(@QueryParam("fields") String fields) {
         Node traditionNode = VariantGraphService.getTraditionNode(traditionId, db);
         if (traditionNode == null)
             return Response.status(Status.NOT_FOUND)
@@ -525,6 +704,19 @@ public class Tradition {
             return Response.serverError()
                     .entity(jsonerror("Tradition has no sections")).build();
 
+        if (fields != null) {
+            try {
+                return Response.ok(ReadingProjection.parse(fields).stream(db, () -> {
+                    List<Node> readings = new ArrayList<>();
+                    for (SectionModel sm : allSections)
+                        new Section(traditionId, sm.getId()).sectionReadingNodes().forEach(readings::add);
+                    return readings;
+                })).build();
+            } catch (IllegalArgumentException e) {
+                return Response.status(Status.BAD_REQUEST).entity(jsonerror(e.getMessage())).build();
+            }
+        }
+
         ArrayList<ReadingModel> readingModels = new ArrayList<>();
         for (SectionModel sm : allSections) {
             Section sectRest = new Section(traditionId, sm.getId());
@@ -537,6 +729,180 @@ public class Tradition {
         return Response.ok(readingModels).build();
     }
 
+    // Get all the readings in full
+    public Response getAllReadings() {
+        return getAllReadings(null);
+    }
+
+    /**
+     * Searches the readings of all sections of the tradition by their text. The search may be
+     * for an exact match, for readings that begin with the given text, or for readings that
+     * match a regular expression; it may be made on the readings' normal forms rather than
+     * their texts, and may ignore case and diacritics. Results are returned in section and
+     * rank order, a page at a time; the total number of matches is given in the
+     * X-Total-Count header.
+     *
+     * @summary Search readings
+     * @param query - the text to search for
+     * @param mode  - one of 'exact', 'prefix', or 'regex'
+     * @param normal - if true, search on the normal form of readings that have one
+     * @param fold  - if true, ignore case and diacritics
+     * @param start - the index of the first result to return
+     * @param limit - the maximum number of results to return
+     * @return A list of matching readings, with their sections, ranks, and witnesses
+     * @statuscode 200 - on success
+     * @statuscode 400 - if the query is missing, the mode is unknown, or the regular expression is invalid
+     * @statuscode 404 - if no such tradition exists
+     * @statuscode 500 - on failure, with an error message
+     */
+    @GET
+    @Path("/readings/search")
+    @Produces("application/json; charset=utf-8")
+    @ReturnType("java.util.List<net.stemmaweb.model.ReadingModel>")
+    public Response searchReadings(@QueryParam("q") String query,
+                                   @DefaultValue("exact") @QueryParam("mode") String mode,
+                                   @DefaultValue("false") @QueryParam("normal") Boolean normal,
+                                   @DefaultValue("false") @QueryParam("fold") Boolean fold,
+                                   @DefaultValue("0") @QueryParam("start") int start,
+                                   @DefaultValue("100") @QueryParam("limit") int limit) {
+        List<Node> sections = VariantGraphService.getSectionNodes(traditionId, db);
+        if (sections == null)
+            return Response.status(Status.NOT_FOUND)
+                    .entity(jsonerror("There is no tradition with this id")).build();
+        return Section.searchSections(sections, query, mode, normal, fold, start, limit);
+    }
+
+    /**
+     * Gets the changes made to this tradition's sections since the given version, oldest
+     * first, so that a client can bring its copy of a section up to date without fetching
+     * it again. Each change gives the version that it produced, and the readings, relations
+     * and sequence links that it added, changed, re-ranked or removed in one section; a change
+     * marked 'reload' was too big to describe, and the section should be fetched again. Without
+     * a version, no changes are returned, only the current version to start from.
+     *
+     * @summary Get changes since a version
+     * @param since - the version to start after
+     * @return the changes, and the current version
+     * @statuscode 200 - on success
+     * @statuscode 404 - if no such tradition exists
+     * @statuscode 410 - if the server no longer knows what changed since that version, in
+     *               which case the sections should be fetched again
+     */
+    @GET
+    @Path("/changes")
+    @Produces("application/json; charset=utf-8")
+    @ReturnType(clazz = ChangeFeedModel.class)
+    public Response getChanges(@QueryParam("since") Long since) {
+        if (VariantGraphService.getTraditionNode(traditionId, db) == null)
+            return Response.status(Status.NOT_FOUND).entity(jsonerror("tradition not found")).build();
+        ChangeFeedModel changes = ChangeFeedService.changesSince(traditionId, since);
+        if (changes == null)
+            return Response.status(Status.GONE)
+                    .entity(jsonerror("The changes since that version are no longer known")).build();
+        return Response.ok(changes).build();
+    }
+
+    /**
+     * Streams the changes made to this tradition's sections as Server-Sent Events, each with
+     * the change's version as its ID and the change, as described for the changes since a
+     * version, as its data. The changes since the given version are sent first, and after
+     * them each change as it is made; without a version, only the changes made from now on are
+     * sent. A client that reconnects with a Last-Event-ID header carries on from that version.
+     * The stream is ended after ten minutes, or if the client falls too far behind, and
+     * can be reconnected in the same way. Each open stream holds a thread of the server, so
+     * only a few may be open at once.
+     *
+     * @summary Stream changes
+     * @param since       - the version to start after
+     * @param lastEventId - the version to start after, as given by a reconnecting client
+     * @return the stream of changes
+     * @statuscode 200 - on success
+     * @statuscode 400 - if the version is not a number
+     * @statuscode 404 - if no such tradition exists
+     * @statuscode 410 - if the server no longer knows what changed since that version
+     * @statuscode 503 - if too many clients are following changes already
+     */
+    @GET
+    @Path("/changes/stream")
+    @Produces("text/event-stream")
+    @ReturnType("java.lang.Void")
+    public Response streamChanges(@QueryParam("since") Long since,
+                                  @HeaderParam("Last-Event-ID") String lastEventId,
+                                  @Context ContainerRequestContext request) {
+        if (VariantGraphService.getTraditionNode(traditionId, db) == null)
+            return Response.status(Status.NOT_FOUND).type(MediaType.APPLICATION_JSON_TYPE)
+                    .entity(jsonerror("tradition not found")).build();
+        if (lastEventId != null) {
+            try {
+                since = Long.valueOf(lastEventId.trim());
+            } catch (NumberFormatException e) {
+                return Response.status(Status.BAD_REQUEST).type(MediaType.APPLICATION_JSON_TYPE)
+                        .entity(jsonerror("Last-Event-ID must be a version number")).build();
+            }
+        }
+        ChangeFeedService.Subscription subscription;
+        try {
+            subscription = ChangeFeedService.subscribe(traditionId, since);
+        } catch (ChangeFeedService.TooManyStreamsException e) {
+            return Response.status(Status.SERVICE_UNAVAILABLE).header("Retry-After", CHANGE_STREAM_RETRY)
+                    .type(MediaType.APPLICATION_JSON_TYPE)
+                    .entity(jsonerror(e.getMessage())).build();
+        }
+        if (subscription == null)
+            return Response.status(Status.GONE).type(MediaType.APPLICATION_JSON_TYPE)
+                    .entity(jsonerror("The changes since that version are no longer known")).build();
+
+        // Jersey sends each chunk of the output as soon as it is written, rather than holding
+        // back the start of the response to give its length. The subscription is given up
+        // once the stream ends, or by the ChangeStreamListener if the stream never starts.
+        request.setProperty(ChangeStreamListener.SUBSCRIPTION, subscription);
+        ChunkedOutput<String> output = new ChunkedOutput<>(String.class);
+        changeStreamPool.execute(() -> sendChanges(subscription, output));
+        return Response.ok(output).type("text/event-stream")
+                .header("Cache-Control", "no-cache")
+                // Stop proxies such as nginx from holding the events back
+                .header("X-Accel-Buffering", "no").build();
+    }
+
+    // Write the changes handed to a subscription out to its stream, until the client goes away,
+    // the subscription ends or the stream has been open for long enough
+    private static void sendChanges(ChangeFeedService.Subscription subscription, ChunkedOutput<String> output) {
+        try {
+            // Have the client wait a moment before reconnecting
+            StringBuilder start = new StringBuilder("retry: " + CHANGE_STREAM_RETRY * 1000 + "\n\n");
+            for (ChangeModel change : subscription.getBacklog())
+                start.append(changeEvent(change));
+            output.write(start.toString());
+            long end = System.currentTimeMillis() + CHANGE_STREAM_MILLIS;
+            while (System.currentTimeMillis() < end && !output.isClosed()) {
+                ChangeModel change = subscription.next(CHANGE_STREAM_HEARTBEAT_MILLIS);
+                if (change != null)
+                    output.write(changeEvent(change));
+                else if (subscription.isEnded())
+                    break;
+                else
+                    // A comment, so that a client that has gone away is noticed
+                    output.write(": keepalive\n\n");
+            }
+        } catch (IOException e) {
+            // The client has gone away
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            subscription.close();
+            try {
+                output.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static String changeEvent(ChangeModel change) throws IOException {
+        return "id: " + change.getVersion() + "\n"
+                + "event: change\n"
+                + "data: " + changeWriter.writeValueAsString(change) + "\n\n";
+    }
+
     /**
      * Return a list of the annotations that have been made on this tradition.
      *
@@ -676,7 +1042,9 @@ public class Tradition {
 
     /**
      * Removes an entire tradition, including all witnesses, stemmata, sections, readings,
-     * and relationships.
+     * and relationships. The tradition disappears at once; its data is removed from the
+     * database in the background, and the progress of the removal can be followed at
+     * {@code /deletions}.
      *
      * @summary Delete tradition
      *
@@ -689,28 +1057,15 @@ public class Tradition {
     public Response deleteTraditionById() {
         Node foundTradition = VariantGraphService.getTraditionNode(traditionId, db);
         if (foundTradition != null) {
+            DeletionModel removal;
             try (Transaction tx = db.beginTx()) {
-                /*
-                 * Find all the nodes and relations to remove
-                 */
-                Set<Relationship> removableRelations = new HashSet<>();
-                Set<Node> removableNodes = new HashSet<>();
-                VariantGraphService.returnEntireTradition(foundTradition)
-                        .nodes().forEach(x -> {
-                    x.getRelationships().forEach(removableRelations::add);
-                    removableNodes.add(x);
-                });
-
-                /*
-                 * Remove the nodes and relations
-                 */
-                removableRelations.forEach(Relationship::delete);
-                removableNodes.forEach(Node::delete);
+                removal = DeletionService.markTradition(foundTradition);
                 tx.success();
             } catch (Exception e) {
                 e.printStackTrace();
                 return Response.serverError().entity(jsonerror(e.getMessage())).build();
             }
+            DeletionService.reclaim(db, foundTradition.getId(), removal);
         } else {
             return Response.status(Response.Status.NOT_FOUND)
                     .type(MediaType.APPLICATION_JSON)
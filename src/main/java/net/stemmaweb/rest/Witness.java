@@ -18,7 +18,6 @@ import net.stemmaweb.model.TextSequenceModel;
 import net.stemmaweb.services.*;
 
 import org.neo4j.graphdb.*;
-import org.neo4j.graphdb.traversal.Evaluator;
 import org.neo4j.graphdb.traversal.Uniqueness;
 
 import static net.stemmaweb.rest.Util.jsonerror;
@@ -36,6 +35,8 @@ public class Witness {
     private String sigil;
     private String sectId;
     private String errorMessage;
+    // Whether the witness is read in a transaction that has changed the sequences of its section
+    private boolean sequencesChanged = false;
 
     public Witness (String traditionId, String requestedSigil) {
         GraphDatabaseServiceProvider dbServiceProvider = new GraphDatabaseServiceProvider();
@@ -59,6 +60,12 @@ public class Witness {
         sectId = sectionId;
     }
 
+    // For reading the witness within a change that has altered the section's sequence links
+    Witness (String traditionId, String sectionId, String requestedSigil, boolean sequencesChanged) {
+        this(traditionId, sectionId, requestedSigil);
+        this.sequencesChanged = sequencesChanged;
+    }
+
     private String getWitnessById(Long nodeId) {
         String foundSigil = null;
         Node tradNode = VariantGraphService.getTraditionNode(tradId, db);
@@ -134,19 +141,21 @@ public class Witness {
             if (witnessNode == null) return Response.status(Status.NOT_FOUND).build();
             // Find all references to the witness throughout the tradition, and delete them
             HashSet<Node> orphanReadings = new HashSet<>();
-            for (Relationship r : VariantGraphService.returnEntireTradition(tradId, db).relationships()) {
-                if (r.isType(ERelations.SEQUENCE)) {
-                    Node start = r.getStartNode();
-                    Node end = r.getEndNode();
-                    for (String layer : r.getPropertyKeys()) {
-                        ReadingService.removeWitnessLink(start, end, sigil, layer, "none");
-                    }
-                    // Was this the last outgoing for the start, or the last incoming for the end?
-                    if (!start.getRelationships(Direction.OUTGOING, ERelations.SEQUENCE, ERelations.LEMMA_TEXT).iterator().hasNext())
-                        orphanReadings.add(start);
-                    if (!end.getRelationships(Direction.INCOMING, ERelations.SEQUENCE, ERelations.LEMMA_TEXT).iterator().hasNext())
-                        orphanReadings.add(end);
+            List<Relationship> witnessLinks = new ArrayList<>();
+            for (Node section : VariantGraphService.getSectionNodes(tradId, db))
+                for (long id : WitnessSequenceIndex.forSection(section, false).getLinks(sigil))
+                    witnessLinks.add(db.getRelationshipById(id));
+            for (Relationship r : witnessLinks) {
+                Node start = r.getStartNode();
+                Node end = r.getEndNode();
+                for (String layer : r.getPropertyKeys()) {
+                    ReadingService.removeWitnessLink(start, end, sigil, layer, "none");
                 }
+                // Was this the last outgoing for the start, or the last incoming for the end?
+                if (!start.getRelationships(Direction.OUTGOING, ERelations.SEQUENCE, ERelations.LEMMA_TEXT).iterator().hasNext())
+                    orphanReadings.add(start);
+                if (!end.getRelationships(Direction.INCOMING, ERelations.SEQUENCE, ERelations.LEMMA_TEXT).iterator().hasNext())
+                    orphanReadings.add(end);
             }
             // Delete any orphan readings
             for (Node orphan : orphanReadings) {
@@ -265,11 +274,10 @@ public class Witness {
                 endRank = tempRank;
             }
 
-            Node startNode = VariantGraphService.getStartNode(String.valueOf(currentSection.getId()), db);
             try (Transaction tx = db.beginTx()) {
                 final long sr = startRank;
                 final long er = endRank;
-                witnessReadings.addAll(traverseReadings(startNode, layer).stream()
+                witnessReadings.addAll(traverseReadings(currentSection, layer).stream()
                         .filter(x -> Long.valueOf(x.getProperty("rank").toString()) >= sr
                                 && Long.valueOf(x.getProperty("rank").toString()) <= er)
                         .collect(Collectors.toList()));
@@ -320,8 +328,7 @@ public class Witness {
 
         for (Node currentSection: iterationList) {
             try (Transaction tx = db.beginTx()) {
-                Node startNode = VariantGraphService.getStartNode(String.valueOf(currentSection.getId()), db);
-                readingModels.addAll(traverseReadings(startNode, witnessClass).stream().map(ReadingModel::new).collect(Collectors.toList()));
+                readingModels.addAll(traverseReadings(currentSection, witnessClass).stream().map(ReadingModel::new).collect(Collectors.toList()));
                 // Remove the meta node from the list
                 if (readingModels.size() > 0 && readingModels.get(readingModels.size() - 1).getIs_end())
                     readingModels.remove(readingModels.size() - 1);
@@ -343,21 +350,25 @@ public class Witness {
     }
 
     // For use within a transaction
-    private ArrayList<Node> traverseReadings(Node startNode, List<String> witnessClass) throws Exception {
-        Evaluator e;
+    private ArrayList<Node> traverseReadings(Node sectionNode, List<String> witnessClass) throws Exception {
         if (witnessClass == null)
-            e = new WitnessPath(sigil).getEvalForWitness();
-        else
-            e = new WitnessPath(sigil, witnessClass).getEvalForWitness();
-
+            witnessClass = new ArrayList<>();
         ArrayList<Node> result = new ArrayList<>();
-        db.traversalDescription().depthFirst()
-                .relationships(ERelations.SEQUENCE, Direction.OUTGOING)
-                .evaluator(e)
-                .uniqueness(Uniqueness.RELATIONSHIP_PATH)
-                .traverse(startNode)
-                .nodes()
-                .forEach(result::add);
+        long[] sequence = WitnessSequenceIndex.forSection(sectionNode, sequencesChanged).getSequence(sigil, witnessClass);
+        if (sequence != null) {
+            for (long id : sequence)
+                result.add(db.getNodeById(id));
+        } else {
+            // The witness path forks somewhere, so we have to follow it through the graph
+            Node startNode = VariantGraphService.getStartNode(String.valueOf(sectionNode.getId()), db);
+            db.traversalDescription().depthFirst()
+                    .relationships(ERelations.SEQUENCE, Direction.OUTGOING)
+                    .evaluator(new WitnessPath(sigil, witnessClass).getEvalForWitness())
+                    .uniqueness(Uniqueness.RELATIONSHIP_PATH)
+                    .traverse(startNode)
+                    .nodes()
+                    .forEach(result::add);
+        }
         // If the path is nonzero but the end node wasn't reached, we had a conflict.
         if (result.size() > 0 && !result.get(result.size()-1).hasProperty("is_end"))
             throw new Exception("CONFLICT");
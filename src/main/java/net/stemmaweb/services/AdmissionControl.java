@@ -0,0 +1,205 @@
+package net.stemmaweb.services;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Limits how many requests of each expensive kind the server works on at once, so that a
+ * burst of exports or imports can't take all of the threads and the database, and the cheap
+ * calls that the editing interface makes keep answering quickly. Each class of work has a
+ * number of permits; a request that finds them all taken waits in a short queue, for at most
+ * a given time, and is turned away if the queue is full or the time runs out. Requests that
+ * fall into none of the classes are not limited at all.
+ *
+ * The limits are set for each class by an environment variable STEMMAREST_ADMIT_[class],
+ * e.g. STEMMAREST_ADMIT_EXPORT, as the number of permits, the length of the queue and the
+ * longest wait in milliseconds, separated by commas, e.g. {@code 4,8,5000}. The later figures
+ * may be left out. A limit of 0 turns admission control off for the class. A setting that
+ * can't be read is logged, and the class gets its default limits.
+ */
+public class AdmissionControl {
+    private static final Logger log = Logger.getLogger(AdmissionControl.class.getName());
+
+    /**
+     * The classes of work that are limited.
+     */
+    public enum WorkClass {
+        /** Writing out a whole tradition or section in one of the export formats */
+        EXPORT(4, 8, 5000),
+        /** Variant lists, concordances and searches over a section or tradition */
+        ANALYSIS(4, 8, 5000),
+        /** Uploading traditions and sections */
+        IMPORT(2, 4, 5000),
+        /** Any other request that changes the data */
+        MUTATION(8, 16, 5000);
+
+        private final int defaultLimit;
+        private final int defaultQueue;
+        private final long defaultWait;
+
+        WorkClass(int defaultLimit, int defaultQueue, long defaultWait) {
+            this.defaultLimit = defaultLimit;
+            this.defaultQueue = defaultQueue;
+            this.defaultWait = defaultWait;
+        }
+    }
+
+    private static final ConcurrentMap<WorkClass, Gate> gates = new ConcurrentHashMap<>();
+
+    static {
+        for (WorkClass wc : WorkClass.values())
+            resetLimits(wc);
+    }
+
+    // The permits and queue of one class of work. The gate is replaced, not changed, when the
+    // limits are set, so that permits taken from the old gate are given back to it.
+    private static class Gate {
+        private final int limit;
+        private final int queue;
+        private final long maxWait;
+        private final Semaphore permits;
+        private final AtomicInteger waiting = new AtomicInteger();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final LongAdder admitted = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+        private final LongAdder heldNanos = new LongAdder();
+        private final LongAdder released = new LongAdder();
+
+        private Gate(int limit, int queue, long maxWait) {
+            this.limit = limit;
+            this.queue = queue;
+            this.maxWait = maxWait;
+            this.permits = new Semaphore(Math.max(limit, 0), true);
+        }
+    }
+
+    /**
+     * A permit to go ahead with a request, which must be released once the response is written.
+     */
+    public static class Permit {
+        private final Gate gate;
+        private final long start = System.nanoTime();
+        private final AtomicInteger releases = new AtomicInteger();
+
+        private Permit(Gate gate) {
+            this.gate = gate;
+        }
+
+        /**
+         * Give the permit back. Releasing it a second time does nothing.
+         */
+        public void release() {
+            if (releases.getAndIncrement() > 0) return;
+            gate.heldNanos.add(System.nanoTime() - start);
+            gate.released.increment();
+            gate.inFlight.decrementAndGet();
+            if (gate.limit > 0)
+                gate.permits.release();
+        }
+    }
+
+    /**
+     * Ask to go ahead with a request of the given class, waiting in the queue if need be.
+     *
+     * @param workClass - the class of the request
+     * @return the permit, or null if the request should be turned away
+     */
+    public static Permit admit(WorkClass workClass) {
+        Gate gate = gates.get(workClass);
+        if (gate.limit > 0 && !gate.permits.tryAcquire()) {
+            if (gate.waiting.incrementAndGet() > gate.queue) {
+                gate.waiting.decrementAndGet();
+                gate.rejected.increment();
+                return null;
+            }
+            long start = System.nanoTime();
+            boolean acquired = false;
+            try {
+                acquired = gate.permits.tryAcquire(gate.maxWait, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                gate.waiting.decrementAndGet();
+                gate.waitNanos.add(System.nanoTime() - start);
+            }
+            if (!acquired) {
+                gate.rejected.increment();
+                return null;
+            }
+        }
+        gate.admitted.increment();
+        gate.inFlight.incrementAndGet();
+        return new Permit(gate);
+    }
+
+    /**
+     * How long a client that was turned away should wait before trying again: the time that
+     * a request of the class has taken on average, rounded up to whole seconds.
+     *
+     * @param workClass - the class of the request
+     * @return the number of seconds, between 1 and 60
+     */
+    public static long retryAfter(WorkClass workClass) {
+        Gate gate = gates.get(workClass);
+        long count = gate.released.sum();
+        if (count == 0) return 1;
+        long seconds = (long) Math.ceil(gate.heldNanos.sum() / (double) count / 1e9);
+        return Math.max(1, Math.min(seconds, 60));
+    }
+
+    /**
+     * Set the limits of a class of work. Requests already admitted are not affected.
+     *
+     * @param workClass - the class of work
+     * @param limit     - the number of requests that may be worked on at once, or 0 for no limit
+     * @param queue     - the number of requests that may wait for a permit
+     * @param maxWait   - the longest that a request may wait, in milliseconds
+     */
+    public static void setLimits(WorkClass workClass, int limit, int queue, long maxWait) {
+        gates.put(workClass, new Gate(limit, queue, maxWait));
+    }
+
+    /**
+     * Set the limits of a class of work back to those given by its environment variable, or
+     * to the defaults.
+     *
+     * @param workClass - the class of work
+     */
+    public static void resetLimits(WorkClass workClass) {
+        String variable = "STEMMAREST_ADMIT_" + workClass.name();
+        String setting = System.getenv(variable);
+        String[] figures = setting == null ? new String[0] : setting.split(",");
+        try {
+            setLimits(workClass,
+                    figures.length > 0 ? Integer.parseInt(figures[0].trim()) : workClass.defaultLimit,
+                    figures.length > 1 ? Integer.parseInt(figures[1].trim()) : workClass.defaultQueue,
+                    figures.length > 2 ? Long.parseLong(figures[2].trim()) : workClass.defaultWait);
+        } catch (NumberFormatException e) {
+            log.severe(String.format("Ignoring %s=\"%s\", which is not a list of numbers; using %d,%d,%d instead",
+                    variable, setting, workClass.defaultLimit, workClass.defaultQueue, workClass.defaultWait));
+            setLimits(workClass, workClass.defaultLimit, workClass.defaultQueue, workClass.defaultWait);
+        }
+    }
+
+    /**
+     * Returns the figures for each class of work: its limit, the requests being worked on, the
+     * requests waiting, and the totals of requests admitted, requests turned away and
+     * nanoseconds spent waiting.
+     *
+     * @return a map of class to the six figures, in that order
+     */
+    public static Map<WorkClass, long[]> getFigures() {
+        Map<WorkClass, long[]> result = new EnumMap<>(WorkClass.class);
+        gates.forEach((k, g) -> result.put(k, new long[]{g.limit, g.inFlight.get(), g.waiting.get(),
+                g.admitted.sum(), g.rejected.sum(), g.waitNanos.sum()}));
+        return result;
+    }
+}
@@ -0,0 +1,651 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.model.ChangeFeedModel;
+import net.stemmaweb.model.ChangeModel;
+import net.stemmaweb.model.RelationModel;
+import net.stemmaweb.model.SequenceModel;
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps a log of the changes committed to each tradition, so that editors can find out
+ * what others have changed without fetching whole sections again. Every transaction that
+ * adds, changes, re-ranks or removes readings, relations or sequence links is described by
+ * one {@link ChangeModel} for each section that it touched, and each of these is given the
+ * next of a series of increasing version numbers. Like the {@link ReadingTextIndex}, this
+ * catches every code path that changes the graph without any of them having to know about it.
+ *
+ * The log is kept in memory, and only the most recent changes to each tradition are kept:
+ * 1000 by default, or as many as the STEMMAREST_CHANGE_LOG_SIZE environment variable says.
+ * A client that asks for the changes since a version that is no longer in the log, e.g.
+ * because the server has been restarted since, has to fetch the sections again. A transaction
+ * that is too big to describe item by item, i.e. one with more than 1000 entries in its
+ * transaction data, is logged as a reload of every section of its tradition instead, so
+ * that describing it costs no more than a small change does.
+ *
+ * Clients can also subscribe to a tradition's changes as they are made. Each subscription
+ * that is being streamed to a client holds a thread of its own for as long as it is open,
+ * so only a few are allowed at once: 16 by default, or as many as STEMMAREST_CHANGE_STREAMS
+ * says.
+ */
+public class ChangeFeedService {
+    private static final int LOG_SIZE = EnvironmentSettings.getInt("STEMMAREST_CHANGE_LOG_SIZE", 1000);
+    // The number of traditions whose logs are kept before dropping the least recently used
+    private static final int MAX_TRADITIONS = 1000;
+    // The number of sections whose traditions are remembered
+    private static final int MAX_SECTIONS = 10000;
+    // The number of readings, relations and links in a change beyond which the section should
+    // simply be fetched again; also the number of entries of a transaction's data that are
+    // looked at before giving up on describing it item by item
+    private static final int MAX_ITEMS = 1000;
+    // The number of changes that may wait to be sent to a subscriber before it is dropped
+    private static final int QUEUE_SIZE = 1000;
+    private static final Set<String> SEQUENCE_TYPES = new HashSet<>(Arrays.asList(
+            ERelations.SEQUENCE.name(), ERelations.LEMMA_TEXT.name(), ERelations.EMENDED.name()));
+    // Put on a subscriber's queue to wake it when its subscription ends
+    private static final ChangeModel END = new ChangeModel();
+
+    private static volatile int maxStreams = EnvironmentSettings.getInt("STEMMAREST_CHANGE_STREAMS", 16);
+    // Versions start from the time in microseconds, so that they keep increasing across restarts
+    private static final AtomicLong clock = new AtomicLong(System.currentTimeMillis() * 1000);
+    // The latest version that may have been dropped along with a tradition's log
+    private static long lostFloor = clock.get();
+    private static final Map<String, Log> logs = new LinkedHashMap<String, Log>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Log> eldest) {
+            if (size() <= MAX_TRADITIONS) return false;
+            Log dropped = eldest.getValue();
+            synchronized (dropped) {
+                lostFloor = Math.max(lostFloor, dropped.latest());
+                dropped.close();
+            }
+            return true;
+        }
+    };
+    private static final Map<Long, String> sectionTraditions = Collections.synchronizedMap(
+            new LinkedHashMap<Long, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+                    return size() > MAX_SECTIONS;
+                }
+            });
+    private static final AtomicInteger streams = new AtomicInteger();
+    private static final LongAdder published = new LongAdder();
+
+    // The changes kept for a tradition, and its subscribers. Changes are only ever added,
+    // and versions only ever given out, while holding the log's lock, so that they are in
+    // version order and no subscriber misses one.
+    private static class Log {
+        private final ArrayDeque<ChangeModel> records = new ArrayDeque<>();
+        private final List<Subscription> subscribers = new ArrayList<>();
+        // The version before the oldest change that is kept
+        private long floor;
+        // True once the log has been dropped
+        private boolean closed = false;
+
+        private Log(long floor) {
+            this.floor = floor;
+        }
+
+        private long latest() {
+            return records.isEmpty() ? floor : records.getLast().getVersion();
+        }
+
+        private List<ChangeModel> since(long version) {
+            List<ChangeModel> result = new ArrayList<>();
+            for (ChangeModel c : records)
+                if (c.getVersion() > version)
+                    result.add(c);
+            return result;
+        }
+
+        private void close() {
+            closed = true;
+            subscribers.forEach(Subscription::end);
+            subscribers.clear();
+        }
+    }
+
+    /**
+     * A client's subscription to the changes made to a tradition. The changes made before it
+     * was taken out, since the version asked for, are given as its backlog; those made after
+     * are handed out one at a time. A subscriber that falls too far behind is dropped, and
+     * can subscribe again from the last version that it was given.
+     */
+    public static class Subscription {
+        private final Log log;
+        private final List<ChangeModel> backlog;
+        private final BlockingQueue<ChangeModel> queue = new LinkedBlockingQueue<>(QUEUE_SIZE);
+        private volatile boolean ended = false;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Subscription(Log log, List<ChangeModel> backlog) {
+            this.log = log;
+            this.backlog = backlog;
+        }
+
+        /**
+         * @return the changes made since the version asked for, up to the subscription
+         */
+        public List<ChangeModel> getBacklog() {
+            return backlog;
+        }
+
+        /**
+         * Wait for the next change.
+         *
+         * @param millis - how long to wait
+         * @return the change, or null if there was none in time or the subscription has ended
+         * @throws InterruptedException if the thread is interrupted while waiting
+         */
+        public ChangeModel next(long millis) throws InterruptedException {
+            if (ended && queue.isEmpty()) return null;
+            ChangeModel change = queue.poll(millis, TimeUnit.MILLISECONDS);
+            return change == END ? null : change;
+        }
+
+        /**
+         * @return true if the subscription has ended and every change has been handed out
+         */
+        public boolean isEnded() {
+            return ended && queue.isEmpty();
+        }
+
+        /**
+         * Give up the subscription. Doing so a second time does nothing.
+         */
+        public void close() {
+            if (closed.getAndSet(true)) return;
+            synchronized (log) {
+                log.subscribers.remove(this);
+            }
+            end();
+            streams.decrementAndGet();
+        }
+
+        private boolean offer(ChangeModel change) {
+            return queue.offer(change);
+        }
+
+        private void end() {
+            ended = true;
+            queue.offer(END);
+        }
+    }
+
+    // What a transaction did to a section, as it is gathered
+    private static class Collector {
+        private final Set<Long> added = new LinkedHashSet<>();
+        private final Set<Long> changed = new LinkedHashSet<>();
+        private final Set<Long> removed = new LinkedHashSet<>();
+        private final Map<Long, Long> ranks = new LinkedHashMap<>();
+        private final Map<Long, Relationship> relations = new LinkedHashMap<>();
+        private final Set<Long> relationsRemoved = new LinkedHashSet<>();
+        private final Map<Long, Relationship> sequences = new LinkedHashMap<>();
+        private final Set<Long> sequencesRemoved = new LinkedHashSet<>();
+        private boolean deleted = false;
+        private boolean reload = false;
+
+        // Whether there is room for another item; once there isn't, the section is to be
+        // fetched again and the items are not kept
+        private boolean room() {
+            if (reload) return false;
+            if (added.size() + changed.size() + removed.size() + ranks.size() + relations.size()
+                    + relationsRemoved.size() + sequences.size() + sequencesRemoved.size() < MAX_ITEMS)
+                return true;
+            reload = true;
+            added.clear();
+            changed.clear();
+            removed.clear();
+            ranks.clear();
+            relations.clear();
+            relationsRemoved.clear();
+            sequences.clear();
+            sequencesRemoved.clear();
+            return false;
+        }
+
+        private ChangeModel toModel(long sectionId) {
+            ChangeModel change = new ChangeModel(String.valueOf(sectionId));
+            if (deleted) {
+                change.setDeleted(true);
+                return change;
+            }
+            if (reload) {
+                change.setReload(true);
+                return change;
+            }
+            added.forEach(x -> change.getReadingsAdded().add(String.valueOf(x)));
+            changed.stream().filter(x -> !added.contains(x) && !removed.contains(x))
+                    .forEach(x -> change.getReadingsChanged().add(String.valueOf(x)));
+            removed.forEach(x -> change.getReadingsRemoved().add(String.valueOf(x)));
+            ranks.forEach((k, v) -> change.getRanks().put(String.valueOf(k), v));
+            relations.values().forEach(x -> change.getRelations().add(new RelationModel(x)));
+            relationsRemoved.forEach(x -> change.getRelationsRemoved().add(String.valueOf(x)));
+            sequences.values().forEach(x -> change.getSequences().add(new SequenceModel(x)));
+            sequencesRemoved.forEach(x -> change.getSequencesRemoved().add(String.valueOf(x)));
+            boolean empty = change.getReadingsAdded().isEmpty() && change.getReadingsChanged().isEmpty()
+                    && change.getReadingsRemoved().isEmpty() && change.getRanks().isEmpty()
+                    && change.getRelations().isEmpty() && change.getRelationsRemoved().isEmpty()
+                    && change.getSequences().isEmpty() && change.getSequencesRemoved().isEmpty();
+            return empty ? null : change;
+        }
+    }
+
+    private static Long asId(Object sectionId) {
+        return sectionId instanceof Number ? ((Number) sectionId).longValue() : Long.valueOf(sectionId.toString());
+    }
+
+    /**
+     * Get the changes made to a tradition since the given version.
+     *
+     * @param tradId - the ID of the tradition
+     * @param since  - the version to start after, or null for none
+     * @return the changes and the tradition's current version, or null if the log no longer
+     *         goes back as far as the given version
+     */
+    public static ChangeFeedModel changesSince(String tradId, Long since) {
+        while (true) {
+            Log log;
+            long floor;
+            synchronized (logs) {
+                log = logs.get(tradId);
+                floor = lostFloor;
+            }
+            if (log == null) {
+                if (since != null && (since < floor || since > clock.get()))
+                    return null;
+                return new ChangeFeedModel(floor, new ArrayList<>());
+            }
+            synchronized (log) {
+                if (log.closed) continue;
+                if (since == null)
+                    return new ChangeFeedModel(log.latest(), new ArrayList<>());
+                if (since < log.floor || since > clock.get())
+                    return null;
+                return new ChangeFeedModel(log.latest(), log.since(since));
+            }
+        }
+    }
+
+    /**
+     * Thrown when a client asks to subscribe while as many subscriptions are open as are allowed.
+     */
+    public static class TooManyStreamsException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        TooManyStreamsException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Subscribe to the changes made to a tradition. The subscription must be closed when it
+     * is no longer wanted.
+     *
+     * @param tradId - the ID of the tradition
+     * @param since  - the version to start after, or null to start from the current version
+     * @return the subscription, or null if the log no longer goes back as far as the given version
+     * @throws TooManyStreamsException if as many subscriptions are open as are allowed
+     */
+    public static Subscription subscribe(String tradId, Long since) {
+        // Take a place among the open subscriptions first, so that clients subscribing at the
+        // same time can't together go over the limit
+        while (true) {
+            int open = streams.get();
+            if (open >= maxStreams)
+                throw new TooManyStreamsException("Too many clients are following changes; please try again later");
+            if (streams.compareAndSet(open, open + 1))
+                break;
+        }
+        while (true) {
+            Log log = logFor(tradId);
+            synchronized (log) {
+                if (log.closed) continue;
+                long start = since == null ? log.latest() : since;
+                if (start < log.floor || start > clock.get()) {
+                    streams.decrementAndGet();
+                    return null;
+                }
+                Subscription subscription = new Subscription(log, log.since(start));
+                log.subscribers.add(subscription);
+                return subscription;
+            }
+        }
+    }
+
+    private static Log logFor(String tradId) {
+        synchronized (logs) {
+            return logs.computeIfAbsent(tradId, k -> new Log(lostFloor));
+        }
+    }
+
+    private static void publish(String tradId, ChangeModel change) {
+        while (true) {
+            Log log = logFor(tradId);
+            synchronized (log) {
+                if (log.closed) continue;
+                change.setVersion(clock.incrementAndGet());
+                change.setTimestamp(System.currentTimeMillis());
+                log.records.addLast(change);
+                while (log.records.size() > LOG_SIZE)
+                    log.floor = log.records.removeFirst().getVersion();
+                Iterator<Subscription> it = log.subscribers.iterator();
+                while (it.hasNext()) {
+                    Subscription s = it.next();
+                    if (!s.offer(change)) {
+                        it.remove();
+                        s.end();
+                    }
+                }
+                published.increment();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drop all logs and end all subscriptions, e.g. when the application switches to a
+     * different database.
+     */
+    public static void clear() {
+        synchronized (logs) {
+            for (Log log : logs.values()) {
+                synchronized (log) {
+                    log.close();
+                }
+            }
+            logs.clear();
+            lostFloor = clock.get();
+        }
+        sectionTraditions.clear();
+    }
+
+    /**
+     * Register the handler that logs the changes committed to the given database.
+     *
+     * @param db - the database in use
+     */
+    public static void register(GraphDatabaseService db) {
+        clear();
+        db.registerTransactionEventHandler(new TransactionEventHandler.Adapter<List<Map.Entry<String, ChangeModel>>>() {
+            @Override
+            public List<Map.Entry<String, ChangeModel>> beforeCommit(TransactionData data) {
+                // Whatever goes wrong here must not stop the transaction from being committed
+                try {
+                    return describe(db, data);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    return null;
+                }
+            }
+
+            @Override
+            public void afterCommit(TransactionData data, List<Map.Entry<String, ChangeModel>> changes) {
+                if (changes == null) return;
+                changes.forEach(e -> publish(e.getKey(), e.getValue()));
+            }
+        });
+    }
+
+    // Thrown to stop describing a transaction that has too many entries to describe item by item
+    private static class TooBig extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private TooBig() {
+            super(null, null, false, false);
+        }
+    }
+
+    // Count the entries of the transaction data that have been looked at
+    private static class Walk {
+        private int entries = 0;
+
+        private void step() {
+            if (++entries > MAX_ITEMS)
+                throw new TooBig();
+        }
+    }
+
+    // Describe what the transaction did to each section, with the ID of the section's tradition
+    private static List<Map.Entry<String, ChangeModel>> describe(GraphDatabaseService db, TransactionData data) {
+        Map<Long, Collector> bySection = new HashMap<>();
+        // The sections of any readings deleted in this transaction
+        Map<Long, Object> deletedSections = new HashMap<>();
+        try {
+            return describe(db, data, bySection, deletedSections, new Walk());
+        } catch (TooBig e) {
+            Set<Long> touched = new HashSet<>(bySection.keySet());
+            deletedSections.values().forEach(x -> touched.add(asId(x)));
+            return reloadAll(db, data, touched);
+        }
+    }
+
+    private static List<Map.Entry<String, ChangeModel>> describe(GraphDatabaseService db, TransactionData data,
+                                                                 Map<Long, Collector> bySection,
+                                                                 Map<Long, Object> deletedSections, Walk walk) {
+        for (PropertyEntry<Node> pe : data.removedNodeProperties()) {
+            walk.step();
+            if (pe.key().equals("section_id") && data.isDeleted(pe.entity()))
+                deletedSections.put(pe.entity().getId(), pe.previouslyCommitedValue());
+        }
+
+        // Readings and sections created, deleted or changed
+        Set<Long> created = new HashSet<>();
+        for (Node n : data.createdNodes()) {
+            walk.step();
+            created.add(n.getId());
+            if (n.hasLabel(Nodes.SECTION)) {
+                bySection.computeIfAbsent(n.getId(), k -> new Collector()).reload = true;
+                continue;
+            }
+            Object section = n.getProperty("section_id", null);
+            if (section == null) continue;
+            Collector c = bySection.computeIfAbsent(asId(section), k -> new Collector());
+            if (c.room()) c.added.add(n.getId());
+        }
+        for (LabelEntry le : data.assignedLabels()) {
+            walk.step();
+            if (le.label().name().equals(Nodes.DELETED.name()) && le.node().hasLabel(Nodes.SECTION))
+                bySection.computeIfAbsent(le.node().getId(), k -> new Collector()).deleted = true;
+        }
+        for (Map.Entry<Long, Object> e : deletedSections.entrySet()) {
+            Collector c = bySection.computeIfAbsent(asId(e.getValue()), k -> new Collector());
+            if (c.room()) c.removed.add(e.getKey());
+        }
+        for (PropertyEntry<Node> pe : data.assignedNodeProperties()) {
+            walk.step();
+            Node n = pe.entity();
+            if (data.isDeleted(n) || created.contains(n.getId())) continue;
+            Object section = n.getProperty("section_id", null);
+            if (section == null) continue;
+            if (pe.key().equals("section_id")) {
+                // The reading has moved from one section to another
+                Object prior = pe.previouslyCommitedValue();
+                if (prior != null && !asId(prior).equals(asId(section))) {
+                    Collector from = bySection.computeIfAbsent(asId(prior), k -> new Collector());
+                    if (from.room()) from.removed.add(n.getId());
+                    Collector to = bySection.computeIfAbsent(asId(section), k -> new Collector());
+                    if (to.room()) to.added.add(n.getId());
+                }
+                continue;
+            }
+            Collector c = bySection.computeIfAbsent(asId(section), k -> new Collector());
+            if (!c.room()) continue;
+            if (pe.key().equals("rank"))
+                c.ranks.put(n.getId(), Long.parseLong(pe.value().toString()));
+            else
+                c.changed.add(n.getId());
+        }
+        for (PropertyEntry<Node> pe : data.removedNodeProperties()) {
+            walk.step();
+            Node n = pe.entity();
+            if (data.isDeleted(n) || created.contains(n.getId())) continue;
+            if (pe.key().equals("section_id")) {
+                Collector c = bySection.computeIfAbsent(asId(pe.previouslyCommitedValue()), k -> new Collector());
+                if (c.room()) c.removed.add(n.getId());
+                continue;
+            }
+            Object section = n.getProperty("section_id", null);
+            if (section == null) continue;
+            Collector c = bySection.computeIfAbsent(asId(section), k -> new Collector());
+            if (c.room()) c.changed.add(n.getId());
+        }
+
+        // Relations and sequence links created, deleted or changed
+        Map<Long, Node> partTraditions = new HashMap<>();
+        Set<Long> createdLinks = new HashSet<>();
+        for (Relationship r : data.createdRelationships()) {
+            walk.step();
+            if (data.isDeleted(r)) continue;
+            createdLinks.add(r.getId());
+            if (r.isType(ERelations.PART))
+                partTraditions.put(r.getEndNodeId(), r.getStartNode());
+            else
+                addLink(bySection, r, sectionOf(r.getStartNode(), data, deletedSections));
+        }
+        Set<Relationship> changedLinks = new HashSet<>();
+        for (PropertyEntry<Relationship> pe : data.assignedRelationshipProperties()) {
+            walk.step();
+            changedLinks.add(pe.entity());
+        }
+        for (PropertyEntry<Relationship> pe : data.removedRelationshipProperties()) {
+            walk.step();
+            changedLinks.add(pe.entity());
+        }
+        for (Relationship r : changedLinks) {
+            if (data.isDeleted(r) || createdLinks.contains(r.getId())) continue;
+            addLink(bySection, r, sectionOf(r.getStartNode(), data, deletedSections));
+        }
+        for (Relationship r : data.deletedRelationships()) {
+            walk.step();
+            if (r.isType(ERelations.PART)) {
+                partTraditions.put(r.getEndNodeId(), r.getStartNode());
+                continue;
+            }
+            Object section = sectionOf(r.getStartNode(), data, deletedSections);
+            if (section == null) continue;
+            Collector c = bySection.computeIfAbsent(asId(section), k -> new Collector());
+            if (r.isType(ERelations.RELATED)) {
+                c.relations.remove(r.getId());
+                if (c.room()) c.relationsRemoved.add(r.getId());
+            } else if (SEQUENCE_TYPES.contains(r.getType().name())) {
+                c.sequences.remove(r.getId());
+                if (c.room()) c.sequencesRemoved.add(r.getId());
+            }
+        }
+
+        List<Map.Entry<String, ChangeModel>> result = new ArrayList<>();
+        for (Map.Entry<Long, Collector> e : bySection.entrySet()) {
+            String tradId = traditionOf(db, data, e.getKey(), e.getValue(), partTraditions);
+            if (tradId == null) continue;
+            ChangeModel change = e.getValue().toModel(e.getKey());
+            if (change != null)
+                result.add(new AbstractMap.SimpleEntry<>(tradId, change));
+        }
+        return result;
+    }
+
+    // Describe a transaction that was too big to describe item by item as a reload of every
+    // section of the traditions whose sections it was found to touch before it was given up.
+    // Sections and traditions that are deleted, or being deleted, are left out, as they are
+    // when a transaction is described in full.
+    private static List<Map.Entry<String, ChangeModel>> reloadAll(GraphDatabaseService db, TransactionData data,
+                                                                 Set<Long> touched) {
+        Set<Node> traditions = new HashSet<>();
+        for (Long sectionId : touched) {
+            try {
+                Node section = db.getNodeById(sectionId);
+                if (data.isDeleted(section) || section.hasLabel(Nodes.DELETED)) continue;
+                Relationship part = section.getSingleRelationship(ERelations.PART, Direction.INCOMING);
+                if (part != null) traditions.add(part.getStartNode());
+            } catch (NotFoundException ignored) {
+            }
+        }
+        List<Map.Entry<String, ChangeModel>> result = new ArrayList<>();
+        for (Node tradition : traditions) {
+            Object tradId = tradition.getProperty("id", null);
+            if (tradId == null || tradition.hasLabel(Nodes.DELETED)) continue;
+            for (Relationship part : tradition.getRelationships(ERelations.PART, Direction.OUTGOING)) {
+                Node section = part.getEndNode();
+                if (section.hasLabel(Nodes.DELETED)) continue;
+                ChangeModel change = new ChangeModel(String.valueOf(section.getId()));
+                change.setReload(true);
+                result.add(new AbstractMap.SimpleEntry<>(tradId.toString(), change));
+            }
+        }
+        return result;
+    }
+
+    private static Object sectionOf(Node n, TransactionData data, Map<Long, Object> deletedSections) {
+        return data.isDeleted(n) ? deletedSections.get(n.getId()) : n.getProperty("section_id", null);
+    }
+
+    private static void addLink(Map<Long, Collector> bySection, Relationship r, Object section) {
+        if (section == null) return;
+        boolean isRelation = r.isType(ERelations.RELATED);
+        if (!isRelation && !SEQUENCE_TYPES.contains(r.getType().name())) return;
+        Collector c = bySection.computeIfAbsent(asId(section), k -> new Collector());
+        if (!c.room()) return;
+        if (isRelation)
+            c.relations.put(r.getId(), r);
+        else
+            c.sequences.put(r.getId(), r);
+    }
+
+    // Find the tradition that a changed section belongs to, or null if the change is part of
+    // removing a section that was deleted earlier and should not be reported
+    private static String traditionOf(GraphDatabaseService db, TransactionData data, Long sectionId,
+                                      Collector collector, Map<Long, Node> partTraditions) {
+        Node section;
+        try {
+            section = db.getNodeById(sectionId);
+            if (data.isDeleted(section)) return null;
+            if (section.hasLabel(Nodes.DELETED) && !collector.deleted) return null;
+        } catch (NotFoundException e) {
+            return null;
+        }
+        Node tradition = partTraditions.get(sectionId);
+        if (tradition != null)
+            return data.isDeleted(tradition) ? null : (String) tradition.getProperty("id", null);
+        String tradId = sectionTraditions.get(sectionId);
+        if (tradId != null) return tradId;
+        Relationship part = section.getSingleRelationship(ERelations.PART, Direction.INCOMING);
+        if (part == null) return null;
+        tradId = (String) part.getStartNode().getProperty("id", null);
+        if (tradId != null)
+            sectionTraditions.put(sectionId, tradId);
+        return tradId;
+    }
+
+    /**
+     * Returns the number of changes logged, and the number of subscriptions open.
+     *
+     * @return the two figures, in that order
+     */
+    public static long[] getFigures() {
+        return new long[]{published.sum(), streams.get()};
+    }
+
+    public static int getMaxStreams() {
+        return maxStreams;
+    }
+
+    public static void setMaxStreams(int streams) {
+        maxStreams = streams;
+    }
+}
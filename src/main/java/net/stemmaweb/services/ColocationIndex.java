@@ -0,0 +1,225 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.ERelations;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.traversal.Uniqueness;
+
+import java.util.*;
+
+/**
+ * An in-memory picture of the alignment of one section: which readings are colocated with
+ * each other, which clusters of colocated readings follow on from which, and at what rank.
+ * It lets a whole series of new relations be checked for cyclicity, and their effect on the
+ * ranks be tracked, without re-deriving the clusters from the database or re-ranking the
+ * section after each one.
+ * NOTE: For use inside a transaction
+ */
+public class ColocationIndex {
+    private final Node sectionNode;
+    // Union-find parent links, keyed by reading ID
+    private final HashMap<Long, Long> parent = new HashMap<>();
+    // The members of each cluster, keyed by the ID of the cluster root
+    private final HashMap<Long, Set<Long>> members = new HashMap<>();
+    // The rank of each cluster, keyed by the ID of the cluster root
+    private final HashMap<Long, Long> clusterRank = new HashMap<>();
+    // The sequence successors of each reading, over sequence, lemma text, and emendation links
+    private final HashMap<Long, Set<Long>> successors = new HashMap<>();
+    // The successors of each reading over sequence links alone
+    private final HashMap<Long, Set<Long>> sequenceSuccessors = new HashMap<>();
+
+    /**
+     * Read the alignment of the given section.
+     *
+     * @param sectionNode - the section whose readings should be indexed
+     * @throws Exception - if the colocation clusters can't be collected
+     */
+    public ColocationIndex(Node sectionNode) throws Exception {
+        this.sectionNode = sectionNode;
+        GraphDatabaseService db = sectionNode.getGraphDatabase();
+        Node startNode = VariantGraphService.getStartNode(String.valueOf(sectionNode.getId()), db);
+        HashMap<Long, Long> nodeRank = new HashMap<>();
+        for (Node n : TraversalMonitor.traverse("colocation-index", db.traversalDescription().depthFirst()
+                .expand(new ReadingService.AlignmentTraverse())
+                .uniqueness(Uniqueness.NODE_GLOBAL), startNode).nodes()) {
+            nodeRank.put(n.getId(), (Long) n.getProperty("rank", 0L));
+            Set<Long> next = new HashSet<>();
+            Set<Long> nextInSequence = new HashSet<>();
+            for (Relationship r : n.getRelationships(Direction.OUTGOING,
+                    ERelations.SEQUENCE, ERelations.LEMMA_TEXT, ERelations.EMENDED)) {
+                next.add(r.getEndNode().getId());
+                if (r.isType(ERelations.SEQUENCE))
+                    nextInSequence.add(r.getEndNode().getId());
+            }
+            successors.put(n.getId(), next);
+            sequenceSuccessors.put(n.getId(), nextInSequence);
+        }
+        buildClusters(nodeRank);
+    }
+
+    /**
+     * Re-reads the colocation clusters from the database, e.g. after some colocated relations
+     * have been deleted. The ranks tracked so far are kept.
+     *
+     * @throws Exception - if the colocation clusters can't be collected
+     */
+    public void refreshClusters() throws Exception {
+        HashMap<Long, Long> nodeRank = new HashMap<>();
+        for (Long n : parent.keySet())
+            nodeRank.put(n, clusterRank.get(find(n)));
+        buildClusters(nodeRank);
+    }
+
+    private void buildClusters(Map<Long, Long> nodeRank) throws Exception {
+        parent.clear();
+        members.clear();
+        clusterRank.clear();
+        for (Long n : nodeRank.keySet()) {
+            parent.put(n, n);
+            members.put(n, new HashSet<>(Collections.singleton(n)));
+            clusterRank.put(n, nodeRank.get(n));
+        }
+        GraphDatabaseService db = sectionNode.getGraphDatabase();
+        String tradId = VariantGraphService.getTraditionNode(sectionNode).getProperty("id").toString();
+        for (Set<Node> cluster : RelationService.getClusters(tradId, String.valueOf(sectionNode.getId()), db, true)) {
+            Long first = null;
+            for (Node n : cluster) {
+                if (!parent.containsKey(n.getId()))
+                    continue;
+                if (first == null)
+                    first = n.getId();
+                else
+                    union(first, n.getId());
+            }
+        }
+    }
+
+    private Long find(Long n) {
+        Long root = n;
+        while (!parent.get(root).equals(root))
+            root = parent.get(root);
+        // Compress the path
+        while (!parent.get(n).equals(root)) {
+            Long next = parent.get(n);
+            parent.put(n, root);
+            n = next;
+        }
+        return root;
+    }
+
+    // Join the clusters of the two readings, and return the root of the joined cluster.
+    private Long union(Long a, Long b) {
+        Long ra = find(a);
+        Long rb = find(b);
+        if (ra.equals(rb))
+            return ra;
+        if (members.get(ra).size() < members.get(rb).size()) {
+            Long tmp = ra;
+            ra = rb;
+            rb = tmp;
+        }
+        parent.put(rb, ra);
+        members.get(ra).addAll(members.remove(rb));
+        clusterRank.put(ra, Math.max(clusterRank.get(ra), clusterRank.remove(rb)));
+        return ra;
+    }
+
+    /**
+     * @param reading - a reading in this section
+     * @return whether the reading is part of the indexed alignment
+     */
+    public boolean contains(Node reading) {
+        return parent.containsKey(reading.getId());
+    }
+
+    /**
+     * @param reading - a reading in this section
+     * @return the rank that the reading will have once the section is re-ranked
+     */
+    public Long getRank(Node reading) {
+        return clusterRank.get(find(reading.getId()));
+    }
+
+    /**
+     * Checks whether colocating the two readings would make the alignment cyclic, i.e.
+     * whether one of them can already be reached from the other. As in
+     * {@link ReadingService#wouldGetCyclic(Node, Node)}, the other reading only counts as
+     * reached along a path that follows at least one sequence link; lemma text and emendation
+     * links alone are not enough. Unlike there, this is worked out for each path separately,
+     * rather than for the search as a whole.
+     *
+     * @param firstReading - a reading in this section
+     * @param secondReading - another reading in this section
+     * @return true if the readings may not be colocated
+     */
+    public boolean wouldGetCyclic(Node firstReading, Node secondReading) {
+        Long first = find(firstReading.getId());
+        Long second = find(secondReading.getId());
+        if (first.equals(second))
+            return false;
+        // Search forward from the lower-ranked cluster; nothing ranked at or above the
+        // higher cluster can lead to it.
+        Long lower = clusterRank.get(first) > clusterRank.get(second) ? second : first;
+        Long higher = lower.equals(first) ? second : first;
+        Long maxRank = clusterRank.get(higher);
+        // The clusters reached so far, and those of them reached over a sequence link; a cluster
+        // is searched from again once it has been reached over one, since then every path onward counts.
+        HashSet<Long> seen = new HashSet<>();
+        HashSet<Long> seenInSequence = new HashSet<>();
+        ArrayDeque<Long> queue = new ArrayDeque<>();
+        queue.add(lower);
+        seen.add(lower);
+        while (!queue.isEmpty()) {
+            Long cluster = queue.remove();
+            boolean followedSequence = seenInSequence.contains(cluster);
+            for (Long m : members.get(cluster))
+                for (Long s : successors.get(m)) {
+                    Long next = find(s);
+                    boolean inSequence = followedSequence || sequenceSuccessors.get(m).contains(s);
+                    if (next.equals(higher)) {
+                        if (inSequence)
+                            return true;
+                        continue;
+                    }
+                    if (clusterRank.get(next) >= maxRank)
+                        continue;
+                    if (inSequence ? seenInSequence.add(next) : seen.add(next))
+                        queue.add(next);
+                }
+        }
+        return false;
+    }
+
+    /**
+     * Records that the two readings are now colocated, and pushes the ranks of any
+     * following readings up as far as necessary.
+     *
+     * @param firstReading - a reading in this section
+     * @param secondReading - another reading in this section
+     * @return true if any rank changed as a result
+     */
+    public boolean colocate(Node firstReading, Node secondReading) {
+        Long first = find(firstReading.getId());
+        Long second = find(secondReading.getId());
+        if (first.equals(second))
+            return false;
+        boolean rankChanged = !clusterRank.get(first).equals(clusterRank.get(second));
+        Long joined = union(first, second);
+        if (rankChanged) {
+            ArrayDeque<Long> queue = new ArrayDeque<>();
+            queue.add(joined);
+            while (!queue.isEmpty()) {
+                Long cluster = queue.remove();
+                Long nextRank = clusterRank.get(cluster) + 1;
+                for (Long m : members.get(cluster))
+                    for (Long s : successors.get(m)) {
+                        Long next = find(s);
+                        if (clusterRank.get(next) < nextRank) {
+                            clusterRank.put(next, nextRank);
+                            queue.add(next);
+                        }
+                    }
+            }
+        }
+        return rankChanged;
+    }
+}
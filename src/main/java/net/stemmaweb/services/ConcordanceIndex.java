@@ -0,0 +1,226 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.Nodes;
+import org.neo4j.graphdb.Node;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A posting index of the reading texts of a whole tradition, for the prefix, regular expression
+ * and folded searches of concordances across traditions; exact searches use the database's
+ * schema indexes instead, as described in {@link ConcordanceService}. The readings of the tradition are listed once, in the order of the text, i.e.
+ * by section and then by rank; each distinct text, normal form (or text, where there is no
+ * normal form), and case- and diacritic-folded version of either, points to the positions
+ * of its readings in that list.
+ *
+ * As with {@link ReadingTextIndex}, the index of a tradition is built the first time it is
+ * searched, and thrown away by the transaction handler of ReadingTextIndex whenever a
+ * transaction changes the text or rank of one of its readings, or adds, removes, reorders or
+ * deletes one of its sections. The indexes are kept up to a total estimated size given in
+ * megabytes by the environment variable STEMMAREST_CONCORDANCE_MB, by default 256; beyond
+ * that the least recently used are dropped.
+ */
+public class ConcordanceIndex {
+    // Rough sizes in bytes of what an index holds: a map entry with its key string and its
+    // array of positions, apart from the key's characters; and a reading, with its position
+    // in each of the four maps
+    private static final int ENTRY_BYTES = 100;
+    private static final int POSTING_BYTES = 24;
+
+    private static volatile long maxBytes = EnvironmentSettings.getLong("STEMMAREST_CONCORDANCE_MB", 256) * 1024 * 1024;
+    private static long cachedBytes = 0;
+
+    // By tradition node ID, in order of use, least recent first
+    private static final Map<Long, ConcordanceIndex> cache = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true));
+    // The tradition node ID of each section in a kept index; guarded by the cache lock
+    private static final Map<Long, Long> sectionTraditions = new HashMap<>();
+    private static final AtomicLong generation = new AtomicLong();
+
+    private final long traditionId;
+    private final Set<Long> sections = new HashSet<>();
+    // The IDs of the readings of the tradition, in text order
+    private final long[] readings;
+    // Positions of readings by text, and by normal form; each also case- and diacritic-folded.
+    private final TreeMap<String, int[]> byText = new TreeMap<>();
+    private final TreeMap<String, int[]> byNormal = new TreeMap<>();
+    private final TreeMap<String, int[]> byFoldedText = new TreeMap<>();
+    private final TreeMap<String, int[]> byFoldedNormal = new TreeMap<>();
+    private final long bytes;
+
+    private ConcordanceIndex(Node traditionNode) {
+        traditionId = traditionNode.getId();
+        List<Node> sectionNodes = VariantGraphService.getSectionNodes(
+                traditionNode.getProperty("id").toString(), traditionNode.getGraphDatabase());
+        List<Node> ordered = new ArrayList<>();
+        if (sectionNodes != null) {
+            Comparator<Node> byRank = Comparator.comparing((Node x) -> (Long) x.getProperty("rank", 0L))
+                    .thenComparing(Node::getId);
+            for (Node section : sectionNodes) {
+                sections.add(section.getId());
+                List<Node> sectionReadings = new ArrayList<>();
+                VariantGraphService.returnTraditionSection(section).nodes().stream()
+                        .filter(x -> x.hasLabel(Nodes.READING)
+                                && !x.getProperty("is_start", false).equals(true)
+                                && !x.getProperty("is_end", false).equals(true))
+                        // The traversal can reach a reading more than once
+                        .distinct()
+                        .forEach(sectionReadings::add);
+                sectionReadings.sort(byRank);
+                ordered.addAll(sectionReadings);
+            }
+        }
+
+        readings = new long[ordered.size()];
+        Map<String, List<Integer>> texts = new HashMap<>();
+        Map<String, List<Integer>> normals = new HashMap<>();
+        Map<String, List<Integer>> foldedTexts = new HashMap<>();
+        Map<String, List<Integer>> foldedNormals = new HashMap<>();
+        for (int i = 0; i < ordered.size(); i++) {
+            Node x = ordered.get(i);
+            readings[i] = x.getId();
+            String text = x.getProperty("text", "").toString();
+            String normal = ReadingService.matchingText(x, true).toString();
+            add(texts, text, i);
+            add(normals, normal, i);
+            add(foldedTexts, ReadingSearchService.fold(text), i);
+            add(foldedNormals, ReadingSearchService.fold(normal), i);
+        }
+        bytes = (long) POSTING_BYTES * readings.length + toPositions(texts, byText)
+                + toPositions(normals, byNormal) + toPositions(foldedTexts, byFoldedText)
+                + toPositions(foldedNormals, byFoldedNormal);
+    }
+
+    private static void add(Map<String, List<Integer>> map, String key, int position) {
+        map.computeIfAbsent(key, k -> new ArrayList<>()).add(position);
+    }
+
+    // Fill the index map from the lists of positions, and return the estimated size of its entries.
+    private static long toPositions(Map<String, List<Integer>> lists, TreeMap<String, int[]> map) {
+        long result = 0;
+        for (Map.Entry<String, List<Integer>> e : lists.entrySet()) {
+            map.put(e.getKey(), e.getValue().stream().mapToInt(Integer::intValue).toArray());
+            result += ENTRY_BYTES + 2L * e.getKey().length();
+        }
+        return result;
+    }
+
+    /**
+     * Get the concordance index for the given tradition, building it if necessary.
+     * NOTE: For use inside a transaction
+     *
+     * @param traditionNode - the tradition in question
+     * @return the tradition's index
+     */
+    public static ConcordanceIndex forTradition(Node traditionNode) {
+        ConcordanceIndex index = cache.get(traditionNode.getId());
+        if (index == null) {
+            long before = generation.get();
+            index = new ConcordanceIndex(traditionNode);
+            // Don't keep the index if something was committed while we were building it
+            synchronized (cache) {
+                if (generation.get() == before)
+                    keep(index);
+            }
+        }
+        return index;
+    }
+
+    // Add an index to the cache, and drop the least recently used ones until the cache is within
+    // its size again; the new index is kept even if it is too big on its own, since it is in use.
+    // NOTE: Must be called while holding the cache lock
+    private static void keep(ConcordanceIndex index) {
+        dropTradition(index.traditionId);
+        cache.put(index.traditionId, index);
+        index.sections.forEach(s -> sectionTraditions.put(s, index.traditionId));
+        cachedBytes += index.bytes;
+        Iterator<ConcordanceIndex> eldest = cache.values().iterator();
+        while (cachedBytes > maxBytes && cache.size() > 1) {
+            ConcordanceIndex dropped = eldest.next();
+            eldest.remove();
+            forget(dropped);
+        }
+    }
+
+    // NOTE: Must be called while holding the cache lock
+    private static void dropTradition(Long traditionId) {
+        ConcordanceIndex dropped = cache.remove(traditionId);
+        if (dropped != null)
+            forget(dropped);
+    }
+
+    // NOTE: Must be called while holding the cache lock
+    private static void forget(ConcordanceIndex dropped) {
+        cachedBytes -= dropped.bytes;
+        dropped.sections.forEach(sectionTraditions::remove);
+    }
+
+    /**
+     * Drop the indexes of the traditions that the given sections and traditions belong to,
+     * since something in them has changed.
+     *
+     * @param sectionIds   - the IDs of changed section nodes
+     * @param traditionIds - the IDs of changed tradition nodes
+     */
+    static void drop(Collection<Long> sectionIds, Collection<Long> traditionIds) {
+        synchronized (cache) {
+            generation.incrementAndGet();
+            for (Long s : sectionIds) {
+                Long t = sectionTraditions.get(s);
+                if (t != null) dropTradition(t);
+            }
+            traditionIds.forEach(ConcordanceIndex::dropTradition);
+        }
+    }
+
+    /**
+     * Returns the index of texts to reading positions that should be searched.
+     *
+     * @param useNormal - whether readings should be indexed by their normal forms
+     * @param folded    - whether the texts should be case- and diacritic-folded
+     * @return a sorted map of texts to the positions, in ascending order, of readings with that text
+     */
+    public NavigableMap<String, int[]> getTexts(Boolean useNormal, Boolean folded) {
+        if (useNormal)
+            return Collections.unmodifiableNavigableMap(folded ? byFoldedNormal : byNormal);
+        return Collections.unmodifiableNavigableMap(folded ? byFoldedText : byText);
+    }
+
+    /**
+     * @param position - a position in the tradition's readings
+     * @return the ID of the reading at that position
+     */
+    public long getReading(int position) {
+        return readings[position];
+    }
+
+    /**
+     * Drop all indexes, e.g. when the application switches to a different database.
+     */
+    public static void clear() {
+        synchronized (cache) {
+            generation.incrementAndGet();
+            cache.clear();
+            sectionTraditions.clear();
+            cachedBytes = 0;
+        }
+    }
+
+    /**
+     * @return the estimated size in bytes of the indexes that are kept
+     */
+    public static long getCachedBytes() {
+        synchronized (cache) {
+            return cachedBytes;
+        }
+    }
+
+    public static long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public static void setMaxBytes(long bytes) {
+        maxBytes = bytes;
+    }
+}
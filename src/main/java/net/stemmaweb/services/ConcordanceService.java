@@ -0,0 +1,177 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.model.ConcordanceEntryModel;
+import net.stemmaweb.model.ReadingModel;
+import net.stemmaweb.rest.ERelations;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+import java.util.*;
+
+/**
+ * Builds key-word-in-context concordances across traditions, and pages over the matching
+ * readings; the context on either side is only worked out for the matches on the page
+ * asked for. It is read off the main text of each witness that carries the reading,
+ * following the same witness sequence links that are used to assemble a witness text.
+ *
+ * Exact searches that are not case- or diacritic-folded, which are the most common, are
+ * answered from the database's (section_id, text) and (section_id, normal_form) schema
+ * indexes. These are kept up to date by the database on every import and edit, and are
+ * stored on disk and read through its page cache, which makes them the persistent posting
+ * lists outside the heap that such a search needs, without a second store to keep in step
+ * with the graph. Prefix, regular expression and folded searches can't be answered from
+ * those indexes, and use the {@link ConcordanceIndex} of each tradition instead, which is
+ * built in memory the first time a tradition is searched this way.
+ */
+public class ConcordanceService {
+
+    /**
+     * A page of a concordance.
+     */
+    public static class Page {
+        private final List<ConcordanceEntryModel> lines;
+        private final long total;
+
+        Page(List<ConcordanceEntryModel> lines, long total) {
+            this.lines = lines;
+            this.total = total;
+        }
+
+        /**
+         * @return the concordance lines for the matching readings on this page
+         */
+        public List<ConcordanceEntryModel> getLines() {
+            return lines;
+        }
+
+        /**
+         * @return the number of matching readings in all the traditions searched
+         */
+        public long getTotal() {
+            return total;
+        }
+    }
+
+    /**
+     * Find the occurrences of a word in the given traditions, with their context. The
+     * occurrences are ordered by tradition ID, and within a tradition in the order of the text.
+     * NOTE: For use inside a transaction
+     *
+     * @param traditions - the tradition nodes to search
+     * @param query      - the text to search for
+     * @param mode       - one of "exact", "prefix", or "regex"
+     * @param useNormal  - if true, match on the normal form of a reading where it has one
+     * @param fold       - if true, ignore case and diacritics when matching
+     * @param context    - the number of readings to give on either side of the match
+     * @param start      - the index of the first occurrence to give
+     * @param limit      - the maximum number of occurrences to give
+     * @return a page with a concordance line for each group of witnesses that share the same
+     * context around each occurrence on the page, and the total number of occurrences
+     * @throws IllegalArgumentException if the search mode or expression is invalid, or the
+     *                                  expression takes too long
+     */
+    public static Page concordance(List<Node> traditions, String query, String mode, Boolean useNormal,
+                                   Boolean fold, int context, long start, long limit) {
+        ReadingSearchService.TextQuery textQuery = new ReadingSearchService.TextQuery(query, mode, fold);
+        List<Node> ordered = new ArrayList<>(traditions);
+        ordered.sort(Comparator.comparing(x -> x.getProperty("id").toString()));
+        List<ConcordanceEntryModel> lines = new ArrayList<>();
+        long total = 0;
+        boolean indexed = mode.equals(ReadingSearchService.MODE_EXACT) && !fold;
+        for (Node tradition : ordered) {
+            long[] matching = indexed
+                    ? indexedMatches(tradition, query, useNormal)
+                    : postedMatches(tradition, textQuery, useNormal, fold);
+            // The part of this tradition's occurrences that falls on the page
+            long from = Math.max(0, start - total);
+            long to = Math.min(matching.length, start + limit - total);
+            for (int i = (int) from; i < to; i++)
+                lines.addAll(linesFor(tradition, tradition.getGraphDatabase().getNodeById(matching[i]), context));
+            total += matching.length;
+        }
+        return new Page(lines, total);
+    }
+
+    // The IDs of the readings in the tradition with exactly the given text, in text order,
+    // looked up in the database's schema indexes
+    private static long[] indexedMatches(Node tradition, String query, Boolean useNormal) {
+        List<Node> sections = VariantGraphService.getSectionNodes(
+                tradition.getProperty("id").toString(), tradition.getGraphDatabase());
+        if (sections == null) return new long[0];
+        return ReadingSearchService.search(sections, query, ReadingSearchService.MODE_EXACT, useNormal, false)
+                .stream().mapToLong(Node::getId).toArray();
+    }
+
+    // The IDs of the readings in the tradition that match the query, in text order, looked up
+    // in the tradition's posting index
+    private static long[] postedMatches(Node tradition, ReadingSearchService.TextQuery textQuery,
+                                        Boolean useNormal, Boolean fold) {
+        ConcordanceIndex index = ConcordanceIndex.forTradition(tradition);
+        // Each reading has one text, so the position lists don't overlap
+        return textQuery.matching(index.getTexts(useNormal, fold)).stream()
+                .flatMapToInt(Arrays::stream).sorted().mapToLong(index::getReading).toArray();
+    }
+
+    // The concordance lines for one occurrence, one for each group of witnesses that give it
+    // the same context
+    private static List<ConcordanceEntryModel> linesFor(Node tradition, Node reading, int context) {
+        LinkedHashMap<List<String>, List<String>> byContext = new LinkedHashMap<>();
+        for (String sigil : witnessesOf(reading)) {
+            List<String> kwic = Arrays.asList(
+                    contextOf(reading, sigil, Direction.INCOMING, context),
+                    contextOf(reading, sigil, Direction.OUTGOING, context));
+            byContext.computeIfAbsent(kwic, k -> new ArrayList<>()).add(sigil);
+        }
+        List<ConcordanceEntryModel> result = new ArrayList<>();
+        for (List<String> kwic : byContext.keySet()) {
+            ConcordanceEntryModel entry = new ConcordanceEntryModel();
+            entry.setTradition(tradition.getProperty("id").toString());
+            entry.setTradition_name(tradition.getProperty("name", "").toString());
+            entry.setSection(reading.getProperty("section_id").toString());
+            entry.setReading(String.valueOf(reading.getId()));
+            entry.setRank((Long) reading.getProperty("rank"));
+            entry.setKeyword(reading.getProperty("text", "").toString());
+            entry.setBefore(kwic.get(0));
+            entry.setAfter(kwic.get(1));
+            entry.setWitnesses(byContext.get(kwic));
+            result.add(entry);
+        }
+        return result;
+    }
+
+    // The sigla of the witnesses whose main text includes the reading, sorted
+    private static List<String> witnessesOf(Node reading) {
+        TreeSet<String> sigla = new TreeSet<>();
+        for (Relationship r : reading.getRelationships(Direction.INCOMING, ERelations.SEQUENCE))
+            if (r.hasProperty("witnesses"))
+                sigla.addAll(Arrays.asList((String[]) r.getProperty("witnesses")));
+        return new ArrayList<>(sigla);
+    }
+
+    // Walk up to 'context' readings along the witness's main text from the given reading,
+    // and return their text.
+    private static String contextOf(Node reading, String sigil, Direction direction, int context) {
+        LinkedList<ReadingModel> readings = new LinkedList<>();
+        Node current = reading;
+        while (readings.size() < context) {
+            Node next = null;
+            for (Relationship r : current.getRelationships(direction, ERelations.SEQUENCE)) {
+                if (r.hasProperty("witnesses")
+                        && Arrays.asList((String[]) r.getProperty("witnesses")).contains(sigil)) {
+                    next = r.getOtherNode(current);
+                    break;
+                }
+            }
+            if (next == null || next.getProperty("is_start", false).equals(true)
+                    || next.getProperty("is_end", false).equals(true))
+                break;
+            if (direction.equals(Direction.INCOMING))
+                readings.addFirst(new ReadingModel(next));
+            else
+                readings.addLast(new ReadingModel(next));
+            current = next;
+        }
+        return ReadingService.textOfReadings(readings, false, false);
+    }
+}
@@ -1,10 +1,18 @@
 package net.stemmaweb.services;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
 import net.stemmaweb.rest.Nodes;
 import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.schema.IndexCreator;
+import org.neo4j.graphdb.schema.IndexDefinition;
+import org.neo4j.graphdb.schema.Schema;
 
 /**
  * Generic helper methods for querying the graph database
@@ -13,6 +21,10 @@ import org.neo4j.graphdb.*;
  */
 public class DatabaseService {
 
+    private static final Logger log = Logger.getLogger(DatabaseService.class.getName());
+    // How long to wait at startup for the indexes, before leaving them to populate in the background
+    private static final long INDEX_WAIT_MS = 1000;
+
     /**
      * Creates a root node for the entire graph.
      *
@@ -30,6 +42,118 @@ public class DatabaseService {
         }
     }
 
+    /**
+     * Creates the schema indexes that the application relies on, if they don't yet exist.
+     * Readings are indexed on their text and normal form within each section, so that readings
+     * with the same text can be found without traversing the whole tradition, and on their
+     * section alone, so that a section's readings can be found (e.g. for removal) without
+     * traversing it at all.
+     *
+     * Neo4j populates new indexes in the background, which on a large existing database can
+     * take a long time; this method waits for that only a moment, which is enough for a new or
+     * small database. If the indexes are not online by then, a thread watches the population
+     * and logs when it is done or has failed, and {@link #findSectionReadings(Node, String, Object)}
+     * walks the section until the index it needs is online.
+     *
+     * @param db: the GraphDatabaseService where the indexes should be created
+     */
+    public static void createIndexes(GraphDatabaseService db) {
+        List<List<String>> wanted = Arrays.asList(
+                Collections.singletonList("section_id"),
+                Arrays.asList("section_id", "text"),
+                Arrays.asList("section_id", "normal_form"));
+        try (Transaction tx = db.beginTx()) {
+            Schema schema = db.schema();
+            List<List<String>> existing = new ArrayList<>();
+            for (IndexDefinition idx : schema.getIndexes(Nodes.READING))
+                existing.add(indexKeys(idx));
+            for (List<String> keys : wanted) {
+                if (existing.contains(keys)) continue;
+                IndexCreator creator = schema.indexFor(Nodes.READING);
+                for (String k : keys)
+                    creator = creator.on(k);
+                creator.create();
+            }
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            db.schema().awaitIndexesOnline(INDEX_WAIT_MS, TimeUnit.MILLISECONDS);
+            tx.success();
+            return;
+        } catch (IllegalStateException e) {
+            // Still populating, or failed; the watcher will say which
+        }
+        Thread watcher = new Thread(() -> watchIndexPopulation(db), "stemmarest-index-population");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    // Wait for the reading indexes to leave the POPULATING state, and log the outcome.
+    private static void watchIndexPopulation(GraphDatabaseService db) {
+        try {
+            boolean waited = false;
+            while (true) {
+                List<String> failures = new ArrayList<>();
+                boolean populating = false;
+                try (Transaction tx = db.beginTx()) {
+                    Schema schema = db.schema();
+                    for (IndexDefinition idx : schema.getIndexes(Nodes.READING)) {
+                        Schema.IndexState state = schema.getIndexState(idx);
+                        if (state == Schema.IndexState.POPULATING)
+                            populating = true;
+                        else if (state == Schema.IndexState.FAILED)
+                            failures.add(indexKeys(idx) + ": " + schema.getIndexFailure(idx));
+                    }
+                    tx.success();
+                }
+                if (!populating) {
+                    for (String f : failures)
+                        log.severe("Reading index failed, its lookups will walk the graph instead. " + f);
+                    if (waited && failures.isEmpty())
+                        log.info("Reading indexes are online");
+                    return;
+                }
+                waited = true;
+                Thread.sleep(1000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            // The database has most likely been shut down
+            log.fine("Stopped watching the reading indexes: " + e.getMessage());
+        }
+    }
+
+    private static List<String> indexKeys(IndexDefinition idx) {
+        List<String> keys = new ArrayList<>();
+        idx.getPropertyKeys().forEach(keys::add);
+        return keys;
+    }
+
+    /**
+     * Finds the readings of a section that have the given value for the given property.
+     * The lookup uses the (section_id, key) index once it is online; while it is still
+     * being populated, Neo4j would scan every reading in the database instead, so the
+     * section itself is walked.
+     * NOTE: For use inside a transaction
+     *
+     * @param sectionNode - the section to look in
+     * @param key         - the property to match, e.g. "text"
+     * @param value       - the value to match
+     * @return an iterator over the matching readings
+     */
+    public static Iterator<Node> findSectionReadings(Node sectionNode, String key, Object value) {
+        GraphDatabaseService db = sectionNode.getGraphDatabase();
+        Schema schema = db.schema();
+        List<String> keys = Arrays.asList("section_id", key);
+        for (IndexDefinition idx : schema.getIndexes(Nodes.READING))
+            if (indexKeys(idx).equals(keys) && schema.getIndexState(idx) == Schema.IndexState.ONLINE)
+                return db.findNodes(Nodes.READING, "section_id", sectionNode.getId(), key, value);
+        return VariantGraphService.returnTraditionSection(sectionNode).nodes().stream()
+                .filter(x -> x.hasLabel(Nodes.READING) && value.equals(x.getProperty(key, null)))
+                .iterator();
+    }
+
     /**
      * This method can be used to get the list of nodes connected to a given
      * node via a given relation.
@@ -0,0 +1,317 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.model.DeletionModel;
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes deleted traditions and sections from the database. Deletion happens in two steps:
+ * first the tradition or section is marked as deleted, in a small transaction that detaches
+ * it from everything through which it could be found, and then its nodes and relationships
+ * are removed by a background worker, a bounded batch per transaction. This way no request
+ * has to wait for a large tradition to be removed, and no transaction has to hold the whole
+ * of it in memory or keep it locked.
+ */
+public class DeletionService {
+    // The most nodes that will be removed in a single transaction
+    private static final int BATCH_SIZE = 5000;
+    // The number of finished deletions to keep reporting on
+    private static final int MAX_FINISHED = 100;
+
+    private static final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "deletion-worker");
+        t.setDaemon(true);
+        return t;
+    });
+    // Guards the paused flag
+    private static final Object pauseLock = new Object();
+    private static boolean paused = false;
+    private static final Map<Long, DeletionModel> progress = Collections.synchronizedMap(
+            new LinkedHashMap<Long, DeletionModel>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, DeletionModel> eldest) {
+                    return size() > MAX_FINISHED && isFinished(eldest.getValue());
+                }
+            });
+
+    private static boolean isFinished(DeletionModel dm) {
+        return dm.getStatus().equals(DeletionModel.DONE) || dm.getStatus().equals(DeletionModel.FAILED);
+    }
+
+    /**
+     * Mark a tradition as deleted, so that it can no longer be found by its ID or through
+     * its owner, and neither can any of its sections or readings.
+     * NOTE: For use inside a transaction, after which {@link #reclaim} should be called
+     *
+     * @param traditionNode - the tradition to delete
+     * @return a progress report for the tradition's removal
+     */
+    public static DeletionModel markTradition(Node traditionNode) {
+        DeletionModel dm = new DeletionModel();
+        dm.setId(traditionNode.getProperty("id").toString());
+        dm.setType("tradition");
+        dm.setTradition(dm.getId());
+        traditionNode.getRelationships(ERelations.OWNS_TRADITION, Direction.INCOMING).forEach(Relationship::delete);
+        for (Node s : DatabaseService.getRelated(traditionNode, ERelations.PART))
+            s.addLabel(Nodes.DELETED);
+        traditionNode.removeLabel(Nodes.TRADITION);
+        traditionNode.addLabel(Nodes.DELETED);
+        return dm;
+    }
+
+    /**
+     * Mark a section as deleted, detaching it from its tradition and from any of the
+     * tradition's annotations that refer to its contents. The section should already have
+     * been removed from the tradition's sequence of sections.
+     * NOTE: For use inside a transaction, after which {@link #reclaim} should be called
+     *
+     * @param sectionNode - the section to delete
+     * @return a progress report for the section's removal
+     */
+    public static DeletionModel markSection(Node sectionNode) {
+        Relationship part = sectionNode.getSingleRelationship(ERelations.PART, Direction.INCOMING);
+        Node traditionNode = part.getStartNode();
+        Long sectionId = sectionNode.getId();
+        DeletionModel dm = new DeletionModel();
+        dm.setId(String.valueOf(sectionId));
+        dm.setType("section");
+        dm.setTradition(traditionNode.getProperty("id").toString());
+        for (Node a : DatabaseService.getRelated(traditionNode, ERelations.HAS_ANNOTATION)) {
+            for (Relationship r : a.getRelationships(Direction.OUTGOING)) {
+                Node target = r.getEndNode();
+                if (target.equals(sectionNode) || sectionId.equals(target.getProperty("section_id", null)))
+                    r.delete();
+            }
+        }
+        part.delete();
+        sectionNode.addLabel(Nodes.DELETED);
+        return dm;
+    }
+
+    /**
+     * Queue the removal of a tradition or section that has been marked as deleted.
+     * NOTE: This should be called once the marking transaction has been committed.
+     *
+     * @param db     - the database in use
+     * @param nodeId - the ID of the tradition or section node
+     * @param dm     - the progress report that was returned when it was marked
+     */
+    public static void reclaim(GraphDatabaseService db, Long nodeId, DeletionModel dm) {
+        dm.setStatus(DeletionModel.PENDING);
+        progress.put(nodeId, dm);
+        worker.submit(() -> remove(db, nodeId, dm));
+    }
+
+    /**
+     * Returns whether the given node has been deleted, or belongs to a section that has been.
+     * NOTE: For use inside a transaction
+     *
+     * @param node - the node to check
+     * @return true if the node is awaiting removal
+     */
+    public static boolean isDeleted(Node node) {
+        if (node.hasLabel(Nodes.DELETED))
+            return true;
+        Object sectionId = node.getProperty("section_id", null);
+        if (sectionId == null)
+            return false;
+        try {
+            return node.getGraphDatabase().getNodeById(((Number) sectionId).longValue()).hasLabel(Nodes.DELETED);
+        } catch (NotFoundException e) {
+            // The section has already gone, so this is a leftover of it
+            return true;
+        }
+    }
+
+    /**
+     * Returns the progress of the deletions that are queued or running, followed by the
+     * most recently finished ones.
+     *
+     * @return a list of progress reports
+     */
+    public static List<DeletionModel> getProgress() {
+        List<DeletionModel> result = new ArrayList<>();
+        synchronized (progress) {
+            for (DeletionModel dm : progress.values())
+                synchronized (dm) {
+                    result.add(new DeletionModel(dm));
+                }
+        }
+        return result;
+    }
+
+    /**
+     * Wait for all the deletions that have been queued so far to finish.
+     *
+     * @param timeout - how long to wait
+     * @param unit    - the unit of the timeout
+     * @return true if the deletions finished, false if the wait timed out or was interrupted
+     */
+    public static boolean awaitIdle(long timeout, TimeUnit unit) {
+        try {
+            // The worker takes its tasks in order, so this one runs after everything before it
+            worker.submit(() -> {}).get(timeout, unit);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Hold back the removals that have not yet started, or let them go ahead again. Deletions
+     * are still marked while the removals are paused, so this is a way to see the state of the
+     * database between the two steps.
+     *
+     * @param pause - true to pause the removals, false to resume them
+     */
+    public static void setPaused(boolean pause) {
+        synchronized (pauseLock) {
+            paused = pause;
+            pauseLock.notifyAll();
+        }
+    }
+
+    /**
+     * Queue the removal of anything that was deleted but not removed before the database was
+     * last shut down, and forget about the deletions in any previous database.
+     *
+     * @param db - the database in use
+     */
+    public static void register(GraphDatabaseService db) {
+        progress.clear();
+        Map<Long, DeletionModel> unfinished = new LinkedHashMap<>();
+        try (Transaction tx = db.beginTx()) {
+            db.findNodes(Nodes.DELETED).forEachRemaining(n -> {
+                // Sections of a deleted tradition are removed along with it
+                Relationship part = n.getSingleRelationship(ERelations.PART, Direction.INCOMING);
+                if (part != null && part.getStartNode().hasLabel(Nodes.DELETED))
+                    return;
+                DeletionModel dm = new DeletionModel();
+                if (n.hasLabel(Nodes.SECTION)) {
+                    dm.setId(String.valueOf(n.getId()));
+                    dm.setType("section");
+                } else {
+                    dm.setId(n.getProperty("id", "").toString());
+                    dm.setType("tradition");
+                    dm.setTradition(dm.getId());
+                }
+                unfinished.put(n.getId(), dm);
+            });
+            tx.success();
+        }
+        unfinished.forEach((id, dm) -> reclaim(db, id, dm));
+    }
+
+    /*
+     * The removal itself
+     */
+
+    private static void remove(GraphDatabaseService db, Long nodeId, DeletionModel dm) {
+        try {
+            synchronized (pauseLock) {
+                while (paused)
+                    pauseLock.wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        synchronized (dm) {
+            dm.setStatus(DeletionModel.RUNNING);
+        }
+        try {
+            List<Long> sections = new ArrayList<>();
+            boolean isSection;
+            try (Transaction tx = db.beginTx()) {
+                Node deleted = db.getNodeById(nodeId);
+                isSection = deleted.hasLabel(Nodes.SECTION);
+                if (isSection)
+                    sections.add(nodeId);
+                else
+                    DatabaseService.getRelated(deleted, ERelations.PART).forEach(x -> sections.add(x.getId()));
+                tx.success();
+            }
+            // Every reading, including start, end, and emendation nodes, knows its section,
+            // so they can be found in batches without walking the graph.
+            for (Long sectionId : sections)
+                while (removeBatch(db, dm, () -> db.findNodes(Nodes.READING, "section_id", sectionId)))
+                    ;
+            if (!isSection)
+                while (removeBatch(db, dm, () -> DatabaseService.getRelated(
+                        db.getNodeById(nodeId), ERelations.HAS_ANNOTATION).iterator()))
+                    ;
+            // What remains is the section or tradition node itself, its sections' nodes, and the
+            // tradition's witnesses, stemmata, and other metadata. These are removed in batches
+            // too, in the reverse of the order in which they are found, so that anything left
+            // after a failure can still be reached from the deleted node on the next attempt.
+            List<Long> remaining;
+            try (Transaction tx = db.beginTx()) {
+                Set<Long> found = new LinkedHashSet<>();
+                if (!isSection)
+                    VariantGraphService.returnEntireTradition(db.getNodeById(nodeId)).nodes()
+                            .forEach(x -> found.add(x.getId()));
+                for (Long sectionId : sections)
+                    VariantGraphService.returnTraditionSection(db.getNodeById(sectionId)).nodes()
+                            .forEach(x -> found.add(x.getId()));
+                tx.success();
+                remaining = new ArrayList<>(found);
+            }
+            Collections.reverse(remaining);
+            for (int i = 0; i < remaining.size(); i += BATCH_SIZE) {
+                List<Long> batch = remaining.subList(i, Math.min(i + BATCH_SIZE, remaining.size()));
+                removeBatch(db, dm, () -> batch.stream().map(db::getNodeById).iterator());
+            }
+            synchronized (dm) {
+                dm.setStatus(DeletionModel.DONE);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            synchronized (dm) {
+                dm.setStatus(DeletionModel.FAILED);
+                dm.setError(e.getMessage());
+            }
+        }
+    }
+
+    // Remove up to BATCH_SIZE of the nodes that the given source yields, along with their
+    // relationships, in a single transaction. Returns true if there may be more to remove.
+    private static boolean removeBatch(GraphDatabaseService db, DeletionModel dm, NodeSource source) {
+        List<Node> batch = new ArrayList<>();
+        long rels = 0;
+        try (Transaction tx = db.beginTx()) {
+            Iterator<Node> found = source.nodes();
+            while (found.hasNext() && batch.size() < BATCH_SIZE)
+                batch.add(found.next());
+            if (found instanceof ResourceIterator)
+                ((ResourceIterator<Node>) found).close();
+            for (Node n : batch) {
+                for (Relationship r : n.getRelationships()) {
+                    r.delete();
+                    rels++;
+                }
+                n.delete();
+            }
+            tx.success();
+        }
+        record(dm, batch.size(), rels);
+        return batch.size() == BATCH_SIZE;
+    }
+
+    private static void record(DeletionModel dm, long nodes, long rels) {
+        synchronized (dm) {
+            dm.setNodes(dm.getNodes() + nodes);
+            dm.setRelationships(dm.getRelationships() + rels);
+            dm.setBatches(dm.getBatches() + 1);
+        }
+    }
+
+    private interface NodeSource {
+        Iterator<Node> nodes();
+    }
+}
@@ -0,0 +1,327 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.ERelations;
+import org.neo4j.graphdb.*;
+
+import javax.ws.rs.core.Response;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+/**
+ * Serializes the changes made to each section, so that concurrent editors can't take the
+ * database's node locks in conflicting orders, while requests that only read go ahead
+ * without waiting. Every tradition has a read/write lock, and every section a lock of its
+ * own. A change to a single section holds its tradition's lock for reading and the section's
+ * lock; a change that reaches across sections, such as splitting or merging sections or
+ * deleting a witness, holds its tradition's lock for writing. The locks are always taken in
+ * that order, tradition before section, so that waiting for them can't deadlock. A lock is
+ * dropped once no one holds it or waits for it, so that the locks of traditions and sections
+ * that are no longer being edited don't pile up.
+ *
+ * A request that can't get its locks within the wait time, which is given in milliseconds
+ * by the STEMMAREST_LOCK_WAIT_MS environment variable and is 30 seconds by default, is
+ * turned away with a {@link LockTimeoutException}.
+ *
+ * Changes that fail all the same because of a transient lock conflict in the database, e.g.
+ * with the background deletion, can be tried again with {@link #retrying}.
+ */
+public class EditLockService {
+    // The number of times a change is tried before its failure is passed on
+    private static final int ATTEMPTS = 4;
+    // The pause before the first retry, which is doubled for each one after it
+    private static final long BACKOFF_MILLIS = 20;
+
+    private static volatile long maxWait = EnvironmentSettings.getLong("STEMMAREST_LOCK_WAIT_MS", 30000);
+    private static final ConcurrentMap<String, SharedLock> traditionLocks = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, SharedLock> sectionLocks = new ConcurrentHashMap<>();
+
+    private static final LongAdder acquired = new LongAdder();
+    private static final LongAdder waitNanos = new LongAdder();
+    private static final LongAdder timeouts = new LongAdder();
+    private static final LongAdder retries = new LongAdder();
+
+    /**
+     * Thrown when the locks for a change can't be had in time.
+     */
+    public static class LockTimeoutException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        LockTimeoutException(String message) {
+            super(message);
+        }
+    }
+
+    // A lock, with the number of changes that hold it or are waiting for it. The count is only
+    // changed inside the lock map's compute methods, so that a lock is never dropped from the
+    // map while someone is about to take it.
+    private static class SharedLock {
+        private final StampedLock lock = new StampedLock();
+        private int users = 0;
+    }
+
+    // Get the lock for the given key, counting the caller as one of its users
+    private static SharedLock use(ConcurrentMap<String, SharedLock> locks, String key) {
+        return locks.compute(key, (k, l) -> {
+            SharedLock result = l == null ? new SharedLock() : l;
+            result.users++;
+            return result;
+        });
+    }
+
+    // Stop using the lock for the given key, and drop it from the map if no one else uses it
+    private static void unuse(ConcurrentMap<String, SharedLock> locks, String key) {
+        locks.computeIfPresent(key, (k, l) -> --l.users == 0 ? null : l);
+    }
+
+    /**
+     * The locks held for a change, which must be released once it is done. The locks are
+     * not tied to a thread, so they can be released from any thread, and releasing them a
+     * second time does nothing.
+     */
+    public static class Lease {
+        private final String tradId;
+        // The locked section, or null if the whole tradition is locked
+        private final String sectionId;
+        private final SharedLock tradition;
+        private final long traditionStamp;
+        private final SharedLock section;
+        private final long sectionStamp;
+        private final Thread owner = Thread.currentThread();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Lease(String tradId, String sectionId, SharedLock tradition, long traditionStamp,
+                      SharedLock section, long sectionStamp) {
+            this.tradId = tradId;
+            this.sectionId = sectionId;
+            this.tradition = tradition;
+            this.traditionStamp = traditionStamp;
+            this.section = section;
+            this.sectionStamp = sectionStamp;
+        }
+
+        public void release() {
+            if (released.getAndSet(true)) return;
+            if (tradition == null) return;
+            if (section != null) {
+                section.lock.unlockWrite(sectionStamp);
+                unuse(sectionLocks, sectionId);
+            }
+            tradition.lock.unlock(traditionStamp);
+            unuse(traditionLocks, tradId);
+            if (Thread.currentThread() == owner && held.get() == this)
+                held.remove();
+        }
+    }
+
+    // The locks held by the change being made on this thread. A change made as part of another
+    // one, e.g. a relation made again after a reading is duplicated, runs under the outer
+    // change's locks, since the locks can't be taken twice.
+    private static final ThreadLocal<Lease> held = new ThreadLocal<>();
+
+    // The lease for a change made within another, which holds nothing; or null if there is no
+    // other change being made on this thread. The outer change must hold the locks that the
+    // inner one asks for, i.e. the tradition, or the same section; a nested change that would
+    // need more can't take it without risking a deadlock, and is a mistake in the code.
+    private static Lease nested(String tradId, String sectionId) {
+        Lease outer = held.get();
+        if (outer == null || outer.released.get())
+            return null;
+        boolean covered = outer.tradId.equals(tradId)
+                && (outer.sectionId == null || outer.sectionId.equals(sectionId));
+        if (!covered)
+            throw new IllegalStateException(String.format(
+                    "A change to tradition %s%s was made within a change that only locks tradition %s%s",
+                    tradId, sectionId == null ? "" : " section " + sectionId,
+                    outer.tradId, outer.sectionId == null ? "" : " section " + outer.sectionId));
+        return new Lease(tradId, sectionId, null, 0, null, 0);
+    }
+
+    private static Lease hold(Lease lease) {
+        held.set(lease);
+        acquired.increment();
+        return lease;
+    }
+
+    /**
+     * Lock a section for a change to it alone.
+     *
+     * @param tradId    - the ID of the section's tradition
+     * @param sectionId - the ID of the section
+     * @return the locks held
+     * @throws LockTimeoutException if the locks can't be had in time
+     * @throws IllegalStateException if this is a change within another that doesn't hold the locks
+     */
+    public static Lease lockSection(String tradId, String sectionId) {
+        Lease nested = nested(tradId, sectionId);
+        if (nested != null) return nested;
+        long start = System.nanoTime();
+        SharedLock tradition = use(traditionLocks, tradId);
+        long traditionStamp;
+        try {
+            traditionStamp = acquire(tradition.lock, false, start);
+        } catch (LockTimeoutException e) {
+            unuse(traditionLocks, tradId);
+            throw e;
+        }
+        SharedLock section = use(sectionLocks, sectionId);
+        long sectionStamp;
+        try {
+            sectionStamp = acquire(section.lock, true, start);
+        } catch (LockTimeoutException e) {
+            unuse(sectionLocks, sectionId);
+            tradition.lock.unlockRead(traditionStamp);
+            unuse(traditionLocks, tradId);
+            throw e;
+        }
+        waitNanos.add(System.nanoTime() - start);
+        return hold(new Lease(tradId, sectionId, tradition, traditionStamp, section, sectionStamp));
+    }
+
+    /**
+     * Lock a whole tradition for a change that reaches across its sections.
+     *
+     * @param tradId - the ID of the tradition
+     * @return the locks held
+     * @throws LockTimeoutException if the lock can't be had in time
+     * @throws IllegalStateException if this is a change within another that doesn't hold the lock
+     */
+    public static Lease lockTradition(String tradId) {
+        Lease nested = nested(tradId, null);
+        if (nested != null) return nested;
+        long start = System.nanoTime();
+        SharedLock tradition = use(traditionLocks, tradId);
+        long traditionStamp;
+        try {
+            traditionStamp = acquire(tradition.lock, true, start);
+        } catch (LockTimeoutException e) {
+            unuse(traditionLocks, tradId);
+            throw e;
+        }
+        waitNanos.add(System.nanoTime() - start);
+        return hold(new Lease(tradId, null, tradition, traditionStamp, null, 0));
+    }
+
+    /**
+     * Lock whatever needs locking for a change to the given readings: their section if they
+     * are all in the same one, or else their whole tradition.
+     *
+     * @param tradId     - the ID of the readings' tradition
+     * @param readingIds - the IDs of the readings
+     * @param db         - the database
+     * @return the locks held, or null if none of the readings could be found
+     * @throws LockTimeoutException if the locks can't be had in time
+     */
+    public static Lease lockReadings(String tradId, Collection<String> readingIds, GraphDatabaseService db) {
+        Set<String> sections = new HashSet<>();
+        try (Transaction tx = db.beginTx()) {
+            for (String id : readingIds) {
+                try {
+                    Object section = db.getNodeById(Long.parseLong(id)).getProperty("section_id", null);
+                    if (section != null)
+                        sections.add(section.toString());
+                } catch (NumberFormatException | NotFoundException ignored) {
+                    // The change itself will say what is wrong with the reading
+                }
+            }
+            tx.success();
+        }
+        if (sections.isEmpty()) return null;
+        return sections.size() == 1
+                ? lockSection(tradId, sections.iterator().next())
+                : lockTradition(tradId);
+    }
+
+    /**
+     * Find the section and the tradition of a reading, so that the section can be locked.
+     *
+     * @param readingId - the ID of the reading
+     * @param db        - the database
+     * @return the tradition ID and the section ID, or null if the reading can't be found
+     */
+    public static String[] findSection(String readingId, GraphDatabaseService db) {
+        try (Transaction tx = db.beginTx()) {
+            Node reading = db.getNodeById(Long.parseLong(readingId));
+            Object sectionId = reading.getProperty("section_id", null);
+            if (sectionId == null) return null;
+            Relationship part = db.getNodeById((Long) sectionId)
+                    .getSingleRelationship(ERelations.PART, Direction.INCOMING);
+            if (part == null) return null;
+            String[] result = {part.getStartNode().getProperty("id").toString(), sectionId.toString()};
+            tx.success();
+            return result;
+        } catch (NumberFormatException | NotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Run a change, and run it again, up to a few times and with a growing pause in between,
+     * if it fails because of a transient lock conflict in the database, e.g. a deadlock. The
+     * change must do its work in a single transaction, so that a failed attempt leaves nothing
+     * behind, and must pass on the {@link TransientFailureException} that it fails with rather
+     * than answer it with an error response.
+     *
+     * @param change - the change, which answers with a response
+     * @return the response of the change
+     * @throws TransientFailureException if the last attempt failed with it
+     */
+    public static Response retrying(Supplier<Response> change) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return change.get();
+            } catch (TransientFailureException e) {
+                if (attempt == ATTEMPTS || Thread.currentThread().isInterrupted())
+                    throw e;
+            }
+            retries.increment();
+            try {
+                Thread.sleep(BACKOFF_MILLIS << (attempt - 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static long acquire(StampedLock lock, boolean exclusive, long start) {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(maxWait) - (System.nanoTime() - start);
+        long stamp = 0;
+        try {
+            stamp = exclusive
+                    ? lock.tryWriteLock(Math.max(remaining, 0), TimeUnit.NANOSECONDS)
+                    : lock.tryReadLock(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (stamp == 0) {
+            timeouts.increment();
+            throw new LockTimeoutException("Someone else is making changes here; please try again");
+        }
+        return stamp;
+    }
+
+    /**
+     * Returns the number of changes that got their locks, the nanoseconds they spent waiting
+     * for them, the number that gave up waiting, the number of retries after transient
+     * failures, and the number of locks kept for sections and traditions in use.
+     *
+     * @return the five figures, in that order
+     */
+    public static long[] getFigures() {
+        return new long[]{acquired.sum(), waitNanos.sum(), timeouts.sum(), retries.sum(),
+                traditionLocks.size() + sectionLocks.size()};
+    }
+
+    public static long getMaxWait() {
+        return maxWait;
+    }
+
+    public static void setMaxWait(long millis) {
+        maxWait = millis;
+    }
+}
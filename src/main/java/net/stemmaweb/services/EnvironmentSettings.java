@@ -0,0 +1,50 @@
+package net.stemmaweb.services;
+
+import java.util.logging.Logger;
+
+/**
+ * Reads the numeric settings that the services take from environment variables. A setting
+ * that isn't a number is logged and the default is used instead, so that a mistyped variable
+ * can't stop a service from loading.
+ */
+public class EnvironmentSettings {
+    private static final Logger log = Logger.getLogger(EnvironmentSettings.class.getName());
+
+    /**
+     * Returns the value of an environment variable as a number.
+     *
+     * @param variable     - the name of the variable
+     * @param defaultValue - the value to use if the variable is not set, or is not a number
+     * @return the value
+     */
+    public static long getLong(String variable, long defaultValue) {
+        String setting = System.getenv(variable);
+        if (setting == null) return defaultValue;
+        try {
+            return Long.parseLong(setting.trim());
+        } catch (NumberFormatException e) {
+            log.severe(String.format("Ignoring %s=\"%s\", which is not a number; using %d instead",
+                    variable, setting, defaultValue));
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the value of an environment variable as a number.
+     *
+     * @param variable     - the name of the variable
+     * @param defaultValue - the value to use if the variable is not set, or is not a number
+     * @return the value
+     */
+    public static int getInt(String variable, int defaultValue) {
+        String setting = System.getenv(variable);
+        if (setting == null) return defaultValue;
+        try {
+            return Integer.parseInt(setting.trim());
+        } catch (NumberFormatException e) {
+            log.severe(String.format("Ignoring %s=\"%s\", which is not a number; using %d instead",
+                    variable, setting, defaultValue));
+            return defaultValue;
+        }
+    }
+}
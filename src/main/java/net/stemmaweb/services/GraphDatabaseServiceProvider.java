@@ -50,8 +50,13 @@ public class GraphDatabaseServiceProvider {
         return db;
     }
 
-    // Register any extensions we need in the database
+    // Register any extensions and indexes we need in the database
     private static void registerExtensions() throws KernelException {
+        DatabaseService.createIndexes(db);
+        ReadingTextIndex.register(db);
+        WitnessSequenceIndex.register(db);
+        DeletionService.register(db);
+        ChangeFeedService.register(db);
         GraphDatabaseAPI api = (GraphDatabaseAPI) db;
         // See if our procedure is already registered
         api.getDependencyResolver()
@@ -0,0 +1,70 @@
+package net.stemmaweb.services;
+
+import jdk.jfr.*;
+import org.neo4j.graphdb.Node;
+
+/**
+ * The Flight Recorder event for a graph operation. This is only loaded through
+ * {@link OperationEvents}, once it has made sure that the JVM has Flight Recorder.
+ */
+@Name("net.stemmaweb.GraphOperation")
+@Label("Graph Operation")
+@Category("Stemmarest")
+@Description("An expensive operation on the graph of a tradition or section")
+@StackTrace(false)
+class GraphOperationEvent extends Event implements OperationEvents.Span {
+    @Label("Operation")
+    String operation;
+
+    @Label("Tradition")
+    String tradition;
+
+    @Label("Section")
+    String section;
+
+    @Label("Count")
+    long count;
+
+    @Label("Counted")
+    String counted;
+
+    static OperationEvents.Span begin(String operation, String tradId, String sectionId) {
+        GraphOperationEvent event = new GraphOperationEvent();
+        if (event.isEnabled()) {
+            event.operation = operation;
+            event.tradition = tradId;
+            event.section = sectionId;
+            event.begin();
+        }
+        return event;
+    }
+
+    static OperationEvents.Span begin(String operation, Node sectionNode) {
+        GraphOperationEvent event = new GraphOperationEvent();
+        if (event.isEnabled()) {
+            event.operation = operation;
+            Node traditionNode = VariantGraphService.getTraditionNode(sectionNode);
+            if (traditionNode != null)
+                event.tradition = traditionNode.getProperty("id").toString();
+            event.section = String.valueOf(sectionNode.getId());
+            event.begin();
+        }
+        return event;
+    }
+
+    @Override
+    public boolean isRecording() {
+        return isEnabled();
+    }
+
+    @Override
+    public void setCount(long count, String counted) {
+        this.count = count;
+        this.counted = counted;
+    }
+
+    @Override
+    public void close() {
+        commit();
+    }
+}
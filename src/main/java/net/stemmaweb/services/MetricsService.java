@@ -0,0 +1,256 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.model.QueryStatisticsModel;
+import org.neo4j.graphdb.DependencyResolver;
+import org.neo4j.graphdb.DependencyResolver.SelectionStrategy;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.io.fs.FileSystemAbstraction;
+import org.neo4j.io.pagecache.monitoring.PageCacheCounters;
+import org.neo4j.kernel.impl.transaction.stats.TransactionCounters;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects timings and sizes of the requests that the server handles, and writes them out
+ * together with some figures from the database in the Prometheus text format. Requests are
+ * counted per endpoint, that is per HTTP method and path template, so that the number of
+ * series stays fixed however many traditions there are.
+ */
+public class MetricsService {
+    // The upper bounds of the latency buckets, in seconds
+    private static final double[] LATENCY_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+    // The upper bounds of the size buckets, in bytes
+    private static final double[] SIZE_BUCKETS = {256, 1024, 4096, 16384, 65536, 262144, 1048576, 4194304, 16777216};
+
+    private static final ConcurrentMap<List<String>, EndpointMetrics> endpoints = new ConcurrentHashMap<>();
+
+    // A histogram with fixed buckets; each bucket counts the observations at or below its bound
+    private static class Histogram {
+        private final double[] bounds;
+        private final AtomicLongArray counts;
+        private final LongAdder sum = new LongAdder();
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.counts = new AtomicLongArray(bounds.length + 1);
+        }
+
+        // Observations are recorded in whole units (nanoseconds or bytes) and scaled on output
+        void observe(long value, double scale) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i] * scale) i++;
+            counts.incrementAndGet(i);
+            sum.add(value);
+        }
+    }
+
+    private static class EndpointMetrics {
+        private final Histogram latency = new Histogram(LATENCY_BUCKETS);
+        private final Histogram requestSize = new Histogram(SIZE_BUCKETS);
+        private final Histogram responseSize = new Histogram(SIZE_BUCKETS);
+        private final ConcurrentMap<Integer, LongAdder> errors = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Record a request that has been handled.
+     *
+     * @param method        - the HTTP method of the request
+     * @param endpoint      - the path template that the request matched
+     * @param status        - the HTTP status of the response
+     * @param nanos         - the time taken, from receiving the request to writing the last of the response
+     * @param requestBytes  - the size of the request body
+     * @param responseBytes - the size of the response body
+     */
+    public static void record(String method, String endpoint, int status, long nanos,
+                              long requestBytes, long responseBytes) {
+        EndpointMetrics em = endpoints.computeIfAbsent(Arrays.asList(method, endpoint), k -> new EndpointMetrics());
+        em.latency.observe(nanos, 1e9);
+        em.requestSize.observe(requestBytes, 1);
+        em.responseSize.observe(responseBytes, 1);
+        if (status >= 400)
+            em.errors.computeIfAbsent(status, k -> new LongAdder()).increment();
+    }
+
+    /**
+     * Forget everything that has been recorded.
+     */
+    public static void clear() {
+        endpoints.clear();
+    }
+
+    /**
+     * Write out the metrics in the Prometheus text format.
+     *
+     * @param db - the database to report on
+     * @return the metrics
+     */
+    public static String render(GraphDatabaseService db) {
+        StringBuilder sb = new StringBuilder();
+        // Sort the endpoints so that the output is stable from one scrape to the next
+        TreeMap<String, Map.Entry<List<String>, EndpointMetrics>> sorted = new TreeMap<>();
+        for (Map.Entry<List<String>, EndpointMetrics> e : endpoints.entrySet())
+            sorted.put(e.getKey().get(1) + " " + e.getKey().get(0), e);
+
+        header(sb, "stemmarest_http_request_duration_seconds", "histogram",
+                "Time taken to handle a request, including writing the response");
+        sorted.values().forEach(e -> histogram(sb, "stemmarest_http_request_duration_seconds",
+                labels(e.getKey()), e.getValue().latency, 1e9));
+        header(sb, "stemmarest_http_request_size_bytes", "histogram", "Size of the request body");
+        sorted.values().forEach(e -> histogram(sb, "stemmarest_http_request_size_bytes",
+                labels(e.getKey()), e.getValue().requestSize, 1));
+        header(sb, "stemmarest_http_response_size_bytes", "histogram", "Size of the response body");
+        sorted.values().forEach(e -> histogram(sb, "stemmarest_http_response_size_bytes",
+                labels(e.getKey()), e.getValue().responseSize, 1));
+        header(sb, "stemmarest_http_errors_total", "counter", "Requests answered with an error status");
+        for (Map.Entry<List<String>, EndpointMetrics> e : sorted.values())
+            for (Map.Entry<Integer, LongAdder> err : new TreeMap<>(e.getValue().errors).entrySet())
+                sample(sb, "stemmarest_http_errors_total",
+                        labels(e.getKey()) + ",status=\"" + err.getKey() + "\"", err.getValue().sum());
+
+        // The application's Cypher queries
+        List<QueryStatisticsModel> queries = QueryService.getStatistics();
+        header(sb, "stemmarest_cypher_executions_total", "counter", "Runs of each of the application's Cypher queries");
+        queries.forEach(q -> sample(sb, "stemmarest_cypher_executions_total",
+                "query=\"" + q.getName() + "\"", q.getExecutions()));
+        header(sb, "stemmarest_cypher_plan_cache_hits_total", "counter", "Plan cache lookups that found the query's plan");
+        queries.forEach(q -> sample(sb, "stemmarest_cypher_plan_cache_hits_total",
+                "query=\"" + q.getName() + "\"", q.getPlanCacheHits()));
+        header(sb, "stemmarest_cypher_plannings_total", "counter", "Plan cache lookups that had to plan the query");
+        queries.forEach(q -> sample(sb, "stemmarest_cypher_plannings_total",
+                "query=\"" + q.getName() + "\"", q.getPlanCacheMisses()));
+
+        // The graph traversals, by name
+        Map<String, long[]> traversals = TraversalMonitor.getTotals();
+        String[][] traversalMetrics = {
+                {"stemmarest_traversal_runs_total", "Runs of each named graph traversal"},
+                {"stemmarest_traversal_nodes_total", "Nodes visited by each named graph traversal"},
+                {"stemmarest_traversal_paths_total", "Paths returned by each named graph traversal"},
+                {"stemmarest_traversal_relationships_total", "Relationships traversed by each named graph traversal"},
+                {"stemmarest_traversal_seconds_total", "Time spent running each named graph traversal"}};
+        for (int i = 0; i < traversalMetrics.length; i++) {
+            header(sb, traversalMetrics[i][0], "counter", traversalMetrics[i][1]);
+            for (Map.Entry<String, long[]> e : traversals.entrySet()) {
+                long value = e.getValue()[i];
+                sample(sb, traversalMetrics[i][0], "traversal=\"" + escape(e.getKey()) + "\"",
+                        i == 4 ? format(value / 1e9) : String.valueOf(value));
+            }
+        }
+
+        // The admission control, by class of work
+        Map<AdmissionControl.WorkClass, long[]> admission = AdmissionControl.getFigures();
+        String[][] admissionMetrics = {
+                {"stemmarest_admission_limit", "gauge", "Requests of each class of work that may be handled at once, or 0 for no limit"},
+                {"stemmarest_admission_in_flight", "gauge", "Requests of each class of work being handled"},
+                {"stemmarest_admission_queue_depth", "gauge", "Requests of each class of work waiting to be admitted"},
+                {"stemmarest_admission_admitted_total", "counter", "Requests of each class of work admitted"},
+                {"stemmarest_admission_rejected_total", "counter", "Requests of each class of work turned away with 503"},
+                {"stemmarest_admission_wait_seconds_total", "counter", "Time spent by requests of each class of work waiting to be admitted"}};
+        for (int i = 0; i < admissionMetrics.length; i++) {
+            header(sb, admissionMetrics[i][0], admissionMetrics[i][1], admissionMetrics[i][2]);
+            for (Map.Entry<AdmissionControl.WorkClass, long[]> e : admission.entrySet()) {
+                long value = e.getValue()[i];
+                sample(sb, admissionMetrics[i][0], "class=\"" + e.getKey().name().toLowerCase() + "\"",
+                        i == 5 ? format(value / 1e9) : String.valueOf(value));
+            }
+        }
+
+        // The requests stopped by their budgets
+        header(sb, "stemmarest_budget_exceeded_total", "counter", "Requests stopped for using up each budget");
+        RequestBudget.getExceeded().forEach((k, v) -> sample(sb, "stemmarest_budget_exceeded_total",
+                "budget=\"" + k + "\"", v));
+
+        // The edit locks
+        long[] locks = EditLockService.getFigures();
+        header(sb, "stemmarest_edit_locks_total", "counter", "Changes that got their section or tradition locks");
+        sample(sb, "stemmarest_edit_locks_total", null, locks[0]);
+        header(sb, "stemmarest_edit_lock_wait_seconds_total", "counter", "Time spent by changes waiting for their locks");
+        sample(sb, "stemmarest_edit_lock_wait_seconds_total", null, format(locks[1] / 1e9));
+        header(sb, "stemmarest_edit_lock_timeouts_total", "counter", "Changes turned away for not getting their locks in time");
+        sample(sb, "stemmarest_edit_lock_timeouts_total", null, locks[2]);
+        header(sb, "stemmarest_transient_retries_total", "counter", "Changes retried after a transient lock conflict in the database");
+        sample(sb, "stemmarest_transient_retries_total", null, locks[3]);
+        header(sb, "stemmarest_edit_locks", "gauge", "Locks kept for the sections and traditions being changed");
+        sample(sb, "stemmarest_edit_locks", null, locks[4]);
+
+        // The change feed
+        long[] feed = ChangeFeedService.getFigures();
+        header(sb, "stemmarest_changes_logged_total", "counter", "Changes to sections written to the change feed");
+        sample(sb, "stemmarest_changes_logged_total", null, feed[0]);
+        header(sb, "stemmarest_change_streams", "gauge", "Clients following a change feed");
+        sample(sb, "stemmarest_change_streams", null, feed[1]);
+
+        // The database. Each figure is left out if the database doesn't provide it.
+        DependencyResolver deps = ((GraphDatabaseAPI) db).getDependencyResolver();
+        try {
+            PageCacheCounters pageCache = deps.resolveDependency(PageCacheCounters.class, SelectionStrategy.FIRST);
+            header(sb, "neo4j_page_cache_hits_total", "counter", "Page cache lookups that found the page in memory");
+            sample(sb, "neo4j_page_cache_hits_total", null, pageCache.hits());
+            header(sb, "neo4j_page_cache_faults_total", "counter", "Page cache lookups that had to read from disk");
+            sample(sb, "neo4j_page_cache_faults_total", null, pageCache.faults());
+        } catch (RuntimeException ignored) {}
+        try {
+            TransactionCounters transactions = deps.resolveDependency(TransactionCounters.class, SelectionStrategy.FIRST);
+            header(sb, "neo4j_open_transactions", "gauge", "Transactions currently open");
+            sample(sb, "neo4j_open_transactions", null, transactions.getNumberOfActiveTransactions());
+        } catch (RuntimeException ignored) {}
+        try {
+            FileSystemAbstraction fs = deps.resolveDependency(FileSystemAbstraction.class, SelectionStrategy.FIRST);
+            long storeSize = directorySize(fs, ((GraphDatabaseAPI) db).databaseLayout().databaseDirectory());
+            header(sb, "neo4j_store_size_bytes", "gauge", "Total size of the database files on disk");
+            sample(sb, "neo4j_store_size_bytes", null, storeSize);
+        } catch (RuntimeException ignored) {}
+        return sb.toString();
+    }
+
+    // The total size of the files in a directory and the directories below it, as the database
+    // sees them; files that disappear while they are being counted count as empty
+    private static long directorySize(FileSystemAbstraction fs, File directory) {
+        File[] files = fs.listFiles(directory);
+        if (files == null) return 0;
+        long size = 0;
+        for (File f : files)
+            size += fs.isDirectory(f) ? directorySize(fs, f) : fs.getFileSize(f);
+        return size;
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, Object value) {
+        sb.append(name);
+        if (labels != null)
+            sb.append('{').append(labels).append('}');
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static void histogram(StringBuilder sb, String name, String labels, Histogram h, double scale) {
+        long cumulative = 0;
+        for (int i = 0; i <= h.bounds.length; i++) {
+            cumulative += h.counts.get(i);
+            String le = i < h.bounds.length ? format(h.bounds[i]) : "+Inf";
+            sample(sb, name + "_bucket", labels + ",le=\"" + le + "\"", cumulative);
+        }
+        sb.append(name).append("_sum{").append(labels).append("} ").append(format(h.sum.sum() / scale)).append('\n');
+        sample(sb, name + "_count", labels, cumulative);
+    }
+
+    private static String labels(List<String> key) {
+        return String.format("method=\"%s\",endpoint=\"%s\"", escape(key.get(0)), escape(key.get(1)));
+    }
+
+    private static String format(double d) {
+        return d == Math.rint(d) && !Double.isInfinite(d) ? String.valueOf((long) d) : String.valueOf(d);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
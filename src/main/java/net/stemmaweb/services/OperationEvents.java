@@ -0,0 +1,91 @@
+package net.stemmaweb.services;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * Emits Java Flight Recorder events around the expensive graph operations - rank
+ * recalculation, clustering, normalization, alignment and variant list building, and the
+ * import and export of sections - so that a recording taken on a live server shows which
+ * tradition and section each operation worked on, how long it took and how much it dealt
+ * with. The events are of type net.stemmaweb.GraphOperation and are only written while a
+ * recording with that event enabled is running; otherwise, or on a JVM without Flight
+ * Recorder, an operation costs no more than the check whether it should be recorded.
+ *
+ * An operation is begun with one of the begin methods and ended by closing the span that
+ * it returns, so that it can be used in a try-with-resources block.
+ */
+public class OperationEvents {
+    private static final boolean AVAILABLE = flightRecorderAvailable();
+
+    /**
+     * An operation that is under way.
+     */
+    public interface Span extends AutoCloseable {
+        /**
+         * @return true if the operation is being recorded, i.e. if it is worth working out
+         * figures to set on it
+         */
+        boolean isRecording();
+
+        /**
+         * Set the number of entities that the operation dealt with.
+         *
+         * @param count   - the number of entities
+         * @param counted - what was counted, e.g. "readings" or "bytes"
+         */
+        void setCount(long count, String counted);
+
+        /**
+         * End the operation, writing out its event if it is being recorded.
+         */
+        @Override
+        void close();
+    }
+
+    // The span for operations that aren't recorded
+    private static final Span NONE = new Span() {
+        @Override
+        public boolean isRecording() {
+            return false;
+        }
+
+        @Override
+        public void setCount(long count, String counted) {}
+
+        @Override
+        public void close() {}
+    };
+
+    /**
+     * Begin an operation on the given tradition and section.
+     *
+     * @param operation - the name of the operation
+     * @param tradId    - the ID of the tradition, or null
+     * @param sectionId - the ID of the section, or null if the operation is on the whole tradition
+     * @return the span of the operation
+     */
+    public static Span begin(String operation, String tradId, String sectionId) {
+        return AVAILABLE ? GraphOperationEvent.begin(operation, tradId, sectionId) : NONE;
+    }
+
+    /**
+     * Begin an operation on the given section. The tradition and section IDs are only looked
+     * up if the operation is recorded, and this must be called within a transaction.
+     *
+     * @param operation   - the name of the operation
+     * @param sectionNode - the section node
+     * @return the span of the operation
+     */
+    public static Span begin(String operation, Node sectionNode) {
+        return AVAILABLE ? GraphOperationEvent.begin(operation, sectionNode) : NONE;
+    }
+
+    private static boolean flightRecorderAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+}
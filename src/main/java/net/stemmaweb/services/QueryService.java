@@ -0,0 +1,169 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.model.QueryStatisticsModel;
+import org.neo4j.cypher.internal.StringCacheMonitor;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Result;
+import org.neo4j.helpers.collection.Pair;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.kernel.monitoring.Monitors;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the Cypher queries that the application needs. Every query is fixed text with its
+ * values passed as parameters, so that Neo4j plans it once and takes the plan from its
+ * cache from then on, whichever tradition or stemma it is run for; this also means that no
+ * value from a request can change what a query does. The service counts how often each
+ * query is run and how long it takes, and listens to Neo4j's query plan cache to count how
+ * often each query found its plan there and how often it had to be planned.
+ */
+public class QueryService {
+
+    /**
+     * The queries that can be run.
+     */
+    public enum Query {
+        // The named stemma of a tradition; takes tradId and name, returns s
+        STEMMA("MATCH (:TRADITION {id:$tradId})-[:HAS_STEMMA]->(s:STEMMA {name:$name}) RETURN s"),
+        // A witness in the named stemma of a tradition; takes tradId, name and sigil, returns s and w
+        STEMMA_WITNESS("MATCH (:TRADITION {id:$tradId})-[:HAS_STEMMA]->(s:STEMMA {name:$name})"
+                + "-[:HAS_WITNESS]->(w:WITNESS {sigil:$sigil}) RETURN s, w"),
+        // All the stemmata of a tradition; takes tradId, returns s
+        TRADITION_STEMMATA("MATCH (:TRADITION {id:$tradId})-[:HAS_STEMMA]->(s:STEMMA) RETURN s"),
+        // The transmission links of the named stemma; takes name, returns a and b
+        STEMMA_TRANSMISSIONS("MATCH (a:WITNESS)-[:TRANSMITTED {hypothesis:$name}]->(b:WITNESS) RETURN a, b"),
+        // The clusters of readings in a section that are joined by relations of the given types;
+        // takes sectionId (a number) and types (a list of names), returns nodeId and setId
+        RELATED_CLUSTERS("CALL algo.unionFind.stream("
+                + "'MATCH (n:READING {section_id:$sectionId}) RETURN id(n) AS id', "
+                + "'MATCH (n:READING {section_id:$sectionId})-[r:RELATED]-(m) WHERE r.type IN $types "
+                + "RETURN id(n) AS source, id(m) AS target', "
+                + "{graph:'cypher', params:{sectionId:$sectionId, types:$types}}) YIELD nodeId, setId");
+
+        private final String text;
+        private final AtomicLong executions = new AtomicLong();
+        private final AtomicLong cacheHits = new AtomicLong();
+        private final AtomicLong cacheMisses = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+
+        Query(String text) {
+            this.text = text;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    private static final Map<String, Query> byText = new HashMap<>();
+    static {
+        for (Query q : Query.values())
+            byText.put(q.text, q);
+    }
+
+    // The databases whose plan cache we are listening to
+    private static final Set<GraphDatabaseService> monitored =
+            Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    // Counts the plan cache lookups of our queries. Neo4j keys its plan cache by query text
+    // and parameter types, and calls this in the thread that runs the query; the text has the
+    // Cypher version put in front of it, e.g. "CYPHER 3.5      MATCH ...".
+    private static final Pattern CYPHER_OPTIONS = Pattern.compile("^CYPHER\\s+\\S+\\s+");
+
+    private static class PlanCacheListener implements StringCacheMonitor {
+        private static void count(Pair<String, scala.collection.immutable.Map<String, Class<?>>> key,
+                                  boolean hit) {
+            Query q = byText.get(CYPHER_OPTIONS.matcher(key.first()).replaceFirst(""));
+            if (q != null)
+                (hit ? q.cacheHits : q.cacheMisses).incrementAndGet();
+        }
+
+        @Override
+        public void cacheHit(Pair<String, scala.collection.immutable.Map<String, Class<?>>> key) {
+            count(key, true);
+        }
+
+        @Override
+        public void cacheMiss(Pair<String, scala.collection.immutable.Map<String, Class<?>>> key) {
+            count(key, false);
+        }
+
+        // A plan that has gone stale is planned again
+        @Override
+        public void cacheRecompile(Pair<String, scala.collection.immutable.Map<String, Class<?>>> key) {
+            count(key, false);
+        }
+
+        @Override
+        public void cacheDiscard(Pair<String, scala.collection.immutable.Map<String, Class<?>>> key,
+                                 String query, int secondsSinceReplan) {
+        }
+
+        @Override
+        public void cacheFlushDetected(long sizeBeforeFlush) {
+        }
+    }
+
+    private static void monitor(GraphDatabaseService db) {
+        if (!(db instanceof GraphDatabaseAPI) || !monitored.add(db))
+            return;
+        ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(Monitors.class)
+                .addMonitorListener(new PlanCacheListener());
+    }
+
+    /**
+     * Run one of the queries.
+     * NOTE: For use inside a transaction
+     *
+     * @param db     - the database to query
+     * @param query  - the query to run
+     * @param params - the values of the query's parameters
+     * @return the query result
+     */
+    public static Result execute(GraphDatabaseService db, Query query, Map<String, Object> params) {
+        monitor(db);
+        long start = System.nanoTime();
+        try {
+            return db.execute(query.text, params);
+        } finally {
+            query.executions.incrementAndGet();
+            query.nanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Make a map of query parameters out of alternating names and values.
+     *
+     * @param namesAndValues - a parameter name, then its value, then the next name, and so on
+     * @return the parameter map
+     */
+    public static Map<String, Object> params(Object... namesAndValues) {
+        Map<String, Object> result = new HashMap<>();
+        for (int i = 0; i + 1 < namesAndValues.length; i += 2)
+            result.put(namesAndValues[i].toString(), namesAndValues[i + 1]);
+        return result;
+    }
+
+    /**
+     * Returns the counts for each query that has been run since the application started.
+     * The plan cache counts only cover the databases that the queries have been run against.
+     *
+     * @return a list of query statistics
+     */
+    public static List<QueryStatisticsModel> getStatistics() {
+        List<QueryStatisticsModel> result = new ArrayList<>();
+        for (Query q : Query.values()) {
+            QueryStatisticsModel qsm = new QueryStatisticsModel();
+            qsm.setName(q.name());
+            qsm.setExecutions(q.executions.get());
+            qsm.setPlanCacheHits(q.cacheHits.get());
+            qsm.setPlanCacheMisses(q.cacheMisses.get());
+            qsm.setTotalMillis(q.nanos.get() / 1000000);
+            result.add(qsm);
+        }
+        return result;
+    }
+}
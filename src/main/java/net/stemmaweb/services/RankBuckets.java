@@ -0,0 +1,166 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.model.AlignmentModel;
+import net.stemmaweb.model.ReadingModel;
+import net.stemmaweb.model.WitnessTokensModel;
+import net.stemmaweb.rest.ERelations;
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * The readings of a section grouped by rank, as they would stand in the section's alignment
+ * table, together with the number of witnesses that have a gap at each rank. This is all that
+ * the majority text and the common readings need from the alignment, and it can be gathered
+ * from the witness sequences of a {@link WitnessSequenceIndex} without building the table
+ * itself, looking only at the part of each sequence that falls within the ranks wanted.
+ */
+class RankBuckets {
+
+    // The readings found at a single rank, with the number of witnesses that have a gap there
+    static class Bucket {
+        // The readings in the order in which they first appear in the sorted witness rows
+        private final Set<Long> readings = new LinkedHashSet<>();
+        private int gaps = 0;
+
+        Set<Long> getReadings() {
+            return readings;
+        }
+
+        int getGaps() {
+            return gaps;
+        }
+    }
+
+    private final long fromRank;
+    private final long toRank;
+    private final TreeMap<Long, Bucket> buckets = new TreeMap<>();
+    private final Set<Long> lacunae = new HashSet<>();
+
+    private RankBuckets(long fromRank, long toRank) {
+        this.fromRank = fromRank;
+        this.toRank = toRank;
+        for (long rank = fromRank; rank <= toRank; rank++)
+            buckets.put(rank, new Bucket());
+    }
+
+    /**
+     * Gather the readings of the given section between the given ranks, inclusive, from the
+     * section's witness sequences.
+     * NOTE: For use inside a transaction
+     *
+     * @param sectionNode - the section in question
+     * @param index       - the section's witness index
+     * @param fromRank    - the first rank to gather
+     * @param toRank      - the last rank to gather
+     * @return the readings grouped by rank, or null if a witness path forks, in which case
+     * the alignment table has to be used instead
+     */
+    static RankBuckets fromSequences(Node sectionNode, WitnessSequenceIndex index, long fromRank, long toRank) {
+        GraphDatabaseService db = sectionNode.getGraphDatabase();
+        Node endNode = sectionNode.getSingleRelationship(ERelations.HAS_END, Direction.OUTGOING).getEndNode();
+        long length = (long) endNode.getProperty("rank") - 1;
+        RankBuckets result = new RankBuckets(Math.max(fromRank, 1), Math.min(toRank, length));
+
+        // Lay out the witness rows in the order the alignment table would have them
+        TreeMap<String, long[]> rows = new TreeMap<>();
+        for (Node w : DatabaseService.getRelated(VariantGraphService.getTraditionNode(sectionNode), ERelations.HAS_WITNESS)) {
+            String sigil = w.getProperty("sigil").toString();
+            long[] base = index.getSequence(sigil, Collections.emptyList());
+            if (base == null) return null;
+            rows.put(sigil, base);
+            for (String layer : index.getLayers(sigil)) {
+                long[] layered = index.getSequence(sigil, Collections.singletonList(layer));
+                if (layered == null) return null;
+                rows.put(String.format("%s (%s)", sigil, layer), layered);
+            }
+        }
+
+        // Each reading is looked up only once, however many witnesses have it
+        Map<Long, Long> ranks = new HashMap<>();
+        Function<Long, Long> rankOf = id -> ranks.computeIfAbsent(id, k -> {
+            Node n = db.getNodeById(k);
+            if ((Boolean) n.getProperty("is_lacuna", false))
+                result.lacunae.add(k);
+            return (Long) n.getProperty("rank");
+        });
+        for (long[] row : rows.values()) {
+            // Rows for witnesses that aren't in this section are left out
+            if (row.length == 0 || row[0] == endNode.getId()) continue;
+            // The ranks only go up along a witness, so we can go straight to the first reading
+            // in the window, and stop after the last
+            int low = 0, high = row.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (rankOf.apply(row[mid]) < result.fromRank) low = mid + 1;
+                else high = mid;
+            }
+            long position = low == 0 ? 0 : rankOf.apply(row[low - 1]);
+            for (int i = low; i < row.length && position < result.toRank; i++) {
+                long id = row[i];
+                if (id == endNode.getId()) break;
+                long rank = rankOf.apply(id);
+                // Fill the gap up to this reading's rank, with the reading itself if it is a lacuna
+                Long filler = result.lacunae.contains(id) ? id : null;
+                for (; position < Math.min(rank - 1, result.toRank); position++)
+                    result.add(position + 1, filler);
+                if (rank <= result.toRank)
+                    result.add(++position, id);
+            }
+            for (; position < result.toRank; position++)
+                result.add(position + 1, null);
+        }
+        return result;
+    }
+
+    /**
+     * Gather the readings between the given ranks, inclusive, from an alignment table.
+     *
+     * @param am       - the alignment table
+     * @param fromRank - the first rank to gather
+     * @param toRank   - the last rank to gather
+     * @return the readings grouped by rank
+     */
+    static RankBuckets fromAlignment(AlignmentModel am, long fromRank, long toRank) {
+        RankBuckets result = new RankBuckets(Math.max(fromRank, 1), Math.min(toRank, am.getLength()));
+        for (WitnessTokensModel wtm : am.getAlignment()) {
+            for (long rank = result.fromRank; rank <= result.toRank; rank++) {
+                ReadingModel rm = wtm.getTokens().get((int) rank - 1);
+                Long id = rm == null ? null : Long.valueOf(rm.getId());
+                if (rm != null && rm.getIs_lacuna())
+                    result.lacunae.add(id);
+                result.add(rank, id);
+            }
+        }
+        return result;
+    }
+
+    private void add(long rank, Long reading) {
+        if (rank < fromRank || rank > toRank) return;
+        Bucket b = buckets.get(rank);
+        if (reading == null)
+            b.gaps++;
+        else
+            b.readings.add(reading);
+    }
+
+    /**
+     * Returns the gathered ranks in order, with the readings at each.
+     *
+     * @return a map of rank to bucket
+     */
+    SortedMap<Long, Bucket> getBuckets() {
+        return buckets;
+    }
+
+    /**
+     * Returns whether the given reading is a lacuna.
+     *
+     * @param reading - the ID of a reading that was gathered
+     * @return true if it is a lacuna
+     */
+    boolean isLacuna(Long reading) {
+        return lacunae.contains(reading);
+    }
+}
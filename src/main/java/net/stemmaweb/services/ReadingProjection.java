@@ -0,0 +1,154 @@
+package net.stemmaweb.services;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import org.neo4j.graphdb.*;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Writes a list of readings out as JSON with only the requested fields, straight from the
+ * database to the response. Each reading's properties are fetched in one go, and anything
+ * that needs more than that, such as the reading's witnesses, is only worked out if it was
+ * asked for. The field names are those of the ReadingModel; string and number fields are left
+ * out where the reading doesn't have them, while true/false fields are always given.
+ */
+public class ReadingProjection {
+    /**
+     * The fields that may be requested.
+     */
+    public static final List<String> FIELDS = Collections.unmodifiableList(Arrays.asList(
+            "id", "section", "rank", "text", "normal_form", "display", "language", "lexemes",
+            "annotation", "extra", "authority", "is_common", "is_start", "is_end", "is_lacuna",
+            "is_lemma", "is_emendation", "is_nonsense", "is_ph", "grammar_invalid", "join_next",
+            "join_prior", "witnesses"));
+    private static final Set<String> STRING_FIELDS = new HashSet<>(Arrays.asList(
+            "text", "normal_form", "display", "language", "lexemes", "annotation", "extra", "authority"));
+    private static final Set<String> BOOLEAN_FIELDS = new HashSet<>(Arrays.asList(
+            "is_start", "is_end", "is_lacuna", "is_lemma", "is_nonsense", "is_ph", "join_next", "join_prior"));
+    private static final JsonFactory factory = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    private final List<String> fields;
+
+    /**
+     * Something that yields the readings to write, from within the transaction in which
+     * they are written.
+     */
+    public interface ReadingSource {
+        Iterable<Node> readings() throws Exception;
+    }
+
+    private ReadingProjection(List<String> fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * Make a projection from a comma-separated list of field names.
+     *
+     * @param spec - the list of fields, e.g. "id,text,rank"
+     * @return the projection
+     * @throws IllegalArgumentException if no fields or an unknown field is given
+     */
+    public static ReadingProjection parse(String spec) {
+        LinkedHashSet<String> requested = new LinkedHashSet<>();
+        for (String f : spec.split(",")) {
+            String field = f.trim();
+            if (field.isEmpty())
+                continue;
+            if (!FIELDS.contains(field))
+                throw new IllegalArgumentException("Unknown reading field requested; the fields are "
+                        + String.join(", ", FIELDS));
+            requested.add(field);
+        }
+        if (requested.isEmpty())
+            throw new IllegalArgumentException("No reading fields requested");
+        return new ReadingProjection(new ArrayList<>(requested));
+    }
+
+    /**
+     * Returns a response body that writes the given readings as a JSON array.
+     *
+     * @param db     - the database in use
+     * @param source - the readings to write
+     * @return the response body
+     */
+    public StreamingOutput stream(GraphDatabaseService db, ReadingSource source) {
+        return os -> {
+            try (Transaction tx = db.beginTx();
+                 JsonGenerator json = factory.createGenerator(os, JsonEncoding.UTF8)) {
+                json.writeStartArray();
+                for (Node n : source.readings())
+                    write(json, n);
+                json.writeEndArray();
+                tx.success();
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                e.printStackTrace();
+                throw new WebApplicationException(e.getMessage(), e, Response.Status.INTERNAL_SERVER_ERROR);
+            }
+        };
+    }
+
+    private void write(JsonGenerator json, Node n) throws IOException {
+        Map<String, Object> props = n.getAllProperties();
+        json.writeStartObject();
+        for (String field : fields) {
+            if (STRING_FIELDS.contains(field)) {
+                if (props.containsKey(field))
+                    json.writeStringField(field, props.get(field).toString());
+            } else if (BOOLEAN_FIELDS.contains(field)) {
+                json.writeBooleanField(field, props.getOrDefault(field, false).equals(true));
+            } else switch (field) {
+                case "id":
+                    json.writeStringField(field, String.valueOf(n.getId()));
+                    break;
+                case "section":
+                    if (props.containsKey("section_id"))
+                        json.writeStringField(field, props.get("section_id").toString());
+                    break;
+                case "rank":
+                    if (props.containsKey("rank"))
+                        json.writeNumberField(field, ((Number) props.get("rank")).longValue());
+                    break;
+                case "is_common":
+                    // As with the ReadingModel, the normalized commonality takes precedence
+                    json.writeBooleanField(field,
+                            props.getOrDefault("ncommon", props.getOrDefault("is_common", false)).equals(true));
+                    break;
+                case "is_emendation":
+                    json.writeBooleanField(field, n.hasLabel(Nodes.EMENDATION));
+                    break;
+                case "grammar_invalid":
+                    if (props.containsKey(field))
+                        json.writeBooleanField(field, props.get(field).equals(true));
+                    break;
+                case "witnesses":
+                    json.writeArrayFieldStart(field);
+                    for (String w : witnesses(n))
+                        json.writeString(w);
+                    json.writeEndArray();
+                    break;
+            }
+        }
+        json.writeEndObject();
+    }
+
+    // The witnesses of the reading, labelled in the same way as for the ReadingModel
+    private static List<String> witnesses(Node n) {
+        TreeSet<String> collected = new TreeSet<>();
+        for (Relationship r : n.getRelationships(Direction.BOTH, ERelations.SEQUENCE, ERelations.NSEQUENCE))
+            for (Map.Entry<String, Object> prop : r.getAllProperties().entrySet())
+                for (String sigil : (String[]) prop.getValue())
+                    collected.add(prop.getKey().equals("witnesses") ? sigil : String.format("%s (%s)", sigil, prop.getKey()));
+        return new ArrayList<>(collected);
+    }
+}
@@ -0,0 +1,185 @@
+package net.stemmaweb.services;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+
+import java.text.Normalizer;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Finds readings by their text. Exact searches are answered from the database's section text
+ * indexes; other searches use the {@link ReadingTextIndex} of each section searched, where
+ * prefix searches are lookups, and regular expressions are tested against each distinct
+ * text in the index rather than against each reading.
+ *
+ * A badly written regular expression can take exponential time even on a short text, so a
+ * search stops with an error once its regular expression has been running for longer than the
+ * environment variable STEMMAREST_REGEX_MS says, by default two seconds.
+ */
+public class ReadingSearchService {
+    public static final String MODE_EXACT = "exact";
+    public static final String MODE_PREFIX = "prefix";
+    public static final String MODE_REGEX = "regex";
+
+    // How many characters a regular expression reads between looks at the clock
+    private static final int CLOCK_INTERVAL = 1024;
+
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+    private static volatile long regexMillis = EnvironmentSettings.getLong("STEMMAREST_REGEX_MS", 2000);
+
+    /**
+     * Search the given sections for readings whose text matches the query.
+     * NOTE: For use inside a transaction
+     *
+     * @param sections  - the sections to search, in the order their results should appear
+     * @param query     - the text to search for
+     * @param mode      - one of "exact", "prefix", or "regex"
+     * @param useNormal - if true, match on the normal form of a reading where it has one
+     * @param fold      - if true, ignore case and diacritics when matching
+     * @return the matching readings, ordered by section and then by rank
+     * @throws IllegalArgumentException if the mode is unknown, or the regular expression is invalid
+     *                                  or takes too long
+     */
+    public static List<Node> search(List<Node> sections, String query, String mode,
+                                    Boolean useNormal, Boolean fold) {
+        TextQuery textQuery = new TextQuery(query, mode, fold);
+        Comparator<Node> byRank = Comparator.comparing((Node x) -> (Long) x.getProperty("rank", 0L))
+                .thenComparing(Node::getId);
+        List<Node> result = new ArrayList<>();
+        for (Node section : sections) {
+            GraphDatabaseService db = section.getGraphDatabase();
+            if (mode.equals(MODE_EXACT) && !fold) {
+                // No need to build the in-memory index for this
+                List<Node> found = ReadingService.findMatchingReadings(section, query, useNormal).stream()
+                        .filter(x -> !x.getProperty("is_start", false).equals(true)
+                                && !x.getProperty("is_end", false).equals(true))
+                        .sorted(byRank).collect(Collectors.toList());
+                result.addAll(found);
+                continue;
+            }
+            NavigableMap<String, Set<Long>> texts = ReadingTextIndex.forSection(section).getTexts(useNormal, fold);
+            List<Node> found = new ArrayList<>();
+            textQuery.matching(texts).forEach(ids -> ids.forEach(id -> found.add(db.getNodeById(id))));
+            found.sort(byRank);
+            result.addAll(found);
+        }
+        return result;
+    }
+
+    /**
+     * A search, ready to be matched against the texts of an index such as {@link ReadingTextIndex}.
+     * A regular expression search has its deadline from the moment it is made.
+     */
+    static class TextQuery {
+        private final String mode;
+        private final String key;
+        private final Pattern regex;
+        private final long deadline;
+
+        /**
+         * @param query - the text to search for
+         * @param mode  - one of "exact", "prefix", or "regex"
+         * @param fold  - if true, the texts to be matched are case- and diacritic-folded
+         * @throws IllegalArgumentException if the mode is unknown or the regular expression is invalid
+         */
+        TextQuery(String query, String mode, Boolean fold) {
+            this.mode = mode;
+            if (mode.equals(MODE_REGEX))
+                // The folded texts have no diacritics, so neither should the pattern; its case is
+                // left alone, since e.g. \W and \w mean different things.
+                regex = fold
+                        ? Pattern.compile(stripDiacritics(query), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE)
+                        : Pattern.compile(query);
+            else if (mode.equals(MODE_EXACT) || mode.equals(MODE_PREFIX))
+                regex = null;
+            else
+                throw new IllegalArgumentException("Unknown search mode " + mode);
+            key = fold ? fold(query) : query;
+            deadline = System.nanoTime() + regexMillis * 1000000;
+        }
+
+        /**
+         * Returns the entries of an index whose texts match.
+         *
+         * @param texts - a sorted map of texts to whatever the index holds for them
+         * @return the values for the matching texts, in the order of their texts
+         * @throws IllegalArgumentException if the regular expression takes too long
+         */
+        <V> Collection<V> matching(NavigableMap<String, V> texts) {
+            switch (mode) {
+                case MODE_EXACT:
+                    return texts.containsKey(key)
+                            ? Collections.singletonList(texts.get(key)) : Collections.emptyList();
+                case MODE_PREFIX:
+                    return texts.subMap(key, true, key + Character.MAX_VALUE, false).values();
+                default:
+                    List<V> matching = new ArrayList<>();
+                    for (Map.Entry<String, V> e : texts.entrySet())
+                        if (regex.matcher(new TimedText(e.getKey(), deadline)).matches())
+                            matching.add(e.getValue());
+                    return matching;
+            }
+        }
+    }
+
+    /**
+     * Reduce a string to lower case without diacritics, for loose comparison.
+     *
+     * @param text - the string to fold
+     * @return the folded string
+     */
+    public static String fold(String text) {
+        return stripDiacritics(text).toLowerCase(Locale.ROOT);
+    }
+
+    private static String stripDiacritics(String text) {
+        return DIACRITICS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("");
+    }
+
+    public static long getRegexMillis() {
+        return regexMillis;
+    }
+
+    public static void setRegexMillis(long millis) {
+        regexMillis = millis;
+    }
+
+    // A text that a regular expression can only read until the search's deadline has passed,
+    // or the thread has been interrupted.
+    private static class TimedText implements CharSequence {
+        private final String text;
+        private final long deadline;
+        private int reads = 0;
+
+        TimedText(String text, long deadline) {
+            this.text = text;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (++reads % CLOCK_INTERVAL == 0
+                    && (System.nanoTime() - deadline > 0 || Thread.currentThread().isInterrupted()))
+                throw new IllegalArgumentException(String.format(
+                        "The regular expression took more than %d ms to match; try a simpler one", regexMillis));
+            return text.charAt(index);
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return text.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+}
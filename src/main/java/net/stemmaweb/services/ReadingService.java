@@ -369,9 +369,46 @@ public class ReadingService {
         }
     }
 
+    /**
+     * Returns the string by which a reading is matched to others for the purposes of
+     * relation scope, i.e. its normal form if requested and present, or else its text.
+     *
+     * @param reading   - the reading in question
+     * @param useNormal - whether the normal form should be preferred
+     * @return the reading's matching text
+     */
+    public static Object matchingText(Node reading, Boolean useNormal) {
+        if (useNormal && reading.hasProperty("normal_form"))
+            return reading.getProperty("normal_form");
+        return reading.getProperty("text", "");
+    }
+
+    /**
+     * Looks up, via the section text indexes where they are online, the readings of a section
+     * whose matching text (see {@link #matchingText(Node, Boolean)}) is equal to the one given.
+     * NOTE: For use inside a transaction
+     *
+     * @param sectionNode - the section to look in
+     * @param text        - the text to look for
+     * @param useNormal   - whether normal forms should be preferred to texts
+     * @return the set of matching readings
+     */
+    public static Set<Node> findMatchingReadings(Node sectionNode, Object text, Boolean useNormal) {
+        Set<Node> result = new HashSet<>();
+        if (useNormal)
+            DatabaseService.findSectionReadings(sectionNode, "normal_form", text)
+                    .forEachRemaining(result::add);
+        DatabaseService.findSectionReadings(sectionNode, "text", text).forEachRemaining(x -> {
+            if (!useNormal || !x.hasProperty("normal_form")) result.add(x);
+        });
+        return result;
+    }
+
     /**
      * Recalculates ranks, starting from startNode, until the ranks stop changing. Note that
-     * the rank on startNode needs to be correct before this is run.
+     * the rank on startNode needs to be correct before this is run. The common readings are
+     * then recalculated at the rank of startNode, and at the ranks that readings have moved
+     * from or to.
      *
      * @param startNode - the reading from which to begin the recalculation
      * @return list of nodes whose ranks were changed
@@ -379,25 +416,59 @@ public class ReadingService {
      */
 
     public static Set<Node> recalculateRank (Node startNode, boolean recalculateAll) throws Exception {
+        return recalculateRank(startNode, recalculateAll, true);
+    }
+
+    /**
+     * Recalculates ranks as above, for a change that may or may not have changed the sequence
+     * links of the section; if it hasn't, e.g. because it only added a relation, the common
+     * readings can be worked out from the kept witness index.
+     *
+     * @param startNode        - the reading from which to begin the recalculation
+     * @param recalculateAll   - whether to recalculate all ranks after startNode
+     * @param sequencesChanged - whether the current transaction may have changed sequence links
+     * @return list of nodes whose ranks were changed
+     * @throws Exception, if the RankCalcEvaluate initialisation fails
+     */
+    public static Set<Node> recalculateRank (Node startNode, boolean recalculateAll, boolean sequencesChanged)
+            throws Exception {
+        Node sectionNode = startNode.getGraphDatabase().getNodeById((Long) startNode.getProperty("section_id"));
+        try (OperationEvents.Span span = OperationEvents.begin("rank-recalculation", sectionNode)) {
+            Map<Node, Long> changed = rerank(startNode, recalculateAll);
+            span.setCount(changed.size(), "readings");
+            long fromRank = (Long) startNode.getProperty("rank");
+            long toRank = fromRank;
+            for (Map.Entry<Node, Long> e : changed.entrySet()) {
+                long newRank = (Long) e.getKey().getProperty("rank");
+                long oldRank = e.getValue() == null ? newRank : e.getValue();
+                fromRank = Math.min(fromRank, Math.min(oldRank, newRank));
+                toRank = Math.max(toRank, Math.max(oldRank, newRank));
+            }
+            VariantGraphService.calculateCommon(sectionNode, fromRank, toRank, sequencesChanged);
+            return changed.keySet();
+        }
+    }
+
+    // Returns the nodes whose ranks were changed, with their previous ranks, if any.
+    private static Map<Node, Long> rerank (Node startNode, boolean recalculateAll) throws Exception {
         RankCalcEvaluate e = new RankCalcEvaluate(startNode, recalculateAll);
         AlignmentTraverse a = new AlignmentTraverse(startNode);
         GraphDatabaseService db = startNode.getGraphDatabase();
 
         // Traverse the sequence graph from our start node, putting a mark on
         // all the nodes we expect to visit
-        db.traversalDescription().depthFirst()
+        TraversalMonitor.traverse("rerank-mark", db.traversalDescription().depthFirst()
                 .expand(a)
-                .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
-                .traverse(startNode).nodes().stream().forEach(x -> x.setProperty("touched", true));
+                .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL), startNode)
+                .nodes().stream().forEach(x -> x.setProperty("touched", true));
 
         // At this point we can start to reassign ranks
-        ResourceIterable<Node> touched = db.traversalDescription().depthFirst()
+        ResourceIterable<Node> touched = TraversalMonitor.traverse("rerank", db.traversalDescription().depthFirst()
                 .expand(a)
                 .evaluator(e)
-                .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
-                .traverse(startNode).nodes();
+                .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL), startNode).nodes();
         // Run the traverser and commit the updated ranks
-        Set<Node> changed = new HashSet<>();
+        Map<Node, Long> changed = new HashMap<>();
         for (Node n : touched.stream().collect(Collectors.toSet())) {
             n.removeProperty("touched");
             if (!n.hasProperty("newrank"))
@@ -405,17 +476,16 @@ public class ReadingService {
                         n.getId(), n.getProperty("text")));
             Long nr = (Long) n.removeProperty("newrank");
             if (!n.hasProperty("rank") || !n.getProperty("rank").equals(nr)) {
-                changed.add(n);
+                changed.put(n, (Long) n.getProperty("rank", null));
                 n.setProperty("rank", nr);
             }
         }
 
         // TEMPORARY: Make sure that we did visit all expected nodes
         Node sectionStart = VariantGraphService.getStartNode(startNode.getProperty("section_id").toString(), db);
-        for (Node n : db.traversalDescription().depthFirst()
+        for (Node n : TraversalMonitor.traverse("rerank-check", db.traversalDescription().depthFirst()
                 .expand(new AlignmentTraverse())
-                .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
-                .traverse(sectionStart).nodes()) {
+                .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL), sectionStart).nodes()) {
             if (n.hasProperty("touched"))
                 throw new Exception ("End node not reached during recalculation!");
         }
@@ -567,10 +637,10 @@ public class ReadingService {
         RankEvaluate rankEvaluator = new RankEvaluate(maxRank);
         for (Node lower : reverse ? secondCluster : firstCluster) {
             boolean followed_sequence = false;
-            for (Relationship r : db.traversalDescription()
+            for (Relationship r : TraversalMonitor.traverse("cyclic-check", db.traversalDescription()
                     .depthFirst()
                     .evaluator(rankEvaluator)
-                    .expand(alignmentEvaluator).traverse(lower).relationships()) {
+                    .expand(alignmentEvaluator), lower).relationships()) {
                 // TODO does this need to include EMENDED links?
                 if (r.getType().name().equals(ERelations.SEQUENCE.name()))
                     followed_sequence = true;
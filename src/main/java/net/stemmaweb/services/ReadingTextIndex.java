@@ -0,0 +1,252 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An inverted index of reading texts and normal forms, kept in memory for each section
+ * that has been searched. An index is built the first time a section is searched, and is
+ * thrown away whenever a transaction creates, changes, or deletes a reading in that section,
+ * so that the next search sees the change; this catches every code path that touches
+ * readings, without any of them having to know about the index.
+ *
+ * The indexes are kept up to a total estimated size given in megabytes by the environment
+ * variable STEMMAREST_TEXT_INDEX_MB, by default 256; beyond that the least recently used are
+ * dropped.
+ */
+public class ReadingTextIndex {
+    // Rough sizes in bytes of what an index holds: a map entry with its key string and its
+    // set of IDs, apart from the key's characters; and an ID in such a set
+    private static final int ENTRY_BYTES = 120;
+    private static final int ID_BYTES = 48;
+
+    private static volatile long maxBytes = EnvironmentSettings.getLong("STEMMAREST_TEXT_INDEX_MB", 256) * 1024 * 1024;
+    private static long cachedBytes = 0;
+    private static final Set<String> INDEXED_KEYS = new HashSet<>(Arrays.asList(
+            "text", "normal_form", "section_id", "is_start", "is_end"));
+
+    // In order of use, least recent first
+    private static final Map<Long, ReadingTextIndex> cache = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true));
+    private static final AtomicLong generation = new AtomicLong();
+
+    // Reading IDs by text, and by normal form (or text, where there is no normal form);
+    // each also case- and diacritic-folded.
+    private final TreeMap<String, Set<Long>> byText = new TreeMap<>();
+    private final TreeMap<String, Set<Long>> byNormal = new TreeMap<>();
+    private final TreeMap<String, Set<Long>> byFoldedText = new TreeMap<>();
+    private final TreeMap<String, Set<Long>> byFoldedNormal = new TreeMap<>();
+    private final long bytes;
+
+    private ReadingTextIndex(Node sectionNode) {
+        VariantGraphService.returnTraditionSection(sectionNode).nodes().stream()
+                .filter(x -> x.hasLabel(Nodes.READING)
+                        && !x.getProperty("is_start", false).equals(true)
+                        && !x.getProperty("is_end", false).equals(true))
+                .forEach(x -> {
+                    String text = x.getProperty("text", "").toString();
+                    String normal = ReadingService.matchingText(x, true).toString();
+                    add(byText, text, x);
+                    add(byNormal, normal, x);
+                    add(byFoldedText, ReadingSearchService.fold(text), x);
+                    add(byFoldedNormal, ReadingSearchService.fold(normal), x);
+                });
+        bytes = estimateBytes(byText) + estimateBytes(byNormal)
+                + estimateBytes(byFoldedText) + estimateBytes(byFoldedNormal);
+    }
+
+    private static long estimateBytes(TreeMap<String, Set<Long>> map) {
+        long result = 0;
+        for (Map.Entry<String, Set<Long>> e : map.entrySet())
+            result += ENTRY_BYTES + 2L * e.getKey().length() + (long) ID_BYTES * e.getValue().size();
+        return result;
+    }
+
+    private static Long asId(Object sectionId) {
+        return ((Number) sectionId).longValue();
+    }
+
+    private static void add(TreeMap<String, Set<Long>> map, String key, Node n) {
+        map.computeIfAbsent(key, k -> new HashSet<>()).add(n.getId());
+    }
+
+    /**
+     * Get the text index for the given section, building it if necessary.
+     * NOTE: For use inside a transaction
+     *
+     * @param sectionNode - the section in question
+     * @return the section's index
+     */
+    public static ReadingTextIndex forSection(Node sectionNode) {
+        ReadingTextIndex index = cache.get(sectionNode.getId());
+        if (index == null) {
+            long before = generation.get();
+            index = new ReadingTextIndex(sectionNode);
+            // Don't keep the index if something was committed while we were building it
+            synchronized (cache) {
+                if (generation.get() == before)
+                    keep(sectionNode.getId(), index);
+            }
+        }
+        return index;
+    }
+
+    // Add an index to the cache, and drop the least recently used ones until the cache is within
+    // its size again; the new index is kept even if it is too big on its own, since it is in use.
+    // NOTE: Must be called while holding the cache lock
+    private static void keep(Long sectionId, ReadingTextIndex index) {
+        drop(sectionId);
+        cache.put(sectionId, index);
+        cachedBytes += index.bytes;
+        Iterator<ReadingTextIndex> eldest = cache.values().iterator();
+        while (cachedBytes > maxBytes && cache.size() > 1) {
+            cachedBytes -= eldest.next().bytes;
+            eldest.remove();
+        }
+    }
+
+    // NOTE: Must be called while holding the cache lock
+    private static void drop(Long sectionId) {
+        ReadingTextIndex dropped = cache.remove(sectionId);
+        if (dropped != null)
+            cachedBytes -= dropped.bytes;
+    }
+
+    /**
+     * Returns the index of texts to reading IDs that should be searched.
+     *
+     * @param useNormal - whether readings should be indexed by their normal forms
+     * @param folded    - whether the texts should be case- and diacritic-folded
+     * @return a sorted map of texts to the IDs of readings with that text
+     */
+    public NavigableMap<String, Set<Long>> getTexts(Boolean useNormal, Boolean folded) {
+        if (useNormal)
+            return Collections.unmodifiableNavigableMap(folded ? byFoldedNormal : byNormal);
+        return Collections.unmodifiableNavigableMap(folded ? byFoldedText : byText);
+    }
+
+    /**
+     * Drop all indexes, e.g. when the application switches to a different database.
+     */
+    public static void clear() {
+        synchronized (cache) {
+            generation.incrementAndGet();
+            cache.clear();
+            cachedBytes = 0;
+        }
+    }
+
+    /**
+     * @return the estimated size in bytes of the indexes that are kept
+     */
+    public static long getCachedBytes() {
+        synchronized (cache) {
+            return cachedBytes;
+        }
+    }
+
+    public static long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public static void setMaxBytes(long bytes) {
+        maxBytes = bytes;
+    }
+
+    // What a transaction changed that the indexes depend on
+    private static class Touched {
+        // Sections where a reading's text or normal form changed, or a reading was added or removed
+        final Set<Long> texts = new HashSet<>();
+        // Sections where, in addition, a reading's rank changed, or which were reordered
+        final Set<Long> sections = new HashSet<>();
+        // Traditions that gained or lost a section, or were deleted
+        final Set<Long> traditions = new HashSet<>();
+
+        void text(Long section) {
+            texts.add(section);
+            sections.add(section);
+        }
+    }
+
+    /**
+     * Register the handler that keeps the indexes, and the {@link ConcordanceIndex}es, up to
+     * date with the given database.
+     *
+     * @param db - the database in use
+     */
+    public static void register(GraphDatabaseService db) {
+        clear();
+        ConcordanceIndex.clear();
+        db.registerTransactionEventHandler(new TransactionEventHandler.Adapter<Touched>() {
+            @Override
+            public Touched beforeCommit(TransactionData data) {
+                Touched touched = new Touched();
+                for (PropertyEntry<Node> pe : data.assignedNodeProperties()) {
+                    if (pe.key().equals("rank")) {
+                        Object section = pe.entity().getProperty("section_id", null);
+                        if (section != null) touched.sections.add(asId(section));
+                    }
+                    if (!INDEXED_KEYS.contains(pe.key())) continue;
+                    if (pe.key().equals("section_id") && pe.previouslyCommitedValue() != null)
+                        touched.text(asId(pe.previouslyCommitedValue()));
+                    Object section = pe.entity().getProperty("section_id", null);
+                    if (section != null) touched.text(asId(section));
+                }
+                for (PropertyEntry<Node> pe : data.removedNodeProperties()) {
+                    if (!INDEXED_KEYS.contains(pe.key())) continue;
+                    if (pe.key().equals("section_id"))
+                        touched.text(asId(pe.previouslyCommitedValue()));
+                    else if (!data.isDeleted(pe.entity())) {
+                        Object section = pe.entity().getProperty("section_id", null);
+                        if (section != null) touched.text(asId(section));
+                    }
+                }
+                // Changes to the sections of a tradition only matter to the concordance
+                for (Relationship r : data.createdRelationships())
+                    touchStructure(r, touched);
+                for (Relationship r : data.deletedRelationships())
+                    touchStructure(r, touched);
+                for (LabelEntry le : data.assignedLabels()) {
+                    if (data.isDeleted(le.node())) continue;
+                    if (le.node().hasLabel(Nodes.TRADITION))
+                        touched.traditions.add(le.node().getId());
+                    else if (le.node().hasLabel(Nodes.SECTION))
+                        touched.sections.add(le.node().getId());
+                }
+                return touched;
+            }
+
+            @Override
+            public void afterCommit(TransactionData data, Touched touched) {
+                if (touched == null) return;
+                if (!touched.texts.isEmpty()) {
+                    synchronized (cache) {
+                        generation.incrementAndGet();
+                        touched.texts.forEach(ReadingTextIndex::drop);
+                    }
+                }
+                if (!touched.sections.isEmpty() || !touched.traditions.isEmpty())
+                    ConcordanceIndex.drop(touched.sections, touched.traditions);
+            }
+        });
+    }
+
+    private static void touchStructure(Relationship r, Touched touched) {
+        if (r.isType(ERelations.PART))
+            touched.traditions.add(r.getStartNodeId());
+        else if (r.isType(ERelations.NEXT)) {
+            touched.sections.add(r.getStartNodeId());
+            touched.sections.add(r.getEndNodeId());
+        }
+    }
+}
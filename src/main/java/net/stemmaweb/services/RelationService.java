@@ -123,10 +123,15 @@ public class RelationService {
         Node traditionNode = VariantGraphService.getTraditionNode(tradId, db);
         for (RelationTypeModel rtm : ourRelationTypes(traditionNode))
             if (rtm.getIs_colocation() == colocations)
-                useRelationTypes.add(String.format("\"%s\"", rtm.getName()));
+                useRelationTypes.add(rtm.getName());
 
         // Now run the unionFind algorithm on the relevant subset of relation types
-        return collectSpecifiedClusters(sectionId, db, useRelationTypes);
+        try (OperationEvents.Span span = OperationEvents.begin(
+                colocations ? "clustering-colocated" : "clustering-noncolocated", tradId, sectionId)) {
+            List<Set<Node>> clusters = collectSpecifiedClusters(sectionId, db, useRelationTypes);
+            span.setCount(clusters.size(), "clusters");
+            return clusters;
+        }
     }
 
     /**
@@ -154,9 +159,13 @@ public class RelationService {
             bindlevel = thresholdModel.get().getBindlevel();
         for (RelationTypeModel rtm : rtmlist)
             if (rtm.getBindlevel() <= bindlevel)
-                closeRelations.add(String.format("\"%s\"", rtm.getName()));
+                closeRelations.add(rtm.getName());
 
-        return collectSpecifiedClusters(sectionId, db, closeRelations);
+        try (OperationEvents.Span span = OperationEvents.begin("clustering-related", tradId, sectionId)) {
+            List<Set<Node>> clusters = collectSpecifiedClusters(sectionId, db, closeRelations);
+            span.setCount(clusters.size(), "clusters");
+            return clusters;
+        }
     }
 
     private static List<Set<Node>> collectSpecifiedClusters(
@@ -165,14 +174,11 @@ public class RelationService {
         // Now run the unionFind algorithm on the relevant subset of relation types
         List<Set<Node>> result = new ArrayList<>();
         try (Transaction tx = db.beginTx()) {
-            // Make the arguments
-            String cypherNodes = String.format("MATCH (n:READING {section_id:%s}) RETURN id(n) AS id", sectionId);
-            String cypherRels = String.format("MATCH (n:READING)-[r:RELATED]-(m) WHERE r.type IN [%s] RETURN id(n) AS source, id(m) AS target",
-                    String.join(",", relatedTypes));
             // A struct to store the results
             Map<Long, Set<Long>> clusters = new HashMap<>();
             // Stream the results and collect the clusters
-            Result r = db.execute(String.format("CALL algo.unionFind.stream('%s', '%s', {graph:'cypher'}) YIELD nodeId, setId", cypherNodes, cypherRels));
+            Result r = QueryService.execute(db, QueryService.Query.RELATED_CLUSTERS, QueryService.params(
+                    "sectionId", Long.valueOf(sectionId), "types", new ArrayList<>(relatedTypes)));
             while(r.hasNext()) {
                 Map<String, Object> row = r.next();
                 Long setId = (Long) row.get("setId");
@@ -0,0 +1,197 @@
+package net.stemmaweb.services;
+
+import org.neo4j.graphdb.traversal.Evaluation;
+import org.neo4j.graphdb.traversal.Evaluator;
+import org.neo4j.graphdb.traversal.TraversalDescription;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stops a request whose graph work runs away with it. Each request that is handled gets a
+ * budget of time and of nodes visited; the named traversals run through
+ * {@link TraversalMonitor#traverse}, and the candidate loops of the mergeable readings search,
+ * count the nodes that they visit against it, and when either is used up the work is stopped
+ * with a {@link BudgetExceededException}. Other work is not counted, and is not stopped. The
+ * work is also stopped if the request is cancelled, i.e. if the thread handling it is
+ * interrupted, which the servlet container does e.g. when it gives up on a stuck request or
+ * shuts down.
+ *
+ * A client that goes away does not cancel its request: the servlet API gives no word of a
+ * closed connection while the request is still being worked on, so the work goes on until it
+ * is done, runs out of budget or is interrupted, and only the writing of the response fails.
+ *
+ * The budgets are given by the environment variables STEMMAREST_BUDGET_MS, in milliseconds,
+ * and STEMMAREST_BUDGET_NODES; they are five minutes and a hundred million nodes by default.
+ * A budget of 0 is no limit. Work done outside a request, e.g. by the background deletion,
+ * is not limited.
+ */
+public class RequestBudget {
+    // How many nodes are visited between looks at the clock
+    private static final int CLOCK_INTERVAL = 256;
+
+    private static volatile long timeBudget = EnvironmentSettings.getLong("STEMMAREST_BUDGET_MS", 300000);
+    private static volatile long nodeBudget = EnvironmentSettings.getLong("STEMMAREST_BUDGET_NODES", 100000000);
+    private static final ThreadLocal<Budget> current = new ThreadLocal<>();
+    // How often each budget has been used up
+    private static final ConcurrentMap<String, LongAdder> exceeded = new ConcurrentHashMap<>();
+
+    /**
+     * The budgets that a request can use up.
+     */
+    public enum Kind {
+        /** The time that the request may take */
+        TIME("time"),
+        /** The number of nodes that the request may visit */
+        NODES("nodes"),
+        /** Not a budget as such: the request was cancelled */
+        CANCELLED("cancelled");
+
+        private final String label;
+
+        Kind(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    /**
+     * Thrown when a request has used up one of its budgets or been cancelled.
+     */
+    public static class BudgetExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private final Kind kind;
+
+        BudgetExceededException(Kind kind, String message) {
+            super(message);
+            this.kind = kind;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+    }
+
+    /**
+     * What a request has left of its budgets.
+     */
+    public static class Budget {
+        private final long deadline;
+        private final long nodeLimit;
+        private long nodes = 0;
+        private volatile BudgetExceededException exceeded = null;
+
+        private Budget(long millis, long nodeLimit) {
+            this.deadline = millis > 0 ? System.nanoTime() + millis * 1000000 : 0;
+            this.nodeLimit = nodeLimit;
+        }
+
+        /**
+         * @return the exception for the budget that was used up, or null if none was
+         */
+        public BudgetExceededException getExceeded() {
+            return exceeded;
+        }
+
+        private void spend() {
+            if (exceeded != null)
+                throw exceeded;
+            nodes++;
+            if (nodeLimit > 0 && nodes > nodeLimit)
+                throw exceed(Kind.NODES, String.format(
+                        "The request would visit more than %d nodes; try asking for less at once", nodeLimit));
+            // Look at the clock and the interrupt flag every so often
+            if (nodes % CLOCK_INTERVAL == 0) {
+                if (Thread.currentThread().isInterrupted())
+                    throw exceed(Kind.CANCELLED, "The request was cancelled");
+                if (deadline != 0 && System.nanoTime() - deadline > 0)
+                    throw exceed(Kind.TIME, "The request took too long and was stopped");
+            }
+        }
+
+        private BudgetExceededException exceed(Kind kind, String message) {
+            exceeded = new BudgetExceededException(kind, message);
+            RequestBudget.exceeded.computeIfAbsent(kind.getLabel(), k -> new LongAdder()).increment();
+            return exceeded;
+        }
+    }
+
+    /**
+     * Start a budget for the request that is handled on this thread.
+     *
+     * @return the budget
+     */
+    public static Budget begin() {
+        Budget budget = new Budget(timeBudget, nodeBudget);
+        current.set(budget);
+        return budget;
+    }
+
+    /**
+     * Stop limiting the work done on this thread.
+     */
+    public static void end() {
+        current.remove();
+    }
+
+    /**
+     * Count a node visited by the request handled on this thread, if there is one.
+     *
+     * @throws BudgetExceededException if the request has used up one of its budgets
+     */
+    public static void check() {
+        Budget budget = current.get();
+        if (budget != null)
+            budget.spend();
+    }
+
+    /**
+     * Have a traversal count the nodes that it visits against the budget of the request
+     * handled on this thread, if there is one.
+     *
+     * @param traversal - the traversal
+     * @return the traversal, with an evaluator that counts the nodes
+     */
+    public static TraversalDescription limit(TraversalDescription traversal) {
+        Budget budget = current.get();
+        if (budget == null) return traversal;
+        Evaluator counter = path -> {
+            budget.spend();
+            return Evaluation.INCLUDE_AND_CONTINUE;
+        };
+        return traversal.evaluator(counter);
+    }
+
+    /**
+     * Returns how often each budget has been used up.
+     *
+     * @return a map of budget label to count
+     */
+    public static Map<String, Long> getExceeded() {
+        Map<String, Long> result = new TreeMap<>();
+        exceeded.forEach((k, v) -> result.put(k, v.sum()));
+        return result;
+    }
+
+    public static long getTimeBudget() {
+        return timeBudget;
+    }
+
+    public static void setTimeBudget(long millis) {
+        timeBudget = millis;
+    }
+
+    public static long getNodeBudget() {
+        return nodeBudget;
+    }
+
+    public static void setNodeBudget(long nodes) {
+        nodeBudget = nodes;
+    }
+}
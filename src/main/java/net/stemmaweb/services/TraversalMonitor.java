@@ -0,0 +1,336 @@
+package net.stemmaweb.services;
+
+import org.json.JSONObject;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.ResourceIterable;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.traversal.Evaluation;
+import org.neo4j.graphdb.traversal.Evaluator;
+import org.neo4j.graphdb.traversal.TraversalDescription;
+import org.neo4j.graphdb.traversal.TraversalMetadata;
+import org.neo4j.graphdb.traversal.Traverser;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Measures the graph traversals that are run while a request is handled. Each traversal is
+ * given a name; for each name the monitor counts how often it was run, the nodes it visited,
+ * the paths it returned, the relationships it traversed and the time spent running it, and
+ * adds these up over the request. A node is counted each time the traversal reaches it, so a
+ * node reached along several paths is counted once for each. When a request takes longer than
+ * the slow-operation threshold, a log entry is written to the logger of this class as a line
+ * of JSON with the endpoint, tradition and section, and the figures for each named
+ * traversal. The threshold is given in milliseconds by the STEMMAREST_SLOW_MS
+ * environment variable, and is one second by default.
+ *
+ * Traversals run outside a request, e.g. by the background deletion, are not measured.
+ */
+public class TraversalMonitor {
+    private static final Logger log = Logger.getLogger(TraversalMonitor.class.getName());
+    // The number of slow operations to keep for inspection
+    private static final int RECENT_SLOW = 50;
+
+    private static volatile long slowThreshold = EnvironmentSettings.getLong("STEMMAREST_SLOW_MS", 1000);
+    private static final ThreadLocal<Operation> current = new ThreadLocal<>();
+    private static final Deque<String> recentSlow = new ArrayDeque<>();
+    // The figures for each named traversal over all requests
+    private static final ConcurrentMap<String, Totals> totals = new ConcurrentHashMap<>();
+
+    // The figures for one named traversal
+    private static class Figures {
+        private long runs = 0;
+        private long nodes = 0;
+        private long paths = 0;
+        private long relationships = 0;
+        private long nanos = 0;
+
+        private void add(long nodes, TraversalMetadata tm, long nanos) {
+            this.nodes += nodes;
+            paths += tm.getNumberOfPathsReturned();
+            relationships += tm.getNumberOfRelationshipsTraversed();
+            this.nanos += nanos;
+        }
+    }
+
+    private static class Totals {
+        private final LongAdder runs = new LongAdder();
+        private final LongAdder nodes = new LongAdder();
+        private final LongAdder paths = new LongAdder();
+        private final LongAdder relationships = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+    }
+
+    // The traversals of the request being handled on this thread
+    private static class Operation {
+        private final Map<String, Figures> figures = new TreeMap<>();
+        // Traversals that haven't been run to the end yet, whose figures are taken when the request ends
+        private final Set<MeasuredIterator> unfinished = new HashSet<>();
+
+        private Figures figures(String name) {
+            return figures.computeIfAbsent(name, k -> new Figures());
+        }
+    }
+
+    /**
+     * Start measuring traversals for the request that is handled on this thread.
+     */
+    public static void begin() {
+        current.set(new Operation());
+    }
+
+    /**
+     * Stop measuring traversals for the request that is handled on this thread, and write a
+     * log entry if the request was slow.
+     *
+     * @param method    - the HTTP method of the request
+     * @param endpoint  - the path template that the request matched
+     * @param tradition - the tradition ID in the request path, or null
+     * @param section   - the section ID in the request path, or null
+     * @param status    - the HTTP status of the response
+     * @param nanos     - the time that the request took
+     */
+    public static void end(String method, String endpoint, String tradition, String section, int status, long nanos) {
+        Operation op = current.get();
+        current.remove();
+        if (op == null) return;
+        for (MeasuredIterator it : new ArrayList<>(op.unfinished))
+            it.finish();
+        for (Map.Entry<String, Figures> e : op.figures.entrySet()) {
+            Totals t = totals.computeIfAbsent(e.getKey(), k -> new Totals());
+            t.runs.add(e.getValue().runs);
+            t.nodes.add(e.getValue().nodes);
+            t.paths.add(e.getValue().paths);
+            t.relationships.add(e.getValue().relationships);
+            t.nanos.add(e.getValue().nanos);
+        }
+        if (nanos < slowThreshold * 1000000) return;
+
+        JSONObject entry = new JSONObject();
+        entry.put("event", "slow_operation");
+        entry.put("method", method);
+        entry.put("endpoint", endpoint);
+        if (tradition != null) entry.put("tradition", tradition);
+        if (section != null) entry.put("section", section);
+        entry.put("status", status);
+        entry.put("millis", nanos / 1000000);
+        JSONObject traversals = new JSONObject();
+        for (Map.Entry<String, Figures> e : op.figures.entrySet()) {
+            JSONObject f = new JSONObject();
+            f.put("runs", e.getValue().runs);
+            f.put("nodes", e.getValue().nodes);
+            f.put("paths", e.getValue().paths);
+            f.put("relationships", e.getValue().relationships);
+            f.put("millis", e.getValue().nanos / 1000000);
+            traversals.put(e.getKey(), f);
+        }
+        entry.put("traversals", traversals);
+        String line = entry.toString();
+        log.warning(line);
+        synchronized (recentSlow) {
+            recentSlow.addFirst(line);
+            while (recentSlow.size() > RECENT_SLOW)
+                recentSlow.removeLast();
+        }
+    }
+
+    /**
+     * Run a traversal, measuring it if a request is being handled on this thread, and
+     * counting the nodes it visits against the request's {@link RequestBudget}.
+     *
+     * @param name      - the name under which to count the traversal
+     * @param traversal - the traversal to run
+     * @param startNode - the node to start from
+     * @return the traverser
+     */
+    public static Traverser traverse(String name, TraversalDescription traversal, Node startNode) {
+        Operation op = current.get();
+        if (op == null)
+            return RequestBudget.limit(traversal).traverse(startNode);
+        NodeCounter visited = new NodeCounter();
+        Traverser traverser = RequestBudget.limit(traversal.evaluator(visited)).traverse(startNode);
+        return new MeasuredTraverser(name, traverser, visited, op);
+    }
+
+    /**
+     * Returns the log entries of the most recent slow operations, most recent first.
+     *
+     * @return a list of JSON strings
+     */
+    public static List<String> getRecentSlowOperations() {
+        synchronized (recentSlow) {
+            return new ArrayList<>(recentSlow);
+        }
+    }
+
+    /**
+     * Returns the run count, nodes visited, paths returned, relationships traversed and
+     * nanoseconds taken by each named traversal over all requests so far.
+     *
+     * @return a map of traversal name to the five figures, in that order
+     */
+    public static Map<String, long[]> getTotals() {
+        Map<String, long[]> result = new TreeMap<>();
+        totals.forEach((k, v) -> result.put(k, new long[]{v.runs.sum(), v.nodes.sum(), v.paths.sum(),
+                v.relationships.sum(), v.nanos.sum()}));
+        return result;
+    }
+
+    public static long getSlowThreshold() {
+        return slowThreshold;
+    }
+
+    public static void setSlowThreshold(long millis) {
+        slowThreshold = millis;
+    }
+
+    // Counts the nodes that a traversal visits; the traversal asks it about every path that it
+    // reaches, whether or not the path is returned, unless one of the traversal's own evaluators
+    // has already excluded and pruned the path.
+    private static class NodeCounter implements Evaluator {
+        private long visited = 0;
+
+        @Override
+        public Evaluation evaluate(Path path) {
+            visited++;
+            return Evaluation.INCLUDE_AND_CONTINUE;
+        }
+    }
+
+    // A traverser whose iterators keep count of the time spent in them
+    private static class MeasuredTraverser implements Traverser {
+        private final String name;
+        private final Traverser traverser;
+        private final NodeCounter visited;
+        private final Operation op;
+        private TraversalMetadata lastRun;
+
+        MeasuredTraverser(String name, Traverser traverser, NodeCounter visited, Operation op) {
+            this.name = name;
+            this.traverser = traverser;
+            this.visited = visited;
+            this.op = op;
+        }
+
+        @Override
+        public ResourceIterator<Path> iterator() {
+            MeasuredIterator it = new MeasuredIterator(name, traverser, visited, op);
+            lastRun = it.metadata;
+            return it;
+        }
+
+        @Override
+        public ResourceIterable<Node> nodes() {
+            return () -> new MappedIterator<>(iterator(), Path::endNode);
+        }
+
+        @Override
+        public ResourceIterable<Relationship> relationships() {
+            // As with the underlying traverser, the start of the traversal has no relationship
+            return () -> new MappedIterator<>(iterator(), Path::lastRelationship);
+        }
+
+        @Override
+        public TraversalMetadata metadata() {
+            return lastRun == null ? traverser.metadata() : lastRun;
+        }
+    }
+
+    private static class MeasuredIterator implements ResourceIterator<Path> {
+        private final String name;
+        private final ResourceIterator<Path> paths;
+        private final TraversalMetadata metadata;
+        private final NodeCounter visited;
+        // The count of the node counter when this run started, since each run of the
+        // traverser counts on the same counter
+        private final long visitedBefore;
+        private final Operation op;
+        private long nanos = 0;
+        private boolean finished = false;
+
+        MeasuredIterator(String name, Traverser traverser, NodeCounter visited, Operation op) {
+            long start = System.nanoTime();
+            this.name = name;
+            this.visited = visited;
+            this.visitedBefore = visited.visited;
+            this.paths = traverser.iterator();
+            // Each run of a traverser has its own figures, which the iterator carries
+            this.metadata = paths instanceof TraversalMetadata ? (TraversalMetadata) paths : traverser.metadata();
+            this.op = op;
+            op.unfinished.add(this);
+            op.figures(name).runs++;
+            nanos += System.nanoTime() - start;
+        }
+
+        @Override
+        public boolean hasNext() {
+            long start = System.nanoTime();
+            boolean more = paths.hasNext();
+            nanos += System.nanoTime() - start;
+            if (!more) finish();
+            return more;
+        }
+
+        @Override
+        public Path next() {
+            long start = System.nanoTime();
+            try {
+                return paths.next();
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void close() {
+            paths.close();
+            finish();
+        }
+
+        private void finish() {
+            if (finished) return;
+            finished = true;
+            op.unfinished.remove(this);
+            op.figures(name).add(visited.visited - visitedBefore, metadata, nanos);
+        }
+    }
+
+    // Turns the paths of a traversal into their end nodes or last relationships, skipping nulls
+    private static class MappedIterator<T> implements ResourceIterator<T> {
+        private final ResourceIterator<Path> paths;
+        private final Function<Path, T> map;
+        private T next = null;
+
+        MappedIterator(ResourceIterator<Path> paths, Function<Path, T> map) {
+            this.paths = paths;
+            this.map = map;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && paths.hasNext())
+                next = map.apply(paths.next());
+            return next != null;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            T result = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void close() {
+            paths.close();
+        }
+    }
+}
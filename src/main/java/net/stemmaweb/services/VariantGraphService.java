@@ -1,16 +1,13 @@
 package net.stemmaweb.services;
 
 import net.stemmaweb.model.AlignmentModel;
-import net.stemmaweb.model.ReadingModel;
 import net.stemmaweb.model.RelationTypeModel;
-import net.stemmaweb.model.WitnessTokensModel;
 import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.rest.Nodes;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.traversal.*;
 
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 public class VariantGraphService {
@@ -114,12 +111,11 @@ public class VariantGraphService {
                 if (!n.getRelationships(Direction.INCOMING, ERelations.NEXT)
                         .iterator()
                         .hasNext()) {
-                    db.traversalDescription()
+                    TraversalMonitor.traverse("section-order", db.traversalDescription()
                             .depthFirst()
                             .relationships(ERelations.NEXT, Direction.OUTGOING)
                             .evaluator(Evaluators.toDepth(size))
-                            .uniqueness(Uniqueness.NODE_GLOBAL)
-                            .traverse(n)
+                            .uniqueness(Uniqueness.NODE_GLOBAL), n)
                             .nodes()
                             .forEach(sectionNodes::add);
                     break;
@@ -168,24 +164,51 @@ public class VariantGraphService {
      * @param sectionNode - The section for which to perform the calculation
      */
     public static void calculateCommon(Node sectionNode) {
+        calculateCommon(sectionNode, 1, Long.MAX_VALUE, true);
+    }
+
+    /**
+     * Calculate the common readings within the given ranks of a section, either in normalized
+     * view or not, assuming that the sequence links may have changed.
+     *
+     * @param sectionNode - The section for which to perform the calculation
+     * @param fromRank    - The first rank to recalculate
+     * @param toRank      - The last rank to recalculate
+     */
+    public static void calculateCommon(Node sectionNode, long fromRank, long toRank) {
+        calculateCommon(sectionNode, fromRank, toRank, true);
+    }
+
+    /**
+     * Calculate the common readings within the given ranks of a section, either in normalized
+     * view or not. Readings outside these ranks are left alone, so that after an edit only the
+     * ranks it touched need to be looked at again; {@link ReadingService#recalculateRank}
+     * does this for the ranks that it changes.
+     *
+     * @param sectionNode      - The section for which to perform the calculation
+     * @param fromRank         - The first rank to recalculate
+     * @param toRank           - The last rank to recalculate
+     * @param sequencesChanged - Whether the current transaction may have changed the section's
+     *                           sequence links, so that the kept witness index can't be used
+     */
+    public static void calculateCommon(Node sectionNode, long fromRank, long toRank, boolean sequencesChanged) {
         GraphDatabaseService db = sectionNode.getGraphDatabase();
-        // Get an AlignmentModel for the given section, and go rank by rank to find
-        // the common nodes.
-        AlignmentModel am = new AlignmentModel(sectionNode);
-        Node startNode = VariantGraphService.getStartNode(String.valueOf(sectionNode.getId()), db);
         try (Transaction tx = db.beginTx()) {
             // See which kind of flag we are setting
-            String propName = startNode.hasRelationship(ERelations.NSEQUENCE, Direction.OUTGOING) ? "ncommon" : "is_common";
+            Node startNode = VariantGraphService.getStartNode(String.valueOf(sectionNode.getId()), db);
+            boolean normalized = startNode.hasRelationship(ERelations.NSEQUENCE, Direction.OUTGOING);
+            String propName = normalized ? "ncommon" : "is_common";
+            // This is usually called in the transaction that changed the section, so the kept
+            // witness index can only be used if the change left the sequences alone.
+            RankBuckets rb = rankBuckets(sectionNode,
+                    normalized ? null : WitnessSequenceIndex.forSection(sectionNode, sequencesChanged),
+                    fromRank, toRank);
             // Go through the table rank by rank - if a given rank has only a single reading
             // apart from lacunae, and no gaps, it is common
-            for (AtomicInteger i = new AtomicInteger(0); i.get() < am.getLength(); i.getAndIncrement()) {
-                List<ReadingModel> readingsAtRank = am.getAlignment().stream()
-                        .map(x -> x.getTokens().get(i.get())).collect(Collectors.toList());
+            for (RankBuckets.Bucket bucket : rb.getBuckets().values()) {
                 HashSet<Long> distinct = new HashSet<>();
-                for (ReadingModel rm : readingsAtRank) {
-                    if (rm == null) distinct.add(0L);
-                    else if (!rm.getIs_lacuna()) distinct.add(Long.valueOf(rm.getId()));
-                }
+                if (bucket.getGaps() > 0) distinct.add(0L);
+                bucket.getReadings().stream().filter(x -> !rb.isLacuna(x)).forEach(distinct::add);
                 // Set the commonality property. It is true if the size of the 'distinct' set is 1.
                 distinct.stream().filter(x -> x > 0)
                         .forEach(x -> db.getNodeById(x).setProperty(propName, distinct.size() == 1));
@@ -194,6 +217,15 @@ public class VariantGraphService {
         }
     }
 
+    // Group the readings of a section by rank, from its witness sequences if we can, and from
+    // its alignment table if the section is normalized or a witness path forks.
+    private static RankBuckets rankBuckets(Node sectionNode, WitnessSequenceIndex index, long fromRank, long toRank) {
+        RankBuckets rb = index == null ? null : RankBuckets.fromSequences(sectionNode, index, fromRank, toRank);
+        if (rb == null)
+            rb = RankBuckets.fromAlignment(new AlignmentModel(sectionNode), fromRank, toRank);
+        return rb;
+    }
+
 
     /*
      * Methods for calcuating and removing shadow graphs - normalization and majority text
@@ -221,7 +253,8 @@ public class VariantGraphService {
         if (relType == null)
             throw new Exception("Relation type " + normalizeType + " does not exist in this tradition");
 
-        try (Transaction tx = db.beginTx()) {
+        try (Transaction tx = db.beginTx();
+             OperationEvents.Span span = OperationEvents.begin("normalization", sectionNode)) {
             Node sectionStart = sectionNode.getSingleRelationship(ERelations.COLLATION, Direction.OUTGOING).getEndNode();
             // Get the list of all readings in this section
             Set<Node> sectionNodes = returnTraditionSection(sectionNode).nodes().stream()
@@ -258,15 +291,16 @@ public class VariantGraphService {
             }
 
             // Now that we have done this, make the shadow sequence
-            for (Relationship r : db.traversalDescription().breadthFirst()
+            for (Relationship r : TraversalMonitor.traverse("normalize-sequences", db.traversalDescription().breadthFirst()
                     .relationships(ERelations.SEQUENCE,Direction.OUTGOING)
-                    .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL).traverse(sectionStart).relationships()) {
+                    .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL), sectionStart).relationships()) {
                 Node repstart = representatives.getOrDefault(r.getStartNode(), r.getStartNode());
                 Node repend = representatives.getOrDefault(r.getEndNode(), r.getEndNode());
                 ReadingService.transferWitnesses(repstart, repend, r, ERelations.NSEQUENCE);
             }
             // and calculate the common readings.
             calculateCommon(sectionNode);
+            span.setCount(representatives.size(), "readings");
             tx.success();
         }
 
@@ -286,11 +320,10 @@ public class VariantGraphService {
         try (Transaction tx = db.beginTx()) {
             Node sectionStartNode = sectionNode.getSingleRelationship(ERelations.COLLATION, Direction.OUTGOING).getEndNode();
             sectionStartNode.removeProperty("ncommon");
-            db.traversalDescription().breadthFirst()
+            TraversalMonitor.traverse("clear-normalization", db.traversalDescription().breadthFirst()
                     .relationships(ERelations.NSEQUENCE,Direction.OUTGOING)
                     .relationships(ERelations.REPRESENTS, Direction.OUTGOING)
-                    .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
-                    .traverse(sectionStartNode).relationships()
+                    .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL), sectionStartNode).relationships()
                     .forEach(x -> {
                         x.getEndNode().removeProperty("ncommon");
                         x.delete();
@@ -311,28 +344,33 @@ public class VariantGraphService {
      * @return an ordered List of READING nodes that make up the majority text
      */
     public static List<Node> calculateMajorityText(Node sectionNode) {
-        // Get the IDs of our majority readings by going through the alignment table rank by rank
-        AlignmentModel am = new AlignmentModel(sectionNode);
+        GraphDatabaseService db = sectionNode.getGraphDatabase();
+        // Get the IDs of our majority readings by going through the readings rank by rank
         ArrayList<Long> majorityReadings = new ArrayList<>();
-        for (int rank = 1; rank <= am.getLength(); rank++) {
-            int numNulls = 0;
-            ArrayList<ReadingModel> rankReadings = new ArrayList<>();
-            for (WitnessTokensModel wtm : am.getAlignment()) {
-                ReadingModel rdgAtRank = wtm.getTokens().get(rank - 1);
-                if (rdgAtRank == null)
-                    numNulls++;
-                else
-                    rankReadings.add(rdgAtRank);
-            }
-            // Now find the winner
-            Optional<ReadingModel> winner = rankReadings.stream().max(Comparator.comparingInt(x -> x.getWitnesses().size()));
-            if (winner.isPresent() && winner.get().getWitnesses().size() >= numNulls) {
-                majorityReadings.add(Long.valueOf(winner.get().getId()));
+        try (Transaction tx = db.beginTx()) {
+            Node startNode = getStartNode(String.valueOf(sectionNode.getId()), db);
+            WitnessSequenceIndex index = startNode.hasRelationship(ERelations.NSEQUENCE, Direction.OUTGOING)
+                    ? null : WitnessSequenceIndex.forSection(sectionNode, false);
+            RankBuckets rb = rankBuckets(sectionNode, index, 1, Long.MAX_VALUE);
+            HashMap<Long, Integer> witnessCounts = new HashMap<>();
+            for (RankBuckets.Bucket bucket : rb.getBuckets().values()) {
+                // Now find the winner; on a tie, the first reading in the table wins
+                Long winner = null;
+                int winnerCount = -1;
+                for (Long rdg : bucket.getReadings()) {
+                    int count = witnessCounts.computeIfAbsent(rdg, x -> countWitnesses(db.getNodeById(x)));
+                    if (count > winnerCount) {
+                        winner = rdg;
+                        winnerCount = count;
+                    }
+                }
+                if (winner != null && winnerCount >= bucket.getGaps())
+                    majorityReadings.add(winner);
             }
+            tx.success();
         }
 
         // Now make the relations between them
-        GraphDatabaseService db = sectionNode.getGraphDatabase();
         ArrayList<Node> result = new ArrayList<>();
         try (Transaction tx = db.beginTx()) {
             // Go through the alignment model rank by rank, finding the majority reading for each rank
@@ -345,6 +383,20 @@ public class VariantGraphService {
         return result;
     }
 
+    // The number of witnesses and witness layers that have the given reading, counted the same
+    // way as for the reading's ReadingModel
+    private static int countWitnesses(Node reading) {
+        HashSet<String> collectedWits = new HashSet<>();
+        List<Relationship> seq = new ArrayList<>();
+        reading.getRelationships(ERelations.SEQUENCE, Direction.BOTH).forEach(seq::add);
+        reading.getRelationships(ERelations.NSEQUENCE, Direction.BOTH).forEach(seq::add);
+        for (Relationship r : seq)
+            for (Map.Entry<String, Object> prop : r.getAllProperties().entrySet())
+                for (String sigil : (String[]) prop.getValue())
+                    collectedWits.add(prop.getKey().equals("witnesses") ? sigil : String.format("%s (%s)", sigil, prop.getKey()));
+        return collectedWits.size();
+    }
+
     /*
      * Tradition and section crawlers, respectively
      */
@@ -377,16 +429,15 @@ public class VariantGraphService {
     };
 
     @SuppressWarnings("rawtypes")
-    private static Traverser returnTraverser (Node startNode, Evaluator ev, PathExpander ex) {
+    private static Traverser returnTraverser (String name, Node startNode, Evaluator ev, PathExpander ex) {
         Traverser tv;
         GraphDatabaseService db = startNode.getGraphDatabase();
         try (Transaction tx = db.beginTx()) {
-            tv = db.traversalDescription()
+            tv = TraversalMonitor.traverse(name, db.traversalDescription()
                     .depthFirst()
                     .expand(ex)
                     .evaluator(ev)
-                    .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
-                    .traverse(startNode);
+                    .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL), startNode);
             tx.success();
         }
         return tv;
@@ -410,7 +461,7 @@ public class VariantGraphService {
      * @return                an org.neo4j.graphdb.traversal.Traverser object for the whole tradition
      */
     public static Traverser returnEntireTradition(Node traditionNode) {
-        return returnTraverser(traditionNode, traditionCrawler, PathExpanders.forDirection(Direction.OUTGOING));
+        return returnTraverser("tradition", traditionNode, traditionCrawler, PathExpanders.forDirection(Direction.OUTGOING));
     }
 
     /**
@@ -437,7 +488,7 @@ public class VariantGraphService {
      * @return             an org.neo4j.graphdb.traversal.Traverser object for the section
      */
     public static Traverser returnTraditionSection(Node sectionNode) {
-        return returnTraverser(sectionNode, sectionCrawler, PathExpanders.forDirection(Direction.OUTGOING));
+        return returnTraverser("section", sectionNode, sectionCrawler, PathExpanders.forDirection(Direction.OUTGOING));
     }
 
     /**
@@ -447,6 +498,6 @@ public class VariantGraphService {
      * @return             an org.neo4j.graphdb.traversal.Traverser object containing the relations
      */
     public static Traverser returnTraditionRelations(Node traditionNode) {
-        return returnTraverser(traditionNode, traditionRelations, PathExpanders.allTypesAndDirections());
+        return returnTraverser("tradition-relations", traditionNode, traditionRelations, PathExpanders.allTypesAndDirections());
     }
 }
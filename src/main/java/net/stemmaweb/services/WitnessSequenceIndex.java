@@ -0,0 +1,424 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.ERelations;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An index of the SEQUENCE links that carry each witness through a section, kept in memory
+ * for each section whose witnesses have been asked for. From these links the sequence of
+ * readings in a witness, or in a layer of it, is worked out once and kept as an array of
+ * reading IDs, so that a witness text can be assembled without traversing the graph, and
+ * a witness can be removed without looking at every link in the tradition. A transaction
+ * event handler keeps the indexes current, so every code path that changes the text is
+ * covered: when a transaction changes sequence links, only the witnesses those links carry
+ * are updated in the index of their section, and their sequences worked out again when next
+ * asked for. A section's index is thrown away only if its start or end node changes, or
+ * readings are moved into or out of it.
+ */
+public class WitnessSequenceIndex {
+    // The number of section indexes to keep before dropping the least recently used
+    private static final int MAX_SECTIONS = 1000;
+    // Marks a transaction whose changes couldn't be pinned down to particular sections
+    private static final Long ALL_SECTIONS = -1L;
+    // Marks a witness path that forks, and so can't be stored as a single sequence
+    private static final long[] FORKED = new long[0];
+
+    private static final Map<Long, WitnessSequenceIndex> cache = Collections.synchronizedMap(
+            new LinkedHashMap<Long, WitnessSequenceIndex>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, WitnessSequenceIndex> eldest) {
+                    return size() > MAX_SECTIONS;
+                }
+            });
+    private static final AtomicLong generation = new AtomicLong();
+
+    // A SEQUENCE link, with the layers in which it carries a given witness
+    private static class Link {
+        final long id;
+        final long end;
+        final Set<String> layers;
+
+        Link(long id, long end, Set<String> layers) {
+            this.id = id;
+            this.end = end;
+            this.layers = layers;
+        }
+    }
+
+    // The links that carry a witness, and the reading sequences worked out from them so far.
+    // Neither the map of links nor its lists are changed once the witness is in an index; an
+    // update replaces the whole witness, so a sequence worked out from the old links is
+    // never kept with the new ones.
+    private static class Witness {
+        // By the reading they leave from
+        final Map<Long, List<Link>> links;
+        // By layers
+        final Map<String, long[]> sequences = new ConcurrentHashMap<>();
+
+        Witness(Map<Long, List<Link>> links) {
+            this.links = links;
+        }
+    }
+
+    // A SEQUENCE link changed in a transaction, with the witnesses it carried before or after
+    private static class Change {
+        final long id;
+        final long start;
+        final long end;
+        final Set<String> sigils = new HashSet<>();
+
+        Change(Relationship r) {
+            id = r.getId();
+            start = r.getStartNodeId();
+            end = r.getEndNodeId();
+        }
+    }
+
+    // What a transaction did to the indexes: sections to throw away, and links to update by section
+    private static class Changes {
+        final Set<Long> dropped = new HashSet<>();
+        final Map<Long, Map<Long, Change>> links = new HashMap<>();
+    }
+
+    private final long startId;
+    // The number of updates begun on this index; guarded by the cache lock
+    private long updates = 0;
+    // By sigil
+    private final Map<String, Witness> witnesses = new ConcurrentHashMap<>();
+
+    private WitnessSequenceIndex(Node sectionNode) {
+        startId = sectionNode.getSingleRelationship(ERelations.COLLATION, Direction.OUTGOING).getEndNodeId();
+        Map<String, Map<Long, List<Link>>> linksBySigil = new HashMap<>();
+        for (Relationship r : VariantGraphService.returnTraditionSection(sectionNode).relationships()) {
+            if (!r.isType(ERelations.SEQUENCE)) continue;
+            layersBySigil(r).forEach((sigil, layers) -> linksBySigil.computeIfAbsent(sigil, k -> new HashMap<>())
+                    .computeIfAbsent(r.getStartNodeId(), k -> new ArrayList<>())
+                    .add(new Link(r.getId(), r.getEndNodeId(), layers)));
+        }
+        linksBySigil.forEach((sigil, links) -> witnesses.put(sigil, new Witness(links)));
+    }
+
+    // The layers in which a SEQUENCE link carries each witness
+    private static Map<String, Set<String>> layersBySigil(Relationship r) {
+        Map<String, Set<String>> result = new HashMap<>();
+        for (Map.Entry<String, Object> layer : r.getAllProperties().entrySet())
+            addSigils(layer.getValue(), sigil -> result.computeIfAbsent(sigil, k -> new HashSet<>()).add(layer.getKey()));
+        return result;
+    }
+
+    private static void addSigils(Object layer, java.util.function.Consumer<String> action) {
+        if (layer instanceof String[])
+            for (String sigil : (String[]) layer)
+                action.accept(sigil);
+    }
+
+    private static Long asId(Object sectionId) {
+        return ((Number) sectionId).longValue();
+    }
+
+    /**
+     * Get the witness index for the given section, building it if necessary. The kept index
+     * reflects what has been committed, so a caller whose transaction has itself changed the
+     * section's sequence links, its start or end node, or the readings in it, must say so, and
+     * gets an index of the section as its transaction sees it, which is not kept. Other changes,
+     * e.g. to ranks or relations, don't affect the index.
+     * NOTE: For use inside a transaction
+     *
+     * @param sectionNode - the section in question
+     * @param changed     - whether the current transaction has changed the section's sequences
+     * @return the section's index
+     */
+    public static WitnessSequenceIndex forSection(Node sectionNode, boolean changed) {
+        if (changed)
+            return new WitnessSequenceIndex(sectionNode);
+        WitnessSequenceIndex index = cache.get(sectionNode.getId());
+        if (index == null) {
+            long before = generation.get();
+            index = new WitnessSequenceIndex(sectionNode);
+            // Don't keep the index if something was committed while we were building it
+            synchronized (cache) {
+                if (generation.get() == before)
+                    cache.put(sectionNode.getId(), index);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns the layers, apart from the main text, in which the given witness appears.
+     *
+     * @param sigil - the witness in question
+     * @return a set of layer names, e.g. "a.c."
+     */
+    public Set<String> getLayers(String sigil) {
+        Set<String> layers = new HashSet<>();
+        Witness w = witnesses.get(sigil);
+        if (w != null)
+            w.links.values().forEach(links -> links.forEach(l -> layers.addAll(l.layers)));
+        layers.remove("witnesses");
+        return layers;
+    }
+
+    /**
+     * Returns the IDs of all SEQUENCE links that carry the given witness, in any layer.
+     *
+     * @param sigil - the witness in question
+     * @return an array of relationship IDs
+     */
+    public long[] getLinks(String sigil) {
+        Witness w = witnesses.get(sigil);
+        if (w == null)
+            return new long[0];
+        return w.links.values().stream().flatMap(List::stream).mapToLong(x -> x.id).toArray();
+    }
+
+    /**
+     * Returns the readings of the given witness, in order, following the given layers where
+     * they exist and the main text otherwise. As with a traversal along the witness path,
+     * the start node is not included; the path ends at the section's end node, or early if
+     * the layers of the witness conflict.
+     *
+     * @param sigil  - the witness in question
+     * @param layers - the layers to follow, if any
+     * @return an array of reading IDs, or null if the witness path forks, in which case
+     * the graph has to be traversed
+     */
+    public long[] getSequence(String sigil, List<String> layers) {
+        List<String> sorted = new ArrayList<>(layers);
+        Collections.sort(sorted);
+        Witness w = witnesses.get(sigil);
+        if (w == null)
+            return new long[0];
+        long[] sequence = w.sequences.computeIfAbsent(String.join("\u0000", sorted), k -> walk(w.links, sorted));
+        return sequence == FORKED ? null : sequence;
+    }
+
+    private long[] walk(Map<Long, List<Link>> outgoing, List<String> layers) {
+        int linkCount = outgoing.values().stream().mapToInt(List::size).sum();
+        List<Long> path = new ArrayList<>();
+        long current = startId;
+        while (true) {
+            List<Link> links = outgoing.getOrDefault(current, Collections.emptyList());
+            // A layer link takes precedence over the main text, but if more than one
+            // applies, the layers conflict and the path stops here.
+            Link next = null;
+            int alternatives = 0;
+            for (String layer : layers)
+                for (Link l : links)
+                    if (l.layers.contains(layer)) {
+                        next = l;
+                        alternatives++;
+                    }
+            if (alternatives > 1)
+                break;
+            if (alternatives == 0) {
+                for (Link l : links) {
+                    if (!l.layers.contains("witnesses")) continue;
+                    if (next != null) return FORKED;
+                    next = l;
+                }
+            }
+            if (next == null)
+                break;
+            path.add(next.end);
+            current = next.end;
+            // A path longer than the number of links can only be going round in circles
+            if (path.size() > linkCount)
+                return FORKED;
+        }
+        return path.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    // Work out the links of the witnesses that the given changed links carry as they have been
+    // committed, without their sequences; a witness that no longer has any links maps to null.
+    // NOTE: For use inside a transaction
+    private Map<String, Witness> updated(GraphDatabaseService db, Collection<Change> changes) {
+        Map<String, Map<Long, List<Link>>> updated = new HashMap<>();
+        for (Change c : changes) {
+            Map<String, Set<String>> current;
+            try {
+                current = layersBySigil(db.getRelationshipById(c.id));
+            } catch (NotFoundException e) {
+                current = Collections.emptyMap();
+            }
+            for (String sigil : c.sigils) {
+                Map<Long, List<Link>> links = updated.computeIfAbsent(sigil, k -> {
+                    Witness w = witnesses.get(k);
+                    return w == null ? new HashMap<>() : new HashMap<>(w.links);
+                });
+                List<Link> outgoing = new ArrayList<>(links.getOrDefault(c.start, Collections.emptyList()));
+                outgoing.removeIf(l -> l.id == c.id);
+                if (current.containsKey(sigil))
+                    outgoing.add(new Link(c.id, c.end, current.get(sigil)));
+                if (outgoing.isEmpty())
+                    links.remove(c.start);
+                else
+                    links.put(c.start, outgoing);
+            }
+        }
+        Map<String, Witness> result = new HashMap<>();
+        updated.forEach((sigil, links) -> result.put(sigil, links.isEmpty() ? null : new Witness(links)));
+        return result;
+    }
+
+    // Put the updated witnesses in place of the old ones
+    private void replace(Map<String, Witness> updated) {
+        updated.forEach((sigil, w) -> {
+            if (w == null)
+                witnesses.remove(sigil);
+            else
+                witnesses.put(sigil, w);
+        });
+    }
+
+    /**
+     * Drop all indexes, e.g. when the application switches to a different database.
+     */
+    public static void clear() {
+        synchronized (cache) {
+            generation.incrementAndGet();
+            cache.clear();
+        }
+    }
+
+    /**
+     * Register the handler that keeps the indexes up to date with the given database.
+     *
+     * @param db - the database in use
+     */
+    public static void register(GraphDatabaseService db) {
+        clear();
+        db.registerTransactionEventHandler(new TransactionEventHandler.Adapter<Changes>() {
+            @Override
+            public Changes beforeCommit(TransactionData data) {
+                Changes changes = new Changes();
+                // The sections of any readings deleted in this transaction; their links are
+                // deleted along with them, and dealt with below
+                Map<Long, Object> deletedSections = new HashMap<>();
+                for (PropertyEntry<Node> pe : data.removedNodeProperties()) {
+                    if (!pe.key().equals("section_id")) continue;
+                    if (data.isDeleted(pe.entity()))
+                        deletedSections.put(pe.entity().getId(), pe.previouslyCommitedValue());
+                    else
+                        changes.dropped.add(asId(pe.previouslyCommitedValue()));
+                }
+                // A reading that moves from one section to another changes both
+                for (PropertyEntry<Node> pe : data.assignedNodeProperties()) {
+                    if (!pe.key().equals("section_id") || pe.previouslyCommitedValue() == null) continue;
+                    changes.dropped.add(asId(pe.previouslyCommitedValue()));
+                    changes.dropped.add(asId(pe.value()));
+                }
+
+                // Collect the changed sequence links, with the witnesses they carried before
+                // or carry now
+                Map<Long, Change> changed = new HashMap<>();
+                for (Relationship r : data.createdRelationships()) {
+                    Change c = changedLink(r, changes, changed);
+                    if (c != null)
+                        r.getAllProperties().values().forEach(v -> addSigils(v, c.sigils::add));
+                }
+                for (Relationship r : data.deletedRelationships())
+                    changedLink(r, changes, changed);
+                for (PropertyEntry<Relationship> pe : data.assignedRelationshipProperties()) {
+                    Change c = changedLink(pe.entity(), changes, changed);
+                    if (c != null) {
+                        addSigils(pe.value(), c.sigils::add);
+                        addSigils(pe.previouslyCommitedValue(), c.sigils::add);
+                    }
+                }
+                for (PropertyEntry<Relationship> pe : data.removedRelationshipProperties()) {
+                    Change c = changedLink(pe.entity(), changes, changed);
+                    if (c != null)
+                        addSigils(pe.previouslyCommitedValue(), c.sigils::add);
+                }
+
+                // Sort them by section
+                for (Change c : changed.values()) {
+                    if (c.sigils.isEmpty()) continue;
+                    try {
+                        Object section = deletedSections.containsKey(c.start)
+                                ? deletedSections.get(c.start)
+                                : db.getNodeById(c.start).getProperty("section_id", null);
+                        if (section == null)
+                            changes.dropped.add(ALL_SECTIONS);
+                        else
+                            changes.links.computeIfAbsent(asId(section), k -> new HashMap<>()).put(c.id, c);
+                    } catch (NotFoundException e) {
+                        changes.dropped.add(ALL_SECTIONS);
+                    }
+                }
+                return changes;
+            }
+
+            // Returns the change record for a sequence link, or null if the relationship
+            // isn't one; a change to the start or end link of a section throws its index away.
+            private Change changedLink(Relationship r, Changes changes, Map<Long, Change> changed) {
+                try {
+                    if (r.isType(ERelations.COLLATION) || r.isType(ERelations.HAS_END)) {
+                        changes.dropped.add(r.getStartNodeId());
+                    } else if (r.isType(ERelations.SEQUENCE)) {
+                        return changed.computeIfAbsent(r.getId(), k -> new Change(r));
+                    }
+                } catch (NotFoundException e) {
+                    changes.dropped.add(ALL_SECTIONS);
+                }
+                return null;
+            }
+
+            @Override
+            public void afterCommit(TransactionData data, Changes changes) {
+                if (changes == null || (changes.dropped.isEmpty() && changes.links.isEmpty())) return;
+                // The indexes to update, and the number of updates begun on each when this
+                // one began
+                Map<Long, WitnessSequenceIndex> indexes = new HashMap<>();
+                Map<Long, Long> begun = new HashMap<>();
+                synchronized (cache) {
+                    generation.incrementAndGet();
+                    if (changes.dropped.contains(ALL_SECTIONS)) {
+                        cache.clear();
+                        return;
+                    }
+                    changes.dropped.forEach(cache::remove);
+                    for (Long section : changes.links.keySet()) {
+                        WitnessSequenceIndex index = cache.get(section);
+                        if (index == null) continue;
+                        indexes.put(section, index);
+                        begun.put(section, ++index.updates);
+                    }
+                }
+                if (indexes.isEmpty()) return;
+
+                // Read the links as they now stand, so that the index follows the last commit to
+                // change them, whatever order the handlers run in. This is done without holding
+                // the cache lock, so that requests for witness texts don't wait for it.
+                Map<Long, Map<String, Witness>> updates = new HashMap<>();
+                try (Transaction tx = db.beginTx()) {
+                    indexes.forEach((section, index) ->
+                            updates.put(section, index.updated(db, changes.links.get(section).values())));
+                    tx.success();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+
+                synchronized (cache) {
+                    indexes.forEach((section, index) -> {
+                        if (cache.get(section) != index) return;
+                        // If another commit has begun updating the index since, the links read
+                        // here may be older than its own, so it is safer to start again
+                        if (updates.containsKey(section) && index.updates == begun.get(section))
+                            index.replace(updates.get(section));
+                        else
+                            cache.remove(section);
+                    });
+                }
+            }
+        });
+    }
+}
@@ -251,6 +251,58 @@ public class CollateXJsonInputTest extends TestCase {
         assertEquals("AM 407", ourSections.get(1).getName());
     }
 
+    public void testTableBeforeWitnesses() {
+        String cxjson = "{\"table\": [" +
+                "[[{\"t\": \"in\"}], [{\"t\": \"in\"}], [{\"t\": \"in\"}]], " +
+                "[[{\"t\": \"the\"}], [], [{\"t\": \"teh\"}]], " +
+                "[[{\"t\": \"beginning\", \"page\": \"1r\"}], [{\"t\": \"beginning\", \"page\": \"3v\"}], " +
+                "[{\"t\": \"beginning\", \"page\": \"1r\"}]]], " +
+                "\"witnesses\": [\"A\", \"B\", \"A (a.c.)\"]}";
+        Response response = Util.addSectionToTradition(jerseyTest, tradId, cxjson, "cxjson", "reordered");
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        String newSectId = Util.getValueFromJson(response, "parentId");
+
+        List<ReadingModel> sectReadings = jerseyTest
+                .target("/tradition/" + tradId + "/section/" + newSectId + "/readings")
+                .request()
+                .get(new GenericType<List<ReadingModel>>() {});
+        // start, end, 'in', 'the', 'teh', 'beginning'
+        assertEquals(6, sectReadings.size());
+        for (ReadingModel rm : sectReadings) {
+            if (rm.getIs_end())
+                assertEquals(4L, rm.getRank(), 0);
+            else if (rm.getText().equals("in"))
+                assertTrue(rm.getIs_common());
+            else if (rm.getText().equals("beginning")) {
+                // The a.c. layer repeats its base witness, so it gets no entry of its own
+                JSONObject extra = new JSONObject(rm.getExtra());
+                assertEquals(2, extra.length());
+                assertEquals("1r", extra.getJSONObject("A").getString("page"));
+                assertEquals("3v", extra.getJSONObject("B").getString("page"));
+            }
+        }
+
+        Response witText = jerseyTest
+                .target("/tradition/" + tradId + "/section/" + newSectId + "/witness/A/text")
+                .queryParam("layer", "a.c.")
+                .request()
+                .get();
+        assertEquals(Response.Status.OK.getStatusCode(), witText.getStatus());
+        assertEquals("in teh beginning", Util.getValueFromJson(witText, "text"));
+    }
+
+    public void testMalformedJson() {
+        Response response = Util.addSectionToTradition(jerseyTest, tradId,
+                "{\"witnesses\": [\"A\", \"B\"], \"table\": [[[{\"t\": \"in\"}], [{\"t\": \"in\"",
+                "cxjson", "broken");
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+        List<SectionModel> ourSections = jerseyTest
+                .target("/tradition/" + tradId + "/sections/")
+                .request()
+                .get(new GenericType<List<SectionModel>>() {});
+        assertEquals(1, ourSections.size());
+    }
+
     /** For diagnostic use when parsing a section fails
     public void testSomething() throws Exception {
         String newSectId = Util.getValueFromJson(Util.addSectionToTradition(jerseyTest, tradId,
@@ -13,8 +13,13 @@ import javax.ws.rs.core.Response.Status;
 
 import net.stemmaweb.model.*;
 import net.stemmaweb.rest.*;
+import net.stemmaweb.services.AdmissionControl;
 import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.ConcordanceIndex;
+import net.stemmaweb.services.EditLockService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.ReadingSearchService;
+import net.stemmaweb.services.ReadingTextIndex;
 import net.stemmaweb.services.VariantGraphService;
 import net.stemmaweb.stemmaserver.JerseyTestServerFactory;
 
@@ -80,6 +85,8 @@ public class ReadingTest {
 
         jerseyTest = JerseyTestServerFactory.newJerseyTestServer()
                 .addResource(Root.class)
+                .addResource(EditLockFilter.class)
+                .addResource(AdmissionFilter.class)
                 .create();
         jerseyTest.setUp();
 
@@ -154,6 +161,72 @@ public class ReadingTest {
         assertEquals(expectedWitnessA, resp.getText());
     }
 
+    @Test
+    public void changeReadingExtraTest() {
+        String nodeId = readingLookup.get("showers/5");
+        KeyPropertyModel keyModel = new KeyPropertyModel();
+        keyModel.setKey("extra");
+        keyModel.setProperty("{\"source\": \"manuscript\"");
+        ReadingChangePropertyModel chgModel = new ReadingChangePropertyModel();
+        chgModel.setProperties(Collections.singletonList(keyModel));
+        Response response = jerseyTest
+                .target("/reading/" + nodeId)
+                .request(MediaType.APPLICATION_JSON)
+                .put(Entity.json(chgModel));
+        assertEquals(Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+
+        keyModel.setProperty("{\"source\": \"manuscript\"}");
+        response = jerseyTest
+                .target("/reading/" + nodeId)
+                .request(MediaType.APPLICATION_JSON)
+                .put(Entity.json(chgModel));
+        assertEquals(Status.OK.getStatusCode(), response.getStatus());
+        assertEquals("{\"source\": \"manuscript\"}", response.readEntity(ReadingModel.class).getExtra());
+    }
+
+    @Test
+    public void readingFieldsTest() {
+        List<ReadingModel> full = jerseyTest
+                .target("/tradition/" + tradId + "/section/" + sectId + "/readings")
+                .request()
+                .get(new GenericType<List<ReadingModel>>() {});
+        Response response = jerseyTest
+                .target("/tradition/" + tradId + "/section/" + sectId + "/readings")
+                .queryParam("fields", "id,text,rank,is_lemma,witnesses")
+                .request()
+                .get();
+        assertEquals(Status.OK.getStatusCode(), response.getStatus());
+        List<Map<String, Object>> projected = response.readEntity(new GenericType<List<Map<String, Object>>>() {});
+        assertEquals(full.size(), projected.size());
+        for (int i = 0; i < full.size(); i++) {
+            ReadingModel rm = full.get(i);
+            Map<String, Object> p = projected.get(i);
+            assertEquals(new HashSet<>(Arrays.asList("id", "text", "rank", "is_lemma", "witnesses")), p.keySet());
+            assertEquals(rm.getId(), p.get("id"));
+            assertEquals(rm.getText(), p.get("text"));
+            assertEquals(rm.getRank().longValue(), ((Number) p.get("rank")).longValue());
+            assertEquals(rm.getIs_lemma(), p.get("is_lemma"));
+            assertEquals(rm.getWitnesses(), p.get("witnesses"));
+        }
+
+        // The tradition's readings can be projected too
+        response = jerseyTest
+                .target("/tradition/" + tradId + "/readings")
+                .queryParam("fields", "id")
+                .request()
+                .get();
+        assertEquals(Status.OK.getStatusCode(), response.getStatus());
+        assertEquals(full.size(), response.readEntity(new GenericType<List<Map<String, Object>>>() {}).size());
+
+        // Unknown fields are refused
+        response = jerseyTest
+                .target("/tradition/" + tradId + "/section/" + sectId + "/readings")
+                .queryParam("fields", "id,colour")
+                .request()
+                .get();
+        assertEquals(Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+    }
+
     @Test
     public void changeReadingPropertiesWrongDatatypeTest() {
         String nodeid = readingLookup.get("showers/5");
@@ -1255,6 +1328,90 @@ public class ReadingTest {
         }
     }
 
+    @Test
+    public void editLockTest() {
+        Node first, second;
+        try (Transaction tx = db.beginTx()) {
+            Iterator<Node> nodes = db.execute("match (w:READING {text:'fruit'}) return w").columnAs("w");
+            first = nodes.next();
+            second = nodes.next();
+            tx.success();
+        }
+        long maxWait = EditLockService.getMaxWait();
+        EditLockService.Lease lease = EditLockService.lockSection(tradId, sectId);
+        try {
+            EditLockService.setMaxWait(100);
+            long admitted = AdmissionControl.getFigures().get(AdmissionControl.WorkClass.MUTATION)[3];
+            // While someone else is changing the section, a change to it has to wait, and
+            // is turned away if it waits too long
+            Response response = jerseyTest.target("/reading/" + first.getId() + "/merge/" + second.getId())
+                    .request(MediaType.APPLICATION_JSON)
+                    .post(Entity.text(null));
+            assertEquals(Status.SERVICE_UNAVAILABLE.getStatusCode(), response.getStatus());
+            assertEquals("1", response.getHeaderString("Retry-After"));
+            // and so is a relation between its readings
+            RelationModel relationship = new RelationModel();
+            relationship.setSource(String.valueOf(first.getId()));
+            relationship.setTarget(String.valueOf(second.getId()));
+            relationship.setType("grammatical");
+            relationship.setScope("local");
+            response = jerseyTest.target("/tradition/" + tradId + "/relation")
+                    .request(MediaType.APPLICATION_JSON)
+                    .post(Entity.json(relationship));
+            assertEquals(Status.SERVICE_UNAVAILABLE.getStatusCode(), response.getStatus());
+            response = jerseyTest.target("/tradition/" + tradId + "/relation/batch")
+                    .request(MediaType.APPLICATION_JSON)
+                    .post(Entity.json(Collections.singletonList(relationship)));
+            assertEquals(Status.SERVICE_UNAVAILABLE.getStatusCode(), response.getStatus());
+            // The waiting changes were turned away before they took an admission permit
+            assertEquals(admitted, AdmissionControl.getFigures().get(AdmissionControl.WorkClass.MUTATION)[3]);
+            // but reading goes ahead
+            response = jerseyTest.target("/reading/" + first.getId()).request().get();
+            assertEquals(Status.OK.getStatusCode(), response.getStatus());
+            response = jerseyTest.target("/tradition/" + tradId + "/section/" + sectId + "/readings")
+                    .request().get();
+            assertEquals(Status.OK.getStatusCode(), response.getStatus());
+        } finally {
+            lease.release();
+            EditLockService.setMaxWait(maxWait);
+        }
+        // Once the section is free again, the change is made
+        Response response = jerseyTest.target("/reading/" + first.getId() + "/merge/" + second.getId())
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.text(null));
+        assertEquals(Status.OK.getStatusCode(), response.getStatus());
+        assertTrue(EditLockService.getFigures()[2] >= 2);
+    }
+
+    @Test
+    public void nestedEditLockTest() {
+        long kept = EditLockService.getFigures()[4];
+        EditLockService.Lease lease = EditLockService.lockSection(tradId, sectId);
+        try {
+            assertEquals(kept + 2, EditLockService.getFigures()[4]);
+            // A change within the change to the section may change the section again
+            EditLockService.lockSection(tradId, sectId).release();
+            // but not another section, or the whole tradition
+            try {
+                EditLockService.lockSection(tradId, sectId + "0");
+                fail("A nested change to another section should be refused");
+            } catch (IllegalStateException ignored) {
+            }
+            try {
+                EditLockService.lockTradition(tradId);
+                fail("A nested change to the whole tradition should be refused");
+            } catch (IllegalStateException ignored) {
+            }
+        } finally {
+            lease.release();
+        }
+        // The locks are dropped once they aren't used
+        assertEquals(kept, EditLockService.getFigures()[4]);
+        // and can be had again
+        EditLockService.lockTradition(tradId).release();
+        assertEquals(kept, EditLockService.getFigures()[4]);
+    }
+
     @Test
     public void mergeReadingsTest() {
         try (Transaction tx = db.beginTx()) {
@@ -2014,6 +2171,26 @@ public class ReadingTest {
         for (List<ReadingModel> cbi : couldBeIdenticalReadings) {
             assertTrue(expectedIdentical.contains(cbi.get(0).getText()));
         }
+        // The closest pairs come first
+        long lastDistance = 0;
+        for (List<ReadingModel> cbi : couldBeIdenticalReadings) {
+            assertEquals(cbi.get(0).getText(), cbi.get(1).getText());
+            long distance = Math.abs(cbi.get(0).getRank() - cbi.get(1).getRank());
+            assertTrue(distance >= lastDistance);
+            lastDistance = distance;
+        }
+
+        // A smaller threshold leaves out the pairs that are further apart
+        long maxDistance = lastDistance;
+        List<List<ReadingModel>> closeReadings = jerseyTest
+                .target("/tradition/" + newTradId + "/section/" + newSectId + "/mergeablereadings/2/9")
+                .queryParam("threshold", maxDistance)
+                .request()
+                .get(new GenericType<List<List<ReadingModel>>>() {});
+        assertEquals(couldBeIdenticalReadings.stream()
+                .filter(x -> Math.abs(x.get(0).getRank() - x.get(1).getRank()) < maxDistance).count(),
+                closeReadings.size());
+        assertTrue(closeReadings.size() < couldBeIdenticalReadings.size());
 
         // Check that we can ask for them individually
         List<List<ReadingModel>> mergeableHenrys = jerseyTest.target("/tradition/" + newTradId + "/section/" + newSectId + "/mergeablereadings/2/9")
@@ -2585,6 +2762,243 @@ public class ReadingTest {
         }
     }
 
+    private Response searchReadings(String path, String query, String mode, Boolean normal, Boolean fold) {
+        return jerseyTest.target(path + "/readings/search")
+                .queryParam("q", query)
+                .queryParam("mode", mode)
+                .queryParam("normal", normal)
+                .queryParam("fold", fold)
+                .request()
+                .get();
+    }
+
+    @Test
+    public void searchReadingsTest() {
+        String tradPath = "/tradition/" + tradId;
+        Response response = searchReadings(tradPath, "the", "exact", false, false);
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        List<ReadingModel> found = response.readEntity(new GenericType<List<ReadingModel>>() {});
+        assertFalse(found.isEmpty());
+        assertEquals(String.valueOf(found.size()), response.getHeaderString("X-Total-Count"));
+        Long lastRank = 0L;
+        for (ReadingModel rm : found) {
+            assertEquals("the", rm.getText());
+            assertEquals(sectId, rm.getSection());
+            assertFalse(rm.getWitnesses().isEmpty());
+            assertTrue(rm.getRank() >= lastRank);
+            lastRank = rm.getRank();
+        }
+        int theCount = found.size();
+        String theId = found.get(0).getId();
+
+        // The section search should give the same answer
+        response = searchReadings(tradPath + "/section/" + sectId, "the", "exact", false, false);
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertEquals(theCount, response.readEntity(new GenericType<List<ReadingModel>>() {}).size());
+
+        // Pagination
+        response = jerseyTest.target(tradPath + "/readings/search")
+                .queryParam("q", "the").queryParam("start", 1).queryParam("limit", 1)
+                .request().get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertEquals(String.valueOf(theCount), response.getHeaderString("X-Total-Count"));
+        List<ReadingModel> page = response.readEntity(new GenericType<List<ReadingModel>>() {});
+        assertEquals(1, page.size());
+        assertEquals(found.get(1).getId(), page.get(0).getId());
+
+        // Prefix
+        response = searchReadings(tradPath, "roo", "prefix", false, false);
+        found = response.readEntity(new GenericType<List<ReadingModel>>() {});
+        Set<String> texts = found.stream().map(ReadingModel::getText).collect(Collectors.toSet());
+        assertTrue(texts.contains("root"));
+        assertTrue(texts.stream().allMatch(x -> x.startsWith("roo")));
+        response = searchReadings(tradPath, "Roo", "prefix", false, false);
+        assertTrue(response.readEntity(new GenericType<List<ReadingModel>>() {}).isEmpty());
+
+        // Regular expression
+        response = searchReadings(tradPath, "t.h", "regex", false, false);
+        found = response.readEntity(new GenericType<List<ReadingModel>>() {});
+        assertEquals(1, found.size());
+        assertEquals("teh", found.get(0).getText());
+        response = searchReadings(tradPath, "t[", "regex", false, false);
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+        response = searchReadings(tradPath, "the", "fuzzy", false, false);
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+        response = jerseyTest.target(tradPath + "/readings/search").request().get();
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+
+        // Normal forms, and case and diacritics
+        String changedId = found.get(0).getId();
+        try (Transaction tx = db.beginTx()) {
+            db.getNodeById(Long.valueOf(theId)).setProperty("normal_form", "Thé");
+            tx.success();
+        }
+        response = searchReadings(tradPath, "the", "exact", true, false);
+        assertEquals(theCount - 1, response.readEntity(new GenericType<List<ReadingModel>>() {}).size());
+        response = searchReadings(tradPath, "THE", "exact", true, true);
+        assertEquals(theCount, response.readEntity(new GenericType<List<ReadingModel>>() {}).size());
+        response = searchReadings(tradPath, "Thé", "exact", true, false);
+        found = response.readEntity(new GenericType<List<ReadingModel>>() {});
+        assertEquals(1, found.size());
+        assertEquals(theId, found.get(0).getId());
+        response = searchReadings(tradPath, "te", "prefix", false, true);
+        found = response.readEntity(new GenericType<List<ReadingModel>>() {});
+        assertTrue(found.stream().anyMatch(x -> x.getId().equals(changedId)));
+
+        response = searchReadings("/tradition/nonexistent", "the", "exact", false, false);
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+    }
+
+    @Test
+    public void searchReadingsRegexLimitsTest() {
+        String tradPath = "/tradition/" + tradId;
+        // Case and diacritics are ignored in the pattern as well as in the texts
+        List<ReadingModel> the = searchReadings(tradPath, "the", "exact", false, false)
+                .readEntity(new GenericType<List<ReadingModel>>() {});
+        Response response = searchReadings(tradPath, "TH[É]", "regex", false, true);
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertEquals(the.size(), response.readEntity(new GenericType<List<ReadingModel>>() {}).size());
+
+        // A pattern that backtracks without end is stopped
+        try (Transaction tx = db.beginTx()) {
+            Node reading = db.getNodeById(Long.valueOf(the.get(0).getId()));
+            reading.setProperty("text", String.join("", Collections.nCopies(40, "a")) + "!");
+            tx.success();
+        }
+        long regexMillis = ReadingSearchService.getRegexMillis();
+        ReadingSearchService.setRegexMillis(200);
+        try {
+            response = searchReadings(tradPath, "(a|aa)+", "regex", false, false);
+            assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+            assertTrue(Util.getValueFromJson(response, "error").contains("took more than 200 ms"));
+        } finally {
+            ReadingSearchService.setRegexMillis(regexMillis);
+        }
+    }
+
+    @Test
+    public void searchIndexSizeTest() {
+        Response response = Util.addSectionToTradition(jerseyTest, tradId, "src/TestFiles/testTradition.xml",
+                "stemmaweb", "section 2");
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        String secondSection = Util.getValueFromJson(response, "parentId");
+        String tradPath = "/tradition/" + tradId;
+
+        // Find out how big each section's index is
+        ReadingTextIndex.clear();
+        assertEquals(0, ReadingTextIndex.getCachedBytes());
+        searchReadings(tradPath + "/section/" + secondSection, "th", "prefix", false, false);
+        long secondBytes = ReadingTextIndex.getCachedBytes();
+        assertTrue(secondBytes > 0);
+        response = searchReadings(tradPath, "th", "prefix", false, false);
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        long bothSections = ReadingTextIndex.getCachedBytes();
+        assertTrue(bothSections > secondBytes);
+
+        // With room for less than both, only the most recently used index is kept
+        long maxBytes = ReadingTextIndex.getMaxBytes();
+        ReadingTextIndex.setMaxBytes(bothSections - 1);
+        try {
+            ReadingTextIndex.clear();
+            response = searchReadings(tradPath, "th", "prefix", false, false);
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+            assertEquals(secondBytes, ReadingTextIndex.getCachedBytes());
+        } finally {
+            ReadingTextIndex.setMaxBytes(maxBytes);
+        }
+    }
+
+    @Test
+    public void concordanceTest() {
+        ConcordanceIndex.clear();
+        // Our tradition isn't public, so by default there is nothing to find
+        Response response = jerseyTest.target("/concordance").queryParam("q", "the").request().get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertEquals("0", response.getHeaderString("X-Total-Count"));
+
+        response = jerseyTest.target("/concordance")
+                .queryParam("q", "the")
+                .queryParam("public", false)
+                .queryParam("context", 2)
+                .request().get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        List<ConcordanceEntryModel> lines = response.readEntity(new GenericType<List<ConcordanceEntryModel>>() {});
+        assertFalse(lines.isEmpty());
+        // The total counts the matching readings, each of which may have several lines, or
+        // none if no witness reads it in its main text
+        List<String> occurrences = searchReadings("/tradition/" + tradId, "the", "exact", false, false)
+                .readEntity(new GenericType<List<ReadingModel>>() {})
+                .stream().map(ReadingModel::getId).collect(Collectors.toList());
+        assertEquals(String.valueOf(occurrences.size()), response.getHeaderString("X-Total-Count"));
+        List<String> matched = lines.stream().map(ConcordanceEntryModel::getReading).distinct()
+                .collect(Collectors.toList());
+        assertTrue(occurrences.containsAll(matched));
+        HashMap<String, String> witnessTexts = new HashMap<>();
+        for (ConcordanceEntryModel line : lines) {
+            assertEquals(tradId, line.getTradition());
+            assertEquals(sectId, line.getSection());
+            assertEquals("the", line.getKeyword());
+            assertFalse(line.getWitnesses().isEmpty());
+            // Each line should appear as such in the text of each of its witnesses
+            String kwic = String.join(" ", line.getBefore(), line.getKeyword(), line.getAfter()).trim();
+            for (String sigil : line.getWitnesses()) {
+                String text = witnessTexts.computeIfAbsent(sigil, s -> Util.getValueFromJson(
+                        jerseyTest.target("/tradition/" + tradId + "/witness/" + s + "/text")
+                                .request().get(), "text"));
+                assertTrue(text.contains(kwic));
+            }
+        }
+        // The witnesses that differ around the first "the" get separate lines
+        assertEquals(3, lines.size());
+        assertEquals("with fruit", lines.get(0).getBefore());
+        assertEquals("drought of", lines.get(0).getAfter());
+        assertEquals(Collections.singletonList("A"), lines.get(0).getWitnesses());
+        assertEquals("march of", lines.get(1).getAfter());
+        assertEquals(Collections.singletonList("B"), lines.get(1).getWitnesses());
+
+        // Paging is by occurrence, in the order of the text
+        response = jerseyTest.target("/concordance")
+                .queryParam("q", "the")
+                .queryParam("public", false)
+                .queryParam("start", occurrences.indexOf(matched.get(1)))
+                .queryParam("limit", 1)
+                .request().get();
+        assertEquals(String.valueOf(occurrences.size()), response.getHeaderString("X-Total-Count"));
+        List<ConcordanceEntryModel> page = response.readEntity(new GenericType<List<ConcordanceEntryModel>>() {});
+        assertFalse(page.isEmpty());
+        assertTrue(page.stream().allMatch(x -> x.getReading().equals(matched.get(1))));
+
+        // A change to the text is seen by the next search
+        try (Transaction tx = db.beginTx()) {
+            db.getNodeById(Long.valueOf(matched.get(0))).setProperty("text", "THE");
+            tx.success();
+        }
+        response = jerseyTest.target("/concordance")
+                .queryParam("q", "the")
+                .queryParam("public", false)
+                .request().get();
+        assertEquals(String.valueOf(occurrences.size() - 1), response.getHeaderString("X-Total-Count"));
+        // Exact searches are answered from the database's indexes, without a posting index
+        assertEquals(0, ConcordanceIndex.getCachedBytes());
+        response = jerseyTest.target("/concordance")
+                .queryParam("q", "the")
+                .queryParam("fold", true)
+                .queryParam("public", false)
+                .request().get();
+        assertEquals(String.valueOf(occurrences.size()), response.getHeaderString("X-Total-Count"));
+        assertTrue(ConcordanceIndex.getCachedBytes() > 0);
+
+        // Errors
+        response = jerseyTest.target("/concordance").request().get();
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+        response = jerseyTest.target("/concordance")
+                .queryParam("q", "t[")
+                .queryParam("mode", "regex")
+                .queryParam("public", false)
+                .request().get();
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+    }
+
     /*
      * Shut down the jersey server
      *
@@ -30,6 +30,7 @@ import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Result;
 import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.schema.IndexDefinition;
 import org.neo4j.test.TestGraphDatabaseFactory;
 import org.neo4j.graphdb.NotFoundException;
 
@@ -62,6 +63,7 @@ public class RelationTest {
 
         jerseyTest = JerseyTestServerFactory.newJerseyTestServer()
                 .addResource(Root.class)
+                .addResource(EditLockFilter.class)
                 .create();
         jerseyTest.setUp();
 
@@ -319,6 +321,95 @@ public class RelationTest {
         assertEquals(existingRels, secondRels.size());
     }
 
+    @Test
+    public void createRelationshipWithoutTextIndexTest() {
+        // Without the section text indexes, as while they are still being populated,
+        // the matching readings are found by walking the section
+        try (Transaction tx = db.beginTx()) {
+            for (IndexDefinition idx : db.schema().getIndexes(Nodes.READING)) {
+                List<String> keys = new ArrayList<>();
+                idx.getPropertyKeys().forEach(keys::add);
+                if (keys.size() == 2)
+                    idx.drop();
+            }
+            tx.success();
+        }
+
+        RelationModel r = new RelationModel();
+        r.setSource(readingLookup.get("teh/16"));
+        r.setTarget(readingLookup.get("the/17"));
+        r.setType("spelling");
+        r.setScope("section");
+        Response jerseyResponse = jerseyTest
+                .target("/tradition/" + tradId + "/relation")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(r));
+        assertEquals(Response.Status.CREATED.getStatusCode(), jerseyResponse.getStatus());
+        GraphModel newRels = jerseyResponse.readEntity(new GenericType<GraphModel>() {});
+        assertEquals(2, newRels.getRelations().size());
+    }
+
+    @Test
+    public void createRelationshipMultiSectionTest() {
+        // Add the same text again as a second section
+        Response jerseyResponse = Util.addSectionToTradition(jerseyTest, tradId, "src/TestFiles/testTradition.xml",
+                "stemmaweb", "section 2");
+        assertEquals(Response.Status.CREATED.getStatusCode(), jerseyResponse.getStatus());
+        String secondSection = Util.getValueFromJson(jerseyResponse, "parentId");
+
+        RelationModel r = new RelationModel();
+        r.setSource(readingLookup.get("teh/16"));
+        r.setTarget(readingLookup.get("the/17"));
+        r.setType("spelling");
+        r.setScope("section");
+        jerseyResponse = jerseyTest
+                .target("/tradition/" + tradId + "/relation")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(r));
+        assertEquals(Response.Status.CREATED.getStatusCode(), jerseyResponse.getStatus());
+        GraphModel newRels = jerseyResponse.readEntity(new GenericType<GraphModel>() {});
+        assertEquals(2, newRels.getRelations().size());
+        List<RelationModel> sectionRels = jerseyTest
+                .target("/tradition/" + tradId + "/section/" + secondSection + "/relations")
+                .request()
+                .get(new GenericType<List<RelationModel>>() {});
+        assertTrue(sectionRels.stream().noneMatch(x -> x.getType().equals("spelling")));
+
+        // Now do the same across the whole of a tradition with two such sections
+        jerseyResponse = Util.createTraditionFromFileOrString(jerseyTest, "Other tradition", "LR", "1",
+                "src/TestFiles/testTradition.xml", "stemmaweb");
+        String otherId = Util.getValueFromJson(jerseyResponse, "tradId");
+        jerseyResponse = Util.addSectionToTradition(jerseyTest, otherId, "src/TestFiles/testTradition.xml",
+                "stemmaweb", "section 2");
+        assertEquals(Response.Status.CREATED.getStatusCode(), jerseyResponse.getStatus());
+        secondSection = Util.getValueFromJson(jerseyResponse, "parentId");
+        List<ReadingModel> sectionReadings = jerseyTest
+                .target("/tradition/" + otherId + "/section/" + secondSection + "/readings")
+                .request()
+                .get(new GenericType<List<ReadingModel>>() {});
+        for (ReadingModel rm : sectionReadings) {
+            if (rm.getText().equals("teh") && rm.getRank().equals(16L))
+                r.setSource(rm.getId());
+            else if (rm.getText().equals("the") && rm.getRank().equals(17L))
+                r.setTarget(rm.getId());
+        }
+        r.setScope("tradition");
+        jerseyResponse = jerseyTest
+                .target("/tradition/" + otherId + "/relation")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(r));
+        assertEquals(Response.Status.CREATED.getStatusCode(), jerseyResponse.getStatus());
+        newRels = jerseyResponse.readEntity(new GenericType<GraphModel>() {});
+        // The relation itself, the other same-rank pair in its section, and the pair
+        // in the first section that already shares a rank
+        assertEquals(3, newRels.getRelations().size());
+        sectionRels = jerseyTest
+                .target("/tradition/" + otherId + "/section/" + secondSection + "/relations")
+                .request()
+                .get(new GenericType<List<RelationModel>>() {});
+        assertEquals(2, sectionRels.stream().filter(x -> x.getType().equals("spelling")).count());
+    }
+
     @Test(expected=NotFoundException.class)
     public void deleteRelationshipDocumentWideTest() {
         /*
@@ -439,6 +530,73 @@ public class RelationTest {
         }
     }
 
+    @Test
+    public void createRelationsBatchTest() {
+        RelationModel relationship = new RelationModel();
+        relationship.setSource(readingLookup.getOrDefault("root/18", "17"));
+        relationship.setTarget(readingLookup.getOrDefault("teh/16", "25"));
+        relationship.setType("grammatical");
+        relationship.setAlters_meaning(0L);
+        relationship.setIs_significant("yes");
+        RelationModel second = new RelationModel();
+        second.setSource(readingLookup.getOrDefault("april/2", "17"));
+        second.setTarget(readingLookup.getOrDefault("showers/5", "25"));
+        second.setType("repetition");
+
+        // The repeated relation should be skipped, and the ranks should come out the same
+        // as for the single relation call.
+        Response actualResponse = jerseyTest
+                .target("/tradition/" + tradId + "/relation/batch")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(Arrays.asList(relationship, second, relationship)));
+        assertEquals(Response.Status.CREATED.getStatusCode(), actualResponse.getStatus());
+        GraphModel result = actualResponse.readEntity(new GenericType<GraphModel>(){});
+        assertEquals(2, result.getRelations().size());
+        HashMap<String, Long> rankChange = new HashMap<>();
+        rankChange.put("teh", 18L);
+        rankChange.put("rood", 19L);
+        rankChange.put("#END#", 20L);
+        assertEquals(rankChange.size(), result.getReadings().size());
+        for (ReadingModel r : result.getReadings())
+            assertEquals(rankChange.get(r.getText()), r.getRank());
+
+        // Doing it again should change nothing
+        actualResponse = jerseyTest
+                .target("/tradition/" + tradId + "/relation/batch")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(Arrays.asList(relationship, second)));
+        assertEquals(Status.NOT_MODIFIED.getStatusCode(), actualResponse.getStatus());
+    }
+
+    @Test
+    public void createRelationsBatchConflictTest() {
+        RelationModel relationship = new RelationModel();
+        relationship.setSource(readingLookup.getOrDefault("root/18", "17"));
+        relationship.setTarget(readingLookup.getOrDefault("teh/16", "25"));
+        relationship.setType("grammatical");
+        RelationModel crossing = new RelationModel();
+        crossing.setSource(readingLookup.getOrDefault("root/18", "17"));
+        crossing.setTarget(readingLookup.getOrDefault("the/17", "25"));
+        crossing.setType("grammatical");
+
+        // The second relation is only cyclic in light of the first
+        Response actualResponse = jerseyTest
+                .target("/tradition/" + tradId + "/relation/batch")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(Arrays.asList(relationship, crossing)));
+        assertEquals(Status.CONFLICT.getStatusCode(), actualResponse.getStatus());
+        assertEquals("Relation 1: This relation creation is not allowed, it would result in a cyclic graph.",
+                Util.getValueFromJson(actualResponse, "error"));
+
+        // Neither relation should have been made
+        try (Transaction tx = db.beginTx()) {
+            Node root = db.getNodeById(Long.valueOf(relationship.getSource()));
+            assertFalse(root.getRelationships(ERelations.RELATED).iterator().hasNext());
+            assertEquals(18L, root.getProperty("rank"));
+            tx.success();
+        }
+    }
+
     @Test
     public void createRelationshipTestWithCrossRelationConstraintNotDirectlyCloseToEachOther() {
         RelationModel relationship = new RelationModel();
@@ -0,0 +1,149 @@
+package net.stemmaweb.stemmaserver.integrationtests;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import net.stemmaweb.printer.GraphViz;
+import net.stemmaweb.printer.RenderPool;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.core.Response;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for rendering graphs with dot through the render pool. A shell script stands in
+ * for dot, so that the tests don't depend on GraphViz being installed; it echoes its input
+ * back as the image, notes each run, and hangs or waits to be released if the graph asks it to.
+ */
+public class RenderPoolTest {
+
+    private Path dotDir;
+    private long renderTimeout;
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue("The stand-in for dot needs a POSIX shell", File.separatorChar == '/');
+        dotDir = Files.createTempDirectory("dot_");
+        Path dot = dotDir.resolve("dot");
+        Files.write(dot, ("#!/bin/sh\n" +
+                "src=$(cat)\n" +
+                "echo run >> \"" + dotDir.resolve("runs") + "\"\n" +
+                "case \"$src\" in *hang*) exec sleep 60;; esac\n" +
+                "case \"$src\" in *wait*) while [ ! -e \"" + dotDir.resolve("release") + "\" ]; do sleep 0.1; done;; esac\n" +
+                "printf '<svg>%s</svg>' \"$src\"\n").getBytes(StandardCharsets.UTF_8));
+        assertTrue(dot.toFile().setExecutable(true));
+        GraphViz.setDotExecutable(dot.toString());
+        renderTimeout = RenderPool.getRenderTimeout();
+        RenderPool.clear();
+    }
+
+    private int runs() throws IOException {
+        Path runs = dotDir.resolve("runs");
+        return runs.toFile().exists() ? Files.readAllLines(runs).size() : 0;
+    }
+
+    @Test
+    public void renderTest() throws Exception {
+        byte[] image = new GraphViz().render("digraph { a -> b }", "svg", 10000);
+        assertEquals("<svg>digraph { a -> b }</svg>", new String(image, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void renderTimeoutTest() {
+        long start = System.currentTimeMillis();
+        try {
+            new GraphViz().render("digraph { hang }", "svg", 500);
+            fail("A dot that hangs should be killed");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("did not finish"));
+        }
+        assertTrue(System.currentTimeMillis() - start < 10000);
+    }
+
+    @Test
+    public void cacheHitTest() throws Exception {
+        byte[] first = RenderPool.render("digraph { a -> b }", "svg");
+        assertEquals(1, runs());
+        byte[] second = RenderPool.render("digraph { a -> b }", "svg");
+        assertEquals(1, runs());
+        assertArrayEquals(first, second);
+
+        // A different type is a different image
+        RenderPool.render("digraph { a -> b }", "png");
+        assertEquals(2, runs());
+    }
+
+    @Test
+    public void poolTimeoutTest() {
+        RenderPool.setRenderTimeout(500);
+        try {
+            RenderPool.render("digraph { hang }", "svg");
+            fail("A dot that hangs should be killed");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("did not finish"));
+        }
+    }
+
+    @Test
+    public void fullQueueTest() throws Exception {
+        // Fill the workers and the queue with graphs that wait until they are released
+        int capacity = RenderPool.getCapacity();
+        ExecutorService clients = Executors.newFixedThreadPool(capacity + 1);
+        try {
+            List<Future<byte[]>> waiting = new ArrayList<>();
+            for (int i = 0; i < capacity + 1; i++) {
+                String source = "digraph { wait" + i + " }";
+                waiting.add(clients.submit(() -> RenderPool.render(source, "svg")));
+            }
+            // The one that didn't fit is turned away at once
+            long deadline = System.currentTimeMillis() + 30000;
+            while (waiting.stream().noneMatch(Future::isDone) && System.currentTimeMillis() < deadline)
+                Thread.sleep(50);
+            Thread.sleep(500);
+            assertEquals(1, waiting.stream().filter(Future::isDone).count());
+
+            // The rest are rendered once they are released
+            Files.createFile(dotDir.resolve("release"));
+            int refused = 0;
+            for (Future<byte[]> f : waiting) {
+                try {
+                    assertTrue(new String(f.get(60, TimeUnit.SECONDS), StandardCharsets.UTF_8).startsWith("<svg>"));
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof ServiceUnavailableException);
+                    Response response = ((ServiceUnavailableException) e.getCause()).getResponse();
+                    assertEquals(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), response.getStatus());
+                    assertNotNull(response.getHeaderString("Retry-After"));
+                    refused++;
+                }
+            }
+            assertEquals(1, refused);
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (dotDir == null)
+            return;
+        GraphViz.setDotExecutable(null);
+        RenderPool.setRenderTimeout(renderTimeout);
+        RenderPool.clear();
+        Files.deleteIfExists(dotDir.resolve("runs"));
+        Files.deleteIfExists(dotDir.resolve("release"));
+        Files.deleteIfExists(dotDir.resolve("dot"));
+        Files.deleteIfExists(dotDir);
+    }
+}
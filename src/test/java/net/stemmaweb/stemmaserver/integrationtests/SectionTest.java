@@ -2,13 +2,17 @@ package net.stemmaweb.stemmaserver.integrationtests;
 
 import junit.framework.TestCase;
 import net.stemmaweb.model.*;
+import net.stemmaweb.rest.EditLockFilter;
 import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.rest.Root;
+import net.stemmaweb.services.DeletionService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.services.VariantGraphService;
 import net.stemmaweb.stemmaserver.JerseyTestServerFactory;
 import net.stemmaweb.stemmaserver.Util;
 
+import org.glassfish.jersey.media.multipart.FormDataMultiPart;
+import org.glassfish.jersey.media.multipart.file.FileDataBodyPart;
 import org.glassfish.jersey.test.JerseyTest;
 import org.junit.After;
 import org.junit.Before;
@@ -24,8 +28,17 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedHashMap;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import static org.junit.Assert.assertNotEquals;
 
@@ -48,6 +61,7 @@ public class SectionTest extends TestCase {
         // Create a JerseyTestServer for the necessary REST API calls
         jerseyTest = JerseyTestServerFactory.newJerseyTestServer()
                 .addResource(Root.class)
+                .addResource(EditLockFilter.class)
                 .create();
         jerseyTest.setUp();
 
@@ -140,6 +154,74 @@ public class SectionTest extends TestCase {
         assertEquals(77, allRdgs.size());
     }
 
+    public void testBinaryGraphRoundTrip() throws IOException {
+        String newSectId = Util.getValueFromJson(Util.addSectionToTradition(jerseyTest, tradId, "src/TestFiles/lf2.xml",
+                "stemmaweb", "section 2"), "parentId");
+        String sectPath = "/tradition/" + tradId + "/section/" + newSectId;
+
+        // The JSON graph is still what we get by default
+        GraphModel jsonGraph = jerseyTest.target(sectPath + "/graph").request().get(GraphModel.class);
+        assertEquals(47, jsonGraph.getReadings().size());
+        assertEquals(9, jsonGraph.getRelations().size());
+
+        Response jerseyResult = jerseyTest.target(sectPath + "/graph")
+                .request("application/x-stemmaweb-graph").get();
+        assertEquals(Response.Status.OK.getStatusCode(), jerseyResult.getStatus());
+        byte[] binary = jerseyResult.readEntity(byte[].class);
+        assertEquals("STGB", new String(binary, 0, 4, StandardCharsets.US_ASCII));
+
+        // Restore it as a new section and check that it matches the original
+        File binFile = File.createTempFile("section", ".stgb");
+        binFile.deleteOnExit();
+        Files.write(binFile.toPath(), binary);
+        jerseyResult = Util.addSectionToTradition(jerseyTest, tradId, binFile.getPath(), "binarygraph", "section 3");
+        assertEquals(Response.Status.CREATED.getStatusCode(), jerseyResult.getStatus());
+        String copySectId = Util.getValueFromJson(jerseyResult, "parentId");
+        String copyPath = "/tradition/" + tradId + "/section/" + copySectId;
+
+        GraphModel copyGraph = jerseyTest.target(copyPath + "/graph").request().get(GraphModel.class);
+        assertEquals(jsonGraph.getReadings().stream().map(x -> x.getText() + "/" + x.getRank()).sorted()
+                        .collect(Collectors.toList()),
+                copyGraph.getReadings().stream().map(x -> x.getText() + "/" + x.getRank()).sorted()
+                        .collect(Collectors.toList()));
+        assertTrue(copyGraph.getReadings().stream().allMatch(x -> x.getSection().equals(copySectId)));
+        assertEquals(jsonGraph.getSequences().size(), copyGraph.getSequences().size());
+        assertEquals(jsonGraph.getRelations().stream().map(RelationModel::getType).sorted().collect(Collectors.toList()),
+                copyGraph.getRelations().stream().map(RelationModel::getType).sorted().collect(Collectors.toList()));
+        List<WitnessModel> sectWits = jerseyTest.target(sectPath + "/witnesses")
+                .request()
+                .get(new GenericType<List<WitnessModel>>() {});
+        assertFalse(sectWits.isEmpty());
+        for (String sigil : sectWits.stream().map(WitnessModel::getSigil).collect(Collectors.toList())) {
+            String original = Util.getValueFromJson(jerseyTest.target(sectPath + "/witness/" + sigil + "/text")
+                    .request().get(), "text");
+            String copied = Util.getValueFromJson(jerseyTest.target(copyPath + "/witness/" + sigil + "/text")
+                    .request().get(), "text");
+            assertNotNull(original);
+            assertEquals(original, copied);
+        }
+
+        // A damaged file is refused, and leaves no section behind
+        Files.write(binFile.toPath(), Arrays.copyOf(binary, binary.length / 2));
+        jerseyResult = Util.addSectionToTradition(jerseyTest, tradId, binFile.getPath(), "binarygraph", "section 4");
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), jerseyResult.getStatus());
+        // and so is one that claims more strings than it holds
+        byte[] huge = {'S', 'T', 'G', 'B', 1, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07};
+        Files.write(binFile.toPath(), huge);
+        jerseyResult = Util.addSectionToTradition(jerseyTest, tradId, binFile.getPath(), "binarygraph", "section 4");
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), jerseyResult.getStatus());
+        // or a negative number of them
+        byte[] negative = {'S', 'T', 'G', 'B', 1, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+                (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x01};
+        Files.write(binFile.toPath(), negative);
+        jerseyResult = Util.addSectionToTradition(jerseyTest, tradId, binFile.getPath(), "binarygraph", "section 4");
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), jerseyResult.getStatus());
+        List<SectionModel> tSections = jerseyTest.target("/tradition/" + tradId + "/sections")
+                .request()
+                .get(new GenericType<List<SectionModel>>() {});
+        assertEquals(3, tSections.size());
+    }
+
     public void testSectionWitnesses() {
         List<SectionModel> tSections = jerseyTest.target("/tradition/" + tradId + "/sections")
                 .request()
@@ -198,6 +280,10 @@ public class SectionTest extends TestCase {
                 .request()
                 .get(new GenericType<List<SectionModel>>() {});
         SectionModel firstSection = tSections.get(0);
+        String firstReading = jerseyTest
+                .target("/tradition/" + tradId + "/section/" + firstSection.getId() + "/readings")
+                .request()
+                .get(new GenericType<List<ReadingModel>>() {}).get(0).getId();
 
         Response jerseyResult = jerseyTest
                 .target("/tradition/" + tradId + "/section/" + firstSection.getId())
@@ -209,6 +295,19 @@ public class SectionTest extends TestCase {
                 .request()
                 .get(new GenericType<List<ReadingModel>>() {});
         assertEquals(47, tReadings.size());
+        jerseyResult = jerseyTest.target("/tradition/" + tradId + "/section/" + firstSection.getId())
+                .request()
+                .get();
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), jerseyResult.getStatus());
+
+        // The section's readings should be gone from the database once the removal is done
+        assertTrue(DeletionService.awaitIdle(1, TimeUnit.MINUTES));
+        try (Transaction tx = db.beginTx()) {
+            assertFalse(db.findNodes(Nodes.READING, "section_id", Long.valueOf(firstSection.getId())).hasNext());
+            tx.success();
+        }
+        jerseyResult = jerseyTest.target("/reading/" + firstReading).request().get();
+        assertEquals(Response.Status.NO_CONTENT.getStatusCode(), jerseyResult.getStatus());
     }
 
     private List<String> importFlorilegium () {
@@ -269,6 +368,98 @@ public class SectionTest extends TestCase {
         assertEquals(bText, wit);
     }
 
+    private String makeSectionArchive(String manifest, String... files) throws IOException {
+        File archive = File.createTempFile("sectiontest", ".zip");
+        archive.deleteOnExit();
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(archive))) {
+            zos.putNextEntry(new ZipEntry("manifest.json"));
+            zos.write(manifest.getBytes(StandardCharsets.UTF_8));
+            zos.closeEntry();
+            for (String f : files) {
+                zos.putNextEntry(new ZipEntry(new File(f).getName()));
+                Files.copy(Paths.get(f), zos);
+                zos.closeEntry();
+            }
+        }
+        return archive.getPath();
+    }
+
+    public void testSectionArchive() throws IOException {
+        List<String> florIds = importFlorilegium();
+        String florId = florIds.remove(0);
+
+        String manifest = "[{\"file\": \"florilegium_w.csv\", \"filetype\": \"csv\", \"name\": \"DEFAULT\"}, " +
+                "{\"file\": \"florilegium_x.csv\", \"filetype\": \"csv\", \"name\": \"part 1\"}, " +
+                "{\"file\": \"florilegium_y.csv\", \"filetype\": \"csv\", \"name\": \"part 2\"}, " +
+                "{\"file\": \"florilegium_z.csv\", \"filetype\": \"csv\", \"name\": \"part 3\"}]";
+        String archive = makeSectionArchive(manifest, "src/TestFiles/florilegium_z.csv",
+                "src/TestFiles/florilegium_x.csv", "src/TestFiles/florilegium_w.csv", "src/TestFiles/florilegium_y.csv");
+        Response jerseyResult = Util.createTraditionFromFileOrString(jerseyTest, "Florilegium", "LR",
+                "user@example.com", archive, "zip");
+        assertEquals(Response.Status.CREATED.getStatusCode(), jerseyResult.getStatus());
+        String archId = Util.getValueFromJson(jerseyResult, "tradId");
+
+        // The sections should be in manifest order
+        List<SectionModel> returnedSections = jerseyTest
+                .target("/tradition/" + archId + "/sections")
+                .request()
+                .get(new GenericType<List<SectionModel>>() {});
+        assertEquals(Arrays.asList("DEFAULT", "part 1", "part 2", "part 3"),
+                returnedSections.stream().map(SectionModel::getName).collect(Collectors.toList()));
+
+        // The witnesses should not have been duplicated by the concurrent parse
+        List<WitnessModel> seqWits = jerseyTest.target("/tradition/" + florId + "/witnesses")
+                .request().get(new GenericType<List<WitnessModel>>() {});
+        List<WitnessModel> archWits = jerseyTest.target("/tradition/" + archId + "/witnesses")
+                .request().get(new GenericType<List<WitnessModel>>() {});
+        assertEquals(seqWits.size(), archWits.size());
+        assertEquals(seqWits.size(), archWits.stream().map(WitnessModel::getSigil).distinct().count());
+
+        // The text should be the same as for the section-by-section upload
+        for (WitnessModel wm : seqWits) {
+            String seqText = Util.getValueFromJson(jerseyTest
+                    .target("/tradition/" + florId + "/witness/" + wm.getSigil() + "/text")
+                    .request().get(), "text");
+            String archText = Util.getValueFromJson(jerseyTest
+                    .target("/tradition/" + archId + "/witness/" + wm.getSigil() + "/text")
+                    .request().get(), "text");
+            assertEquals(seqText, archText);
+        }
+    }
+
+    public void testSectionArchiveFailure() throws IOException {
+        // A manifest entry with no file
+        String archive = makeSectionArchive(
+                "[{\"file\": \"florilegium_w.csv\", \"filetype\": \"csv\"}, {\"file\": \"nothere.csv\", \"filetype\": \"csv\"}]",
+                "src/TestFiles/florilegium_w.csv");
+        FormDataMultiPart form = new FormDataMultiPart();
+        form.field("filetype", "zip");
+        form.bodyPart(new FileDataBodyPart("file", new File(archive)));
+        Response jerseyResult = jerseyTest.target("/tradition/" + tradId + "/sections")
+                .request()
+                .post(Entity.entity(form, MediaType.MULTIPART_FORM_DATA_TYPE));
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), jerseyResult.getStatus());
+
+        // A section file that can't be parsed
+        archive = makeSectionArchive(
+                "[{\"file\": \"florilegium_w.csv\", \"filetype\": \"csv\"}, {\"file\": \"legendfrag.xml\", \"filetype\": \"cxjson\"}]",
+                "src/TestFiles/florilegium_w.csv", "src/TestFiles/legendfrag.xml");
+        form = new FormDataMultiPart();
+        form.field("filetype", "zip");
+        form.bodyPart(new FileDataBodyPart("file", new File(archive)));
+        jerseyResult = jerseyTest.target("/tradition/" + tradId + "/sections")
+                .request()
+                .post(Entity.entity(form, MediaType.MULTIPART_FORM_DATA_TYPE));
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), jerseyResult.getStatus());
+        assertTrue(Util.getValueFromJson(jerseyResult, "error").contains("legendfrag.xml"));
+
+        // Nothing should have been added to the tradition
+        List<SectionModel> tSections = jerseyTest.target("/tradition/" + tradId + "/sections")
+                .request()
+                .get(new GenericType<List<SectionModel>>() {});
+        assertEquals(1, tSections.size());
+    }
+
     public void testDeleteSectionMiddle() {
         List<String> florIds = importFlorilegium();
         String florId = florIds.remove(0);
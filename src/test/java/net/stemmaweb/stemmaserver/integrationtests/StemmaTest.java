@@ -1,7 +1,9 @@
 package net.stemmaweb.stemmaserver.integrationtests;
 
+import java.io.File;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -11,18 +13,23 @@ import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import net.stemmaweb.model.QueryStatisticsModel;
 import net.stemmaweb.model.StemmaModel;
 import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.rest.Root;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.parser.DotParser;
+import net.stemmaweb.printer.GraphViz;
+import net.stemmaweb.printer.RenderPool;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.QueryService;
 import net.stemmaweb.services.VariantGraphService;
 import net.stemmaweb.stemmaserver.JerseyTestServerFactory;
 import net.stemmaweb.stemmaserver.Util;
 
 import org.glassfish.jersey.test.JerseyTest;
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import org.neo4j.graphdb.Direction;
@@ -167,6 +174,40 @@ public class StemmaTest {
         assertEquals(Response.Status.NOT_FOUND.getStatusCode(), getStemmaResponse.getStatus());
     }
 
+    @Test
+    public void getStemmaImageTest() throws Exception {
+        Assume.assumeTrue("The stand-in for dot needs a POSIX shell", File.separatorChar == '/');
+        // A stand-in for dot, which gives its input back wrapped as an image
+        Path dotDir = Files.createTempDirectory("dot_");
+        Path dot = dotDir.resolve("dot");
+        Files.write(dot, "#!/bin/sh\nprintf '<svg>%s</svg>' \"$(cat)\"\n".getBytes(StandardCharsets.UTF_8));
+        assertTrue(dot.toFile().setExecutable(true));
+        GraphViz.setDotExecutable(dot.toString());
+        RenderPool.clear();
+        try {
+            Response response = jerseyTest.target("/tradition/" + tradId + "/stemma/stemma")
+                    .request("image/svg+xml").get();
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+            assertEquals("image/svg+xml", response.getMediaType().toString());
+            String svg = response.readEntity(String.class);
+            assertTrue(svg.startsWith("<svg>digraph \"stemma\""));
+
+            // A request that doesn't say what it wants still gets the JSON
+            response = jerseyTest.target("/tradition/" + tradId + "/stemma/stemma").request().get();
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+            assertEquals("stemma", response.readEntity(StemmaModel.class).getIdentifier());
+
+            response = jerseyTest.target("/tradition/" + tradId + "/stemma/gugus")
+                    .request("image/svg+xml").get();
+            assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+        } finally {
+            GraphViz.setDotExecutable(null);
+            RenderPool.clear();
+            Files.deleteIfExists(dot);
+            Files.deleteIfExists(dotDir);
+        }
+    }
+
     @Test
     public void setStemmaTest() {
 
@@ -350,6 +391,62 @@ public class StemmaTest {
         }
     }
 
+    private static QueryStatisticsModel queryStatistics(String name) {
+        QueryStatisticsModel result = QueryService.getStatistics().stream()
+                .filter(x -> x.getName().equals(name)).findFirst().orElse(null);
+        assertNotNull(result);
+        return result;
+    }
+
+    @Test
+    public void stemmaNameWithQuotesTest() {
+        String stemmaTitle = "Ben's stemma";
+        StemmaModel input = new StemmaModel();
+        input.setDot("graph \"Ben's stemma\" {  0 [ class=hypothetical ];  A [ class=extant ];  B [ class=extant ];  C [ class=extant ]; 0 -- A;  A -- B;  A -- C;}");
+        Response response = jerseyTest
+                .target("/tradition/" + tradId + "/stemma")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(input));
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+
+        // The quote in the name is just part of the name
+        StemmaModel stemma = jerseyTest
+                .target("/tradition/" + tradId + "/stemma/" + stemmaTitle)
+                .request(MediaType.APPLICATION_JSON)
+                .get(StemmaModel.class);
+        assertEquals(stemmaTitle, stemma.getIdentifier());
+        response = jerseyTest
+                .target("/tradition/" + tradId + "/stemma/" + stemmaTitle + "/reorient/A")
+                .request(MediaType.APPLICATION_JSON)
+                .post(null);
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+
+        // ...and so is anything that looks like Cypher in a sigil
+        response = jerseyTest
+                .target("/tradition/" + tradId + "/stemma/" + stemmaTitle + "/reorient/A' OR '1'='1")
+                .request(MediaType.APPLICATION_JSON)
+                .post(null);
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+
+        // The same query for another tradition takes its plan from the cache
+        String otherId = createTraditionFromFile("Other tradition", "src/TestFiles/testTradition.xml");
+        response = jerseyTest
+                .target("/tradition/" + otherId + "/stemma")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(input));
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        QueryStatisticsModel before = queryStatistics("STEMMA_WITNESS");
+        response = jerseyTest
+                .target("/tradition/" + otherId + "/stemma/" + stemmaTitle + "/reorient/B")
+                .request(MediaType.APPLICATION_JSON)
+                .post(null);
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        QueryStatisticsModel after = queryStatistics("STEMMA_WITNESS");
+        assertEquals(before.getExecutions() + 1, (long) after.getExecutions());
+        assertEquals(before.getPlanCacheMisses(), after.getPlanCacheMisses());
+        assertEquals(before.getPlanCacheHits() + 1, (long) after.getPlanCacheHits());
+    }
+
     @Test
     public void reorientDigraphStemmaNoNodesTest() {
         String stemmaTitle = "stemma";
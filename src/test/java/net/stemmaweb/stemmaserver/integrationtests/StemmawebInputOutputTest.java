@@ -1,5 +1,9 @@
 package net.stemmaweb.stemmaserver.integrationtests;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -142,6 +146,33 @@ public class StemmawebInputOutputTest {
                 response.getStatus());
     }
 
+    /**
+     * export a public tradition that carries properties the legacy format has no key for
+     */
+    @Test
+    public void graphMLExportPublicTraditionTest() throws IOException {
+        Response response = Util.createTraditionFromFileOrString(jerseyTest, "Tradition", "LR", "1",
+                "src/TestFiles/testTradition.xml", "stemmaweb");
+        String traditionId = Util.getValueFromJson(response, "tradId");
+        try (Transaction tx = db.beginTx()) {
+            Node traditionNode = db.findNode(Nodes.TRADITION, "id", traditionId);
+            traditionNode.setProperty("is_public", true);
+            traditionNode.setProperty("not_in_legacy_format", "x");
+            tx.success();
+        }
+
+        Response actualResponse = exportStemmawebResource.writeNeo4J(traditionId);
+        assertEquals(Response.ok().build().getStatus(), actualResponse.getStatus());
+        String xmlOutput = actualResponse.getEntity().toString();
+        String graphML = new String(Files.readAllBytes(Paths.get(xmlOutput)), StandardCharsets.UTF_8);
+        assertTrue(graphML.contains("<data key=\"dg2\">true</data>"));
+        assertFalse(graphML.contains("not_in_legacy_format"));
+
+        response = Util.createTraditionFromFileOrString(jerseyTest, "Tradition 2", "BI", "1", xmlOutput, "stemmaweb");
+        assertEquals(Response.status(Response.Status.CREATED).build().getStatus(),
+                response.getStatus());
+    }
+
     /**
      * import a tradition with Unicode sigla
      */
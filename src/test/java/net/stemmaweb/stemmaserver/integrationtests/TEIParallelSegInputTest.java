@@ -135,6 +135,27 @@ public class TEIParallelSegInputTest {
 
     }
 
+    @Test
+    public void testTEIPSNothingToMerge() {
+        // No two readings here are alike, so the parser has nothing to merge after import
+        String tei = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<TEI xmlns=\"http://www.tei-c.org/ns/1.0\"><teiHeader><fileDesc>" +
+                "<titleStmt><title>Fox</title></titleStmt><publicationStmt><p/></publicationStmt>" +
+                "<sourceDesc><listWit><witness xml:id=\"A\"/><witness xml:id=\"B\"/></listWit></sourceDesc>" +
+                "</fileDesc></teiHeader><text><body><p>the " +
+                "<app><rdg wit=\"#A\">quick</rdg><rdg wit=\"#B\">slow</rdg></app>" +
+                " fox</p></body></text></TEI>";
+        Response cResult = Util.createTraditionFromFileOrString(jerseyTest, "Fox", "LR", "1",
+                tei, "teips");
+        assertEquals(Response.Status.CREATED.getStatusCode(), cResult.getStatus());
+
+        String tradId = Util.getValueFromJson(cResult, "tradId");
+        TextSequenceModel tm = (TextSequenceModel) new Witness(tradId, "A").getWitnessAsText().getEntity();
+        assertEquals("the quick fox", tm.getText());
+        tm = (TextSequenceModel) new Witness(tradId, "B").getWitnessAsText().getEntity();
+        assertEquals("the slow fox", tm.getText());
+    }
+
     @After
     public void tearDown() throws Exception {
         db.shutdown();
@@ -12,12 +12,18 @@ import net.stemmaweb.services.*;
 import net.stemmaweb.stemmaserver.JerseyTestServerFactory;
 import net.stemmaweb.stemmaserver.Util;
 
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.glassfish.jersey.test.JerseyTest;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Result;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.test.TestGraphDatabaseFactory;
@@ -27,10 +33,14 @@ import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.StringReader;
 import java.util.*;
 import java.util.stream.Collectors;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertNotEquals;
 
 
@@ -106,6 +116,44 @@ public class TabularInputOutputTest extends TestCase {
         assertTrue(allReadings.stream().anyMatch(x -> x.getText().equals("Μαξίμου")));
     }
 
+    public void testParseCsvLayerAtEnd() {
+        // The a.c. layer of A ends on a reading of its own
+        String csv = "A,A (a.c.),B\nthe,the,the\nquick,quick,slow\nfox,hound,fox\n";
+        Response response = Util.createTraditionFromFileOrString(jerseyTest, "Layered", "LR", "1",
+                csv, "csv");
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        String tradId = Util.getValueFromJson(response, "tradId");
+
+        // The link from that reading to the end node is in the layer, not in a witness "A (a.c.)"
+        try (Transaction tx = db.beginTx()) {
+            Result result = db.execute("MATCH (t:TRADITION {id:'" + tradId + "'})-[:PART]->(:SECTION)-[:HAS_END]->(e) "
+                    + "MATCH (r:READING)-[s:SEQUENCE]->(e) RETURN r.text AS text, s AS link");
+            int links = 0;
+            while (result.hasNext()) {
+                Map<String, Object> row = result.next();
+                Relationship link = (Relationship) row.get("link");
+                links++;
+                if (row.get("text").equals("hound")) {
+                    assertArrayEquals(new String[]{"A"}, (String[]) link.getProperty("a.c."));
+                    assertEquals(0, ((String[]) link.getProperty("witnesses")).length);
+                } else {
+                    List<String> wits = Arrays.asList((String[]) link.getProperty("witnesses"));
+                    assertEquals(Arrays.asList("A", "B"), wits.stream().sorted().collect(Collectors.toList()));
+                    assertFalse(link.hasProperty("a.c."));
+                }
+            }
+            assertEquals(2, links);
+            tx.success();
+        }
+
+        // and the layer reads through to the end
+        Witness witness = new Witness(tradId, "A");
+        List<String> layers = Collections.singletonList("a.c.");
+        TextSequenceModel ltm = (TextSequenceModel) witness.getWitnessAsTextWithLayer(
+                layers, "0", "E").getEntity();
+        assertEquals("the quick hound", ltm.getText());
+    }
+
     public void testSetRelationship() {
         Response response = Util.createTraditionFromFileOrString(jerseyTest, "Florilegium", "LR", "1",
                 "src/TestFiles/florilegium.csv", "csv");
@@ -189,6 +237,73 @@ public class TabularInputOutputTest extends TestCase {
         assertTrue(allReadings.stream().anyMatch(x -> x.getText().equals("այսոսիկ")));
     }
 
+    // The first sheet holds the collation; the second would give different witnesses if it were read.
+    private static final String[][] xlsxCollation = {
+            {"A", "B", "C"},
+            {"the", "the", "the"},
+            {"quick", "slow", "quick"},
+            {null, "brown", "brown"},
+            {"fox", "fox", "dog"}};
+    private static final String[][] xlsxNotes = {
+            {"X", "Y"},
+            {"not", "collation"}};
+
+    // Write the given sheets into a workbook, and save it in a temporary XLSX file.
+    private static String writeSpreadsheet(Workbook workbook, String[][]... sheets) throws IOException {
+        for (int i = 0; i < sheets.length; i++) {
+            Sheet sheet = workbook.createSheet("Sheet " + (i + 1));
+            for (int r = 0; r < sheets[i].length; r++) {
+                Row row = sheet.createRow(r);
+                for (int c = 0; c < sheets[i][r].length; c++)
+                    if (sheets[i][r][c] != null)
+                        row.createCell(c).setCellValue(sheets[i][r][c]);
+            }
+        }
+        File xlsx = File.createTempFile("tabulartest", ".xlsx");
+        xlsx.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(xlsx)) {
+            workbook.write(out);
+        }
+        workbook.close();
+        return xlsx.getPath();
+    }
+
+    private void checkXlsxCollation(Response response) {
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        String tradId = Util.getValueFromJson(response, "tradId");
+        Tradition tradition = new Tradition(tradId);
+
+        ArrayList<WitnessModel> allWitnesses = (ArrayList<WitnessModel>) tradition.getAllWitnesses().getEntity();
+        assertEquals(Arrays.asList("A", "B", "C"),
+                allWitnesses.stream().map(WitnessModel::getSigil).sorted().collect(Collectors.toList()));
+        ArrayList<ReadingModel> allReadings = (ArrayList<ReadingModel>) tradition.getAllReadings().getEntity();
+        // Six readings plus the start and end nodes
+        assertEquals(8, allReadings.size());
+
+        HashMap<String, String> expected = new HashMap<>();
+        expected.put("A", "the quick fox");
+        expected.put("B", "the slow brown fox");
+        expected.put("C", "the quick brown dog");
+        for (String sigil : expected.keySet()) {
+            TextSequenceModel tm = (TextSequenceModel) new Witness(tradId, sigil).getWitnessAsText().getEntity();
+            assertEquals(expected.get(sigil), tm.getText());
+        }
+    }
+
+    public void testParseXlsxSharedStrings() throws IOException {
+        // XSSFWorkbook keeps cell text in the shared strings table
+        String xlsx = writeSpreadsheet(new XSSFWorkbook(), xlsxCollation, xlsxNotes);
+        checkXlsxCollation(Util.createTraditionFromFileOrString(jerseyTest, "Shared strings", "LR", "1",
+                xlsx, "xlsx"));
+    }
+
+    public void testParseXlsxInlineStrings() throws IOException {
+        // SXSSFWorkbook writes cell text inline in the sheet
+        String xlsx = writeSpreadsheet(new SXSSFWorkbook(), xlsxCollation, xlsxNotes);
+        checkXlsxCollation(Util.createTraditionFromFileOrString(jerseyTest, "Inline strings", "LR", "1",
+                xlsx, "xlsx"));
+    }
+
     // testOutputJSON
     public void testJSONExport() {
         // Set up some data
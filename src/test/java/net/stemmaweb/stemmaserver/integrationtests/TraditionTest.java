@@ -1,14 +1,24 @@
 package net.stemmaweb.stemmaserver.integrationtests;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.MediaType;
@@ -16,16 +26,27 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
 import net.stemmaweb.model.*;
+import net.stemmaweb.rest.AdmissionFilter;
+import net.stemmaweb.rest.BudgetFilter;
+import net.stemmaweb.rest.ChangeStreamListener;
 import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.MetricsFilter;
 import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.rest.Root;
+import net.stemmaweb.services.AdmissionControl;
+import net.stemmaweb.services.ChangeFeedService;
+import net.stemmaweb.services.DeletionService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.MetricsService;
+import net.stemmaweb.services.RequestBudget;
+import net.stemmaweb.services.TraversalMonitor;
 import net.stemmaweb.services.VariantGraphService;
 import net.stemmaweb.stemmaserver.JerseyTestServerFactory;
 
 import net.stemmaweb.stemmaserver.Util;
 
 import org.glassfish.jersey.test.JerseyTest;
+import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -68,6 +89,10 @@ public class TraditionTest {
 
         jerseyTest = JerseyTestServerFactory.newJerseyTestServer()
                 .addResource(Root.class)
+                .addResource(MetricsFilter.class)
+                .addResource(AdmissionFilter.class)
+                .addResource(BudgetFilter.class)
+                .addResource(ChangeStreamListener.class)
                 .create();
         jerseyTest.setUp();
 
@@ -610,7 +635,8 @@ public class TraditionTest {
                 .delete();
         assertEquals(Response.Status.OK.getStatusCode(), jerseyResponse.getStatus());
 
-        // nodes should be back to original number
+        // nodes should be back to original number, once the removal has finished
+        assertTrue(DeletionService.awaitIdle(1, TimeUnit.MINUTES));
         numNodes.set(0);
         try (Transaction tx = db.beginTx()) {
             db.execute("match (n) return n").forEachRemaining(x -> numNodes.getAndIncrement());
@@ -619,6 +645,355 @@ public class TraditionTest {
         assertEquals(originalNodeCount, numNodes.get());
     }
 
+    /**
+     * Test that a deleted tradition disappears at once, and is removed in the background
+     */
+    @Test
+    public void deleteTraditionInBackgroundTest() {
+        AtomicInteger numNodes = new AtomicInteger(0);
+        try (Transaction tx = db.beginTx()) {
+            db.execute("match (n) return n").forEachRemaining(x -> numNodes.getAndIncrement());
+            tx.success();
+        }
+        int originalNodeCount = numNodes.get();
+
+        String florId = createTraditionFromFile("Florilegium", "src/TestFiles/florilegium_graphml.xml", "1");
+        List<SectionModel> sections = jerseyTest.target("/tradition/" + florId + "/sections")
+                .request().get(new GenericType<List<SectionModel>>() {});
+        String sectId = sections.get(0).getId();
+        List<ReadingModel> readings = jerseyTest.target("/tradition/" + florId + "/section/" + sectId + "/readings")
+                .request().get(new GenericType<List<ReadingModel>>() {});
+        String readingId = readings.get(0).getId();
+
+        // Hold the removal back, so that we can see the tradition once it is only marked as deleted
+        DeletionService.setPaused(true);
+        Response jerseyResponse;
+        try {
+            jerseyResponse = jerseyTest.target("/tradition/" + florId).request().delete();
+            assertEquals(Response.Status.OK.getStatusCode(), jerseyResponse.getStatus());
+            List<DeletionModel> pending = jerseyTest.target("/deletions")
+                    .request().get(new GenericType<List<DeletionModel>>() {});
+            assertEquals(1, pending.size());
+            assertEquals(DeletionModel.PENDING, pending.get(0).getStatus());
+            // The reading is still in the database, but can't be found
+            jerseyResponse = jerseyTest.target("/reading/" + readingId).request().get();
+            assertEquals(Response.Status.NOT_FOUND.getStatusCode(), jerseyResponse.getStatus());
+        } finally {
+            DeletionService.setPaused(false);
+        }
+
+        // Neither the tradition nor anything in it can be found any more
+        jerseyResponse = jerseyTest.target("/tradition/" + florId).request().get();
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), jerseyResponse.getStatus());
+        jerseyResponse = jerseyTest.target("/tradition/" + florId + "/section/" + sectId).request().get();
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), jerseyResponse.getStatus());
+        List<TraditionModel> traditions = jerseyTest.target("/traditions")
+                .request().get(new GenericType<List<TraditionModel>>() {});
+        assertTrue(traditions.stream().noneMatch(x -> x.getId().equals(florId)));
+        traditions = jerseyTest.target("/user/1/traditions")
+                .request().get(new GenericType<List<TraditionModel>>() {});
+        assertTrue(traditions.stream().noneMatch(x -> x.getId().equals(florId)));
+
+        // Once the removal is done, it should be reported as such, and the nodes should be gone
+        assertTrue(DeletionService.awaitIdle(1, TimeUnit.MINUTES));
+        List<DeletionModel> deletions = jerseyTest.target("/deletions")
+                .request().get(new GenericType<List<DeletionModel>>() {});
+        assertEquals(1, deletions.size());
+        DeletionModel removal = deletions.get(0);
+        assertEquals(florId, removal.getId());
+        assertEquals("tradition", removal.getType());
+        assertEquals(DeletionModel.DONE, removal.getStatus());
+        assertTrue(removal.getNodes() > 200);
+        assertTrue(removal.getRelationships() > removal.getNodes());
+        // Now the reading is really gone
+        jerseyResponse = jerseyTest.target("/reading/" + readingId).request().get();
+        assertEquals(Response.Status.NO_CONTENT.getStatusCode(), jerseyResponse.getStatus());
+
+        numNodes.set(0);
+        try (Transaction tx = db.beginTx()) {
+            db.execute("match (n) return n").forEachRemaining(x -> numNodes.getAndIncrement());
+            tx.success();
+        }
+        assertEquals(originalNodeCount, numNodes.get());
+    }
+
+    @Test
+    public void metricsTest() {
+        MetricsService.clear();
+        List<ReadingModel> readings = jerseyTest.target("/tradition/" + tradId + "/readings")
+                .request().get(new GenericType<List<ReadingModel>>() {});
+        assertFalse(readings.isEmpty());
+        Response jerseyResult = jerseyTest.target("/tradition/nosuchtradition").request().get();
+        assertEquals(Status.NOT_FOUND.getStatusCode(), jerseyResult.getStatus());
+
+        jerseyResult = jerseyTest.target("/metrics").request().get();
+        assertEquals(Status.OK.getStatusCode(), jerseyResult.getStatus());
+        assertTrue(jerseyResult.getMediaType().toString().startsWith("text/plain"));
+        String metrics = jerseyResult.readEntity(String.class);
+        String readingsLabels = "method=\"GET\",endpoint=\"/tradition/{tradId}/readings\"";
+        assertTrue(metrics.contains("# TYPE stemmarest_http_request_duration_seconds histogram"));
+        assertTrue(metrics.contains("stemmarest_http_request_duration_seconds_count{" + readingsLabels + "} 1\n"));
+        assertTrue(metrics.contains("stemmarest_http_request_duration_seconds_bucket{" + readingsLabels + ",le=\"+Inf\"} 1\n"));
+        Matcher m = Pattern.compile("stemmarest_http_response_size_bytes_sum\\{" + Pattern.quote(readingsLabels) + "} (\\d+)")
+                .matcher(metrics);
+        assertTrue(m.find());
+        assertTrue(Long.parseLong(m.group(1)) > 1000);
+        assertTrue(metrics.contains("stemmarest_http_errors_total{method=\"GET\",endpoint=\"/tradition/{tradId}\",status=\"404\"} 1\n"));
+        assertFalse(metrics.contains("stemmarest_http_errors_total{" + readingsLabels));
+        // The database figures
+        assertTrue(metrics.contains("\nneo4j_page_cache_hits_total "));
+        assertTrue(metrics.contains("\nneo4j_open_transactions "));
+        assertTrue(metrics.contains("\nneo4j_store_size_bytes "));
+    }
+
+    @Test
+    public void admissionControlTest() throws InterruptedException {
+        AdmissionControl.setLimits(AdmissionControl.WorkClass.EXPORT, 1, 0, 0);
+        try {
+            // With the only export permit taken, an export is turned away
+            AdmissionControl.Permit permit = AdmissionControl.admit(AdmissionControl.WorkClass.EXPORT);
+            assertNotNull(permit);
+            Response jerseyResult = jerseyTest.target("/tradition/" + tradId + "/graphml").request().get();
+            assertEquals(Status.SERVICE_UNAVAILABLE.getStatusCode(), jerseyResult.getStatus());
+            assertTrue(Long.parseLong(jerseyResult.getHeaderString("Retry-After")) >= 1);
+            assertTrue(jerseyResult.readEntity(String.class).contains("export"));
+            // but other requests are not held up
+            jerseyResult = jerseyTest.target("/tradition/" + tradId + "/readings").request().get();
+            assertEquals(Status.OK.getStatusCode(), jerseyResult.getStatus());
+            jerseyResult.readEntity(String.class);
+
+            String metrics = jerseyTest.target("/metrics").request().get(String.class);
+            assertTrue(metrics.contains("stemmarest_admission_limit{class=\"export\"} 1\n"));
+            assertTrue(metrics.contains("stemmarest_admission_in_flight{class=\"export\"} 1\n"));
+            assertTrue(metrics.contains("stemmarest_admission_queue_depth{class=\"export\"} 0\n"));
+            assertTrue(metrics.contains("stemmarest_admission_rejected_total{class=\"export\"} 1\n"));
+
+            // Once the permit is given back, the export goes ahead
+            permit.release();
+            permit.release();
+            jerseyResult = jerseyTest.target("/tradition/" + tradId + "/graphml").request().get();
+            assertEquals(Status.OK.getStatusCode(), jerseyResult.getStatus());
+            jerseyResult.readEntity(String.class);
+            // and gives its own permit back when it is done
+            for (int i = 0; i < 100 && AdmissionControl.getFigures().get(AdmissionControl.WorkClass.EXPORT)[1] > 0; i++)
+                Thread.sleep(20);
+            long[] figures = AdmissionControl.getFigures().get(AdmissionControl.WorkClass.EXPORT);
+            assertEquals(0, figures[1]);
+            assertEquals(2, figures[3]);
+            assertEquals(1, figures[4]);
+        } finally {
+            AdmissionControl.resetLimits(AdmissionControl.WorkClass.EXPORT);
+        }
+    }
+
+    @Test
+    public void requestBudgetTest() {
+        List<SectionModel> sections = jerseyTest.target("/tradition/" + tradId + "/sections")
+                .request().get(new GenericType<List<SectionModel>>() {});
+        String sectPath = "/tradition/" + tradId + "/section/" + sections.get(0).getId();
+        long nodeBudget = RequestBudget.getNodeBudget();
+        try {
+            RequestBudget.setNodeBudget(20);
+            // A traversal that goes over the budget is stopped
+            Response jerseyResult = jerseyTest.target(sectPath + "/variants").request().get();
+            assertEquals(422, jerseyResult.getStatus());
+            JSONObject error = new JSONObject(jerseyResult.readEntity(String.class));
+            assertEquals("nodes", error.getString("budget"));
+            assertTrue(error.getString("error").contains("20 nodes"));
+            // and so is one whose resource method catches the exception itself
+            jerseyResult = jerseyTest.target(sectPath + "/mergeablereadings/1/30").request().get();
+            assertEquals(422, jerseyResult.getStatus());
+            assertEquals("nodes", new JSONObject(jerseyResult.readEntity(String.class)).getString("budget"));
+            // but a request within the budget is not
+            jerseyResult = jerseyTest.target("/tradition/" + tradId + "/witnesses").request().get();
+            assertEquals(Status.OK.getStatusCode(), jerseyResult.getStatus());
+            jerseyResult.readEntity(String.class);
+        } finally {
+            RequestBudget.setNodeBudget(nodeBudget);
+        }
+        Response jerseyResult = jerseyTest.target(sectPath + "/variants").request().get();
+        assertEquals(Status.OK.getStatusCode(), jerseyResult.getStatus());
+        jerseyResult.readEntity(String.class);
+        assertTrue(RequestBudget.getExceeded().get("nodes") >= 2);
+        String metrics = jerseyTest.target("/metrics").request().get(String.class);
+        assertTrue(metrics.contains("stemmarest_budget_exceeded_total{budget=\"nodes\"} "));
+    }
+
+    @Test
+    public void slowOperationLogTest() {
+        long threshold = TraversalMonitor.getSlowThreshold();
+        try {
+            TraversalMonitor.setSlowThreshold(0);
+            List<SectionModel> sections = jerseyTest.target("/tradition/" + tradId + "/sections")
+                    .request().get(new GenericType<List<SectionModel>>() {});
+            String sectId = sections.get(0).getId();
+            Response jerseyResult = jerseyTest.target("/tradition/" + tradId + "/section/" + sectId + "/variants")
+                    .request().get();
+            assertEquals(Status.OK.getStatusCode(), jerseyResult.getStatus());
+            jerseyResult.readEntity(String.class);
+        } finally {
+            TraversalMonitor.setSlowThreshold(threshold);
+        }
+
+        // The most recent entry is for the variant list, with the traversals it ran
+        JSONObject entry = new JSONObject(TraversalMonitor.getRecentSlowOperations().get(0));
+        assertEquals("slow_operation", entry.getString("event"));
+        assertEquals("GET", entry.getString("method"));
+        assertEquals("/tradition/{tradId}/section/{sectionId}/variants", entry.getString("endpoint"));
+        assertEquals(tradId, entry.getString("tradition"));
+        assertEquals(200, entry.getInt("status"));
+        JSONObject variants = entry.getJSONObject("traversals").getJSONObject("variants");
+        assertTrue(variants.getLong("runs") > 1);
+        assertTrue(variants.getLong("nodes") >= variants.getLong("paths"));
+        assertTrue(variants.getLong("relationships") > 0);
+        assertTrue(TraversalMonitor.getTotals().containsKey("variants"));
+
+        // Nothing is logged for requests under the threshold
+        int logged = TraversalMonitor.getRecentSlowOperations().size();
+        jerseyTest.target("/tradition/" + tradId + "/sections").request().get().readEntity(String.class);
+        assertEquals(logged, TraversalMonitor.getRecentSlowOperations().size());
+    }
+
+    @Test
+    public void graphOperationEventTest() throws IOException {
+        List<SectionModel> sections = jerseyTest.target("/tradition/" + tradId + "/sections")
+                .request().get(new GenericType<List<SectionModel>>() {});
+        String sectId = sections.get(0).getId();
+        java.nio.file.Path dump = Files.createTempFile("stemmarest", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("net.stemmaweb.GraphOperation");
+            recording.start();
+            Response jerseyResult = jerseyTest.target("/tradition/" + tradId + "/section/" + sectId + "/variants")
+                    .request().get();
+            assertEquals(Status.OK.getStatusCode(), jerseyResult.getStatus());
+            recording.stop();
+            recording.dump(dump);
+        }
+
+        // The variant list was recorded with its tradition, section and number of locations
+        List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+        Files.delete(dump);
+        Optional<RecordedEvent> variants = events.stream()
+                .filter(x -> x.getEventType().getName().equals("net.stemmaweb.GraphOperation"))
+                .filter(x -> x.getString("operation").equals("variant-list"))
+                .findFirst();
+        assertTrue(variants.isPresent());
+        assertEquals(tradId, variants.get().getString("tradition"));
+        assertEquals(sectId, variants.get().getString("section"));
+        assertEquals("locations", variants.get().getString("counted"));
+        assertTrue(variants.get().getLong("count") > 0);
+    }
+
+    @Test
+    public void changeFeedTest() throws Exception {
+        String changesPath = "/tradition/" + tradId + "/changes";
+        ChangeFeedModel start = jerseyTest.target(changesPath).request().get(ChangeFeedModel.class);
+        assertTrue(start.getChanges().isEmpty());
+
+        // Make a relation, and see it in the changes since the start
+        RelationModel relation = new RelationModel();
+        relation.setSource(readingLookup.get("april/2"));
+        relation.setTarget(readingLookup.get("showers/5"));
+        relation.setType("repetition");
+        relation.setScope("local");
+        Response jerseyResult = jerseyTest.target("/tradition/" + tradId + "/relation")
+                .request(MediaType.APPLICATION_JSON).post(Entity.json(relation));
+        assertEquals(Status.CREATED.getStatusCode(), jerseyResult.getStatus());
+        String relationId = jerseyResult.readEntity(GraphModel.class).getRelations().iterator().next().getId();
+
+        ChangeFeedModel feed = jerseyTest.target(changesPath).queryParam("since", start.getVersion())
+                .request().get(ChangeFeedModel.class);
+        assertTrue(feed.getVersion() > start.getVersion());
+        assertEquals(1, feed.getChanges().size());
+        ChangeModel change = feed.getChanges().get(0);
+        assertEquals(feed.getVersion(), change.getVersion());
+        assertEquals(1, change.getRelations().size());
+        assertEquals(relationId, change.getRelations().get(0).getId());
+        assertEquals("repetition", change.getRelations().get(0).getType());
+        assertTrue(change.getReadingsRemoved().isEmpty());
+        // Nothing has changed since then
+        assertTrue(jerseyTest.target(changesPath).queryParam("since", feed.getVersion())
+                .request().get(ChangeFeedModel.class).getChanges().isEmpty());
+        // and the changes from long ago are no longer known
+        jerseyResult = jerseyTest.target(changesPath).queryParam("since", 0).request().get();
+        assertEquals(Status.GONE.getStatusCode(), jerseyResult.getStatus());
+        jerseyResult = jerseyTest.target("/tradition/nosuchtradition/changes").request().get();
+        assertEquals(Status.NOT_FOUND.getStatusCode(), jerseyResult.getStatus());
+
+        // The stream sends the changes since the version asked for, and then those made later
+        Response stream = jerseyTest.target(changesPath + "/stream").queryParam("since", start.getVersion())
+                .request("text/event-stream").get();
+        assertEquals(Status.OK.getStatusCode(), stream.getStatus());
+        BufferedReader events = new BufferedReader(
+                new InputStreamReader(stream.readEntity(InputStream.class), StandardCharsets.UTF_8));
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            List<String> event = reader.submit(() -> nextEvent(events)).get(10, TimeUnit.SECONDS);
+            assertEquals("id: " + change.getVersion(), event.get(0));
+            assertEquals("event: change", event.get(1));
+            assertTrue(event.get(2).contains("\"relations\":[{"));
+            // The stream keeps its subscription after Jersey has finished with the request
+            assertEquals(1, ChangeFeedService.getFigures()[1]);
+
+            jerseyResult = jerseyTest.target("/tradition/" + tradId + "/relation/" + relationId)
+                    .request().delete();
+            assertEquals(Status.OK.getStatusCode(), jerseyResult.getStatus());
+            event = reader.submit(() -> nextEvent(events)).get(10, TimeUnit.SECONDS);
+            JSONObject removal = new JSONObject(event.get(2).substring("data: ".length()));
+            assertTrue(removal.getLong("version") > change.getVersion());
+            assertEquals(relationId, removal.getJSONArray("relationsRemoved").getString(0));
+            assertFalse(removal.has("relations"));
+
+            // No more streams are opened than are allowed
+            int maxStreams = ChangeFeedService.getMaxStreams();
+            ChangeFeedService.setMaxStreams(1);
+            try {
+                jerseyResult = jerseyTest.target(changesPath + "/stream").request("text/event-stream").get();
+                assertEquals(Status.SERVICE_UNAVAILABLE.getStatusCode(), jerseyResult.getStatus());
+                assertNotNull(jerseyResult.getHeaderString("Retry-After"));
+            } finally {
+                ChangeFeedService.setMaxStreams(maxStreams);
+            }
+        } finally {
+            reader.shutdownNow();
+            stream.close();
+        }
+
+        // A transaction too big to describe is logged as a reload of every section
+        long before = jerseyTest.target(changesPath).request().get(ChangeFeedModel.class).getVersion();
+        try (Transaction tx = db.beginTx()) {
+            List<Node> readings = new ArrayList<>();
+            db.findNodes(Nodes.READING).forEachRemaining(readings::add);
+            for (int i = 0; i * readings.size() <= 1000; i++)
+                for (Node r : readings)
+                    r.setProperty("scratch" + i, true);
+            tx.success();
+        }
+        feed = jerseyTest.target(changesPath).queryParam("since", before).request().get(ChangeFeedModel.class);
+        assertFalse(feed.getChanges().isEmpty());
+        assertTrue(feed.getChanges().stream().allMatch(x -> Boolean.TRUE.equals(x.getReload())));
+        List<SectionModel> sections = jerseyTest.target("/tradition/" + tradId + "/sections")
+                .request().get(new GenericType<List<SectionModel>>() {});
+        assertEquals(sections.size(), feed.getChanges().size());
+        String metrics = jerseyTest.target("/metrics").request().get(String.class);
+        assertTrue(metrics.contains("stemmarest_changes_logged_total "));
+    }
+
+    // Read the lines of the next event on a Server-Sent Events stream, skipping comments and
+    // fields that are not part of an event
+    private static List<String> nextEvent(BufferedReader events) throws IOException {
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = events.readLine()) != null) {
+            if (line.isEmpty()) {
+                if (lines.stream().anyMatch(x -> x.startsWith("data: "))) return lines;
+                lines.clear();
+            } else if (!line.startsWith(":") && !line.startsWith("retry:"))
+                lines.add(line);
+        }
+        return lines;
+    }
+
     /**
      * Test do delete a Tradition with an invalid id deletTraditionById
      */
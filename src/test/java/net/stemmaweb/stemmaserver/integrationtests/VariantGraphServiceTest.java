@@ -1,6 +1,9 @@
 package net.stemmaweb.stemmaserver.integrationtests;
 
+import net.stemmaweb.model.AlignmentModel;
+import net.stemmaweb.model.ReadingModel;
 import net.stemmaweb.model.RelationModel;
+import net.stemmaweb.model.WitnessTokensModel;
 import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.rest.Relation;
@@ -17,6 +20,7 @@ import javax.ws.rs.core.Response;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -188,6 +192,101 @@ public class VariantGraphServiceTest {
         }
     }
 
+    @Test
+    public void calculateCommonTest() {
+        String newTradId = Util.getValueFromJson(
+                Util.createTraditionDirectly("Tradition", "LR", userId,
+                        "src/TestFiles/globalrel_test.xml", "stemmaweb"),
+                "tradId"
+        );
+        Node section = VariantGraphService.getSectionNodes(newTradId, db).get(0);
+        try (Transaction tx = db.beginTx()) {
+            HashMap<Long, Long> ranks = new HashMap<>();
+            HashMap<Long, Boolean> expected = expectedCommon(section, ranks);
+            assertTrue(expected.containsValue(true));
+            assertTrue(expected.containsValue(false));
+
+            // Recalculate a few ranks only
+            expected.keySet().forEach(x -> db.getNodeById(x).removeProperty("is_common"));
+            VariantGraphService.calculateCommon(section, 3, 5);
+            for (Long id : expected.keySet()) {
+                Node n = db.getNodeById(id);
+                if (ranks.get(id) >= 3 && ranks.get(id) <= 5)
+                    assertEquals(expected.get(id), n.getProperty("is_common"));
+                else
+                    assertFalse(n.hasProperty("is_common"));
+            }
+
+            // Now recalculate the lot
+            VariantGraphService.calculateCommon(section);
+            for (Long id : expected.keySet())
+                assertEquals(expected.get(id), db.getNodeById(id).getProperty("is_common"));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void recalculateCommonOnRerankTest() {
+        Node section = VariantGraphService.getSectionNodes(traditionId, db).get(0);
+        HashMap<Long, Long> ranksBefore = new HashMap<>();
+        RelationModel rm = new RelationModel();
+        try (Transaction tx = db.beginTx()) {
+            // Set every reading's flag wrongly, so that we can see which ones are recalculated
+            expectedCommon(section, ranksBefore).forEach((id, common) ->
+                    db.getNodeById(id).setProperty("is_common", !common));
+            rm.setSource(String.valueOf(db.findNode(Nodes.READING, "text", "root").getId()));
+            Node teh = db.findNodes(Nodes.READING, "text", "teh").stream()
+                    .filter(x -> x.getProperty("rank").equals(16L)).findFirst().orElse(null);
+            assertNotNull(teh);
+            rm.setTarget(String.valueOf(teh.getId()));
+            tx.success();
+        }
+
+        // Relating two readings at different ranks moves one of them, and the readings after it
+        rm.setType("grammatical");
+        Response r = new Relation(traditionId).create(rm);
+        assertEquals(Response.Status.CREATED.getStatusCode(), r.getStatus());
+
+        // The flags should have been recalculated between the lowest and highest ranks that
+        // any reading moved from or to, and nowhere else
+        try (Transaction tx = db.beginTx()) {
+            HashMap<Long, Long> ranksAfter = new HashMap<>();
+            HashMap<Long, Boolean> expected = expectedCommon(section, ranksAfter);
+            long from = Long.MAX_VALUE, to = 0;
+            for (Long id : ranksAfter.keySet())
+                if (!ranksAfter.get(id).equals(ranksBefore.get(id))) {
+                    from = Math.min(from, Math.min(ranksBefore.get(id), ranksAfter.get(id)));
+                    to = Math.max(to, Math.max(ranksBefore.get(id), ranksAfter.get(id)));
+                }
+            assertTrue(from < to);
+            for (Long id : expected.keySet()) {
+                long rank = ranksAfter.get(id);
+                boolean recalculated = rank >= from && rank <= to;
+                assertEquals(recalculated == expected.get(id), db.getNodeById(id).getProperty("is_common"));
+            }
+            tx.success();
+        }
+    }
+
+    // Work out from the alignment table which readings should be common, noting their ranks
+    private static HashMap<Long, Boolean> expectedCommon(Node section, HashMap<Long, Long> ranks) {
+        AlignmentModel am = new AlignmentModel(section);
+        HashMap<Long, Boolean> expected = new HashMap<>();
+        for (int i = 0; i < am.getLength(); i++) {
+            HashSet<Long> distinct = new HashSet<>();
+            for (WitnessTokensModel wtm : am.getAlignment()) {
+                ReadingModel rm = wtm.getTokens().get(i);
+                if (rm == null) distinct.add(0L);
+                else if (!rm.getIs_lacuna()) distinct.add(Long.valueOf(rm.getId()));
+            }
+            for (Long id : distinct) if (id > 0) {
+                expected.put(id, distinct.size() == 1);
+                ranks.put(id, (long) i + 1);
+            }
+        }
+        return expected;
+    }
+
     // clearMajorityTest()
 
     // returnEntireTraditionTest()
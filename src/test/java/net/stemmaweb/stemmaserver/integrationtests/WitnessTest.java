@@ -1,5 +1,6 @@
 package net.stemmaweb.stemmaserver.integrationtests;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -13,6 +14,9 @@ import net.stemmaweb.model.TextSequenceModel;
 import net.stemmaweb.model.WitnessModel;
 import net.stemmaweb.rest.*;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.ReadingService;
+import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.services.WitnessSequenceIndex;
 import net.stemmaweb.stemmaserver.JerseyTestServerFactory;
 
 import net.stemmaweb.stemmaserver.Util;
@@ -89,6 +93,59 @@ public class WitnessTest {
         assertEquals(constructResult(expectedText), returnedText);
     }
 
+    @Test
+    public void witnessTextFollowsSequenceChangesTest() {
+        String expectedText = "when april with his showers sweet with "
+                + "fruit the drought of march has pierced unto the root";
+        Response resp = new Witness(tradId, "A").getWitnessAsText();
+        assertEquals(expectedText, ((TextSequenceModel) resp.getEntity()).getText());
+        WitnessSequenceIndex index;
+        try (Transaction tx = db.beginTx()) {
+            index = WitnessSequenceIndex.forSection(VariantGraphService.getSectionNodes(tradId, db).get(0), false);
+            tx.success();
+        }
+        long[] sequenceB = index.getSequence("B", Collections.emptyList());
+
+        // Reroute witness A around "his", out of band
+        try (Transaction tx = db.beginTx()) {
+            Node his = db.findNode(Nodes.READING, "text", "his");
+            Node prior = his.getSingleRelationship(ERelations.SEQUENCE, Direction.INCOMING).getStartNode();
+            Node next = his.getSingleRelationship(ERelations.SEQUENCE, Direction.OUTGOING).getEndNode();
+            ReadingService.removeWitnessLink(prior, his, "A", "witnesses", "none");
+            ReadingService.removeWitnessLink(his, next, "A", "witnesses", "none");
+            ReadingService.addWitnessLink(prior, next, "A", "witnesses");
+            // The change can see itself in an index of its own, but the kept one is as committed
+            Node section = VariantGraphService.getSectionNodes(tradId, db).get(0);
+            WitnessSequenceIndex own = WitnessSequenceIndex.forSection(section, true);
+            assertNotSame(index, own);
+            assertEquals(expectedText.split(" ").length, own.getSequence("A", Collections.emptyList()).length);
+            assertSame(index, WitnessSequenceIndex.forSection(section, false));
+            tx.success();
+        }
+        resp = new Witness(tradId, "A").getWitnessAsText();
+        assertEquals(expectedText.replace("his ", ""), ((TextSequenceModel) resp.getEntity()).getText());
+        List<ReadingModel> readings = jerseyTest
+                .target("/tradition/" + tradId + "/witness/A/readings")
+                .request()
+                .get(new GenericType<List<ReadingModel>>() {});
+        assertTrue(readings.stream().noneMatch(x -> x.getText().equals("his")));
+
+        // Witness B should be unaffected
+        resp = new Witness(tradId, "B").getWitnessAsText();
+        assertEquals("when showers sweet with april fruit the march of drought has pierced to the root",
+                ((TextSequenceModel) resp.getEntity()).getText());
+
+        // The section's index should have been updated rather than rebuilt, and the sequence
+        // of witness B kept as it was
+        try (Transaction tx = db.beginTx()) {
+            assertSame(index, WitnessSequenceIndex.forSection(VariantGraphService.getSectionNodes(tradId, db).get(0), false));
+            tx.success();
+        }
+        assertSame(sequenceB, index.getSequence("B", Collections.emptyList()));
+        // One reading fewer for witness A, followed by the end node
+        assertEquals(expectedText.split(" ").length, index.getSequence("A", Collections.emptyList()).length);
+    }
+
     @Test
     public void witnessAsTextNotExistingTest() {
         Response response = jerseyTest